@@ -0,0 +1,72 @@
+package com.virjar.dungproxy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.virjar.dungproxy.client.ippool.DomainPool;
+import com.virjar.dungproxy.client.ippool.config.DungProxyContext;
+import com.virjar.dungproxy.client.model.AvProxy;
+
+/**
+ * AvProxy打分反馈的开销,同步模式下recordFailed会调整IP在容器中的优先级,异步模式下只记录反馈
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvProxyBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean concurrent;
+
+    @Param({ "false", "true" })
+    public boolean asyncScoring;
+
+    @Param({ "200" })
+    public int proxySize;
+
+    private DomainPool domainPool;
+
+    private AvProxy avProxy;
+
+    @Setup
+    public void setUp() {
+        DungProxyContext dungProxyContext = BenchmarkSupport.newDungProxyContext(concurrent)
+                .setAsyncScoring(asyncScoring);
+        domainPool = BenchmarkSupport.newDomainPool(dungProxyContext, proxySize);
+        avProxy = domainPool.bind(BenchmarkSupport.BENCH_URL);
+    }
+
+    /**
+     * 连续两次使用之间没有失败,第二次使用的时候记录一次成功
+     */
+    @Benchmark
+    public double recordUsage() {
+        avProxy.recordUsage();
+        return avProxy.getAvgScore();
+    }
+
+    /**
+     * 使用两次成功一次失败,分值稳定在下线阈值之上,不会导致IP下线
+     */
+    @Benchmark
+    public double recordUsageAndFailed() {
+        avProxy.recordUsage();
+        avProxy.recordUsage();
+        avProxy.recordFailed();
+        return avProxy.getAvgScore();
+    }
+}
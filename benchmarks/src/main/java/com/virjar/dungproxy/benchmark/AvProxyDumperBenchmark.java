@@ -0,0 +1,84 @@
+package com.virjar.dungproxy.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.virjar.dungproxy.benchmark.stub.InMemoryResourceFacade;
+import com.virjar.dungproxy.client.ippool.strategy.AvProxyDumper;
+import com.virjar.dungproxy.client.ippool.strategy.impl.BinaryAvProxyDumper;
+import com.virjar.dungproxy.client.ippool.strategy.impl.JSONFileAvProxyDumper;
+import com.virjar.dungproxy.client.model.AvProxyVO;
+
+/**
+ * 启动时反序列化IP池快照的开销,对比json格式和二进制格式。配合 -prof gc 观察分配量
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvProxyDumperBenchmark {
+
+    @Param({ "json", "binary" })
+    public String format;
+
+    @Param({ "100000" })
+    public int proxySize;
+
+    private File dumpDir;
+
+    private AvProxyDumper avProxyDumper;
+
+    @Setup
+    public void setUp() throws IOException {
+        dumpDir = Files.createTempDir();
+        File dumpFile = new File(dumpDir, "availableProxy." + format);
+        avProxyDumper = "json".equals(format) ? new JSONFileAvProxyDumper(dumpFile.getAbsolutePath())
+                : new BinaryAvProxyDumper(dumpFile.getAbsolutePath());
+        Map<String, List<AvProxyVO>> data = Maps.newHashMap();
+        // 多数IP在一个域名下,少量分散在其他域名
+        data.put(BenchmarkSupport.BENCH_DOMAIN, InMemoryResourceFacade.newProxies(proxySize * 9 / 10));
+        for (int i = 0; i < 10; i++) {
+            data.put("site" + i + ".virjar.com", InMemoryResourceFacade.newProxies(proxySize / 100));
+        }
+        avProxyDumper.serializeProxy(data);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dumpDir);
+    }
+
+    /**
+     * json序列化器返回懒加载的list,这里遍历所有元素,和IpPool.unSerialize的使用方式一致
+     */
+    @Benchmark
+    public void unSerialize(Blackhole blackhole) {
+        for (List<AvProxyVO> proxies : avProxyDumper.unSerializeProxy().values()) {
+            for (AvProxyVO avProxyVO : proxies) {
+                blackhole.consume(avProxyVO);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.virjar.dungproxy.benchmark;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import com.virjar.dungproxy.benchmark.stub.AlwaysAvailableProxyChecker;
+import com.virjar.dungproxy.benchmark.stub.InMemoryResourceFacade;
+import com.virjar.dungproxy.benchmark.stub.NoopAvProxyDumper;
+import com.virjar.dungproxy.client.ippool.DomainPool;
+import com.virjar.dungproxy.client.ippool.IpPool;
+import com.virjar.dungproxy.client.ippool.config.DomainContext;
+import com.virjar.dungproxy.client.ippool.config.DungProxyContext;
+import com.virjar.dungproxy.client.ippool.strategy.impl.DefaultOffliner;
+import com.virjar.dungproxy.client.ippool.strategy.impl.DefaultScoring;
+import com.virjar.dungproxy.client.model.AvProxy;
+import com.virjar.dungproxy.client.model.AvProxyVO;
+
+/**
+ * benchmark公共的数据构造工具,所有数据都在内存中生成,不依赖网络
+ */
+public class BenchmarkSupport {
+    public static final String BENCH_DOMAIN = "www.virjar.com";
+    public static final String BENCH_URL = "http://www.virjar.com/index.html";
+
+    static {
+        // 避免构造AvProxy的时候触发全局IP池初始化和序列化
+        AvProxy.needRecordChange = false;
+    }
+
+    public static DomainContext newDomainContext(String domain) {
+        return DomainContext.create(domain).setScoring(new DefaultScoring()).setOffline(new DefaultOffliner())
+                .setScoreFactory(15).setCoreSize(50).setSmartProxyQueueRatio(0.3D);
+    }
+
+    /**
+     * IP下载,可用性检查,序列化全部替换为内存实现,IP使用间隔为0,避免IP被封禁影响调度路径
+     */
+    public static DungProxyContext newDungProxyContext(boolean concurrentProxyQueue) {
+        return DungProxyContext.create().setDefaultResourceFacade(InMemoryResourceFacade.class)
+                .setDefaultProxyChecker(AlwaysAvailableProxyChecker.class).setAvProxyDumper(new NoopAvProxyDumper())
+                .setDefaultUseInterval(0).setDefaultCoreSize(50)
+                .setDefaultConcurrentProxyQueue(concurrentProxyQueue);
+    }
+
+    public static IpPool newIpPool(DungProxyContext dungProxyContext, int proxySize) {
+        IpPool ipPool = IpPool.create(dungProxyContext);
+        // IpPool.unSerialize会恢复这个标记位,这里重新关闭
+        AvProxy.needRecordChange = false;
+        DomainPool domainPool = new DomainPool(BENCH_DOMAIN, dungProxyContext.genDomainContext(BENCH_DOMAIN));
+        fill(domainPool, proxySize);
+        ipPool.getPool().put(BENCH_DOMAIN, domainPool);
+        return ipPool;
+    }
+
+    public static DomainPool newDomainPool(DungProxyContext dungProxyContext, int proxySize) {
+        DomainPool domainPool = new DomainPool(BENCH_DOMAIN, dungProxyContext.genDomainContext(BENCH_DOMAIN));
+        fill(domainPool, proxySize);
+        return domainPool;
+    }
+
+    private static void fill(DomainPool domainPool, int proxySize) {
+        for (AvProxyVO avProxyVO : InMemoryResourceFacade.newProxies(proxySize)) {
+            domainPool.addAvailable(avProxyVO.toModel(domainPool.getDomainContext()));
+        }
+    }
+
+    public static List<AvProxy> newProxies(DomainContext domainContext, int size) {
+        Random random = new Random(size);
+        List<AvProxy> ret = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            AvProxy avProxy = new AvProxy(domainContext);
+            avProxy.setIp("10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff));
+            avProxy.setPort(3128);
+            avProxy.setAvgScore(random.nextDouble());
+            ret.add(avProxy);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,63 @@
+package com.virjar.dungproxy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.virjar.dungproxy.client.util.CharsetDetector;
+
+/**
+ * meta标签字符集探测的开销,对比字节扫描和原来基于字符串切分的实现。页面的head里面有若干个meta,body里面还有大量带meta的微数据<br/>
+ * 配合 -prof gc 观察分配量
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharsetDetectorBenchmark {
+
+    @Param({ "10240", "102400", "1048576" })
+    public int pageSize;
+
+    private byte[] page;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder(pageSize);
+        sb.append("<html><head><meta name=\"viewport\" content=\"width=device-width\">")
+                .append("<meta name=\"keywords\" content=\"proxy,crawler\">")
+                .append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=gbk\">")
+                .append("<title>dungproxy</title></head><body>");
+        int line = 0;
+        while (sb.length() < pageSize) {
+            sb.append("<div class=\"item\"><meta itemprop=\"position\" content=\"").append(line++)
+                    .append("\">proxy pool ").append(line).append("</div>\n");
+        }
+        sb.append("</body></html>");
+        page = sb.toString().getBytes(Charsets.UTF_8);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Benchmark
+    public String substrings() {
+        return CharsetDetector.detectHtmlContentBySubstrings(page);
+    }
+
+    @Benchmark
+    public String byteScan() {
+        return CharsetDetector.detectHtmlContent(page);
+    }
+}
@@ -0,0 +1,79 @@
+package com.virjar.dungproxy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.virjar.dungproxy.client.ippool.GroupBindRouter;
+
+/**
+ * 域名路由的开销,包括缓存命中和大量不同子域名导致的缓存未命中两种场景
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupBindRouterBenchmark {
+
+    private static final int SUBDOMAIN_SIZE = 1 << 16;
+
+    private GroupBindRouter groupBindRouter;
+
+    private String[] subDomains;
+
+    private int cursor = 0;
+
+    @Setup(Level.Trial)
+    public void prepareDomains() {
+        subDomains = new String[SUBDOMAIN_SIZE];
+        for (int i = 0; i < SUBDOMAIN_SIZE; i++) {
+            subDomains[i] = "s" + i + ".img.virjar.com";
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        // 每轮重新建立路由器,保证未命中场景真的没有缓存
+        groupBindRouter = new GroupBindRouter();
+        groupBindRouter.buildCombinationRule(
+                "www.dytt8.net:www.ygdy8.net;www.douban.com:.*\\.douban\\.com,douban\\.fm;www.virjar.com:.*\\.virjar\\.com");
+        cursor = 0;
+    }
+
+    @Benchmark
+    public String routeHit() {
+        return groupBindRouter.routeDomain("www.ygdy8.net");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String routeHit8Threads() {
+        return groupBindRouter.routeDomain("www.ygdy8.net");
+    }
+
+    @Benchmark
+    public String routeNoRule() {
+        return groupBindRouter.routeDomain("www.baidu.com");
+    }
+
+    /**
+     * 每次访问一个新的子域名,前SUBDOMAIN_SIZE次调用都是缓存未命中
+     */
+    @Benchmark
+    public String routeDistinctSubDomain() {
+        return groupBindRouter.routeDomain(subDomains[(cursor++) & (SUBDOMAIN_SIZE - 1)]);
+    }
+}
@@ -0,0 +1,71 @@
+package com.virjar.dungproxy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.virjar.dungproxy.client.ippool.DomainPool;
+import com.virjar.dungproxy.client.ippool.IpPool;
+import com.virjar.dungproxy.client.model.AvProxy;
+
+/**
+ * IpPool.bind()和DomainPool.bind()的调度开销,这是每个被代理的请求都要付出的代价
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IpPoolBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean concurrent;
+
+    @Param({ "200" })
+    public int proxySize;
+
+    private IpPool ipPool;
+
+    private DomainPool domainPool;
+
+    @Setup
+    public void setUp() {
+        ipPool = BenchmarkSupport.newIpPool(BenchmarkSupport.newDungProxyContext(concurrent), proxySize);
+        domainPool = BenchmarkSupport.newDomainPool(BenchmarkSupport.newDungProxyContext(concurrent), proxySize);
+    }
+
+    @Benchmark
+    public AvProxy ipPoolBind() {
+        // 默认路由规则下所有域名都会被路由到同一个IP池,这里包含了路由的开销
+        return ipPool.bind("img.virjar.com", BenchmarkSupport.BENCH_URL);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public AvProxy ipPoolBind8Threads() {
+        return ipPool.bind("img.virjar.com", BenchmarkSupport.BENCH_URL);
+    }
+
+    @Benchmark
+    public AvProxy domainPoolBind() {
+        return domainPool.bind(BenchmarkSupport.BENCH_URL);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public AvProxy domainPoolBind8Threads() {
+        return domainPool.bind(BenchmarkSupport.BENCH_URL);
+    }
+}
@@ -0,0 +1,59 @@
+package com.virjar.dungproxy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.virjar.dungproxy.client.httpclient.conn.ProxyBindRoutPlanner;
+
+/**
+ * httpclient路由阶段的开销,ProxyBindRoutPlanner.determineProxy在这里被调用,包含了从IP池绑定IP的全部过程
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyBindRoutPlannerBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean concurrent;
+
+    @Param({ "200" })
+    public int proxySize;
+
+    private ProxyBindRoutPlanner proxyBindRoutPlanner;
+
+    private HttpHost target = new HttpHost(BenchmarkSupport.BENCH_DOMAIN, 80);
+
+    @Setup
+    public void setUp() {
+        proxyBindRoutPlanner = new ProxyBindRoutPlanner(null,
+                BenchmarkSupport.newIpPool(BenchmarkSupport.newDungProxyContext(concurrent), proxySize));
+    }
+
+    /**
+     * 每次都是新的请求上下文,对应爬虫每次抓取一个新页面
+     */
+    @Benchmark
+    public HttpRoute determineRoute() throws HttpException {
+        return proxyBindRoutPlanner.determineRoute(target, new HttpGet(BenchmarkSupport.BENCH_URL),
+                HttpClientContext.create());
+    }
+}
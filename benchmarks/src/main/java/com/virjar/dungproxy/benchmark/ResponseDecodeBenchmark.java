@@ -0,0 +1,103 @@
+package com.virjar.dungproxy.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.virjar.dungproxy.client.httpclient.ResponseBodyDecoder;
+
+/**
+ * 响应体解码的开销,对比整体读入byte[]再解码和流式解码。页面没有Content-Type头,字符集只能从meta标签探测<br/>
+ * 配合 -prof gc 观察每次解码的分配量。1MB页面上buffered约6.6MB/op,streaming约5.5MB/op(省掉的是EntityUtils扩容和复制的字节数组),
+ * 两者都要同时持有字节数组和解码出的字符数组,解码为String的峰值内存相同;streamingReader约40KB/op,与页面大小无关
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseDecodeBenchmark {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({ "10240", "1048576", "10485760" })
+    public int pageSize;
+
+    private byte[] page;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder(pageSize);
+        sb.append("<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\">")
+                .append("<title>dungproxy</title></head><body>");
+        int line = 0;
+        while (sb.length() < pageSize) {
+            sb.append("<div class=\"item\"><meta itemprop=\"position\" content=\"").append(line++)
+                    .append("\">代理IP池 proxy pool ").append(line).append("</div>\n");
+        }
+        sb.append("</body></html>");
+        page = sb.toString().getBytes(UTF8);
+    }
+
+    private BasicHttpEntity entity() {
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream(page));
+        entity.setContentLength(page.length);
+        return entity;
+    }
+
+    /**
+     * 原来的实现:整体读入,meta探测扫描整个页面
+     */
+    @Benchmark
+    public String buffered() throws IOException {
+        byte[] bytes = EntityUtils.toByteArray(entity());
+        return new String(bytes, ResponseBodyDecoder.detectBody(bytes, bytes.length));
+    }
+
+    @Benchmark
+    public String streaming() throws IOException {
+        BasicHttpEntity entity = entity();
+        InputStream inputStream = entity.getContent();
+        byte[] sniff = new byte[8192];
+        int sniffLength = ResponseBodyDecoder.readFully(inputStream, sniff);
+        Charset charset = ResponseBodyDecoder.detectBody(sniff, sniffLength);
+        return ResponseBodyDecoder.decode(inputStream, sniff, sniffLength, charset, entity.getContentLength());
+    }
+
+    /**
+     * 通过ReaderCallback消费,不在内存中保存整个页面
+     */
+    @Benchmark
+    public long streamingReader() throws IOException {
+        InputStream inputStream = entity().getContent();
+        byte[] sniff = new byte[8192];
+        int sniffLength = ResponseBodyDecoder.readFully(inputStream, sniff);
+        Charset charset = ResponseBodyDecoder.detectBody(sniff, sniffLength);
+        Reader reader = ResponseBodyDecoder.newReader(inputStream, sniff, sniffLength, charset);
+        char[] buffer = new char[8192];
+        long chars = 0;
+        int read;
+        while ((read = reader.read(buffer)) >= 0) {
+            chars += read;
+        }
+        return chars;
+    }
+}
@@ -0,0 +1,93 @@
+package com.virjar.dungproxy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.virjar.dungproxy.client.ippool.ConcurrentSmartProxyQueue;
+import com.virjar.dungproxy.client.ippool.SmartProxyQueue;
+import com.virjar.dungproxy.client.model.AvProxy;
+
+/**
+ * SmartProxyQueue和ConcurrentSmartProxyQueue在不同并发度下的调度吞吐对比,模拟DomainPool.bind()对容器的访问
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartProxyQueueBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean concurrent;
+
+    @Param({ "200" })
+    public int proxySize;
+
+    private SmartProxyQueue queue;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        queue = concurrent ? new ConcurrentSmartProxyQueue(0.3D, 0L) : new SmartProxyQueue(0.3D, 0L);
+        queue.addAllProxy(BenchmarkSupport.newProxies(BenchmarkSupport.newDomainContext("bench.virjar.com"),
+                proxySize));
+    }
+
+    private AvProxy bindAndFeedBack() {
+        AvProxy avProxy = queue.getAndAdjustPriority((queue.availableSize() * queue.getRatio()) <= 2);
+        // 大约1/16的调度伴随一次优先级调整,对应爬虫使用过程中的失败反馈
+        if (avProxy != null && (avProxy.hashCode() & 0x0f) == 0) {
+            queue.adjustPriority(avProxy);
+        }
+        return avProxy;
+    }
+
+    /**
+     * 单独测量优先级调整,IP每次失败反馈都会触发一次
+     */
+    @Benchmark
+    public AvProxy adjustPriority() {
+        AvProxy avProxy = queue.getAndAdjustPriority(false);
+        if (avProxy != null) {
+            queue.adjustPriority(avProxy);
+        }
+        return avProxy;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public AvProxy bind1Thread() {
+        return bindAndFeedBack();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public AvProxy bind8Threads() {
+        return bindAndFeedBack();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public AvProxy bind64Threads() {
+        return bindAndFeedBack();
+    }
+
+    @Benchmark
+    @Threads(256)
+    public AvProxy bind256Threads() {
+        return bindAndFeedBack();
+    }
+}
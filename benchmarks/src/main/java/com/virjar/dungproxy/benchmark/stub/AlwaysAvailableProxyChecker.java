@@ -0,0 +1,14 @@
+package com.virjar.dungproxy.benchmark.stub;
+
+import com.virjar.dungproxy.client.ippool.strategy.ProxyChecker;
+import com.virjar.dungproxy.client.model.AvProxyVO;
+
+/**
+ * 不做网络检查,所有IP都认为可用
+ */
+public class AlwaysAvailableProxyChecker implements ProxyChecker {
+    @Override
+    public boolean available(AvProxyVO avProxyVO, String url) {
+        return true;
+    }
+}
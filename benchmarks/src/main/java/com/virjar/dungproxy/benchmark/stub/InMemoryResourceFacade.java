@@ -0,0 +1,47 @@
+package com.virjar.dungproxy.benchmark.stub;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.virjar.dungproxy.client.ippool.strategy.ResourceFacade;
+import com.virjar.dungproxy.client.model.AvProxyVO;
+
+/**
+ * 内存中生成IP资源,替代DefaultResourceFacade的网络下载,保证benchmark可以离线运行
+ */
+public class InMemoryResourceFacade implements ResourceFacade {
+    private static final AtomicInteger ipSeq = new AtomicInteger(0);
+
+    @Override
+    public List<AvProxyVO> importProxy(String domain, String testUrl, Integer number) {
+        if (number == null || number < 1) {
+            number = 30;
+        }
+        return newProxies(number);
+    }
+
+    @Override
+    public void feedBack(String domain, List<AvProxyVO> avProxies, List<AvProxyVO> disableProxies) {
+        // do nothing
+    }
+
+    @Override
+    public List<AvProxyVO> allAvailable() {
+        return newProxies(200);
+    }
+
+    public static List<AvProxyVO> newProxies(int number) {
+        List<AvProxyVO> ret = Lists.newArrayListWithCapacity(number);
+        for (int i = 0; i < number; i++) {
+            int seq = ipSeq.incrementAndGet();
+            AvProxyVO avProxyVO = new AvProxyVO();
+            avProxyVO.setIp("10." + ((seq >> 16) & 0xff) + "." + ((seq >> 8) & 0xff) + "." + (seq & 0xff));
+            avProxyVO.setPort(3128);
+            avProxyVO.setAvgScore(0.5D);
+            avProxyVO.setCloud(false);
+            ret.add(avProxyVO);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,26 @@
+package com.virjar.dungproxy.benchmark.stub;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import com.virjar.dungproxy.client.ippool.strategy.AvProxyDumper;
+import com.virjar.dungproxy.client.model.AvProxyVO;
+
+/**
+ * 不做序列化,避免benchmark过程中产生文件IO
+ */
+public class NoopAvProxyDumper implements AvProxyDumper {
+    @Override
+    public void setDumpFileName(String dumpFileName) {
+    }
+
+    @Override
+    public void serializeProxy(Map<String, List<AvProxyVO>> data) {
+    }
+
+    @Override
+    public Map<String, List<AvProxyVO>> unSerializeProxy() {
+        return Maps.newHashMap();
+    }
+}
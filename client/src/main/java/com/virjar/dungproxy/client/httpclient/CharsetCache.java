@@ -0,0 +1,185 @@
+package com.virjar.dungproxy.client.httpclient;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+
+/**
+ * 按照站点(scheme+host)缓存探测到的字符集,数量有上限,按照LRU和过期时间淘汰<br/>
+ * 探测失败的站点记录一个否定结果,在negativeTtl内不再做meta和二进制探测,直接使用默认字符集<br/>
+ * 同一个站点下不同路径编码不一致的时候,可以通过addOverride按照url前缀指定字符集,前缀匹配优先于缓存和探测,最长的前缀优先
+ */
+public class CharsetCache {
+    private final Cache<String, Charset> positive;
+    private final Cache<String, Boolean> negative;
+
+    // hostKey -> 这个站点下的前缀配置,按照前缀长度倒序
+    private final ConcurrentMap<String, List<PathOverride>> overrides = Maps.newConcurrentMap();
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong negativeHitCount = new AtomicLong(0);
+    private final AtomicLong overrideHitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+
+    /**
+     * 最多缓存10000个站点,一天没有访问过期,否定结果10分钟过期
+     */
+    public CharsetCache() {
+        this(10000, TimeUnit.DAYS.toMillis(1), TimeUnit.MINUTES.toMillis(10));
+    }
+
+    /**
+     * @param maxSize 最多缓存的站点数量,超过之后淘汰最久没有访问的站点
+     * @param ttlMillis 站点多久没有访问之后过期
+     * @param negativeTtlMillis 探测失败的结果保留多久
+     */
+    public CharsetCache(long maxSize, long ttlMillis, long negativeTtlMillis) {
+        positive = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterAccess(ttlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        negative = CacheBuilder.newBuilder().maximumSize(maxSize)
+                .expireAfterWrite(negativeTtlMillis, TimeUnit.MILLISECONDS).build();
+    }
+
+    public static String hostKey(URI uri) {
+        return uri.getScheme() + uri.getHost();
+    }
+
+    /**
+     * @param urlPrefix url前缀,如 http://www.virjar.com/gbk/ ,必须包含scheme和host
+     * @param charset 匹配这个前缀的页面使用的字符集
+     */
+    public CharsetCache addOverride(String urlPrefix, Charset charset) {
+        Preconditions.checkNotNull(charset, "charset can not be null");
+        URI uri = URI.create(urlPrefix);
+        Preconditions.checkArgument(uri.getScheme() != null && uri.getHost() != null,
+                "urlPrefix must contains scheme and host: %s", urlPrefix);
+        String hostKey = hostKey(uri);
+        List<PathOverride> pathOverrides = overrides.get(hostKey);
+        if (pathOverrides == null) {
+            overrides.putIfAbsent(hostKey, new CopyOnWriteArrayList<PathOverride>());
+            pathOverrides = overrides.get(hostKey);
+        }
+        synchronized (pathOverrides) {
+            String pathPrefix = StringUtils.defaultString(uri.getRawPath());
+            int index = 0;
+            while (index < pathOverrides.size() && pathOverrides.get(index).pathPrefix.length() >= pathPrefix.length()) {
+                index++;
+            }
+            pathOverrides.add(index, new PathOverride(pathPrefix, charset));
+        }
+        return this;
+    }
+
+    /**
+     * 查找url前缀配置的字符集
+     */
+    public Charset getOverride(URI uri) {
+        List<PathOverride> pathOverrides = overrides.get(hostKey(uri));
+        if (pathOverrides == null) {
+            return null;
+        }
+        String path = StringUtils.defaultString(uri.getRawPath());
+        for (PathOverride pathOverride : pathOverrides) {
+            if (path.startsWith(pathOverride.pathPrefix)) {
+                overrideHitCount.incrementAndGet();
+                return pathOverride.charset;
+            }
+        }
+        return null;
+    }
+
+    public Charset get(String hostKey) {
+        Charset charset = positive.getIfPresent(hostKey);
+        if (charset != null) {
+            hitCount.incrementAndGet();
+        }
+        return charset;
+    }
+
+    /**
+     * @return 这个站点最近探测失败过,不需要再做探测
+     */
+    public boolean isNegative(String hostKey) {
+        if (negative.getIfPresent(hostKey) != null) {
+            negativeHitCount.incrementAndGet();
+            return true;
+        }
+        missCount.incrementAndGet();
+        return false;
+    }
+
+    public void put(String hostKey, Charset charset) {
+        positive.put(hostKey, charset);
+        negative.invalidate(hostKey);
+    }
+
+    public void putIfAbsent(String hostKey, Charset charset) {
+        if (positive.asMap().putIfAbsent(hostKey, charset) == null) {
+            negative.invalidate(hostKey);
+        }
+    }
+
+    public void putNegative(String hostKey) {
+        negative.put(hostKey, Boolean.TRUE);
+    }
+
+    public void clear() {
+        positive.invalidateAll();
+        negative.invalidateAll();
+    }
+
+    public long size() {
+        return positive.size();
+    }
+
+    public long negativeSize() {
+        return negative.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getNegativeHitCount() {
+        return negativeHitCount.get();
+    }
+
+    public long getOverrideHitCount() {
+        return overrideHitCount.get();
+    }
+
+    /**
+     * @return 需要走完整探测流程的次数(响应头里面有字符集的请求不会走到这里)
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CharsetCache{size=" + size() + ", negativeSize=" + negativeSize() + ", hit=" + hitCount.get()
+                + ", negativeHit=" + negativeHitCount.get() + ", overrideHit=" + overrideHitCount.get() + ", miss="
+                + missCount.get() + "}";
+    }
+
+    private static class PathOverride {
+        private final String pathPrefix;
+        private final Charset charset;
+
+        PathOverride(String pathPrefix, Charset charset) {
+            this.pathPrefix = pathPrefix;
+            this.charset = charset;
+        }
+    }
+}
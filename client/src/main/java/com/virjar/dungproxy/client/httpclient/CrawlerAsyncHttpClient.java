@@ -0,0 +1,492 @@
+package com.virjar.dungproxy.client.httpclient;
+
+import java.io.Closeable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.NameValuePair;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookieSpec;
+import org.apache.http.cookie.MalformedCookieException;
+import org.apache.http.impl.cookie.DefaultCookieSpecProvider;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.util.Args;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncCompletionHandlerBase;
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+import com.ning.http.client.Request;
+import com.ning.http.client.RequestBuilder;
+import com.ning.http.client.Response;
+import com.ning.http.client.providers.netty.NettyAsyncHttpProvider;
+import com.ning.http.client.providers.netty.NettyAsyncHttpProviderConfig;
+import com.ning.http.client.uri.Uri;
+import com.virjar.dungproxy.client.httpclient.cookie.MultiUserCookieStore;
+import com.virjar.dungproxy.client.ippool.IpPool;
+import com.virjar.dungproxy.client.ippool.IpPoolHolder;
+import com.virjar.dungproxy.client.ippool.config.ProxyConstant;
+import com.virjar.dungproxy.client.ningclient.concurrent.NamedThreadFactory;
+import com.virjar.dungproxy.client.model.AvProxy;
+import com.virjar.dungproxy.client.ningclient.conn.DungProxyAsyncHttpProvider;
+import com.virjar.dungproxy.client.ningclient.conn.DungProxyRequest;
+import com.virjar.dungproxy.client.ningclient.http.GuavaListenableFuture;
+
+/**
+ * CrawlerHttpClient的异步版本,请求不占用线程,少量IO线程就可以同时挂起成千上万个代理请求<br/>
+ * 和同步客户端共用同一套IP池绑定,代理上下线,多用户cookie空间和字符集探测:
+ * <ul>
+ * <li>IP绑定和反馈通过DungProxyAsyncHttpProvider,每个请求都会recordUsage,IO异常和超时会recordFailed</li>
+ * <li>cookie保存在MultiUserCookieStore中,和CrawlerHttpClient使用同一个store的时候两边的cookie是互通的</li>
+ * <li>响应体的字符集解析规则和CrawlerHttpClient一致,共用CharsetCache</li>
+ * </ul>
+ * 底层是netty的NIO客户端,返回guava的ListenableFuture,回调在IO线程中执行,回调里面不要做阻塞操作
+ */
+public class CrawlerAsyncHttpClient implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(CrawlerAsyncHttpClient.class);
+
+    private final AsyncHttpClient asyncHttpClient;
+    private final NioClientSocketChannelFactory channelFactory;
+    private final HashedWheelTimer timer;
+    private final ExecutorService ioExecutor;
+
+    // cookie的匹配和解析规则和同步客户端的默认规则一致,DefaultCookieSpecProvider创建的实例是线程安全的
+    private final CookieSpec cookieSpec = new DefaultCookieSpecProvider().create(new BasicHttpContext());
+
+    private final IpPool ipPool;
+    private HedgingPolicy hedgingPolicy;
+
+    private MultiUserCookieStore cookieStore = MultiUserCookieStore.getDefaultMultiUserCookieStore();
+    private CharsetCache charsetCache = new CharsetCache();
+    private boolean charsetCacheEnable = true;
+
+    /**
+     * IO线程数为cpu核数,全局IP池
+     */
+    public CrawlerAsyncHttpClient() {
+        this(null, Runtime.getRuntime().availableProcessors(), defaultConfig());
+    }
+
+    /**
+     * @param ipPool 为null的时候使用全局的IP池
+     * @param ioThreads netty的IO线程数,所有连接共享这些线程
+     * @param configBuilder 连接数,超时等配置,会覆盖其中的provider配置和线程池
+     */
+    public CrawlerAsyncHttpClient(IpPool ipPool, int ioThreads, AsyncHttpClientConfig.Builder configBuilder) {
+        Args.positive(ioThreads, "ioThreads");
+        Args.notNull(configBuilder, "configBuilder");
+        if (ipPool == null) {
+            ipPool = IpPoolHolder.getIpPool();
+        }
+        this.ipPool = ipPool;
+        ioExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("crawler-async-io"));
+        channelFactory = new NioClientSocketChannelFactory(ioExecutor, ioExecutor, 1, ioThreads);
+        timer = new HashedWheelTimer(new NamedThreadFactory("crawler-async-timer"));
+        timer.start();
+
+        NettyAsyncHttpProviderConfig providerConfig = new NettyAsyncHttpProviderConfig();
+        providerConfig.setBossExecutorService(ioExecutor);
+        providerConfig.setSocketChannelFactory(channelFactory);
+        providerConfig.setNettyTimer(timer);
+        AsyncHttpClientConfig config = configBuilder.setAsyncHttpClientProviderConfig(providerConfig)
+                .setExecutorService(Executors.newCachedThreadPool(new NamedThreadFactory("crawler-async")))
+                .build();
+        asyncHttpClient = new AsyncHttpClient(
+                new DungProxyAsyncHttpProvider(new NettyAsyncHttpProvider(config), config, this.ipPool), config);
+    }
+
+    /**
+     * 代理请求的默认配置,超时和同步客户端保持一致。连接池按照代理分区,所以单个host的连接数限制实际上是单个代理的连接数
+     */
+    public static AsyncHttpClientConfig.Builder defaultConfig() {
+        return new AsyncHttpClientConfig.Builder().setConnectTimeout(ProxyConstant.CONNECT_TIMEOUT)
+                .setReadTimeout(ProxyConstant.SOCKET_TIMEOUT).setRequestTimeout(ProxyConstant.SOCKET_TIMEOUT * 2)
+                .setMaxConnections(10000).setMaxConnectionsPerHost(100).setAllowPoolingConnections(true)
+                .setPooledConnectionIdleTimeout(60000).setFollowRedirect(true).setMaxRedirects(5)
+                .setCompressionEnforced(true).setAcceptAnyCertificate(true);
+    }
+
+    public ListenableFuture<String> get(String url) {
+        return get(url, null, null, null);
+    }
+
+    public ListenableFuture<String> get(String url, String user) {
+        return get(url, null, user, null);
+    }
+
+    /**
+     * @param headers 请求头,可以为null
+     * @param user cookie空间,为null的时候使用默认用户
+     * @param charset 响应体的字符集,为null的时候自动探测
+     */
+    public ListenableFuture<String> get(String url, Header[] headers, String user, Charset charset) {
+        RequestBuilder builder = new RequestBuilder("GET").setUrl(url);
+        addHeaders(builder, headers);
+        return execute(builder.build(), user, charset);
+    }
+
+    public ListenableFuture<String> post(String url, List<NameValuePair> params, Header[] headers, String user,
+            Charset charset) {
+        RequestBuilder builder = new RequestBuilder("POST").setUrl(url);
+        addHeaders(builder, headers);
+        if (params != null) {
+            for (NameValuePair nameValuePair : params) {
+                builder.addFormParam(nameValuePair.getName(), nameValuePair.getValue());
+            }
+        }
+        return execute(builder.build(), user, charset);
+    }
+
+    /**
+     * 执行请求并按照同步客户端的规则解码响应体。开启了对冲请求的时候GET请求会走对冲流程
+     */
+    public ListenableFuture<String> execute(Request request, String user, Charset charset) {
+        if (hedgingPolicy != null && "GET".equalsIgnoreCase(request.getMethod()) && request.getProxyServer() == null) {
+            return new AsyncHedge(request, user, charset).start();
+        }
+        return execute(request, user, decodeHandler(charset));
+    }
+
+    private AsyncHandler<String> decodeHandler(final Charset charset) {
+        return new AsyncCompletionHandler<String>() {
+            @Override
+            public String onCompleted(Response response) throws Exception {
+                return decode(response, charset);
+            }
+        };
+    }
+
+    /**
+     * 返回原始响应,适合下载二进制内容或者需要判断状态码的场景
+     */
+    public ListenableFuture<Response> executeForResponse(Request request, String user) {
+        return execute(request, user, new AsyncCompletionHandlerBase());
+    }
+
+    /**
+     * 最底层的入口,请求会带上这个用户的cookie,响应的Set-Cookie会写回这个用户的cookie空间,然后交给IP池绑定代理
+     */
+    public <T> ListenableFuture<T> execute(Request request, String user, AsyncHandler<T> handler) {
+        return execute(request, user, null, handler);
+    }
+
+    /**
+     * @param avProxy 调用方已经绑定好的IP,为null的时候由DungProxyAsyncHttpProvider绑定
+     */
+    private <T> ListenableFuture<T> execute(Request request, String user, AvProxy avProxy, AsyncHandler<T> handler) {
+        RequestBuilder builder = new RequestBuilder(request);
+        addCookies(builder, request.getUri(), user);
+        Request cookieRequest = builder.build();
+        return new GuavaListenableFuture<T>(asyncHttpClient.executeRequest(
+                avProxy == null ? cookieRequest : new DungProxyRequest(cookieRequest, avProxy),
+                new CookieSaveHandler<T>(handler, user)));
+    }
+
+    /**
+     * 解码响应体,字符集的优先级和CrawlerHttpClient相同
+     */
+    public String decode(Response response, Charset charset) throws Exception {
+        byte[] bytes = response.getResponseBodyAsBytes();
+        if (bytes == null || bytes.length == 0) {
+            return "";
+        }
+        charset = ResponseBodyDecoder.resolveCharset(response.getHeader("Content-Type"), charset,
+                response.getUri().toJavaNetURI(), bytes, bytes.length, charsetCache, charsetCacheEnable);
+        return new String(bytes, charset);
+    }
+
+    private void addHeaders(RequestBuilder builder, Header[] headers) {
+        if (headers == null) {
+            return;
+        }
+        for (Header header : headers) {
+            builder.addHeader(header.getName(), header.getValue());
+        }
+    }
+
+    private void addCookies(RequestBuilder builder, Uri uri, String user) {
+        List<Cookie> cookies = cookieStore.getCookies(user, uri.getHost());
+        if (cookies.isEmpty()) {
+            return;
+        }
+        CookieOrigin cookieOrigin = cookieOrigin(uri);
+        Date now = new Date();
+        List<Cookie> matchedCookies = new ArrayList<>();
+        for (Cookie cookie : cookies) {
+            if (!cookie.isExpired(now) && cookieSpec.match(cookie, cookieOrigin)) {
+                matchedCookies.add(cookie);
+            }
+        }
+        if (matchedCookies.isEmpty()) {
+            return;
+        }
+        for (Header header : cookieSpec.formatCookies(matchedCookies)) {
+            builder.addHeader(header.getName(), header.getValue());
+        }
+    }
+
+    private void saveCookies(Uri uri, List<String> setCookies, String user) {
+        CookieOrigin cookieOrigin = cookieOrigin(uri);
+        for (String setCookie : setCookies) {
+            try {
+                for (Cookie cookie : cookieSpec.parse(new BasicHeader("Set-Cookie", setCookie), cookieOrigin)) {
+                    try {
+                        cookieSpec.validate(cookie, cookieOrigin);
+                        cookieStore.addCookie(cookie, user);
+                    } catch (MalformedCookieException e) {
+                        logger.debug("cookie rejected:{} ", setCookie, e);
+                    }
+                }
+            } catch (MalformedCookieException e) {
+                logger.debug("invalid cookie header:{} ", setCookie, e);
+            }
+        }
+    }
+
+    private static CookieOrigin cookieOrigin(Uri uri) {
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort();
+        if (port < 0) {
+            port = secure ? 443 : 80;
+        }
+        String path = uri.getPath();
+        return new CookieOrigin(uri.getHost(), port, path == null || path.isEmpty() ? "/" : path, secure);
+    }
+
+    public CrawlerAsyncHttpClient setCookieStore(MultiUserCookieStore cookieStore) {
+        this.cookieStore = Args.notNull(cookieStore, "cookieStore");
+        return this;
+    }
+
+    public MultiUserCookieStore getCookieStore() {
+        return cookieStore;
+    }
+
+    /**
+     * 和CrawlerHttpClient共用一个CharsetCache的时候,两边探测到的字符集可以互相复用
+     */
+    public CrawlerAsyncHttpClient setCharsetCache(CharsetCache charsetCache) {
+        this.charsetCache = Args.notNull(charsetCache, "charsetCache");
+        return this;
+    }
+
+    public CharsetCache getCharsetCache() {
+        return charsetCache;
+    }
+
+    public CrawlerAsyncHttpClient setCharsetCacheEnable(boolean charsetCacheEnable) {
+        this.charsetCacheEnable = charsetCacheEnable;
+        return this;
+    }
+
+    /**
+     * 开启对冲请求,只对通过IP池绑定代理的GET请求生效,为null的时候关闭
+     */
+    public CrawlerAsyncHttpClient setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    public AsyncHttpClient getAsyncHttpClient() {
+        return asyncHttpClient;
+    }
+
+    @Override
+    public void close() {
+        asyncHttpClient.close();
+        channelFactory.releaseExternalResources();
+        timer.stop();
+        ioExecutor.shutdown();
+    }
+
+    /**
+     * 异步的对冲请求,第一个请求超过域名延迟的p95还没有完成的时候,在定时器线程里面通过另一个IP发出第二个请求,采用先成功的一方
+     */
+    private class AsyncHedge {
+        private final Request request;
+        private final String user;
+        private final Charset charset;
+        private final SettableFuture<String> result = SettableFuture.create();
+
+        private AvProxy primaryProxy;
+        private ListenableFuture<String> primary;
+        private AvProxy backupProxy;
+        private ListenableFuture<String> backup;
+        private boolean primaryFailed = false;
+        private boolean backupFailed = false;
+
+        AsyncHedge(Request request, String user, Charset charset) {
+            this.request = request;
+            this.user = user;
+            this.charset = charset;
+        }
+
+        ListenableFuture<String> start() {
+            hedgingPolicy.recordRequest();
+            Uri uri = request.getUri();
+            primaryProxy = ipPool.bind(uri.getHost(), uri.toUrl());
+            if (primaryProxy == null) {// 没有IP,不需要对冲
+                return execute(request, user, decodeHandler(charset));
+            }
+            synchronized (this) {
+                primary = execute(request, user, primaryProxy, decodeHandler(charset));
+                listen(primary, true);
+            }
+            timer.newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) throws Exception {
+                    startBackup();
+                }
+            }, hedgingPolicy.hedgeDelay(ipPool.getDomainPool(uri.getHost())), TimeUnit.MILLISECONDS);
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (result.isCancelled()) {
+                        cancelAll();
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+            return result;
+        }
+
+        private void startBackup() {
+            Uri uri = request.getUri();
+            synchronized (this) {
+                if (result.isDone() || primary.isDone()) {
+                    return;
+                }
+                backupProxy = hedgingPolicy.bindBackup(ipPool, uri.getHost(), uri.toUrl(), primaryProxy);
+                if (backupProxy == null) {
+                    return;
+                }
+                hedgingPolicy.recordHedged();
+                backup = execute(request, user, backupProxy, decodeHandler(charset));
+                listen(backup, false);
+            }
+        }
+
+        private void listen(final ListenableFuture<String> future, final boolean isPrimary) {
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        onSuccess(isPrimary, Uninterruptibles.getUninterruptibly(future));
+                    } catch (ExecutionException e) {
+                        onFailure(isPrimary, e.getCause());
+                    } catch (CancellationException e) {
+                        onFailure(isPrimary, e);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        private synchronized void onSuccess(boolean isPrimary, String value) {
+            if (!result.set(value)) {
+                return;
+            }
+            if (isPrimary) {
+                if (backup != null && !backup.isDone()) {// 后发出的请求只取消,不计分
+                    backupProxy.recordCancelled();
+                    backup.cancel(true);
+                }
+            } else {
+                hedgingPolicy.recordHedgeWin();
+                if (!primary.isDone()) {// 先发出的请求比后发出的还慢,记为失败
+                    primaryProxy.recordFailed();
+                    primary.cancel(true);
+                }
+            }
+        }
+
+        private synchronized void onFailure(boolean isPrimary, Throwable throwable) {
+            if (isPrimary) {
+                primaryFailed = true;
+            } else {
+                backupFailed = true;
+            }
+            // 另一个请求还有机会成功的时候继续等待
+            if (isPrimary ? backup == null || backupFailed : primaryFailed) {
+                result.setException(throwable);
+            }
+        }
+
+        private synchronized void cancelAll() {
+            primary.cancel(true);
+            if (backup != null) {
+                backup.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * 收到响应头的时候把Set-Cookie写回用户的cookie空间。跟随重定向的时候中间的响应不会回调到这里
+     */
+    private class CookieSaveHandler<T> implements AsyncHandler<T> {
+        private final AsyncHandler<T> delegate;
+        private final String user;
+        private Uri uri;
+
+        CookieSaveHandler(AsyncHandler<T> delegate, String user) {
+            this.delegate = delegate;
+            this.user = user;
+        }
+
+        @Override
+        public void onThrowable(Throwable t) {
+            delegate.onThrowable(t);
+        }
+
+        @Override
+        public STATE onBodyPartReceived(HttpResponseBodyPart bodyPart) throws Exception {
+            return delegate.onBodyPartReceived(bodyPart);
+        }
+
+        @Override
+        public STATE onStatusReceived(HttpResponseStatus responseStatus) throws Exception {
+            uri = responseStatus.getUri();
+            return delegate.onStatusReceived(responseStatus);
+        }
+
+        @Override
+        public STATE onHeadersReceived(HttpResponseHeaders headers) throws Exception {
+            List<String> setCookies = headers.getHeaders().get("Set-Cookie");
+            if (uri != null && setCookies != null && !setCookies.isEmpty()) {
+                saveCookies(uri, setCookies, user);
+            }
+            return delegate.onHeadersReceived(headers);
+        }
+
+        @Override
+        public T onCompleted() throws Exception {
+            return delegate.onCompleted();
+        }
+    }
+}
@@ -2,10 +2,15 @@ package com.virjar.dungproxy.client.httpclient;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
@@ -43,12 +48,12 @@ import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.Args;
 import org.apache.http.util.EntityUtils;
-import org.mozilla.universalchardet.UniversalDetector;
 
 import com.alibaba.fastjson.JSONObject;
-import com.google.common.collect.Maps;
+import com.virjar.dungproxy.client.httpclient.conn.ProxyBindRoutPlanner;
+import com.virjar.dungproxy.client.ippool.IpPool;
 import com.virjar.dungproxy.client.ippool.config.ProxyConstant;
-import com.virjar.dungproxy.client.util.CharsetDetector;
+import com.virjar.dungproxy.client.model.AvProxy;
 
 /**
  * 包装httpclient,应该继承它 Created by virjar on 16/9/19.
@@ -66,14 +71,18 @@ public class CrawlerHttpClient extends CloseableHttpClient implements Configurab
     private final CredentialsProvider credentialsProvider;
     private final RequestConfig defaultConfig;
     private final List<Closeable> closeables;
-    private ConcurrentMap<String, Charset> charsetCache = Maps.newConcurrentMap();
+    private final CharsetCache charsetCache;
     private boolean charsetCacheEnable = true;
+    private boolean streamingDecode = true;
+    private int charsetSniffSize = 8192;
+    private final HedgingPolicy hedgingPolicy;
 
     CrawlerHttpClient(final ClientExecChain execChain, final HttpClientConnectionManager connManager,
             final HttpRoutePlanner routePlanner, final Lookup<CookieSpecProvider> cookieSpecRegistry,
             final Lookup<AuthSchemeProvider> authSchemeRegistry, final CookieStore cookieStore,
             final CredentialsProvider credentialsProvider, final RequestConfig defaultConfig,
-            final List<Closeable> closeables, final boolean charsetCacheEnable) {
+            final List<Closeable> closeables, final CharsetCache charsetCache, final boolean charsetCacheEnable,
+            final boolean streamingDecode, final int charsetSniffSize, final HedgingPolicy hedgingPolicy) {
         super();
         Args.notNull(execChain, "HTTP client exec chain");
         Args.notNull(connManager, "HTTP connection manager");
@@ -87,7 +96,11 @@ public class CrawlerHttpClient extends CloseableHttpClient implements Configurab
         this.credentialsProvider = credentialsProvider;
         this.defaultConfig = defaultConfig;
         this.closeables = closeables;
+        this.charsetCache = charsetCache;
         this.charsetCacheEnable = charsetCacheEnable;
+        this.streamingDecode = streamingDecode;
+        this.charsetSniffSize = charsetSniffSize;
+        this.hedgingPolicy = hedgingPolicy;
     }
 
     private HttpRoute determineRoute(final HttpHost target, final HttpRequest request, final HttpContext context)
@@ -344,9 +357,204 @@ public class CrawlerHttpClient extends CloseableHttpClient implements Configurab
         if (headers != null && headers.length > 0) {
             httpGet.setHeaders(headers);
         }
+        if (hedgingPolicy != null && StringUtils.isEmpty(proxyIp) && routePlanner instanceof ProxyBindRoutPlanner) {
+            return hedgedGet(httpGet, charset, httpClientContext);
+        }
         try {
             return decodeHttpResponse(execute(httpGet, httpClientContext), charset,
-                    httpGet.getURI().getScheme() + httpGet.getURI().getHost());
+                    httpGet.getURI());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 对冲请求:第一个请求超过域名延迟的p95还没有返回的时候,通过另一个IP再发一次,采用先成功的一方
+     */
+    private String hedgedGet(HttpGet httpGet, Charset charset, HttpContext httpContext) {
+        hedgingPolicy.recordRequest();
+        IpPool ipPool = ((ProxyBindRoutPlanner) routePlanner).getIpPool();
+        URI uri = httpGet.getURI();
+        BlockingQueue<HedgeAttempt> completed = new ArrayBlockingQueue<>(2);
+        HedgeAttempt primary = new HedgeAttempt(httpGet, charset, httpContext, completed);
+        // 第一个请求在等待之前绑定IP,否则它还在线程池里排队的时候对冲请求无法排除这个IP
+        AvProxy primaryProxy = primary.boundProxy();
+        if (primaryProxy == null || primaryProxy.isDisable()) {
+            primaryProxy = ipPool.bind(uri.getHost(), uri.toString());
+        }
+        if (primaryProxy == null) {// 没有IP,不需要对冲
+            try {
+                return decodeHttpResponse(execute(httpGet, httpContext), charset, uri);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        primary.context.setAttribute(ProxyConstant.USED_PROXY_KEY, primaryProxy);
+        HedgeAttempt backup = null;
+        try {
+            hedgingPolicy.getExecutor().execute(primary);
+            HedgeAttempt winner = completed.poll(hedgingPolicy.hedgeDelay(ipPool.getDomainPool(uri.getHost())),
+                    TimeUnit.MILLISECONDS);
+            if (winner != null) {
+                return winner.finish(httpContext);
+            }
+
+            AvProxy backupProxy = hedgingPolicy.bindBackup(ipPool, uri.getHost(), uri.toString(), primaryProxy);
+            if (backupProxy == null) {
+                return completed.take().finish(httpContext);
+            }
+            HttpGet backupGet = new HttpGet(uri);
+            backupGet.setConfig(httpGet.getConfig());
+            backupGet.setHeaders(httpGet.getAllHeaders());
+            backup = new HedgeAttempt(backupGet, charset, httpContext, completed);
+            backup.context.setAttribute(ProxyConstant.USED_PROXY_KEY, backupProxy);
+            hedgingPolicy.recordHedged();
+            hedgingPolicy.getExecutor().execute(backup);
+
+            winner = completed.take();
+            if (winner.result == null) {// 先结束的一方失败了,等另一方
+                winner = completed.take();
+            }
+            if (winner == primary) {
+                backup.cancel(false);
+            } else {
+                if (winner.result != null) {
+                    hedgingPolicy.recordHedgeWin();
+                }
+                primary.cancel(true);
+            }
+            return winner.finish(httpContext);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // 调用方放弃了这次请求,两个请求都不是因为慢被取消,都不计分
+            primary.cancel(false);
+            if (backup != null) {
+                backup.cancel(false);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 对冲请求中的一次请求,使用独立的子context,这样两次请求可以绑定不同的IP
+     */
+    private class HedgeAttempt implements Runnable {
+        private final HttpGet httpGet;
+        private final Charset charset;
+        private final HttpClientContext context;
+        private final BlockingQueue<HedgeAttempt> completed;
+        private volatile String result;
+        private volatile boolean done = false;
+        private volatile long startTime = 0;
+
+        HedgeAttempt(HttpGet httpGet, Charset charset, HttpContext parent, BlockingQueue<HedgeAttempt> completed) {
+            this.httpGet = httpGet;
+            this.charset = charset;
+            this.context = HttpClientContext.adapt(new BasicHttpContext(parent));
+            // 遮住调用方context里面上一次请求留下的标记
+            this.context.setAttribute(ProxyConstant.LATENCY_RECORDED_KEY, Boolean.FALSE);
+            this.completed = completed;
+        }
+
+        @Override
+        public void run() {
+            startTime = System.nanoTime();
+            try {
+                result = decodeHttpResponse(execute(httpGet, context), charset, httpGet.getURI());
+            } catch (IOException e) {
+                result = null;
+            } finally {
+                done = true;
+                completed.offer(this);
+            }
+        }
+
+        AvProxy boundProxy() {
+            return (AvProxy) context.getAttribute(ProxyConstant.USED_PROXY_KEY);
+        }
+
+        /**
+         * 请求已经结束的时候什么都不做。没有结束的时候中断请求,并且按照slow处理绑定的IP<br/>
+         * slow=false的时候只是通过{@link AvProxy#recordCancelled()}清掉这次使用的标记,不记成功也不记失败,
+         * 下一次绑定的时候这次使用也不会被当作成功,IP的分值和位置都不变
+         *
+         * @param slow 被取消的请求是先发出的,比后发出的请求还慢,记为失败;否则只是取消,不计分
+         */
+        void cancel(boolean slow) {
+            if (done) {
+                return;
+            }
+            context.setAttribute(ProxyConstant.HEDGE_CANCELLED_KEY, Boolean.TRUE);
+            AvProxy avProxy = boundProxy();
+            if (avProxy != null) {
+                if (slow) {
+                    avProxy.recordFailed();
+                } else {
+                    avProxy.recordCancelled();
+                }
+                // 还没有收到响应头,记录延迟的下界
+                long start = startTime;
+                if (start != 0 && !Boolean.TRUE.equals(context.getAttribute(ProxyConstant.LATENCY_RECORDED_KEY))) {
+                    avProxy.recordCancelledLatency((System.nanoTime() - start) / 1000000);
+                }
+            }
+            httpGet.abort();
+        }
+
+        /**
+         * 把胜出的请求绑定的IP放回调用方的context,保持原来context和IP绑定的语义
+         */
+        String finish(HttpContext parent) {
+            AvProxy avProxy = boundProxy();
+            if (parent != null && avProxy != null) {
+                parent.setAttribute(ProxyConstant.USED_PROXY_KEY, avProxy);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 以流的方式读取页面,页面内容不会整个放到内存中,适合很大的页面。字符集探测规则和get一致<br/>
+     * 回调读完整个页面的时候连接放回连接池;回调提前返回的时候直接关闭连接,不会把剩下的内容读完
+     *
+     * @return 回调的返回值,网络异常的时候返回null。回调抛出的IOException会记录日志,同样返回null
+     */
+    public <T> T get(String url, Header[] headers, HttpClientContext httpClientContext, ReaderCallback<T> callback) {
+        HttpGet httpGet = new HttpGet(url);
+        httpGet.setConfig(RequestConfig.custom().setSocketTimeout(ProxyConstant.SOCKET_TIMEOUT)
+                .setConnectTimeout(ProxyConstant.CONNECT_TIMEOUT)
+                .setConnectionRequestTimeout(ProxyConstant.REQUEST_TIMEOUT).setRedirectsEnabled(true)
+                .setCircularRedirectsAllowed(true).build());
+        if (headers != null && headers.length > 0) {
+            httpGet.setHeaders(headers);
+        }
+        try (CloseableHttpResponse response = execute(httpGet, httpClientContext)) {
+            Reader reader;
+            Charset charset;
+            HttpEntity entity = response.getEntity();
+            InputStream inputStream = entity == null ? null : entity.getContent();
+            if (inputStream == null) {
+                reader = new StringReader("");
+                charset = Charset.defaultCharset();
+            } else {
+                byte[] sniff = new byte[charsetSniffSize];
+                int sniffLength = ResponseBodyDecoder.readFully(inputStream, sniff);
+                charset = resolveCharset(response, null, httpGet.getURI(), sniff, sniffLength);
+                reader = ResponseBodyDecoder.newReader(inputStream, sniff, sniffLength, charset);
+            }
+            T result;
+            try {
+                result = callback.handle(reader, charset);
+            } catch (IOException e) {
+                log.warn("reader callback failed for url:" + url, e);
+                return null;
+            }
+            if (inputStream != null && inputStream.read() == -1) {
+                // 已经读完,关闭流的时候连接放回连接池
+                inputStream.close();
+            }
+            // 没有读完的时候response.close直接关闭连接
+            return result;
         } catch (IOException e) {
             return null;
         }
@@ -485,65 +693,66 @@ public class CrawlerHttpClient extends CloseableHttpClient implements Configurab
         httpPost.setEntity(entity);
         try {
             return decodeHttpResponse(execute(httpPost, httpClientContext), charset,
-                    httpPost.getURI().getScheme() + httpPost.getURI().getHost());
+                    httpPost.getURI());
         } catch (IOException e) {
             return null;
         }
 
     }
 
-    private String decodeHttpResponse(CloseableHttpResponse response, Charset charset, String hostKey)
+    private String decodeHttpResponse(CloseableHttpResponse response, Charset charset, URI uri)
             throws IOException {
-        byte[] bytes = EntityUtils.toByteArray(response.getEntity());
-        String charsetStr = null;
+        HttpEntity entity = response.getEntity();
+        if (!streamingDecode || entity == null) {
+            byte[] bytes = EntityUtils.toByteArray(entity);
+            return new String(bytes, resolveCharset(response, charset, uri, bytes, bytes.length));
+        }
+        InputStream inputStream = entity.getContent();
+        if (inputStream == null) {
+            return "";
+        }
         try {
-            if (charset == null && charsetCacheEnable) {
-                charset = charsetCache.get(hostKey);
-            }
-            if (charset == null) {
-                Header contentType = response.getFirstHeader("Content-Type");
-                if (contentType != null) {
-                    charsetStr = CharsetDetector.detectHeader(contentType);
-                    if (charsetStr != null) {
-                        charset = Charset.forName(charsetStr.trim());
-                    }
-                }
-            }
-            if (charset == null) {
-                charsetStr = CharsetDetector.detectHtmlContent(bytes);
-                if (charsetStr != null) {
-                    charset = Charset.forName(charsetStr.trim());
-                }
-            }
+            // 字符集探测只看开头一段,剩余部分边读边解码
+            byte[] sniff = new byte[charsetSniffSize];
+            int sniffLength = ResponseBodyDecoder.readFully(inputStream, sniff);
+            charset = resolveCharset(response, charset, uri, sniff, sniffLength);
+            return ResponseBodyDecoder.decode(inputStream, sniff, sniffLength, charset, entity.getContentLength());
+        } finally {
+            inputStream.close();
+        }
+    }
 
-            if (charset == null) {
-                // 二进制检查,
-                UniversalDetector detector = new UniversalDetector(null);
-                detector.handleData(bytes, 0, bytes.length);//这里可能非常消耗性能,所以考虑是否默认开启缓存
-                detector.dataEnd();
-                String encoding = detector.getDetectedCharset();
-                if (encoding != null) {
-                    charset = Charset.forName(encoding);
-                }
-                detector.reset();
-            }
+    /**
+     * 依次通过参数,url前缀配置,缓存,响应头,meta标签,二进制探测确定字符集
+     *
+     * @param content 响应体,流式解码的时候只有开头一段
+     */
+    private Charset resolveCharset(HttpResponse response, Charset charset, URI uri, byte[] content,
+            int contentLength) {
+        Header contentType = response.getFirstHeader("Content-Type");
+        return ResponseBodyDecoder.resolveCharset(contentType == null ? null : contentType.getValue(), charset, uri,
+                content, contentLength, charsetCache, charsetCacheEnable);
+    }
 
-            if (charset != null && charsetCacheEnable) {
-                charsetCache.putIfAbsent(hostKey, charset);
-            }
+    /**
+     * @return 没有开启对冲请求的时候返回null
+     */
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
 
-            if (charset == null) {
-                charset = Charset.defaultCharset();
-            }
+    /**
+     * 字符集缓存,可以用来添加url前缀的字符集配置,以及查看缓存命中情况
+     */
+    public CharsetCache getCharsetCache() {
+        return charsetCache;
+    }
 
-        } catch (java.nio.charset.IllegalCharsetNameException e) {
-            log.warn("字符集" + charsetStr + "不能识别", e);
-            charset = Charset.defaultCharset();
-        } catch (java.nio.charset.UnsupportedCharsetException ue) {
-            log.warn("字符集" + charsetStr + "不能识别", ue);
-            charset = Charset.defaultCharset();
-        }
-        return new String(bytes, charset);
+    /**
+     * 连接池,使用ProxyAwareConnectionManager的时候可以从这里拿到连接复用率等统计
+     */
+    public HttpClientConnectionManager getHttpClientConnectionManager() {
+        return connManager;
     }
 
     private List<NameValuePair> convert(Map<String, String> params) {
@@ -21,6 +21,7 @@ import org.apache.http.client.entity.InputStreamFactory;
 import org.apache.http.client.protocol.*;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.Lookup;
+import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.conn.ConnectionKeepAliveStrategy;
@@ -52,13 +53,17 @@ import org.apache.http.impl.cookie.RFC6265CookieSpecProvider;
 import org.apache.http.impl.execchain.*;
 import org.apache.http.protocol.*;
 import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.Args;
 import org.apache.http.util.TextUtils;
 
+import com.virjar.dungproxy.client.httpclient.conn.ProxyAwareConnectionManager;
 import com.virjar.dungproxy.client.httpclient.conn.ProxyBindRoutPlanner;
 import com.virjar.dungproxy.client.httpclient.cookie.DungProxyRequestAddCookies;
 import com.virjar.dungproxy.client.httpclient.cookie.DungProxyResponseProcessCookies;
 import com.virjar.dungproxy.client.httpclient.cookie.MultiUserCookieStore;
+import com.virjar.dungproxy.client.httpclient.execchain.LatencyRecordRequestExecutor;
 import com.virjar.dungproxy.client.httpclient.execchain.RetryExec;
+import com.virjar.dungproxy.client.ippool.IpPool;
 
 /**
  * Created by virjar on 16/9/19.
@@ -120,9 +125,20 @@ public class CrawlerHttpClientBuilder {
 
     private boolean charsetCacheEnable = true;
 
+    private CharsetCache charsetCache;
+
+    private boolean streamingDecode = true;
+
+    private int charsetSniffSize = 8192;
+
     private int maxConnTotal = 0;
     private int maxConnPerRoute = 0;
 
+    private boolean proxyAwareConnManager;
+    private HedgingPolicy hedgingPolicy;
+    private int prewarmTopN = 0;
+    private long prewarmInterval = 20000;
+
     private long connTimeToLive = -1;
     private TimeUnit connTimeToLiveTimeUnit = TimeUnit.MILLISECONDS;
 
@@ -255,6 +271,37 @@ public class CrawlerHttpClientBuilder {
         return this;
     }
 
+    /**
+     * 使用感知IP池的连接池ProxyAwareConnectionManager,通过代理的http请求按照代理分区复用连接,代理下线的时候关闭相关连接<br/>
+     * 开启之后setMaxConnPerRoute对http请求来说是单个代理的连接数上限。通过setConnectionManager指定了连接池的时候不生效<br/>
+     * IP下线的时候关闭连接和预热需要通过setRoutePlanner指定ProxyBindRoutPlanner,连接池使用它的IP池,否则只按照代理分区
+     */
+    public final CrawlerHttpClientBuilder setProxyAwareConnectionManager(boolean proxyAwareConnManager) {
+        this.proxyAwareConnManager = proxyAwareConnManager;
+        return this;
+    }
+
+    /**
+     * 开启对冲请求,只对通过IP池绑定代理的GET请求生效。不设置的时候不开启
+     */
+    public final CrawlerHttpClientBuilder setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    /**
+     * 定期为每个域名分值最高的topN个代理预先建立连接,只在setProxyAwareConnectionManager(true)的时候生效
+     *
+     * @param topN 每个域名预热的代理数量,小于等于0表示不预热
+     * @param intervalMillis 预热周期,应该小于代理服务器的keep-alive超时
+     */
+    public final CrawlerHttpClientBuilder setPrewarmProxyConnections(int topN, long intervalMillis) {
+        Args.positive(intervalMillis, "prewarm interval");
+        this.prewarmTopN = topN;
+        this.prewarmInterval = intervalMillis;
+        return this;
+    }
+
     /**
      * Assigns default {@link SocketConfig}.
      * <p>
@@ -715,6 +762,36 @@ public class CrawlerHttpClientBuilder {
         return this;
     }
 
+    /**
+     * 指定字符集缓存,可以用来调整缓存大小和过期时间,或者在多个客户端之间共享。不指定的时候每个客户端使用默认参数新建一个
+     *
+     * @param charsetCache 字符集缓存
+     */
+    public final CrawlerHttpClientBuilder setCharsetCache(CharsetCache charsetCache) {
+        this.charsetCache = charsetCache;
+        return this;
+    }
+
+    /**
+     * 开启或者关闭流式解码,默认开启。开启之后字符集探测只看响应体开头charsetSniffSize个字节,字节数组按照Content-Length一次分配<br/>
+     * 关闭之后整个响应体先读到byte[],字符集探测扫描全部内容,和之前的版本行为一致
+     *
+     * @param streamingDecode 是否开启流式解码
+     */
+    public final CrawlerHttpClientBuilder setStreamingDecode(boolean streamingDecode) {
+        this.streamingDecode = streamingDecode;
+        return this;
+    }
+
+    /**
+     * @param charsetSniffSize 流式解码的时候用于探测字符集的字节数,默认8K
+     */
+    public final CrawlerHttpClientBuilder setCharsetSniffSize(int charsetSniffSize) {
+        Args.positive(charsetSniffSize, "charsetSniffSize");
+        this.charsetSniffSize = charsetSniffSize;
+        return this;
+    }
+
     /**
      * Makes this instance of HttpClient proactively evict idle connections from the connection pool using a background
      * thread.
@@ -835,7 +912,7 @@ public class CrawlerHttpClientBuilder {
 
         HttpRequestExecutor requestExecCopy = this.requestExec;
         if (requestExecCopy == null) {
-            requestExecCopy = new HttpRequestExecutor();
+            requestExecCopy = new LatencyRecordRequestExecutor();
         }
         HttpClientConnectionManager connManagerCopy = this.connManager;
         if (connManagerCopy == null) {// 连接池
@@ -863,13 +940,27 @@ public class CrawlerHttpClientBuilder {
                     }
                 }
             }
-            @SuppressWarnings("resource")
-            final PoolingHttpClientConnectionManager poolingmgr = new PoolingHttpClientConnectionManager(
-                    RegistryBuilder.<ConnectionSocketFactory> create()
-                            .register("http", PlainConnectionSocketFactory.getSocketFactory())
-                            .register("https", sslSocketFactoryCopy).build(),
-                    null, null, dnsResolver, connTimeToLive,
-                    connTimeToLiveTimeUnit != null ? connTimeToLiveTimeUnit : TimeUnit.MILLISECONDS);
+            final Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder
+                    .<ConnectionSocketFactory> create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", sslSocketFactoryCopy).build();
+            final TimeUnit timeToLiveUnit = connTimeToLiveTimeUnit != null ? connTimeToLiveTimeUnit
+                    : TimeUnit.MILLISECONDS;
+            final PoolingHttpClientConnectionManager poolingmgr;
+            if (proxyAwareConnManager) {
+                // 和路由使用同一个IP池,没有通过setRoutePlanner指定ProxyBindRoutPlanner的时候不感知IP池
+                IpPool ipPool = routePlanner instanceof ProxyBindRoutPlanner
+                        ? ((ProxyBindRoutPlanner) routePlanner).getIpPool() : null;
+                ProxyAwareConnectionManager proxyAwaremgr = new ProxyAwareConnectionManager(socketFactoryRegistry,
+                        dnsResolver, connTimeToLive, timeToLiveUnit, ipPool);
+                if (prewarmTopN > 0) {
+                    proxyAwaremgr.startPrewarm(prewarmTopN, prewarmInterval);
+                }
+                poolingmgr = proxyAwaremgr;
+            } else {
+                poolingmgr = new PoolingHttpClientConnectionManager(socketFactoryRegistry, null, null, dnsResolver,
+                        connTimeToLive, timeToLiveUnit);
+            }
             if (defaultSocketConfig != null) {
                 poolingmgr.setDefaultSocketConfig(defaultSocketConfig);
             }
@@ -1136,7 +1227,8 @@ public class CrawlerHttpClientBuilder {
         return new CrawlerHttpClient(execChain, connManagerCopy, routePlannerCopy, cookieSpecRegistryCopy,
                 authSchemeRegistryCopy, defaultCookieStore, defaultCredentialsProvider,
                 defaultRequestConfig != null ? defaultRequestConfig : RequestConfig.DEFAULT, closeablesCopy,
-                charsetCacheEnable);
+                charsetCache != null ? charsetCache : new CharsetCache(), charsetCacheEnable, streamingDecode,
+                charsetSniffSize, hedgingPolicy);
     }
 
 }
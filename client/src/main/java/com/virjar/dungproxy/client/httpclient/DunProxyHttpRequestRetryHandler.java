@@ -32,7 +32,7 @@ public class DunProxyHttpRequestRetryHandler implements HttpRequestRetryHandler
     @Override
     public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
         AvProxy proxy = (AvProxy) context.getAttribute(ProxyConstant.USED_PROXY_KEY);
-        if (proxy != null) {
+        if (proxy != null && context.getAttribute(ProxyConstant.HEDGE_CANCELLED_KEY) == null) {
             proxy.recordFailed();
         }
         boolean ret = false;
@@ -0,0 +1,159 @@
+package com.virjar.dungproxy.client.httpclient;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.util.Args;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.virjar.dungproxy.client.ippool.DomainPool;
+import com.virjar.dungproxy.client.ippool.IpPool;
+import com.virjar.dungproxy.client.model.AvProxy;
+import com.virjar.dungproxy.client.model.LatencySketch;
+import com.virjar.dungproxy.client.ningclient.concurrent.NamedThreadFactory;
+
+/**
+ * 对冲请求的配置和统计,CrawlerHttpClient和CrawlerAsyncHttpClient共用<br/>
+ * GET请求发出之后,如果超过这个域名请求延迟的p95(可配置)还没有返回,通过另一个IP再发一次同样的请求,采用先成功的一方,取消另一方<br/>
+ * 落后的一方如果是先发出的请求,说明这个IP比晚发出的还要慢,记为失败;如果是后发出的请求,只取消不计分。先成功的一方正常计为成功
+ */
+public class HedgingPolicy {
+    private double quantile = 0.95D;
+    private long minDelay = 100;
+    private long maxDelay = 10000;
+    private long defaultDelay = 2000;
+    private long minSamples = 20;
+    private int maxBindAttempts = 3;
+
+    private final AtomicLong requestCount = new AtomicLong(0);
+    private final AtomicLong hedgedCount = new AtomicLong(0);
+    private final AtomicLong hedgeWinCount = new AtomicLong(0);
+    private final AtomicLong noBackupCount = new AtomicLong(0);
+
+    // 同步客户端在这个线程池上并发执行两个请求,线程都是守护线程
+    private final Supplier<ExecutorService> executor = Suppliers.memoize(new Supplier<ExecutorService>() {
+        @Override
+        public ExecutorService get() {
+            return Executors.newCachedThreadPool(new NamedThreadFactory("crawler-hedge"));
+        }
+    });
+
+    /**
+     * @return 发出对冲请求之前等待的毫秒数。域名样本不足的时候使用defaultDelay
+     */
+    public long hedgeDelay(DomainPool domainPool) {
+        long delay = defaultDelay;
+        if (domainPool != null) {
+            LatencySketch requestLatency = domainPool.getRequestLatency();
+            if (requestLatency.getTotalSamples() >= minSamples) {
+                delay = requestLatency.quantile(quantile);
+            }
+        }
+        return Math.min(maxDelay, Math.max(minDelay, delay));
+    }
+
+    /**
+     * 为对冲请求绑定一个和第一个请求不同的IP
+     *
+     * @return 绑定不到不同的IP的时候返回null
+     */
+    AvProxy bindBackup(IpPool ipPool, String host, String url, AvProxy primary) {
+        for (int i = 0; i < maxBindAttempts; i++) {
+            AvProxy backup = ipPool.bind(host, url);
+            if (backup == null) {
+                break;
+            }
+            if (!backup.equals(primary)) {
+                return backup;
+            }
+        }
+        noBackupCount.incrementAndGet();
+        return null;
+    }
+
+    ExecutorService getExecutor() {
+        return executor.get();
+    }
+
+    void recordRequest() {
+        requestCount.incrementAndGet();
+    }
+
+    void recordHedged() {
+        hedgedCount.incrementAndGet();
+    }
+
+    void recordHedgeWin() {
+        hedgeWinCount.incrementAndGet();
+    }
+
+    /**
+     * @param quantile 等待时间取域名请求延迟的哪个分位,默认0.95
+     */
+    public HedgingPolicy setQuantile(double quantile) {
+        Args.check(quantile > 0 && quantile <= 1, "quantile must be in (0,1]");
+        this.quantile = quantile;
+        return this;
+    }
+
+    public HedgingPolicy setMinDelay(long minDelay) {
+        this.minDelay = minDelay;
+        return this;
+    }
+
+    public HedgingPolicy setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+        return this;
+    }
+
+    /**
+     * @param defaultDelay 域名的延迟样本少于minSamples的时候使用的等待时间
+     */
+    public HedgingPolicy setDefaultDelay(long defaultDelay) {
+        this.defaultDelay = defaultDelay;
+        return this;
+    }
+
+    public HedgingPolicy setMinSamples(long minSamples) {
+        this.minSamples = minSamples;
+        return this;
+    }
+
+    public HedgingPolicy setMaxBindAttempts(int maxBindAttempts) {
+        this.maxBindAttempts = maxBindAttempts;
+        return this;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return 发出了对冲请求的次数
+     */
+    public long getHedgedCount() {
+        return hedgedCount.get();
+    }
+
+    /**
+     * @return 对冲请求先于第一个请求成功的次数
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    /**
+     * @return 需要对冲但是没有绑定到不同IP的次数
+     */
+    public long getNoBackupCount() {
+        return noBackupCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "HedgingPolicy{request=" + requestCount.get() + ", hedged=" + hedgedCount.get() + ", hedgeWin="
+                + hedgeWinCount.get() + ", noBackup=" + noBackupCount.get() + "}";
+    }
+}
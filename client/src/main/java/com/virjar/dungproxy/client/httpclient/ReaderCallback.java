@@ -0,0 +1,13 @@
+package com.virjar.dungproxy.client.httpclient;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * 以流的方式消费响应内容,适用于很大的页面,不需要在内存中保存整个页面<br/>
+ * reader只在回调内部有效,回调返回之后连接被释放
+ */
+public interface ReaderCallback<T> {
+    T handle(Reader reader, Charset charset) throws IOException;
+}
@@ -0,0 +1,166 @@
+package com.virjar.dungproxy.client.httpclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+
+import org.apache.http.util.ByteArrayBuffer;
+import org.mozilla.universalchardet.UniversalDetector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.virjar.dungproxy.client.util.CharsetDetector;
+
+/**
+ * 响应体解码,字符集探测只看响应体开头的一段(嗅探缓冲区),不再扫描整个页面<br/>
+ * 解码为String的时候峰值内存和原来一样是"字节数组+字符数组":java8的String总是复制字符数组,边读边解码到StringBuilder再toString
+ * 反而同时持有两份字符数组,所以这里按照Content-Length一次分配字节数组,再整体解码。
+ * 通过ReaderCallback消费({@link #newReader})的时候边读边解码,只需要常数内存
+ */
+public final class ResponseBodyDecoder {
+    private static final Logger logger = LoggerFactory.getLogger(ResponseBodyDecoder.class);
+
+    // 预分配的上限,避免错误的Content-Length导致一次分配过大的数组
+    private static final int MAX_PRESIZE_CAPACITY = 16 * 1024 * 1024;
+
+    private ResponseBodyDecoder() {
+    }
+
+    /**
+     * 尽量读满buffer,只有到达流末尾的时候才会读不满
+     *
+     * @return 实际读取的字节数
+     */
+    public static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = inputStream.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * 根据响应体内容探测字符集,先找meta标签,找不到再做二进制探测
+     *
+     * @return 探测到的字符集,探测不到返回null
+     * @throws java.nio.charset.IllegalCharsetNameException meta标签里面的字符集名字不合法
+     * @throws java.nio.charset.UnsupportedCharsetException meta标签里面的字符集不支持
+     */
+    public static Charset detectBody(byte[] content, int length) {
+        String charsetStr = CharsetDetector.detectHtmlContent(content, length);
+        if (charsetStr != null) {
+            return Charset.forName(charsetStr.trim());
+        }
+        UniversalDetector detector = new UniversalDetector(null);
+        detector.handleData(content, 0, length);
+        detector.dataEnd();
+        String encoding = detector.getDetectedCharset();
+        return encoding == null ? null : Charset.forName(encoding);
+    }
+
+    /**
+     * 依次通过参数,url前缀配置,缓存,响应头,meta标签,二进制探测确定字符集,同步和异步客户端共用
+     *
+     * @param contentType Content-Type响应头,可以为null
+     * @param charset 调用方指定的字符集,为null的时候才做探测
+     * @param content 响应体,流式解码的时候只有开头一段
+     * @param charsetCacheEnable 为false的时候只使用charsetCache中的url前缀配置
+     */
+    public static Charset resolveCharset(String contentType, Charset charset, URI uri, byte[] content,
+            int contentLength, CharsetCache charsetCache, boolean charsetCacheEnable) {
+        String hostKey = CharsetCache.hostKey(uri);
+        String charsetStr = null;
+        try {
+            if (charset == null) {
+                charset = charsetCache.getOverride(uri);
+                if (charset != null) {
+                    return charset;
+                }
+            }
+            if (charset == null && charsetCacheEnable) {
+                charset = charsetCache.get(hostKey);
+                if (charset != null) {
+                    return charset;
+                }
+            }
+            if (charset == null && contentType != null) {
+                charsetStr = CharsetDetector.detectHeader(contentType);
+                if (charsetStr != null) {
+                    charset = Charset.forName(charsetStr.trim());
+                }
+            }
+            if (charset == null) {
+                if (charsetCacheEnable && charsetCache.isNegative(hostKey)) {
+                    return Charset.defaultCharset();// 这个站点最近探测失败过,不重复探测
+                }
+                // meta标签和二进制检查,这里可能非常消耗性能,所以考虑是否默认开启缓存
+                charset = detectBody(content, contentLength);
+                if (charset == null && charsetCacheEnable) {
+                    charsetCache.putNegative(hostKey);
+                }
+            }
+
+            if (charset != null && charsetCacheEnable) {
+                charsetCache.putIfAbsent(hostKey, charset);
+            }
+
+            if (charset == null) {
+                charset = Charset.defaultCharset();
+            }
+
+        } catch (java.nio.charset.IllegalCharsetNameException e) {
+            logger.warn("字符集" + charsetStr + "不能识别", e);
+            charset = Charset.defaultCharset();
+        } catch (java.nio.charset.UnsupportedCharsetException ue) {
+            logger.warn("字符集" + charsetStr + "不能识别", ue);
+            charset = Charset.defaultCharset();
+        }
+        return charset;
+    }
+
+    /**
+     * 把嗅探缓冲区和剩余的流解码为字符串,不关闭流
+     *
+     * @param contentLength 响应体长度,用于一次分配字节数组,未知的时候传小于0的值
+     */
+    public static String decode(InputStream remain, byte[] sniff, int sniffLength, Charset charset,
+            long contentLength) throws IOException {
+        if (sniffLength < sniff.length) {// 嗅探的时候已经读完
+            return new String(sniff, 0, sniffLength, charset);
+        }
+        int capacity = sniffLength * 2;
+        if (contentLength > sniffLength && contentLength <= MAX_PRESIZE_CAPACITY) {
+            capacity = (int) contentLength;
+        }
+        ByteArrayBuffer buffer = new ByteArrayBuffer(capacity);
+        buffer.append(sniff, 0, sniffLength);
+        byte[] chunk = new byte[4096];
+        int read;
+        while ((read = remain.read(chunk)) >= 0) {
+            buffer.append(chunk, 0, read);
+        }
+        // Content-Length准确的时候buffer正好装满,直接在内部数组上解码,不再复制
+        return new String(buffer.buffer(), 0, buffer.length(), charset);
+    }
+
+    /**
+     * 在嗅探缓冲区和剩余的流上创建Reader,每个Reader使用自己的解码器,回调里面再解码其他页面不会互相影响。关闭Reader会关闭流
+     */
+    public static Reader newReader(InputStream remain, byte[] sniff, int sniffLength, Charset charset) {
+        InputStream inputStream = sniffLength <= 0 ? remain
+                : new SequenceInputStream(new ByteArrayInputStream(sniff, 0, sniffLength), remain);
+        // 和new String(bytes, charset)保持一致,非法字节替换而不是抛异常
+        return new InputStreamReader(inputStream, charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+}
@@ -0,0 +1,382 @@
+package com.virjar.dungproxy.client.httpclient.conn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Sets;
+import com.virjar.dungproxy.client.ippool.DomainPool;
+import com.virjar.dungproxy.client.ippool.IpPool;
+import com.virjar.dungproxy.client.ippool.config.ProxyConstant;
+import com.virjar.dungproxy.client.ippool.strategy.ProxyOfflineListener;
+import com.virjar.dungproxy.client.model.AvProxy;
+import com.virjar.dungproxy.client.ningclient.concurrent.NamedThreadFactory;
+
+/**
+ * 感知IP池的连接池<br/>
+ * 原生连接池按照路由(目标host+代理)分区,ProxyBindRoutPlanner每次绑定的代理不同,同一个代理的keep-alive连接很难被复用。这里做了如下调整:
+ * <ul>
+ * <li>通过代理访问的http请求(非隧道)不关心目标host,按照代理分区,访问不同网站的请求可以复用同一个到代理的连接,
+ * 这时setDefaultMaxPerRoute就是单个代理的连接数上限。https请求需要建立隧道,仍然按照目标host+代理分区</li>
+ * <li>IP从某个域名的IP池下线之后,关闭这个域名经过这个代理的空闲隧道连接。其他域名的IP池里面也没有这个代理的时候,
+ * 关闭到这个代理的所有空闲连接,正在使用的连接在归还的时候关闭</li>
+ * <li>可以定期为每个域名分值最高的N个代理预先建立连接,请求到来时不用再经过代理握手</li>
+ * <li>统计连接复用率</li>
+ * </ul>
+ * 下线感知和预热需要知道IP池,没有传入IP池的时候只按照代理分区,不会为此创建全局IP池
+ */
+public class ProxyAwareConnectionManager extends PoolingHttpClientConnectionManager implements ProxyOfflineListener {
+    private static final Logger logger = LoggerFactory.getLogger(ProxyAwareConnectionManager.class);
+
+    // 为null的时候不感知IP下线,也不预热
+    private final IpPool ipPool;
+
+    // 刚从所有域名下线的代理,这段时间内归还的连接直接关闭。只需要覆盖正在进行的请求,不需要很长
+    private final Cache<HttpHost, Boolean> offlineProxies = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.MINUTES).build();
+
+    private final ScheduledExecutorService scheduler;
+
+    private int connectTimeout = ProxyConstant.CONNECT_TIMEOUT;
+    private long prewarmKeepAlive = 30000;
+
+    private final AtomicLong leaseCount = new AtomicLong(0);
+    private final AtomicLong connectCount = new AtomicLong(0);
+    private final AtomicLong evictedCount = new AtomicLong(0);
+    private final AtomicLong prewarmCount = new AtomicLong(0);
+
+    public ProxyAwareConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry) {
+        this(socketFactoryRegistry, null, -1, TimeUnit.MILLISECONDS, null);
+    }
+
+    /**
+     * @param ipPool 需要和ProxyBindRoutPlanner使用同一个IP池,为null的时候不感知IP下线,也不预热
+     */
+    public ProxyAwareConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry,
+            DnsResolver dnsResolver, long timeToLive, TimeUnit timeUnit, IpPool ipPool) {
+        super(socketFactoryRegistry, null, null, dnsResolver, timeToLive, timeUnit);
+        this.ipPool = ipPool;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new NamedThreadFactory("proxy-conn-manager"));
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.scheduler = executor;
+        if (ipPool != null) {
+            ipPool.getDungProxyContext().addProxyOfflineListener(this);
+        }
+    }
+
+    /**
+     * 通过代理的非隧道请求按照代理分区,其他请求保持原来的路由
+     */
+    static HttpRoute poolRoute(HttpRoute route) {
+        if (route.getProxyHost() == null || route.isTunnelled() || route.getHopCount() > 2) {
+            return route;
+        }
+        return new HttpRoute(route.getProxyHost(), route.getLocalAddress(), false);
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        leaseCount.incrementAndGet();
+        return super.requestConnection(poolRoute(route), state);
+    }
+
+    @Override
+    public void connect(HttpClientConnection managedConn, HttpRoute route, int connectTimeout, HttpContext context)
+            throws IOException {
+        connectCount.incrementAndGet();
+        super.connect(managedConn, route, connectTimeout, context);
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection managedConn, Object state, long keepalive, TimeUnit tunit) {
+        if (offlineProxies.size() > 0 && managedConn.isOpen() && managedConn instanceof HttpInetConnection) {
+            HttpInetConnection inetConnection = (HttpInetConnection) managedConn;
+            InetAddress remoteAddress = inetConnection.getRemoteAddress();
+            if (remoteAddress != null && offlineProxies.getIfPresent(
+                    new HttpHost(remoteAddress.getHostAddress(), inetConnection.getRemotePort())) != null) {
+                try {
+                    managedConn.shutdown();// 不open的连接归还之后会从连接池移除
+                    evictedCount.incrementAndGet();
+                } catch (IOException e) {
+                    logger.debug("close connection error", e);
+                }
+            }
+        }
+        super.releaseConnection(managedConn, state, keepalive, tunit);
+    }
+
+    /**
+     * 下线是按照域名的,按照代理分区的连接可能还在给其他域名使用,只有其他域名也不再使用这个代理的时候才关闭
+     */
+    @Override
+    public void onOffline(final String domain, AvProxy avProxy) {
+        final HttpHost proxyHost = new HttpHost(avProxy.getIp(), avProxy.getPort());
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (usedByOtherDomain(domain, proxyHost)) {
+                    evictedCount.addAndGet(evictTunnels(domain, proxyHost));
+                } else {
+                    offlineProxies.put(proxyHost, Boolean.TRUE);
+                    evictProxy(proxyHost);
+                }
+            }
+        });
+    }
+
+    private boolean usedByOtherDomain(String domain, HttpHost proxyHost) {
+        for (DomainPool domainPool : ipPool.getPool().values()) {
+            if (domainPool.getDomain().equals(domain)) {
+                continue;
+            }
+            for (AvProxy avProxy : domainPool.availableProxy()) {
+                if (avProxy.getPort() == proxyHost.getPort() && proxyHost.getHostName().equals(avProxy.getIp())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 关闭这个域名经过这个代理的空闲隧道连接,隧道连接只会给同一个目标host使用
+     */
+    private int evictTunnels(String domain, HttpHost proxyHost) {
+        int evicted = 0;
+        for (HttpRoute route : getRoutes()) {
+            if (!route.isTunnelled() || !proxyHost.equals(route.getProxyHost())) {
+                continue;
+            }
+            DomainPool domainPool = ipPool.getDomainPool(route.getTargetHost().getHostName());
+            if (domainPool != null && domainPool.getDomain().equals(domain)) {
+                evicted += evictIdle(route);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * 关闭到这个代理的所有空闲连接,包括按照代理分区的连接和https隧道连接
+     *
+     * @return 关闭的连接数
+     */
+    public int evictProxy(HttpHost proxyHost) {
+        int evicted = 0;
+        for (HttpRoute route : getRoutes()) {
+            HttpHost firstHop = route.getProxyHost() != null ? route.getProxyHost() : route.getTargetHost();
+            if (proxyHost.equals(firstHop)) {
+                evicted += evictIdle(route);
+            }
+        }
+        evictedCount.addAndGet(evicted);
+        return evicted;
+    }
+
+    /**
+     * 连接池没有按照路由关闭连接的接口,这里把空闲连接逐个租借出来关闭
+     */
+    private int evictIdle(HttpRoute route) {
+        int evicted = 0;
+        int available = getStats(route).getAvailable();
+        for (int i = 0; i < available; i++) {
+            HttpClientConnection connection;
+            try {
+                connection = super.requestConnection(route, null).get(1, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | ConnectionPoolTimeoutException e) {
+                break;// 连接都被占用了,归还的时候再关闭
+            }
+            try {
+                if (connection.isOpen()) {
+                    connection.shutdown();
+                    evicted++;
+                }
+            } catch (IOException e) {
+                logger.debug("close connection error", e);
+            } finally {
+                super.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * 为每个域名分值最高的topN个代理各建立一个连接,已经有空闲连接的代理跳过
+     *
+     * @return 新建立的连接数
+     */
+    public int prewarm(int topN) {
+        int opened = 0;
+        if (ipPool == null) {
+            return opened;
+        }
+        Set<HttpHost> warmed = Sets.newHashSet();
+        for (DomainPool domainPool : ipPool.getPool().values()) {
+            List<AvProxy> avProxies = domainPool.availableProxy();
+            Collections.sort(avProxies, new Comparator<AvProxy>() {
+                @Override
+                public int compare(AvProxy o1, AvProxy o2) {
+                    return Double.compare(o2.getAvgScore(), o1.getAvgScore());
+                }
+            });
+            int size = 0;
+            for (AvProxy avProxy : avProxies) {
+                if (size >= topN) {
+                    break;
+                }
+                if (avProxy.isDisable()) {
+                    continue;
+                }
+                size++;
+                HttpHost proxyHost = new HttpHost(avProxy.getIp(), avProxy.getPort());
+                if (!warmed.add(proxyHost) || offlineProxies.getIfPresent(proxyHost) != null) {
+                    continue;
+                }
+                HttpRoute route = new HttpRoute(proxyHost);
+                PoolStats stats = getStats(route);
+                if (stats.getAvailable() > 0 || stats.getLeased() + stats.getPending() >= getMaxPerRoute(route)) {
+                    continue;
+                }
+                if (openConnection(route)) {
+                    opened++;
+                }
+            }
+        }
+        prewarmCount.addAndGet(opened);
+        return opened;
+    }
+
+    private boolean openConnection(HttpRoute route) {
+        HttpClientConnection connection;
+        try {
+            connection = super.requestConnection(route, null).get(connectTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | ConnectionPoolTimeoutException e) {
+            return false;
+        }
+        boolean opened = false;
+        try {
+            if (!connection.isOpen()) {
+                HttpContext context = new BasicHttpContext();
+                super.connect(connection, route, connectTimeout, context);
+                super.routeComplete(connection, route, context);
+                opened = true;
+            }
+        } catch (IOException e) {
+            logger.debug("prewarm connection to {} failed", route.getTargetHost(), e);
+        } finally {
+            super.releaseConnection(connection, null, prewarmKeepAlive, TimeUnit.MILLISECONDS);
+        }
+        return opened;
+    }
+
+    /**
+     * 定期预热连接
+     *
+     * @param topN 每个域名预热的代理数量
+     * @param intervalMillis 预热周期,应该小于代理服务器的keep-alive超时
+     */
+    public ProxyAwareConnectionManager startPrewarm(final int topN, long intervalMillis) {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prewarm(topN);
+                } catch (Exception e) {
+                    logger.error("prewarm connection error", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    @Override
+    public void shutdown() {
+        if (ipPool != null) {
+            ipPool.getDungProxyContext().removeProxyOfflineListener(this);
+        }
+        scheduler.shutdownNow();
+        super.shutdown();
+    }
+
+    public ProxyAwareConnectionManager setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /**
+     * @param prewarmKeepAlive 预热的连接在连接池中保留的时间
+     */
+    public ProxyAwareConnectionManager setPrewarmKeepAlive(long prewarmKeepAlive) {
+        this.prewarmKeepAlive = prewarmKeepAlive;
+        return this;
+    }
+
+    public long getLeaseCount() {
+        return leaseCount.get();
+    }
+
+    /**
+     * @return 请求过程中新建立的连接数,不包括预热的连接
+     */
+    public long getConnectCount() {
+        return connectCount.get();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    public long getPrewarmCount() {
+        return prewarmCount.get();
+    }
+
+    /**
+     * @return 请求拿到已经建立好的连接的比例
+     */
+    public double getReuseRate() {
+        long lease = leaseCount.get();
+        if (lease == 0) {
+            return 0;
+        }
+        return Math.max(0, 1 - (double) connectCount.get() / lease);
+    }
+
+    @Override
+    public String toString() {
+        return "ProxyAwareConnectionManager{lease=" + leaseCount.get() + ", connect=" + connectCount.get()
+                + ", reuseRate=" + getReuseRate() + ", evicted=" + evictedCount.get() + ", prewarm="
+                + prewarmCount.get() + ", " + getTotalStats() + "}";
+    }
+}
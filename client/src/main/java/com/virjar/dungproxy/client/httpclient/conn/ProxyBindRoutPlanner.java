@@ -35,7 +35,8 @@ public class ProxyBindRoutPlanner extends DefaultRoutePlanner {
 
     private static final Logger logger = LoggerFactory.getLogger(ProxyBindRoutPlanner.class);
 
-    private IpPool ipPool;
+    // 没有指定的时候第一次绑定IP才取全局IP池,创建客户端不会初始化全局IP池,调用方之后还可以通过IpPoolHolder.init定制
+    private volatile IpPool ipPool;
 
     public ProxyBindRoutPlanner() {
         this(null, null);
@@ -55,9 +56,6 @@ public class ProxyBindRoutPlanner extends DefaultRoutePlanner {
      */
     public ProxyBindRoutPlanner(SchemePortResolver schemePortResolver, IpPool ipPool) {
         super(schemePortResolver);
-        if (ipPool == null) {
-            ipPool = IpPoolHolder.getIpPool();
-        }
         this.ipPool = ipPool;
     }
 
@@ -76,7 +74,7 @@ public class ProxyBindRoutPlanner extends DefaultRoutePlanner {
         }
 
         if (bind == null || bind.isDisable()) {
-            bind = ipPool.bind(target.getHostName(), accessUrl);
+            bind = getIpPool().bind(target.getHostName(), accessUrl);
         }
 
         if (bind == null) {
@@ -87,6 +85,7 @@ public class ProxyBindRoutPlanner extends DefaultRoutePlanner {
         bind.recordUsage();
         // 将绑定IP放置到context,用于后置拦截器统计这个IP的使用情况
         context.setAttribute(ProxyConstant.USED_PROXY_KEY, bind);
+        context.setAttribute(ProxyConstant.PROXY_BIND_TIME_KEY, System.nanoTime());
 
         // 如果代理有认证头部,则注入认证头部
         if (bind.getAuthenticationHeaders() != null) {
@@ -104,4 +103,13 @@ public class ProxyBindRoutPlanner extends DefaultRoutePlanner {
         }
         return new HttpHost(bind.getIp(), bind.getPort());
     }
+
+    public IpPool getIpPool() {
+        IpPool ret = ipPool;
+        if (ret == null) {
+            ret = IpPoolHolder.getIpPool();
+            ipPool = ret;
+        }
+        return ret;
+    }
 }
@@ -2,16 +2,19 @@ package com.virjar.dungproxy.client.httpclient.cookie;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import org.apache.http.annotation.GuardedBy;
 import org.apache.http.annotation.ThreadSafe;
 import org.apache.http.client.CookieStore;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.cookie.CookieIdentityComparator;
-import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.cookie.SetCookie;
 
 /**
  * 栅栏,不允许cookie时效超过1个小时。超过的减到1个小时。避免cookie过渡膨胀。适合无长期回话保持需求的场景。其实大多数情况都是这样的 </br>
+ * cookie按照domain分桶,请求的时候只取出host及其各级父域名对应的桶,桶内是写时复制的数组,读不加锁<br/>
+ * 由于所有cookie都在一个小时之内过期,过期时间按分钟挂在一个64格的时间轮上,读写的时候顺带推进时间轮,不需要扫描全部cookie<br/>
  * Created by virjar on 16/12/1.
  */
 @ThreadSafe
@@ -19,12 +22,26 @@ public class BarrierCookieStore implements CookieStore, Serializable {
 
     private static final long serialVersionUID = -7581093305228232025L;
 
-    @GuardedBy("this")
-    private final TreeSet<Cookie> cookies;
+    private static final long MAX_AGE = 3600000;
+    private static final long TICK = 60000;
+    // 2的幂并且大于 MAX_AGE/TICK,保证同一格内的cookie不会相差一圈
+    private static final int WHEEL_SIZE = 64;
+    private static final Entry[] EMPTY = new Entry[0];
+    private static final CookieIdentityComparator identityComparator = new CookieIdentityComparator();
 
+    // domain(小写,去掉前导点) -> 这个domain下的cookie
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    // 时间轮,同时作为时间轮的锁
+    private final List<Entry>[] wheel;
+    // 时间轮已经处理到的分钟数
+    private long currentTick;
+
+    @SuppressWarnings("unchecked")
     public BarrierCookieStore() {
         super();
-        this.cookies = new TreeSet<Cookie>(new CookieIdentityComparator());
+        this.wheel = new List[WHEEL_SIZE];
+        this.currentTick = System.currentTimeMillis() / TICK;
     }
 
     /**
@@ -37,17 +54,43 @@ public class BarrierCookieStore implements CookieStore, Serializable {
      *
      */
     @Override
-    public synchronized void addCookie(final Cookie cookie) {
-        if (cookie != null) {
-            // first remove any old cookie that is equivalent
-            cookies.remove(cookie);
-            if (!cookie.isExpired(new Date())) {
-                if (!cookie.isExpired(new Date(System.currentTimeMillis() + 3600000))) {
-                    ((BasicClientCookie) cookie).setExpiryDate(new Date(System.currentTimeMillis() + 3600000));
-                    //这里的有强制转换失败的风险。但是我暂时不知道该如何处理失败后的case。将来如果异常发生,再考虑怎么解决
+    public void addCookie(final Cookie cookie) {
+        if (cookie == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        advance(now);
+        long barrier = now + MAX_AGE;
+        Date expiryDate = cookie.getExpiryDate();
+        long expiry = expiryDate == null ? Long.MAX_VALUE : expiryDate.getTime();
+        if (expiry > barrier) {
+            expiry = barrier;
+            if (cookie instanceof SetCookie) {
+                ((SetCookie) cookie).setExpiryDate(new Date(barrier));
+            } // 不能修改过期时间的cookie,store内部仍然按照一个小时淘汰
+        }
+
+        String domain = domainKey(cookie.getDomain());
+        // first remove any old cookie that is equivalent
+        Entry entry = expiry > now ? new Entry(cookie, expiry, domain) : null;
+        while (true) {
+            Bucket bucket = buckets.get(domain);
+            if (bucket == null) {
+                Bucket newBucket = new Bucket();
+                bucket = buckets.putIfAbsent(domain, newBucket);
+                if (bucket == null) {
+                    bucket = newBucket;
                 }
-                cookies.add(cookie);
             }
+            if (bucket.replace(cookie, entry)) {
+                retireIfEmpty(domain, bucket);
+                break;
+            }
+            // 桶刚被清空移除,换一个新桶重试
+            buckets.remove(domain, bucket);
+        }
+        if (entry != null) {
+            schedule(entry);
         }
     }
 
@@ -60,7 +103,7 @@ public class BarrierCookieStore implements CookieStore, Serializable {
      * @see #addCookie(Cookie)
      *
      */
-    public synchronized void addCookies(final Cookie[] cookies) {
+    public void addCookies(final Cookie[] cookies) {
         if (cookies != null) {
             for (final Cookie cooky : cookies) {
                 this.addCookie(cooky);
@@ -74,9 +117,42 @@ public class BarrierCookieStore implements CookieStore, Serializable {
      * @return an array of {@link Cookie cookies}.
      */
     @Override
-    public synchronized List<Cookie> getCookies() {
-        // create defensive copy so it won't be concurrently modified
-        return new ArrayList<Cookie>(cookies);
+    public List<Cookie> getCookies() {
+        long now = System.currentTimeMillis();
+        advance(now);
+        List<Cookie> ret = new ArrayList<Cookie>();
+        for (Bucket bucket : buckets.values()) {
+            bucket.collect(ret, now);
+        }
+        return ret;
+    }
+
+    /**
+     * 只返回domain可能匹配host的cookie,即domain为host本身或者host的各级父域名。path等其他规则仍然需要CookieSpec判断
+     *
+     * @param host 请求的主机名
+     * @return 候选cookie,不包含已经过期的
+     */
+    public List<Cookie> getCookies(String host) {
+        if (host == null) {
+            return getCookies();
+        }
+        long now = System.currentTimeMillis();
+        advance(now);
+        List<Cookie> ret = new ArrayList<Cookie>();
+        String domain = host.toLowerCase(Locale.ROOT);
+        while (true) {
+            Bucket bucket = buckets.get(domain);
+            if (bucket != null) {
+                bucket.collect(ret, now);
+            }
+            int dot = domain.indexOf('.');
+            if (dot < 0) {
+                break;
+            }
+            domain = domain.substring(dot + 1);
+        }
+        return ret;
     }
 
     /**
@@ -88,15 +164,20 @@ public class BarrierCookieStore implements CookieStore, Serializable {
      * @see Cookie#isExpired(Date)
      */
     @Override
-    public synchronized boolean clearExpired(final Date date) {
+    public boolean clearExpired(final Date date) {
         if (date == null) {
             return false;
         }
-        boolean removed = false;
-        for (final Iterator<Cookie> it = cookies.iterator(); it.hasNext();) {
-            if (it.next().isExpired(date)) {
-                it.remove();
+        long now = System.currentTimeMillis();
+        if (date.getTime() <= now) {
+            return advance(date.getTime());
+        }
+        // 时间轮不能推进到未来,否则在真实时间追上之前不会再淘汰。未来的时间点很少用,直接扫描所有桶
+        boolean removed = advance(now);
+        for (Map.Entry<String, Bucket> bucketEntry : buckets.entrySet()) {
+            if (bucketEntry.getValue().removeExpired(date.getTime())) {
                 removed = true;
+                retireIfEmpty(bucketEntry.getKey(), bucketEntry.getValue());
             }
         }
         return removed;
@@ -106,12 +187,197 @@ public class BarrierCookieStore implements CookieStore, Serializable {
      * Clears all cookies.
      */
     @Override
-    public synchronized void clear() {
-        cookies.clear();
+    public void clear() {
+        synchronized (wheel) {
+            buckets.clear();
+            Arrays.fill(wheel, null);
+        }
     }
 
     @Override
-    public synchronized String toString() {
-        return cookies.toString();
+    public String toString() {
+        return getCookies().toString();
+    }
+
+    private void schedule(Entry entry) {
+        synchronized (wheel) {
+            int slot = (int) (entry.expiry / TICK) & (WHEEL_SIZE - 1);
+            List<Entry> entries = wheel[slot];
+            if (entries == null) {
+                entries = new ArrayList<Entry>(4);
+                wheel[slot] = entries;
+            }
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * 把时间轮推进到time,淘汰time之前过期的cookie。time所在的那一格只淘汰已经过期的部分,下次还会再处理这一格
+     *
+     * @return 是否有cookie被淘汰
+     */
+    private boolean advance(long time) {
+        long targetTick = time / TICK;
+        List<Entry> expired = null;
+        synchronized (wheel) {
+            if (targetTick < currentTick) {
+                return false;
+            }
+            // 最多转一圈
+            long fromTick = Math.max(currentTick, targetTick - WHEEL_SIZE + 1);
+            for (long tick = fromTick; tick <= targetTick; tick++) {
+                int slot = (int) tick & (WHEEL_SIZE - 1);
+                List<Entry> entries = wheel[slot];
+                if (entries == null) {
+                    continue;
+                }
+                for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+                    Entry entry = it.next();
+                    if (entry.expiry <= time) {
+                        it.remove();
+                        if (expired == null) {
+                            expired = new ArrayList<Entry>();
+                        }
+                        expired.add(entry);
+                    }
+                }
+                if (entries.isEmpty()) {
+                    wheel[slot] = null;
+                }
+            }
+            currentTick = targetTick;
+        }
+        if (expired == null) {
+            return false;
+        }
+        boolean removed = false;
+        for (Entry entry : expired) {
+            Bucket bucket = buckets.get(entry.domain);
+            // 被替换掉的cookie可能还留在时间轮上,这里只删除同一个实例
+            if (bucket != null && bucket.remove(entry)) {
+                removed = true;
+                retireIfEmpty(entry.domain, bucket);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * 桶清空之后从map里面移除,否则访问过的每个域名都会留下一个空桶。清空的桶不再接受cookie,并发加入的一方会换新桶重试
+     */
+    private void retireIfEmpty(String domain, Bucket bucket) {
+        if (bucket.retired) {
+            buckets.remove(domain, bucket);
+        }
+    }
+
+    private static String domainKey(String domain) {
+        if (domain == null) {
+            return "";
+        }
+        domain = domain.toLowerCase(Locale.ROOT);
+        return domain.startsWith(".") ? domain.substring(1) : domain;
+    }
+
+    private static class Entry implements Serializable {
+        private static final long serialVersionUID = 8410295032456380471L;
+        private final Cookie cookie;
+        private final long expiry;
+        private final String domain;
+
+        Entry(Cookie cookie, long expiry, String domain) {
+            this.cookie = cookie;
+            this.expiry = expiry;
+            this.domain = domain;
+        }
+    }
+
+    /**
+     * 同一个domain下的cookie,一般只有几个,写时复制
+     */
+    private static class Bucket implements Serializable {
+        private static final long serialVersionUID = -2297368473102475364L;
+        private volatile Entry[] entries = EMPTY;
+        // 已经清空,不再使用
+        private volatile boolean retired = false;
+
+        void collect(List<Cookie> ret, long now) {
+            for (Entry entry : entries) {
+                if (entry.expiry > now) {
+                    ret.add(entry.cookie);
+                }
+            }
+        }
+
+        /**
+         * 删除和cookie等价的旧cookie,然后加入newEntry(可以为null)
+         *
+         * @return 桶已经清空的时候返回false,什么也不做
+         */
+        synchronized boolean replace(Cookie cookie, Entry newEntry) {
+            if (retired) {
+                return false;
+            }
+            Entry[] old = entries;
+            int index = -1;
+            for (int i = 0; i < old.length; i++) {
+                if (identityComparator.compare(old[i].cookie, cookie) == 0) {
+                    index = i;
+                    break;
+                }
+            }
+            Entry[] updated;
+            if (index >= 0 && newEntry != null) {
+                updated = old.clone();
+                updated[index] = newEntry;
+            } else if (index >= 0) {
+                updated = new Entry[old.length - 1];
+                System.arraycopy(old, 0, updated, 0, index);
+                System.arraycopy(old, index + 1, updated, index, old.length - index - 1);
+            } else if (newEntry != null) {
+                updated = Arrays.copyOf(old, old.length + 1);
+                updated[old.length] = newEntry;
+            } else {
+                updated = old;
+            }
+            update(updated);
+            return true;
+        }
+
+        private void update(Entry[] updated) {
+            entries = updated;
+            if (updated.length == 0) {
+                retired = true;
+            }
+        }
+
+        synchronized boolean remove(Entry entry) {
+            Entry[] old = entries;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == entry) {
+                    Entry[] updated = new Entry[old.length - 1];
+                    System.arraycopy(old, 0, updated, 0, i);
+                    System.arraycopy(old, i + 1, updated, i, old.length - i - 1);
+                    update(updated);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized boolean removeExpired(long time) {
+            Entry[] old = entries;
+            List<Entry> alive = new ArrayList<Entry>(old.length);
+            for (Entry entry : old) {
+                if (entry.expiry > time) {
+                    alive.add(entry);
+                }
+            }
+            if (alive.size() == old.length) {
+                return false;
+            }
+            update(alive.toArray(EMPTY));
+            return true;
+        }
     }
 }
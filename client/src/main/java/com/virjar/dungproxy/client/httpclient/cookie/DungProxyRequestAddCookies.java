@@ -127,10 +127,9 @@ public class DungProxyRequestAddCookies implements HttpRequestInterceptor {
         // Get all cookies available in the HTTP state
 
         final List<Cookie> cookies;// 修改了这里,实现用户隔离
+        final String user = CommonUtil.safeToString(clientContext.getAttribute(ProxyConstant.DUNGPROXY_USER_KEY));
         if (cookieStore instanceof MultiUserCookieStore) {
-            MultiUserCookieStore multiUserCookieStore = (MultiUserCookieStore) cookieStore;
-            cookies = multiUserCookieStore
-                    .getCookies(CommonUtil.safeToString(clientContext.getAttribute(ProxyConstant.DUNGPROXY_USER_KEY)));
+            cookies = ((MultiUserCookieStore) cookieStore).getCookies(user, hostName);
         } else {
             cookies = cookieStore.getCookies();
         }
@@ -157,7 +156,11 @@ public class DungProxyRequestAddCookies implements HttpRequestInterceptor {
         // The user agent must evict all expired cookies if, at any time, an expired cookie
         // exists in the cookie store
         if (expired) {
-            cookieStore.clearExpired(now);
+            if (cookieStore instanceof MultiUserCookieStore) {
+                ((MultiUserCookieStore) cookieStore).clearExpired(now, user);
+            } else {
+                cookieStore.clearExpired(now);
+            }
         }
         // Generate Cookie request headers
         if (!matchedCookies.isEmpty()) {
@@ -2,24 +2,25 @@ package com.virjar.dungproxy.client.httpclient.cookie;
 
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ConcurrentMap;
 
 import org.apache.http.client.CookieStore;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.BasicCookieStore;
 
-import com.google.common.collect.Maps;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 
 /**
  * Created by virjar on 17/2/11.<br/>
  * 打破了java基本原则,实际上我们已经不在走定义的方法了,这个类慎用,在非dungproxy外部使用将不会保证不会出现问题<br/>
- * 通过这个支持多用户的cookie维护,这让一个httpclient实例本身就会支持多个用户的cookie空间隔离。
+ * 通过这个支持多用户的cookie维护,这让一个httpclient实例本身就会支持多个用户的cookie空间隔离。<br/>
+ * 用户空间放在分段加锁的缓存里面,首次访问的用户只锁自己所在的段;用户数量有上限,超过之后淘汰最久没有访问的用户
  */
 public class MultiUserCookieStore implements CookieStore {
     private static final String DEFAULT_USER = "DUNGPROXY_DEFAULT_USER";
-    private ConcurrentMap<Object, CookieStore> cookieStores = Maps.newConcurrentMap();
-
-    private CookieStoreGenerator cookieStoreGenerator;
+    public static final int DEFAULT_MAX_USER_COUNT = 100000;
+    private final LoadingCache<String, CookieStore> cookieStores;
 
     private static final MultiUserCookieStore defaultMultiUserCookieStore = new MultiUserCookieStore();
 
@@ -37,6 +38,13 @@ public class MultiUserCookieStore implements CookieStore {
     }
 
     public MultiUserCookieStore(CookieStoreGenerator cookieStoreGenerator) {
+        this(cookieStoreGenerator, DEFAULT_MAX_USER_COUNT);
+    }
+
+    /**
+     * @param maxUserCount 最多保存多少个用户的cookie空间,超过之后最久没有访问的用户cookie被丢弃
+     */
+    public MultiUserCookieStore(CookieStoreGenerator cookieStoreGenerator, int maxUserCount) {
         if (cookieStoreGenerator == null) {
             cookieStoreGenerator = new CookieStoreGenerator() {
                 @Override
@@ -45,7 +53,14 @@ public class MultiUserCookieStore implements CookieStore {
                 }
             };
         }
-        this.cookieStoreGenerator = cookieStoreGenerator;
+        final CookieStoreGenerator generator = cookieStoreGenerator;
+        this.cookieStores = CacheBuilder.newBuilder().maximumSize(maxUserCount).concurrencyLevel(16)
+                .build(new CacheLoader<String, CookieStore>() {
+                    @Override
+                    public CookieStore load(String user) throws Exception {
+                        return generator.generate(user);
+                    }
+                });
     }
 
     @Override
@@ -76,6 +91,17 @@ public class MultiUserCookieStore implements CookieStore {
         return createOrGetCookieStore(user).getCookies();
     }
 
+    /**
+     * 取出用户在这个host下可能生效的cookie,底层是BarrierCookieStore的时候只查host相关的domain,否则返回全部cookie
+     */
+    public List<Cookie> getCookies(String user, String host) {
+        CookieStore cookieStore = createOrGetCookieStore(user);
+        if (cookieStore instanceof BarrierCookieStore) {
+            return ((BarrierCookieStore) cookieStore).getCookies(host);
+        }
+        return cookieStore.getCookies();
+    }
+
     public boolean clearExpired(Date date, String user) {
         return createOrGetCookieStore(user).clearExpired(date);
     }
@@ -85,27 +111,23 @@ public class MultiUserCookieStore implements CookieStore {
     }
 
     public void clearAllUser() {
-        for (CookieStore cookieStore : cookieStores.values()) {
+        for (CookieStore cookieStore : cookieStores.asMap().values()) {
             cookieStore.clear();
         }
     }
 
+    /**
+     * @return 当前保存了cookie空间的用户数
+     */
+    public long userCount() {
+        return cookieStores.size();
+    }
+
     private CookieStore createOrGetCookieStore(String user) {
         if (user == null) {
             user = DEFAULT_USER;
         }
-        CookieStore cookieStore = cookieStores.get(user);
-        if (cookieStore == null) {
-            synchronized (MultiUserCookieStore.class) {
-                cookieStore = cookieStores.get(user);
-                if (cookieStore == null) {
-                    cookieStores.put(user, cookieStoreGenerator.generate(user));
-                    cookieStore = cookieStores.get(user);
-                }
-            }
-
-        }
-        return cookieStore;
+        return cookieStores.getUnchecked(user);
     }
 
 }
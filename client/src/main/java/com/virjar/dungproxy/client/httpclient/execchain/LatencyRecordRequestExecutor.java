@@ -0,0 +1,40 @@
+package com.virjar.dungproxy.client.httpclient.execchain;
+
+import java.io.IOException;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import com.virjar.dungproxy.client.ippool.config.ProxyConstant;
+import com.virjar.dungproxy.client.model.AvProxy;
+
+/**
+ * 在请求执行器上测量代理IP的延迟,CrawlerHttpClient默认使用本执行器<br/>
+ * 连接耗时:从ProxyBindRoutPlanner绑定IP到请求发出,包括从连接池获取连接,建立连接和https隧道<br/>
+ * 首字节耗时:从请求发出到收到响应头,不包括下载响应体
+ */
+public class LatencyRecordRequestExecutor extends HttpRequestExecutor {
+
+    @Override
+    public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+        Object bind = context.getAttribute(ProxyConstant.USED_PROXY_KEY);
+        if (!(bind instanceof AvProxy) || "CONNECT".equalsIgnoreCase(request.getRequestLine().getMethod())) {
+            return super.execute(request, conn, context);// https隧道请求算在连接耗时里面
+        }
+        long start = System.nanoTime();
+        HttpResponse response = super.execute(request, conn, context);
+        long firstByteMillis = (System.nanoTime() - start) / 1000000;
+
+        // 同一次绑定只记录一次连接耗时,重试的时候不会重新绑定
+        Object bindTime = context.removeAttribute(ProxyConstant.PROXY_BIND_TIME_KEY);
+        long connectMillis = bindTime instanceof Long ? (start - (Long) bindTime) / 1000000 : -1;
+        ((AvProxy) bind).recordLatency(connectMillis, firstByteMillis);
+        context.setAttribute(ProxyConstant.LATENCY_RECORDED_KEY, Boolean.TRUE);
+        return response;
+    }
+}
@@ -0,0 +1,83 @@
+package com.virjar.dungproxy.client.ippool;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.virjar.dungproxy.client.model.AvProxy;
+
+/**
+ * 异步打分器。请求线程只负责记录成功失败次数,打分计算和IP在容器中的位置调整由后台线程批量完成,请求线程不会因为优先级维护而阻塞<br/>
+ * 同一个IP在一个批次内的多次反馈会被合并,最多只做一次优先级调整。合并的时候先计算成功,再计算失败,失败对分值的影响更保守<br/>
+ * 每个DungProxyContext持有一个实例,通过 DungProxyContext#setAsyncScoring 开启
+ */
+public class AsyncScoreRecorder {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncScoreRecorder.class);
+
+    // 有待处理反馈的IP,每个IP在队列中最多出现一次,由AvProxy上的标记位保证
+    private final ConcurrentLinkedQueue<AvProxy> dirtyProxies = new ConcurrentLinkedQueue<>();
+
+    private final long drainIntervalMillis;
+
+    private volatile Thread drainThread;
+
+    public AsyncScoreRecorder() {
+        this(50);
+    }
+
+    /**
+     * @param drainIntervalMillis 没有数据的时候,后台线程两次检查之间的间隔
+     */
+    public AsyncScoreRecorder(long drainIntervalMillis) {
+        this.drainIntervalMillis = drainIntervalMillis;
+    }
+
+    /**
+     * 登记一个有新反馈的IP,由AvProxy在记录反馈之后调用
+     */
+    public void markDirty(AvProxy avProxy) {
+        dirtyProxies.offer(avProxy);
+        if (drainThread == null) {
+            startDrainThread();
+        }
+    }
+
+    /**
+     * 在当前线程处理完所有积压的反馈,IP池销毁或者序列化之前调用,保证分值是最新的
+     */
+    public int drain() {
+        int processed = 0;
+        AvProxy avProxy;
+        while ((avProxy = dirtyProxies.poll()) != null) {
+            try {
+                avProxy.applyPendingScore();
+            } catch (Exception e) {
+                logger.error("error when apply score for proxy:{}:{}", avProxy.getIp(), avProxy.getPort(), e);
+            }
+            processed++;
+        }
+        return processed;
+    }
+
+    private synchronized void startDrainThread() {
+        if (drainThread != null) {
+            return;
+        }
+        Thread thread = new Thread("dungproxy-score-drainer") {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    if (drain() == 0) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(drainIntervalMillis));
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        drainThread = thread;
+    }
+}
@@ -0,0 +1,311 @@
+package com.virjar.dungproxy.client.ippool;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import com.virjar.dungproxy.client.model.AvProxy;
+
+/**
+ * 无锁版本的SmartProxyQueue,API和调度语义和SmartProxyQueue保持一致,适用于大量线程同时在一个域名上绑定IP的场景<br/>
+ * 原实现在LinkedList上做按下标插入和删除,都是O(n)且需要全局锁。这里把队列拆成三段:<br/>
+ * 1. 热区(hot):对应原队列中前 ratio 比例的部分,在这里轮询,按照调度序号排序<br/>
+ * 2. 备用区(reserve):对应原队列剩余部分,按照分值排序,热区不足的时候从这里补充<br/>
+ * 3. 封禁区(blocked):使用频率过高被暂时封禁的IP<br/>
+ * 所有的位置调整都是跳表上的O(log n)操作,一个IP的当前位置以index中记录的节点为准,其他容器中残留的旧节点在遇到的时候直接丢弃<br/>
+ * 和原实现相比,热区之外的位置只能做到近似的按分值排序,这对于这种打分模型已经足够了
+ */
+public class ConcurrentSmartProxyQueue extends SmartProxyQueue {
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrentSmartProxyQueue.class);
+
+    private static final int HOT = 0;
+    private static final int RESERVE = 1;
+    private static final int BLOCKED = 2;
+
+    // 全局轮询模式下放回队尾的IP,排在所有按分值排序的IP后面
+    private static final double TAIL_KEY = 2D;
+
+    private final double ratio;
+    private final long useInterval;
+
+    // IP -> 当前有效的节点,同时承担原实现中consistentBuckets的职责
+    private final ConcurrentMap<AvProxy, Node> index = Maps.newConcurrentMap();
+
+    private final ConcurrentSkipListSet<Node> hot = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<Node> reserve = new ConcurrentSkipListSet<>();
+    private final ConcurrentLinkedQueue<Node> blocked = new ConcurrentLinkedQueue<>();
+
+    // 跳表和ConcurrentLinkedQueue的size()都是O(n)的,单独计数
+    private final AtomicInteger[] counters = new AtomicInteger[] { new AtomicInteger(0), new AtomicInteger(0),
+            new AtomicInteger(0) };
+
+    // 热区尾部序号递增,头部序号递减,保证放到头部的节点一定排在所有现有节点前面
+    private final AtomicLong hotTailSeq = new AtomicLong(0);
+    private final AtomicLong hotHeadSeq = new AtomicLong(0);
+    private final AtomicLong reserveSeq = new AtomicLong(0);
+
+    public ConcurrentSmartProxyQueue(double ratio, long useInterval) {
+        super(ratio, useInterval);
+        this.ratio = ratio;
+        this.useInterval = useInterval;
+    }
+
+    @Override
+    public void addAllProxy(Collection<AvProxy> avProxies) {
+        for (AvProxy avProxy : avProxies) {
+            addWithScore(avProxy);
+        }
+    }
+
+    @Override
+    public void addWithScore(AvProxy avProxy) {
+        checkScore(avProxy.getAvgScore());
+        Node node = reserveNode(avProxy, 1 - avProxy.getAvgScore());
+        if (index.putIfAbsent(avProxy, node) != null) {
+            return;
+        }
+        counters[RESERVE].incrementAndGet();
+        reserve.add(node);
+        fillHot();
+    }
+
+    @Override
+    public AvProxy getAndAdjustPriority(boolean adjustTail) {
+        boolean hasBlock = false;
+        try {
+            for (;;) {
+                Node node = hot.pollFirst();
+                if (node == null) {
+                    node = reserve.pollFirst();
+                    if (node == null) {
+                        return null;
+                    }
+                }
+                if (!isLive(node)) {
+                    continue;// 已经被调整过位置或者下线,残留节点直接丢弃
+                }
+                AvProxy poll = node.proxy;
+                if (System.currentTimeMillis() - poll.getLastUsedTime() < useInterval) {
+                    Node blockedNode = new Node(poll, BLOCKED, 0, 0);
+                    if (relocate(node, blockedNode)) {
+                        hasBlock = true;
+                        blocked.offer(blockedNode);
+                        recordBlocked();
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("IP:{}使用小于规定时间间隔{}秒,暂时封禁", poll.getIp(), (useInterval / 1000));
+                        }
+                    }
+                    continue;
+                }
+                Node next = adjustTail ? reserveNode(poll, TAIL_KEY) : hotNode(poll, hotTailSeq.incrementAndGet());
+                if (!relocate(node, next)) {
+                    continue;// 并发情况下被其他线程调整了,重新调度
+                }
+                place(next);
+                fillHot();
+                return poll;
+            }
+        } finally {
+            if (hasBlock) {
+                recoveryBlockedProxy();
+            }
+        }
+    }
+
+    @Override
+    public void recoveryBlockedProxy() {
+        if (counters[BLOCKED].get() == 0 && blocked.isEmpty()) {
+            return;
+        }
+        int recoveredNumber = 0;
+        long now = System.currentTimeMillis();
+        Iterator<Node> iterator = blocked.iterator();
+        while (iterator.hasNext()) {
+            Node next = iterator.next();
+            if (!isLive(next)) {
+                iterator.remove();
+                continue;
+            }
+            if (now - next.proxy.getLastUsedTime() > useInterval) {
+                // 封禁的前提是IP曾经在队列头部,处于最高优先级,所以这批资源直接恢复到头部
+                Node head = hotNode(next.proxy, hotHeadSeq.decrementAndGet());
+                if (relocate(next, head)) {
+                    iterator.remove();
+                    place(head);
+                    recoveredNumber++;
+                }
+            }
+        }
+        if (recoveredNumber > 0) {
+            logger.info("本次IP解禁数目为:{}", recoveredNumber);
+        }
+    }
+
+    @Override
+    public void adjustPriority(AvProxy avProxy) {
+        Node node = index.get(avProxy);
+        if (node == null) {// 如果已经下线,则不进行优先级调整动作
+            return;
+        }
+        Node next = reserveNode(avProxy, 1 - avProxy.getAvgScore());
+        if (!relocate(node, next)) {
+            return;// 同一时刻已经有其他线程调整了这个IP的位置
+        }
+        remove(node);
+        place(next);
+        fillHot();
+    }
+
+    @Override
+    public void offline(AvProxy avProxy) {
+        Node node = index.remove(avProxy);
+        if (node == null) {
+            return;
+        }
+        counters[node.where].decrementAndGet();
+        remove(node);
+    }
+
+    @Override
+    public void offlineWithScore(double score) {
+        checkScore(score);
+        for (AvProxy avProxy : index.keySet()) {
+            if (avProxy.getAvgScore() < score) {
+                avProxy.offline();
+            }
+        }
+    }
+
+    @Override
+    public Iterator<? extends AvProxy> values() {
+        // 保证顺序:热区,备用区,封禁区
+        Iterator<Node> nodes = Iterators.concat(hot.iterator(), reserve.iterator(), blocked.iterator());
+        return Iterators.transform(Iterators.filter(nodes, new Predicate<Node>() {
+            @Override
+            public boolean apply(Node input) {
+                return isLive(input);
+            }
+        }), new Function<Node, AvProxy>() {
+            @Override
+            public AvProxy apply(Node input) {
+                return input.proxy;
+            }
+        });
+    }
+
+    @Override
+    public int availableSize() {
+        return counters[HOT].get() + counters[RESERVE].get();
+    }
+
+    @Override
+    public int allSize() {
+        return availableSize() + counters[BLOCKED].get();
+    }
+
+    /**
+     * 热区的大小对应原实现中 size * ratio 的位置,热区不足的时候从备用区按分值补充
+     */
+    private void fillHot() {
+        while (counters[HOT].get() < Math.max(1, (int) (availableSize() * ratio))) {
+            Node candidate = reserve.pollFirst();
+            if (candidate == null) {
+                return;
+            }
+            if (!isLive(candidate)) {
+                continue;
+            }
+            Node next = hotNode(candidate.proxy, hotTailSeq.incrementAndGet());
+            if (relocate(candidate, next)) {
+                place(next);
+            }
+        }
+    }
+
+    /**
+     * 将IP的有效节点从from切换到to,index上的CAS保证同一个节点只会被一个线程迁移
+     */
+    private boolean relocate(Node from, Node to) {
+        if (!index.replace(from.proxy, from, to)) {
+            return false;
+        }
+        counters[from.where].decrementAndGet();
+        counters[to.where].incrementAndGet();
+        return true;
+    }
+
+    private void place(Node node) {
+        if (node.where == HOT) {
+            hot.add(node);
+        } else if (node.where == RESERVE) {
+            reserve.add(node);
+        } else {
+            blocked.offer(node);
+        }
+    }
+
+    private void remove(Node node) {
+        if (node.where == HOT) {
+            hot.remove(node);
+        } else if (node.where == RESERVE) {
+            reserve.remove(node);
+        }
+        // 封禁区是链表,删除是O(n)的,残留节点在解禁的时候清理
+    }
+
+    private boolean isLive(Node node) {
+        return index.get(node.proxy) == node;
+    }
+
+    private Node hotNode(AvProxy avProxy, long seq) {
+        return new Node(avProxy, HOT, 0, seq);
+    }
+
+    private Node reserveNode(AvProxy avProxy, double key) {
+        return new Node(avProxy, RESERVE, key, reserveSeq.incrementAndGet());
+    }
+
+    private void checkScore(double score) {
+        if (score < 0 || score > 1) {
+            throw new IllegalStateException("avgScore for a AvProxy need between 0 and 1");
+        }
+    }
+
+    /**
+     * 队列节点,创建之后不可变。一个IP每调整一次位置就产生一个新的节点
+     */
+    private static final class Node implements Comparable<Node> {
+        private final AvProxy proxy;
+        private final int where;
+        private final double key;
+        private final long seq;
+
+        private Node(AvProxy proxy, int where, double key, long seq) {
+            this.proxy = proxy;
+            this.where = where;
+            this.key = key;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Node o) {
+            int ret = Double.compare(key, o.key);
+            if (ret != 0) {
+                return ret;
+            }
+            // 同一个区域内的序号是唯一的
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+}
@@ -17,10 +17,17 @@ import org.slf4j.LoggerFactory;
 import com.alibaba.fastjson.JSONObject;
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.virjar.dungproxy.client.ippool.config.DomainContext;
+import com.virjar.dungproxy.client.ippool.strategy.BatchProxyChecker;
+import com.virjar.dungproxy.client.ippool.strategy.IncrementalAvProxyDumper;
+import com.virjar.dungproxy.client.ippool.strategy.ProxyChecker;
+import com.virjar.dungproxy.client.ippool.strategy.ProxyOfflineListener;
 import com.virjar.dungproxy.client.ippool.strategy.ResourceFacade;
 import com.virjar.dungproxy.client.model.AvProxy;
 import com.virjar.dungproxy.client.model.AvProxyVO;
+import com.virjar.dungproxy.client.model.CloudProxy;
+import com.virjar.dungproxy.client.model.LatencySketch;
 import com.virjar.dungproxy.client.ningclient.concurrent.NamedThreadFactory;
 
 /**
@@ -49,6 +56,10 @@ public class DomainPool {
 
     private static final Logger logger = LoggerFactory.getLogger(DomainPool.class);
 
+    private static final int ADD = 0;
+    private static final int OFFLINE = 1;
+    private static final int SCORE_CHANGE = 2;
+
     private AtomicInteger refreshTaskNumber = new AtomicInteger(0);
 
     /**
@@ -61,6 +72,11 @@ public class DomainPool {
 
     private DomainContext domainContext;
 
+    private final DomainPoolMetrics metrics;
+
+    // 这个域名下所有IP的请求延迟(连接+首字节),用于对冲请求计算等待时间
+    private final LatencySketch requestLatency = new LatencySketch();
+
     public DomainContext getDomainContext() {
         return domainContext;
     }
@@ -70,7 +86,14 @@ public class DomainPool {
         this.resourceFacade = domainContext.getResourceFacade();
         this.domainContext = domainContext;
         this.coreSize = domainContext.getCoreSize();
-        smartProxyQueue = new SmartProxyQueue(domainContext.getSmartProxyQueueRatio(), domainContext.getUseInterval());
+        if (domainContext.isConcurrentProxyQueue()) {
+            smartProxyQueue = new ConcurrentSmartProxyQueue(domainContext.getSmartProxyQueueRatio(),
+                    domainContext.getUseInterval());
+        } else {
+            smartProxyQueue = new SmartProxyQueue(domainContext.getSmartProxyQueueRatio(),
+                    domainContext.getUseInterval());
+        }
+        this.metrics = new DomainPoolMetrics(this);
 
         // 全局默认代理 cloud proxy
         for (AvProxyVO cloudProxy : domainContext.getDungProxyContext().getCloudProxies()) {
@@ -99,15 +122,28 @@ public class DomainPool {
     }
 
     public void addAvailable(Collection<AvProxy> avProxyList) {
+        addAvailable(avProxyList, true);
+    }
+
+    /**
+     * @param recordChange 是否通知增量序列化器,调用方自己负责序列化的时候(如预热器)传false
+     */
+    public void addAvailable(Collection<AvProxy> avProxyList, boolean recordChange) {
         for (AvProxy avProxy : avProxyList) {
-            avProxy.setDomainPool(this);// 注意考虑对象懒加载问题
-            smartProxyQueue.addWithScore(avProxy);
+            addAvailable(avProxy, recordChange);// 注意考虑对象懒加载问题
         }
     }
 
     public void addAvailable(AvProxy avProxy) {
+        addAvailable(avProxy, true);
+    }
+
+    public void addAvailable(AvProxy avProxy, boolean recordChange) {
         avProxy.setDomainPool(this);
         smartProxyQueue.addWithScore(avProxy);
+        if (recordChange) {
+            recordProxyChange(avProxy, ADD);
+        }
     }
 
     public List<AvProxy> availableProxy() {
@@ -126,9 +162,12 @@ public class DomainPool {
         if (needFresh()) {
             refresh();// 在新线程刷新
         }
+        long start = System.nanoTime();
         // 当只有两个IP轮询的时候,放弃局部轮询,而是采用全部轮询的方式
-        return smartProxyQueue
+        AvProxy avProxy = smartProxyQueue
                 .getAndAdjustPriority((smartProxyQueue.availableSize() * smartProxyQueue.getRatio()) <= 2);
+        metrics.recordBind(System.nanoTime() - start, avProxy != null);
+        return avProxy;
     }
 
     /**
@@ -201,6 +240,7 @@ public class DomainPool {
         public void run() {
             try {
                 logger.info("IP资源刷新开始,当前刷新线程数量:{}...", refreshTaskNumber.get());
+                metrics.recordRefresh();
                 doRefresh();
                 logger.info("IP资源刷新结束...");
             } finally {
@@ -225,6 +265,7 @@ public class DomainPool {
                 List<AvProxyVO> avProxies = resourceFacade.importProxy(domain,
                         testUrls.get(random.nextInt(testUrls.size())), coreSize);
                 logger.info("在线IP刷新,当前下载到的IP数目为:{}", avProxies.size());
+                metrics.recordImport(avProxies.size());
                 candidateProxies.addAll(avProxies);
             } finally {
                 lastIpImportTimeStamp = System.currentTimeMillis();
@@ -236,10 +277,17 @@ public class DomainPool {
 
     private void doRefresh() {
         checkAndExtendCandidateResource();
+        ProxyChecker proxyChecker = domainContext.getProxyChecker();
+        if (proxyChecker instanceof BatchProxyChecker) {
+            doBatchRefresh((BatchProxyChecker) proxyChecker);
+            return;
+        }
         AvProxyVO avProxy;
         // PreHeater preHeater = dungProxyContext.getPreHeater();
         while ((avProxy = candidateProxies.poll()) != null) {
-            if (domainContext.getProxyChecker().available(avProxy, testUrls.get(random.nextInt(testUrls.size())))) {
+            boolean available = proxyChecker.available(avProxy, testUrls.get(random.nextInt(testUrls.size())));
+            metrics.recordCheck(available);
+            if (available) {
                 avProxy.setAvgScore(0.5);// 设置默认值。让他处于次级缓存的中间。
                 addAvailable(avProxy.toModel(domainContext));
                 logger.info("IP池{}当前可用IP数目:{}", domain, smartProxyQueue.availableSize());
@@ -247,6 +295,37 @@ public class DomainPool {
         }
     }
 
+    /**
+     * 一次取出所有候选IP交给批量检查器,检查通过的IP在回调里面直接加入IP池,刷新线程只等待这一批检查结束
+     */
+    private void doBatchRefresh(BatchProxyChecker batchProxyChecker) {
+        List<AvProxyVO> batch = Lists.newArrayList();
+        AvProxyVO avProxy;
+        while ((avProxy = candidateProxies.poll()) != null) {
+            batch.add(avProxy);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        ListenableFuture<Integer> future = batchProxyChecker.checkBatch(batch,
+                testUrls.get(random.nextInt(testUrls.size())), new BatchProxyChecker.CheckCallback() {
+                    @Override
+                    public void onChecked(AvProxyVO avProxyVO, boolean available) {
+                        metrics.recordCheck(available);
+                        if (available) {
+                            avProxyVO.setAvgScore(0.5);// 设置默认值。让他处于次级缓存的中间。
+                            addAvailable(avProxyVO.toModel(domainContext));
+                        }
+                    }
+                });
+        try {
+            logger.info("IP池{}批量检查候选IP:{} 可用:{} 当前可用IP数目:{}", domain, batch.size(), future.get(),
+                    smartProxyQueue.availableSize());
+        } catch (Exception e) {
+            logger.error("error when check candidate proxies for domain:{}", domain, e);
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o)
@@ -267,7 +346,17 @@ public class DomainPool {
 
     public void offline(AvProxy avProxy) {
         smartProxyQueue.offline(avProxy);
+        metrics.recordOffline();
+        recordProxyChange(avProxy, OFFLINE);
         removedProxies.add(avProxy);
+        for (ProxyOfflineListener proxyOfflineListener : domainContext.getDungProxyContext()
+                .getProxyOfflineListeners()) {
+            try {
+                proxyOfflineListener.onOffline(domain, avProxy);
+            } catch (Exception e) {
+                logger.error("proxy offline listener error", e);
+            }
+        }
         if (avProxy.getReferCount() != 0) {
             logger.warn("IP offline {}", JSONObject.toJSONString(AvProxyVO.fromModel(avProxy)));
         }
@@ -282,7 +371,39 @@ public class DomainPool {
     }
 
     public void adjustPriority(AvProxy avProxy) {
+        adjustPriority(avProxy, true);
+    }
+
+    /**
+     * @param recordChange 是否把新的分值通知增量序列化器
+     */
+    public void adjustPriority(AvProxy avProxy, boolean recordChange) {
         smartProxyQueue.adjustPriority(avProxy);
+        if (recordChange) {
+            recordProxyChange(avProxy, SCORE_CHANGE);
+        }
+    }
+
+    /**
+     * 配置了增量序列化器的时候,把IP的变化通知给序列化器。云代理不参与序列化,反序列化过程中的加载也不需要记录
+     */
+    private void recordProxyChange(AvProxy avProxy, int changeType) {
+        if (!AvProxy.needRecordChange || avProxy instanceof CloudProxy) {
+            return;
+        }
+        IncrementalAvProxyDumper incrementalAvProxyDumper = domainContext.getDungProxyContext()
+                .getIncrementalAvProxyDumper();
+        if (incrementalAvProxyDumper == null) {
+            return;
+        }
+        AvProxyVO avProxyVO = AvProxyVO.fromModel(avProxy);
+        if (changeType == ADD) {
+            incrementalAvProxyDumper.onProxyAdd(domain, avProxyVO);
+        } else if (changeType == OFFLINE) {
+            incrementalAvProxyDumper.onProxyOffline(domain, avProxyVO);
+        } else {
+            incrementalAvProxyDumper.onScoreChange(domain, avProxyVO);
+        }
     }
 
     public int getCoreSize() {
@@ -301,6 +422,32 @@ public class DomainPool {
         return smartProxyQueue;
     }
 
+    public int getCandidateSize() {
+        return candidateProxies.size();
+    }
+
+    public DomainPoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 注册JMX指标,由IpPool在域名池放入之后调用,临时创建的域名池(预热、测试)不注册
+     */
+    void registerMetrics() {
+        metrics.registerMBean();
+    }
+
+    /**
+     * 域名池不再使用的时候调用,注销JMX指标
+     */
+    public void destroy() {
+        metrics.unregisterMBean();
+    }
+
+    public LatencySketch getRequestLatency() {
+        return requestLatency;
+    }
+
     public boolean isRefreshing() {
         return refreshTaskNumber.get() > 0;
     }
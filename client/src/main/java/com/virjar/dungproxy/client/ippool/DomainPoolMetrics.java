@@ -0,0 +1,393 @@
+package com.virjar.dungproxy.client.ippool;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 单个域名IP池的运行指标,用于在线上调整coreSize,useInterval和smartProxyQueueRatio<br/>
+ * 计数器都是累计值,通过StatViewServlet的/metrics以prometheus文本格式输出,同时注册为JMX MBean<br/>
+ * 记录指标只是几次原子自增,bind的额外开销是两次System.nanoTime
+ */
+public class DomainPoolMetrics implements DomainPoolMetricsMBean {
+    private static final Logger logger = LoggerFactory.getLogger(DomainPoolMetrics.class);
+
+    public static final String OBJECT_NAME_PREFIX = "com.virjar.dungproxy:type=DomainPool,domain=";
+
+    // bind耗时直方图的桶上界,微秒。bind在锁内操作链表,正常情况下是几微秒到几百微秒
+    private static final long[] BIND_LATENCY_BOUNDS = { 10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 50000,
+            100000 };
+
+    // bind速率统计窗口,秒。多一个槽位给当前还没有结束的这一秒
+    private static final int RATE_WINDOW = 60;
+
+    private final DomainPool domainPool;
+
+    private final AtomicLong bindTotal = new AtomicLong(0);
+    private final AtomicLong bindMissTotal = new AtomicLong(0);
+    private final AtomicLongArray bindLatencyBuckets = new AtomicLongArray(BIND_LATENCY_BOUNDS.length + 1);
+    private final AtomicLong bindLatencySumMicros = new AtomicLong(0);
+    private final AtomicLongArray bindRateSlots = new AtomicLongArray(RATE_WINDOW + 1);
+    private final AtomicLongArray bindRateSlotSeconds = new AtomicLongArray(RATE_WINDOW + 1);
+
+    private final AtomicLong refreshTotal = new AtomicLong(0);
+    private final AtomicLong importTotal = new AtomicLong(0);
+    private final AtomicLong importedProxyTotal = new AtomicLong(0);
+    private final AtomicLong checkTotal = new AtomicLong(0);
+    private final AtomicLong checkPassedTotal = new AtomicLong(0);
+    private final AtomicLong offlineTotal = new AtomicLong(0);
+
+    // 注册成功之后的MBean名称,没有注册的时候为null
+    private ObjectName objectName;
+
+    DomainPoolMetrics(DomainPool domainPool) {
+        this.domainPool = domainPool;
+    }
+
+    void recordBind(long costNanos, boolean hit) {
+        bindTotal.incrementAndGet();
+        if (!hit) {
+            bindMissTotal.incrementAndGet();
+        }
+        long micros = costNanos / 1000;
+        int bucket = 0;
+        while (bucket < BIND_LATENCY_BOUNDS.length && micros > BIND_LATENCY_BOUNDS[bucket]) {
+            bucket++;
+        }
+        bindLatencyBuckets.incrementAndGet(bucket);
+        bindLatencySumMicros.addAndGet(micros);
+
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % bindRateSlots.length());
+        long slotSecond = bindRateSlotSeconds.get(slot);
+        if (slotSecond != second && bindRateSlotSeconds.compareAndSet(slot, slotSecond, second)) {
+            bindRateSlots.set(slot, 0);// 槽位过期,重新计数。和并发的自增存在竞争,最多丢几个计数
+        }
+        bindRateSlots.incrementAndGet(slot);
+    }
+
+    void recordRefresh() {
+        refreshTotal.incrementAndGet();
+    }
+
+    void recordImport(int size) {
+        importTotal.incrementAndGet();
+        importedProxyTotal.addAndGet(size);
+    }
+
+    void recordCheck(boolean passed) {
+        checkTotal.incrementAndGet();
+        if (passed) {
+            checkPassedTotal.incrementAndGet();
+        }
+    }
+
+    void recordOffline() {
+        offlineTotal.incrementAndGet();
+    }
+
+    /**
+     * 只有IpPool管理的域名池才注册。同名的MBean已经存在的时候不替换,预热等临时创建的IP池不能顶掉线上IP池的指标
+     *
+     * @return 是否注册成功
+     */
+    synchronized boolean registerMBean() {
+        if (objectName != null) {
+            return true;
+        }
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(getDomain()));
+            if (mbeanServer.isRegistered(name)) {
+                logger.warn("mbean for domain:{} already registered, skip", getDomain());
+                return false;
+            }
+            mbeanServer.registerMBean(this, name);
+            objectName = name;
+            return true;
+        } catch (JMException e) {
+            logger.error("register mbean error for domain:{}", getDomain(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 只注销自己注册的MBean,否则MBeanServer会一直引用已经销毁的IP池和里面的IP
+     */
+    synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.warn("unregister mbean error for domain:{}", getDomain(), e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public String getDomain() {
+        return domainPool.getDomain();
+    }
+
+    @Override
+    public long getBindTotal() {
+        return bindTotal.get();
+    }
+
+    @Override
+    public long getBindMissTotal() {
+        return bindMissTotal.get();
+    }
+
+    /**
+     * @return 最近一分钟平均每秒bind次数,不包括当前这一秒
+     */
+    @Override
+    public double getBindPerSecond() {
+        long current = System.currentTimeMillis() / 1000;
+        long total = 0;
+        for (int i = 0; i < bindRateSlots.length(); i++) {
+            long second = bindRateSlotSeconds.get(i);
+            if (second < current && second >= current - RATE_WINDOW) {
+                total += bindRateSlots.get(i);
+            }
+        }
+        return total / (double) RATE_WINDOW;
+    }
+
+    @Override
+    public long getBindLatencyP50Micros() {
+        return bindLatencyQuantile(0.5D);
+    }
+
+    @Override
+    public long getBindLatencyP99Micros() {
+        return bindLatencyQuantile(0.99D);
+    }
+
+    /**
+     * @return 分位数所在桶的上界,超过最大上界的时候返回Long.MAX_VALUE,没有数据返回-1
+     */
+    private long bindLatencyQuantile(double quantile) {
+        long[] snapshot = new long[bindLatencyBuckets.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = bindLatencyBuckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(total * quantile);
+        long seen = 0;
+        for (int i = 0; i < BIND_LATENCY_BOUNDS.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return BIND_LATENCY_BOUNDS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public long getRefreshTotal() {
+        return refreshTotal.get();
+    }
+
+    @Override
+    public long getImportTotal() {
+        return importTotal.get();
+    }
+
+    @Override
+    public long getImportedProxyTotal() {
+        return importedProxyTotal.get();
+    }
+
+    @Override
+    public long getCheckTotal() {
+        return checkTotal.get();
+    }
+
+    @Override
+    public long getCheckPassedTotal() {
+        return checkPassedTotal.get();
+    }
+
+    @Override
+    public double getCheckPassRate() {
+        long total = checkTotal.get();
+        return total == 0 ? 0D : checkPassedTotal.get() / (double) total;
+    }
+
+    @Override
+    public long getOfflineTotal() {
+        return offlineTotal.get();
+    }
+
+    @Override
+    public long getBlockedTotal() {
+        return domainPool.getSmartProxyQueue().getBlockedTotal();
+    }
+
+    @Override
+    public int getAvailableSize() {
+        return domainPool.getSmartProxyQueue().availableSize();
+    }
+
+    @Override
+    public int getAllSize() {
+        return domainPool.getSmartProxyQueue().allSize();
+    }
+
+    @Override
+    public int getCandidateSize() {
+        return domainPool.getCandidateSize();
+    }
+
+    @Override
+    public int getCoreSize() {
+        return domainPool.getCoreSize();
+    }
+
+    /**
+     * 以prometheus文本格式输出所有域名的指标,同一个指标的所有域名写在一起
+     */
+    public static String exposition(Collection<DomainPoolMetrics> metricsList) {
+        StringBuilder sb = new StringBuilder();
+        for (Metric metric : Metric.values()) {
+            sb.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            sb.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            for (DomainPoolMetrics metrics : metricsList) {
+                sb.append(metric.name).append("{domain=\"").append(escapeLabel(metrics.getDomain())).append("\"} ")
+                        .append(metric.value(metrics)).append('\n');
+            }
+        }
+
+        String histogram = "dungproxy_bind_latency_seconds";
+        sb.append("# HELP ").append(histogram).append(" IP池bind耗时\n");
+        sb.append("# TYPE ").append(histogram).append(" histogram\n");
+        for (DomainPoolMetrics metrics : metricsList) {
+            String domain = escapeLabel(metrics.getDomain());
+            long cumulative = 0;
+            for (int i = 0; i < metrics.bindLatencyBuckets.length(); i++) {
+                cumulative += metrics.bindLatencyBuckets.get(i);
+                String le = i < BIND_LATENCY_BOUNDS.length ? String.valueOf(BIND_LATENCY_BOUNDS[i] / 1000000D) : "+Inf";
+                sb.append(histogram).append("_bucket{domain=\"").append(domain).append("\",le=\"").append(le)
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(histogram).append("_sum{domain=\"").append(domain).append("\"} ")
+                    .append(metrics.bindLatencySumMicros.get() / 1000000D).append('\n');
+            sb.append(histogram).append("_count{domain=\"").append(domain).append("\"} ").append(cumulative)
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private enum Metric {
+        BIND_TOTAL("dungproxy_bind_total", "counter", "bind调用次数") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getBindTotal();
+            }
+        },
+        BIND_MISS_TOTAL("dungproxy_bind_miss_total", "counter", "IP池为空,bind没有拿到IP的次数") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getBindMissTotal();
+            }
+        },
+        REFRESH_TOTAL("dungproxy_refresh_total", "counter", "IP池刷新任务执行次数") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getRefreshTotal();
+            }
+        },
+        IMPORT_TOTAL("dungproxy_import_total", "counter", "候选IP下载次数") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getImportTotal();
+            }
+        },
+        IMPORTED_PROXY_TOTAL("dungproxy_imported_proxy_total", "counter", "累计下载的候选IP数量") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getImportedProxyTotal();
+            }
+        },
+        CHECK_TOTAL("dungproxy_check_total", "counter", "候选IP可用性检查次数") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getCheckTotal();
+            }
+        },
+        CHECK_PASSED_TOTAL("dungproxy_check_passed_total", "counter", "候选IP可用性检查通过次数") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getCheckPassedTotal();
+            }
+        },
+        OFFLINE_TOTAL("dungproxy_offline_total", "counter", "IP下线次数") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getOfflineTotal();
+            }
+        },
+        BLOCKED_TOTAL("dungproxy_blocked_total", "counter", "IP因为使用间隔小于useInterval被暂时封禁的次数") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getBlockedTotal();
+            }
+        },
+        AVAILABLE_SIZE("dungproxy_queue_available", "gauge", "容器中可以分配的IP数量") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getAvailableSize();
+            }
+        },
+        ALL_SIZE("dungproxy_queue_size", "gauge", "容器中的IP数量,包括暂时封禁的IP") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getAllSize();
+            }
+        },
+        CANDIDATE_SIZE("dungproxy_candidate_size", "gauge", "等待检查的候选IP数量") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getCandidateSize();
+            }
+        },
+        CORE_SIZE("dungproxy_core_size", "gauge", "IP池配置的coreSize") {
+            @Override
+            Number value(DomainPoolMetrics metrics) {
+                return metrics.getCoreSize();
+            }
+        };
+
+        private final String name;
+        private final String type;
+        private final String help;
+
+        Metric(String name, String type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+        }
+
+        abstract Number value(DomainPoolMetrics metrics);
+    }
+}
@@ -0,0 +1,42 @@
+package com.virjar.dungproxy.client.ippool;
+
+/**
+ * 通过JMX暴露的单个域名IP池指标,ObjectName为 com.virjar.dungproxy:type=DomainPool,domain=域名
+ */
+public interface DomainPoolMetricsMBean {
+    String getDomain();
+
+    long getBindTotal();
+
+    long getBindMissTotal();
+
+    double getBindPerSecond();
+
+    long getBindLatencyP50Micros();
+
+    long getBindLatencyP99Micros();
+
+    long getRefreshTotal();
+
+    long getImportTotal();
+
+    long getImportedProxyTotal();
+
+    long getCheckTotal();
+
+    long getCheckPassedTotal();
+
+    double getCheckPassRate();
+
+    long getOfflineTotal();
+
+    long getBlockedTotal();
+
+    int getAvailableSize();
+
+    int getAllSize();
+
+    int getCandidateSize();
+
+    int getCoreSize();
+}
@@ -1,26 +1,51 @@
 package com.virjar.dungproxy.client.ippool;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Optional;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
 /**
  * Created by virjar on 17/1/14. <br/>
- * 一个网站可能存在多个域名,但是实际上他们可以使用同一个代理规则,通过本类对其进行路由
+ * 一个网站可能存在多个域名,但是实际上他们可以使用同一个代理规则,通过本类对其进行路由<br/>
+ * 规则在加载的时候编译为路由引擎,匹配优先级:精确域名 > 最长后缀(形如 .*\.virjar\.com) > 其他正则(按照配置顺序) > 全匹配(.*)<br/>
+ * 路由结果放在有界缓存里面,缓存命中的时候不加锁,不打印日志,不产生对象
  */
 public class GroupBindRouter {
-    private Logger logger = LoggerFactory.getLogger(GroupBindRouter.class);
-    private Map<String, Optional<String>> routeData = Maps.newConcurrentMap();
-    private Map<String, String> routeRule = Maps.newConcurrentMap();
+    private static final Logger logger = LoggerFactory.getLogger(GroupBindRouter.class);
+
+    /**
+     * 默认路由缓存大小,超过之后淘汰最久没有访问的一批数据
+     */
+    public static final int DEFAULT_ROUTE_CACHE_SIZE = 8192;
+
+    // 规则原文,similarDomain -> keyDomain,只在加载规则的时候访问
+    private final Map<String, String> routeRule = Maps.newLinkedHashMap();
+
+    private volatile RouteEngine routeEngine = RouteEngine.compile(routeRule);
+
+    private final RouteCache routeCache;
 
     public GroupBindRouter() {
-        //buildRule("www.virjar.com:*");// 默认增加一个全部路由的策略,没有配置的
+        this(DEFAULT_ROUTE_CACHE_SIZE);
+    }
+
+    /**
+     * @param routeCacheSize 路由缓存的大小,子域名非常多的时候可以适当调大
+     */
+    public GroupBindRouter(int routeCacheSize) {
+        if (routeCacheSize < 2) {
+            throw new IllegalArgumentException("route cache size must greater than 1");
+        }
+        routeCache = new RouteCache(routeCacheSize);
     }
 
     /**
@@ -38,11 +63,15 @@ public class GroupBindRouter {
         String keyDomain = split[0];
         String similarDomainList = split[1];
 
-        for (String similarDomain : Splitter.on(",").trimResults().split(similarDomainList)) {
-            if (similarDomain.equals(keyDomain)) {
-                continue;// 否则会打印一个无效日志,以及递归问题
+        synchronized (routeRule) {
+            for (String similarDomain : Splitter.on(",").trimResults().split(similarDomainList)) {
+                if (similarDomain.equals(keyDomain)) {
+                    continue;// 否则会打印一个无效日志,以及递归问题
+                }
+                routeRule.put(similarDomain, keyDomain);
             }
-            routeRule.put(similarDomain, keyDomain);
+            routeEngine = RouteEngine.compile(routeRule);
+            routeCache.clear();// 规则变化之后,已经缓存的路由结果可能失效
         }
     }
 
@@ -59,44 +88,213 @@ public class GroupBindRouter {
      * 支持通过正则的方式批量配置路由规则
      *
      * @param similarDomain 现在遇到的域名
-     * @return
+     * @return 路由之后的域名,没有路由规则的时候返回原域名
      */
     public String routeDomain(String similarDomain) {
-        Optional<String> s = routeData.get(similarDomain);// 从缓存中加载规则
-        if (s == null) {// 缓存没有命中,建立缓存数据
-            synchronized (GroupBindRouter.class) {
-                s = routeData.get(similarDomain);
-                if (s == null) {
-                    matchSimilarDomain(similarDomain);
-                    s = routeData.get(similarDomain);
+        String routedDomain = routeCache.get(similarDomain);
+        if (routedDomain != null) {
+            return routedDomain;
+        }
+        routedDomain = routeEngine.route(similarDomain);
+        if (routedDomain == null) {
+            routedDomain = similarDomain;// 没有找到路由规则,缓存原域名本身
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("域名:{} 的代理规则路由到:{}", similarDomain, routedDomain);
+        }
+        routeCache.put(similarDomain, routedDomain);
+        return routedDomain;
+    }
+
+    public int ruleSize() {
+        synchronized (routeRule) {
+            return routeRule.size();
+        }
+    }
+
+    /**
+     * 编译之后的路由规则,不可变对象,规则变化的时候整体替换
+     */
+    private static class RouteEngine {
+        private final ImmutableMap<String, String> exactRules;
+        private final SuffixNode suffixRoot;
+        private final ImmutableList<Pattern> patterns;
+        private final ImmutableList<String> patternTargets;
+        private final String matchAllTarget;
+
+        private RouteEngine(ImmutableMap<String, String> exactRules, SuffixNode suffixRoot,
+                ImmutableList<Pattern> patterns, ImmutableList<String> patternTargets, String matchAllTarget) {
+            this.exactRules = exactRules;
+            this.suffixRoot = suffixRoot;
+            this.patterns = patterns;
+            this.patternTargets = patternTargets;
+            this.matchAllTarget = matchAllTarget;
+        }
+
+        static RouteEngine compile(Map<String, String> routeRule) {
+            ImmutableMap.Builder<String, String> exactRules = ImmutableMap.builder();
+            SuffixNode suffixRoot = new SuffixNode();
+            ImmutableList.Builder<Pattern> patterns = ImmutableList.builder();
+            ImmutableList.Builder<String> patternTargets = ImmutableList.builder();
+            String matchAllTarget = null;
+
+            for (Map.Entry<String, String> entry : routeRule.entrySet()) {
+                String rule = entry.getKey();
+                if (isPlainDomain(rule)) {
+                    exactRules.put(rule, entry.getValue());
+                    continue;
+                }
+                String suffix = literalSuffix(rule);
+                if (suffix == null) {
+                    patterns.add(Pattern.compile(rule));
+                    patternTargets.add(entry.getValue());
+                } else if (suffix.isEmpty()) {
+                    if (matchAllTarget == null) {
+                        matchAllTarget = entry.getValue();
+                    }
+                } else {
+                    suffixRoot.put(suffix, entry.getValue());
                 }
             }
+            return new RouteEngine(exactRules.build(), suffixRoot, patterns.build(), patternTargets.build(),
+                    matchAllTarget);
         }
-        if (s.isPresent()) {// 缓存有数据,且有路由规则
-            String routedDomain = s.get();
-            logger.info("域名:{} 的代理规则路由到:{}", similarDomain, routedDomain);
-            return routedDomain;
-            // return routeDomain(routedDomain);
+
+        String route(String domain) {
+            String target = exactRules.get(domain);
+            if (target != null) {
+                return target;
+            }
+            target = suffixRoot.longestMatch(domain);
+            if (target != null) {
+                return target;
+            }
+            for (int i = 0; i < patterns.size(); i++) {
+                if (patterns.get(i).matcher(domain).matches()) {
+                    return patternTargets.get(i);
+                }
+            }
+            return matchAllTarget;
+        }
+
+        /**
+         * 只包含域名字符的规则当作精确域名处理
+         */
+        private static boolean isPlainDomain(String rule) {
+            if (rule.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < rule.length(); i++) {
+                char c = rule.charAt(i);
+                if (!(Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '_')) {
+                    return false;
+                }
+            }
+            return true;
         }
-        return similarDomain;// 缓存有数据,但是没有找到路由规则
 
+        /**
+         * 形如 .*\.virjar\.com 的规则等价于后缀匹配,返回后缀 .virjar.com; .* 返回空字符串;其他规则返回null
+         */
+        private static String literalSuffix(String rule) {
+            if (!rule.startsWith(".*")) {
+                return null;
+            }
+            StringBuilder suffix = new StringBuilder();
+            for (int i = 2; i < rule.length(); i++) {
+                char c = rule.charAt(i);
+                if (c == '\\' && i + 1 < rule.length() && rule.charAt(i + 1) == '.') {
+                    suffix.append('.');
+                    i++;
+                } else if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+                    suffix.append(c);
+                } else {
+                    return null;
+                }
+            }
+            return suffix.toString();
+        }
     }
 
     /**
-     * @param similarDomain 当前遇到的域名
+     * 按照字符逆序构建的后缀树,查询的时候从域名尾部向前匹配,不产生中间字符串
      */
-    private void matchSimilarDomain(String similarDomain) {
-        for (String pattern : routeRule.keySet()) {
-            if (pattern.equals(similarDomain) || similarDomain.matches(pattern)) {
-                routeData.put(similarDomain, Optional.of(routeRule.get(pattern)));
-                return;
+    private static class SuffixNode {
+        private final Map<Character, SuffixNode> children = Maps.newHashMap();
+        private String target;
+
+        void put(String suffix, String target) {
+            SuffixNode node = this;
+            for (int i = suffix.length() - 1; i >= 0; i--) {
+                Character c = suffix.charAt(i);
+                SuffixNode child = node.children.get(c);
+                if (child == null) {
+                    child = new SuffixNode();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            if (node.target == null) {
+                node.target = target;
+            }
+        }
+
+        String longestMatch(String domain) {
+            String ret = null;
+            SuffixNode node = this;
+            for (int i = domain.length() - 1; i >= 0; i--) {
+                node = node.children.get(domain.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                if (node.target != null) {
+                    ret = node.target;
+                }
             }
+            return ret;
         }
-        // 所有规则都检查过,没有找到对应的路由规则
-        routeData.put(similarDomain, Optional.<String> absent());
     }
 
-    public int ruleSize(){
-        return routeRule.size();
+    /**
+     * 分代的有界缓存,近似LRU:新数据写入young代,young满了之后整体降级为old代,old代被命中的数据重新晋升到young代<br/>
+     * 读操作只是ConcurrentMap的get,没有锁
+     */
+    private static class RouteCache {
+        private final int generationSize;
+        private volatile ConcurrentMap<String, String> young = Maps.newConcurrentMap();
+        private volatile ConcurrentMap<String, String> old = Maps.newConcurrentMap();
+
+        RouteCache(int maxSize) {
+            this.generationSize = maxSize / 2;
+        }
+
+        String get(String key) {
+            String value = young.get(key);
+            if (value != null) {
+                return value;
+            }
+            value = old.get(key);
+            if (value != null) {
+                put(key, value);
+            }
+            return value;
+        }
+
+        void put(String key, String value) {
+            ConcurrentMap<String, String> current = young;
+            current.put(key, value);
+            if (current.size() > generationSize) {
+                synchronized (this) {
+                    if (young == current) {
+                        old = current;
+                        young = Maps.newConcurrentMap();
+                    }
+                }
+            }
+        }
+
+        synchronized void clear() {
+            young = Maps.newConcurrentMap();
+            old = Maps.newConcurrentMap();
+        }
     }
 }
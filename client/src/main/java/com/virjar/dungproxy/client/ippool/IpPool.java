@@ -94,6 +94,7 @@ public class IpPool {
 
     public void destroy() {
         isRunning = false;
+        dungProxyContext.getAsyncScoreRecorder().drain();// 积压的打分反馈计算完成之后再序列化
         avProxyDumper
                 .serializeProxy(Maps.transformValues(getPoolInfo(), new Function<List<AvProxy>, List<AvProxyVO>>() {
                     @Override
@@ -106,6 +107,9 @@ public class IpPool {
                         });
                     }
                 }));
+        for (DomainPool domainPool : pool.values()) {
+            domainPool.destroy();
+        }
     }
 
     public void unSerialize() {
@@ -123,13 +127,7 @@ public class IpPool {
                         return input.toModel(dungProxyContext.genDomainContext(entry.getKey()));
                     }
                 });
-                if (pool.containsKey(entry.getKey())) {
-                    pool.get(entry.getKey()).addAvailable(proxies);
-                } else {
-                    pool.put(entry.getKey(),
-                            new DomainPool(entry.getKey(), dungProxyContext.genDomainContext(entry.getKey())));
-                    pool.get(entry.getKey()).addAvailable(proxies);
-                }
+                getOrCreateDomainPool(entry.getKey()).addAvailable(proxies);
             }
         } finally {
             AvProxy.needRecordChange = true;
@@ -150,20 +148,35 @@ public class IpPool {
             return null;
         }
 
-        if (!pool.containsKey(host)) {
-            synchronized (this) {
-                if (!pool.containsKey(host)) {
-                    pool.put(host, new DomainPool(host, dungProxyContext.genDomainContext(host)));
-                }
-            }
-        }
-        AvProxy bind = pool.get(host).bind(url);
+        AvProxy bind = getOrCreateDomainPool(host).bind(url);
         if (bind == null) {
             logger.warn("IP池中,域名:{} 暂时没有IP", host);
         }
         return bind;
     }
 
+    DomainPool getOrCreateDomainPool(String host) {
+        DomainPool domainPool = pool.get(host);
+        if (domainPool == null) {
+            synchronized (this) {
+                domainPool = pool.get(host);
+                if (domainPool == null) {
+                    domainPool = new DomainPool(host, dungProxyContext.genDomainContext(host));
+                    pool.put(host, domainPool);
+                    domainPool.registerMetrics();
+                }
+            }
+        }
+        return domainPool;
+    }
+
+    /**
+     * @return 这个host所在的域名IP池,还没有创建的时候返回null
+     */
+    public DomainPool getDomainPool(String host) {
+        return pool.get(groupBindRouter.routeDomain(host));
+    }
+
     public Map<String, List<AvProxy>> getPoolInfo() {
         return Maps.transformValues(pool, new Function<DomainPool, List<AvProxy>>() {
             @Override
@@ -217,4 +230,8 @@ public class IpPool {
     public Map<String, DomainPool> getPool() {
         return pool;
     }
+
+    public DungProxyContext getDungProxyContext() {
+        return dungProxyContext;
+    }
 }
@@ -0,0 +1,58 @@
+package com.virjar.dungproxy.client.ippool;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 预热进度,所有计数都是累计值。TCP筛选按照IP计数,http检查按照(IP,测试URL)计数
+ */
+public class PreHeatProgress {
+    private final long startTime = System.currentTimeMillis();
+
+    final AtomicLong screenTotal = new AtomicLong(0);
+    final AtomicLong screened = new AtomicLong(0);
+    final AtomicLong screenPassed = new AtomicLong(0);
+    final AtomicLong checked = new AtomicLong(0);
+    final AtomicLong checkPassed = new AtomicLong(0);
+
+    /**
+     * @return 需要做TCP筛选的IP数量
+     */
+    public long getScreenTotal() {
+        return screenTotal.get();
+    }
+
+    public long getScreened() {
+        return screened.get();
+    }
+
+    public long getScreenPassed() {
+        return screenPassed.get();
+    }
+
+    public long getChecked() {
+        return checked.get();
+    }
+
+    public long getCheckPassed() {
+        return checkPassed.get();
+    }
+
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * @return 平均每秒完成的http检查数量
+     */
+    public double getCheckThroughput() {
+        long elapsed = getElapsedMillis();
+        return elapsed <= 0 ? 0D : checked.get() * 1000D / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TCP筛选:%d/%d 通过:%d, http检查:%d 通过:%d, 耗时:%ds, 检查速度:%.1f/s", screened.get(),
+                screenTotal.get(), screenPassed.get(), checked.get(), checkPassed.get(), getElapsedMillis() / 1000,
+                getCheckThroughput());
+    }
+}
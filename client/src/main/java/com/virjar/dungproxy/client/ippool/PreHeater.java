@@ -1,14 +1,20 @@
-
 package com.virjar.dungproxy.client.ippool;
 
+import java.net.InetAddress;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.HttpHost;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,17 +24,26 @@ import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.RateLimiter;
 import com.virjar.dungproxy.client.ippool.config.DungProxyContext;
 import com.virjar.dungproxy.client.ippool.config.ObjectFactory;
 import com.virjar.dungproxy.client.ippool.strategy.ProxyChecker;
 import com.virjar.dungproxy.client.ippool.strategy.ResourceFacade;
 import com.virjar.dungproxy.client.model.AvProxy;
 import com.virjar.dungproxy.client.model.AvProxyVO;
+import com.virjar.dungproxy.client.model.CloudProxy;
+import com.virjar.dungproxy.client.ningclient.concurrent.NamedThreadFactory;
 import com.virjar.dungproxy.client.util.CommonUtil;
+import com.virjar.dungproxy.client.util.IpAvValidator;
 
 /**
  * Description: 初始化时加载Proxy 定时收集Proxy<br/>
- * 一个工具类,离线跑代理IP数据,构建契合本地环境的代理IP数据
+ * 一个工具类,离线跑代理IP数据,构建契合本地环境的代理IP数据<br/>
+ * 预热分两步:先对每个IP做一次TCP连接筛选,连接不上的IP不再做http检查;通过筛选的IP立即分发到各个域名的检查队列。
+ * 每个域名有自己的调度线程和限速,多个域名并行检查,共享http检查线程池。检查通过的IP立即加入对应的DomainPool<br/>
+ * 默认每个IP需要用域名下所有的测试URL检查,任意一个URL通过就加入IP池,全部失败的历史IP下线。测试URL很多的时候可以通过
+ * {@link #setCheckAllUrls(boolean)}关闭,每个IP只用一个URL(轮流选取)检查<br/>
+ * 预热器自己加入的IP不记录到序列化的变化里面,预热过程中和结束的时候由预热器自己全量序列化
  *
  * @author lingtong.fu
  * @version 2016-09-11 18:16
@@ -38,12 +53,23 @@ public class PreHeater {
 
     private static final Logger logger = LoggerFactory.getLogger(PreHeater.class);
     private Set<String> taskUrls = Sets.newConcurrentHashSet();
-    private int threadNumber = 40;// TODO 配置这个参数
+    private int threadNumber = 40;
+    // 每个域名每秒最多发起的http检查数量,小于等于0表示不限速
+    private double rateLimit = 0;
+    // 是否用域名下所有的测试URL检查每个IP,false的时候每个IP只检查一个URL
+    private boolean checkAllUrls = true;
+    // 进度日志的打印间隔
+    private long progressReportInterval = 5000;
     private ExecutorService pool;
+    private ExecutorService screenPool;
+    private ExecutorService dispatchPool;
+    private ScheduledExecutorService reportPool;
     private AtomicBoolean hasInit = new AtomicBoolean(false);
     private Map<String, DomainPool> stringDomainPoolMap;
     private AtomicLong passedProxyNumber = new AtomicLong(0);
     private AtomicBoolean isRunning = new AtomicBoolean(false);
+    private volatile PreHeatProgress progress = new PreHeatProgress();
+    private IpPool ipPool;
 
     private DungProxyContext dungProxyContext;
 
@@ -69,20 +95,29 @@ public class PreHeater {
 
     private void init() {
         if (hasInit.compareAndSet(false, true)) {
-            pool = Executors.newFixedThreadPool(threadNumber);
+            pool = Executors.newFixedThreadPool(threadNumber, new NamedThreadFactory("preheat-check"));
+            // TCP筛选只是建立连接,代价比http检查小很多,使用更多的线程
+            screenPool = Executors.newFixedThreadPool(threadNumber * 4, new NamedThreadFactory("preheat-screen"));
+            dispatchPool = Executors.newCachedThreadPool(new NamedThreadFactory("preheat-dispatch"));
+            reportPool = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("preheat-report"));
             isRunning.set(true);
-            AvProxy.needRecordChange = false;
-            try {
-                unSerialize();
-            } finally {
-                AvProxy.needRecordChange = true;
+            if (ipPool != null) {
+                stringDomainPoolMap = ipPool.getPool();// 直接在线上IP池预热,IP池已经加载过序列化数据
+                return;
             }
+            unSerialize();
         }
     }
 
     public void destroy() {
         isRunning.set(false);
+        if (pool == null) {
+            return;
+        }
         pool.shutdown();
+        screenPool.shutdown();
+        dispatchPool.shutdown();
+        reportPool.shutdown();
     }
 
     public PreHeater addTask(String url) {
@@ -95,7 +130,6 @@ public class PreHeater {
     }
 
     public synchronized void doPreHeat() {
-        AvProxy.needRecordChange = false;
         if (taskUrls.size() == 0) {
             logger.warn("preHeater task is empty");
             return;
@@ -103,82 +137,284 @@ public class PreHeater {
         if (!hasInit.get()) {
             init();
         }
+        preHeat();
+    }
+
+    private void preHeat() {
         logger.info("待测试任务:{}", JSONArray.toJSONString(taskUrls));
-        Map<String, String> urlMap = transformDomainUrlMap(taskUrls);
-        List<Future<Boolean>> futureList = Lists.newArrayList();
+        progress = new PreHeatProgress();
+        Map<String, DomainTask> domainTasks = buildDomainTasks();
         ResourceFacade resourceFacade = ObjectFactory.newInstance(dungProxyContext.getDefaultResourceFacade());// 这里使用全局IP下载器
         logger.info("下载可用IP...");
         List<AvProxyVO> candidateProxies = resourceFacade.allAvailable();
         logger.info("总共下载到{}个IP资源", candidateProxies.size());
-        // 加载历史数据
-        for (Map.Entry<String, DomainPool> entry : stringDomainPoolMap.entrySet()) {
-            if (!urlMap.containsKey(entry.getKey())) {
-                continue;
+
+        List<Future<Long>> dispatchFutures = Lists.newArrayList();
+        for (DomainTask domainTask : domainTasks.values()) {
+            dispatchFutures.add(dispatchPool.submit(domainTask));
+        }
+        Future<?> reportFuture = reportPool.scheduleWithFixedDelay(new ProgressReporter(), progressReportInterval,
+                progressReportInterval, TimeUnit.MILLISECONDS);
+        try {
+            // 历史数据优先检查,他们通过的概率更大
+            Map<String, List<Candidate>> screenTargets = Maps.newLinkedHashMap();
+            for (DomainTask domainTask : domainTasks.values()) {
+                for (AvProxy avProxy : domainTask.domainPool.availableProxy()) {
+                    if (avProxy instanceof CloudProxy) {
+                        continue;
+                    }
+                    addScreenTarget(screenTargets, new Candidate(AvProxyVO.fromModel(avProxy), avProxy),
+                            domainTask);
+                }
             }
-            Iterator<AvProxy> iterator = entry.getValue().availableProxy().iterator();
-            while (iterator.hasNext()) {
-                AvProxy avProxy = iterator.next();
-                futureList.add(pool.submit(new UrlCheckTask(AvProxyVO.fromModel(avProxy), urlMap.get(entry.getKey()))));
-                iterator.remove();
+            // 服务器新导入的资源需要在每个域名下检查
+            Collection<DomainTask> allDomainTasks = domainTasks.values();
+            for (AvProxyVO avProxy : candidateProxies) {
+                Candidate candidate = new Candidate(avProxy, null);
+                for (DomainTask domainTask : allDomainTasks) {
+                    addScreenTarget(screenTargets, candidate, domainTask);
+                }
             }
-        }
+            progress.screenTotal.set(screenTargets.size());
 
-        // 加载服务器新导入的资源
-        for (AvProxyVO avProxy : candidateProxies) {
-            for (String url : taskUrls) {
-                futureList.add(pool.submit(new UrlCheckTask(avProxy, url)));
+            List<Future<Boolean>> screenFutures = Lists.newArrayList();
+            for (List<Candidate> candidates : screenTargets.values()) {
+                screenFutures.add(screenPool.submit(new ScreenTask(candidates)));
             }
+            CommonUtil.waitAllFutures(screenFutures);
+            for (DomainTask domainTask : allDomainTasks) {
+                domainTask.screenFinished = true;
+            }
+            CommonUtil.waitAllFutures(dispatchFutures);
+        } finally {
+            reportFuture.cancel(false);
         }
-        CommonUtil.waitAllFutures(futureList);
+        logger.info("预热完成,{}", progress);
         dungProxyContext.getAvProxyDumper().serializeProxy(getPoolInfo(stringDomainPoolMap));
     }
 
-    private Map<String, String> transformDomainUrlMap(Collection<String> testUrls) {
-        Map<String, String> ret = Maps.newHashMap();
-        for (String url : testUrls) {
-            ret.put(CommonUtil.extractDomain(url), url);
+    /**
+     * 同一个IP只做一次TCP筛选,筛选通过之后分发到所有需要检查他的域名
+     */
+    private void addScreenTarget(Map<String, List<Candidate>> screenTargets, Candidate candidate,
+            DomainTask domainTask) {
+        String key = candidate.avProxyVO.getIp() + ":" + candidate.avProxyVO.getPort();
+        List<Candidate> candidates = screenTargets.get(key);
+        if (candidates == null) {
+            candidates = Lists.newArrayList();
+            screenTargets.put(key, candidates);
+        }
+        for (Candidate exist : candidates) {
+            if (exist.domainTask == domainTask) {
+                return;// 新下载的IP已经在历史数据里面了
+            }
+        }
+        candidates.add(candidate.forDomain(domainTask));
+    }
+
+    /**
+     * 按照路由之后的域名对测试url分组,一个域名只有一个检查任务,同一个IP在一个域名下只检查一次
+     */
+    private Map<String, DomainTask> buildDomainTasks() {
+        Map<String, DomainTask> ret = Maps.newLinkedHashMap();
+        for (String url : taskUrls) {
+            // 路由一波,保证和api规则一直
+            String domain = dungProxyContext.getGroupBindRouter().routeDomain(CommonUtil.extractDomain(url));
+            DomainTask domainTask = ret.get(domain);
+            if (domainTask == null) {
+                domainTask = new DomainTask(domain, getOrCreateDomainPool(domain));
+                ret.put(domain, domainTask);
+            }
+            domainTask.urls.add(url);
         }
         return ret;
     }
 
-    private class UrlCheckTask implements Callable<Boolean> {
-        String url;
-        AvProxyVO proxy;
+    private DomainPool getOrCreateDomainPool(String domain) {
+        if (ipPool != null) {
+            return ipPool.getOrCreateDomainPool(domain);// 线上IP池的域名池由IpPool创建和注册指标
+        }
+        DomainPool domainPool = stringDomainPoolMap.get(domain);
+        if (domainPool == null) {
+            synchronized (this) {
+                domainPool = stringDomainPoolMap.get(domain);
+                if (domainPool == null) {
+                    domainPool = new DomainPool(domain, dungProxyContext.genDomainContext(domain));
+                    stringDomainPoolMap.put(domain, domainPool);
+                }
+            }
+        }
+        return domainPool;
+    }
 
-        UrlCheckTask(AvProxyVO proxy, String url) {
-            this.proxy = proxy;
-            this.url = url;
+    private static class Candidate {
+        private final AvProxyVO avProxyVO;
+        // 历史数据对应的IP,检查失败的时候下线
+        private final AvProxy history;
+        private DomainTask domainTask;
+        // 这个IP在当前域名下还没有完成的URL检查数量
+        private final AtomicInteger remaining = new AtomicInteger(0);
+        private final AtomicBoolean passed = new AtomicBoolean(false);
+
+        Candidate(AvProxyVO avProxyVO, AvProxy history) {
+            this.avProxyVO = avProxyVO;
+            this.history = history;
+        }
+
+        Candidate forDomain(DomainTask domainTask) {
+            Candidate candidate = new Candidate(avProxyVO, history);
+            candidate.domainTask = domainTask;
+            return candidate;
+        }
+    }
+
+    private class ScreenTask implements Callable<Boolean> {
+        private final List<Candidate> candidates;
+
+        ScreenTask(List<Candidate> candidates) {
+            this.candidates = candidates;
         }
 
         @Override
-        public Boolean call() throws Exception {
-            String domain = CommonUtil.extractDomain(url);
-            // 路由一波,保证和api规则一直
-            domain = dungProxyContext.getGroupBindRouter().routeDomain(domain);
-
-            DomainPool domainPool = stringDomainPoolMap.get(domain);
-            if (domainPool == null) {
-                synchronized (UrlCheckTask.class) {
-                    domainPool = stringDomainPoolMap.get(domain);
-                    if (domainPool == null) {
-                        domainPool = new DomainPool(domain, dungProxyContext.genDomainContext(domain));
-                        stringDomainPoolMap.put(domain, domainPool);
+        public Boolean call() {
+            AvProxyVO avProxyVO = candidates.get(0).avProxyVO;
+            boolean connected = tcpConnect(avProxyVO);
+            progress.screened.incrementAndGet();
+            if (connected) {
+                progress.screenPassed.incrementAndGet();
+            }
+            for (Candidate candidate : candidates) {
+                if (connected) {
+                    candidate.domainTask.queue.offer(candidate);
+                } else if (candidate.history != null) {
+                    candidate.history.offline();
+                }
+            }
+            return connected;
+        }
+
+        private boolean tcpConnect(AvProxyVO avProxyVO) {
+            try {
+                return IpAvValidator.validateProxyConnect(
+                        new HttpHost(InetAddress.getByName(avProxyVO.getIp()), avProxyVO.getPort()));
+            } catch (Exception e) {// 筛选异常(包括拿不到本机IP)都当作不通过,不能让异常的IP进入http检查
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 一个域名的检查调度,按照限速把通过筛选的IP提交到http检查线程池
+     */
+    private class DomainTask implements Callable<Long> {
+        private final String domain;
+        private final DomainPool domainPool;
+        private final List<String> urls = Lists.newArrayList();
+        private final LinkedBlockingQueue<Candidate> queue = new LinkedBlockingQueue<>();
+        private final RateLimiter rateLimiter = rateLimit > 0 ? RateLimiter.create(rateLimit) : null;
+        // 限制已经提交但还没有完成的检查数量,避免一个域名占满检查线程池的队列
+        private final Semaphore inFlight = new Semaphore(threadNumber);
+        private volatile boolean screenFinished = false;
+        private long dispatched = 0;
+
+        DomainTask(String domain, DomainPool domainPool) {
+            this.domain = domain;
+            this.domainPool = domainPool;
+        }
+
+        /**
+         * @return 提交的检查数量
+         */
+        @Override
+        public Long call() {
+            try {
+                Candidate candidate;
+                while (isRunning.get()) {
+                    candidate = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (candidate == null) {
+                        if (screenFinished && queue.isEmpty()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    List<String> checkUrls = checkAllUrls ? urls
+                            : Collections.singletonList(urls.get((int) (dispatched % urls.size())));
+                    candidate.remaining.set(checkUrls.size());
+                    for (String url : checkUrls) {
+                        if (rateLimiter != null) {
+                            rateLimiter.acquire();
+                        }
+                        inFlight.acquire();
+                        dispatched++;
+                        pool.execute(new UrlCheckTask(candidate, url));
                     }
                 }
+                // 等待这个域名所有的检查完成
+                inFlight.acquire(threadNumber);
+                inFlight.release(threadNumber);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            ProxyChecker proxyChecker = dungProxyContext.genDomainContext(domain).getProxyChecker();
-            if (proxyChecker.available(proxy, url)) {
-                domainPool.addAvailable(proxy.toModel(domainPool));
-                logger.info("preHeater available test passed for proxy:{} for url:{}", JSONObject.toJSONString(proxy),
-                        url);
+            return dispatched;
+        }
+    }
 
-                if (passedProxyNumber.incrementAndGet() % dungProxyContext.getSerializeStep() == 0) {// 预热的时候,每产生20个IP,就序列化一次数据。
-                    dungProxyContext.getAvProxyDumper().serializeProxy(getPoolInfo(stringDomainPoolMap));
+    private class UrlCheckTask implements Runnable {
+        private final Candidate candidate;
+        private final String url;
+
+        UrlCheckTask(Candidate candidate, String url) {
+            this.candidate = candidate;
+            this.url = url;
+        }
+
+        @Override
+        public void run() {
+            DomainTask domainTask = candidate.domainTask;
+            try {
+                AvProxyVO proxy = candidate.avProxyVO;
+                ProxyChecker proxyChecker = domainTask.domainPool.getDomainContext().getProxyChecker();
+                boolean available = proxyChecker.available(proxy, url);
+                progress.checked.incrementAndGet();
+                if (available) {
+                    progress.checkPassed.incrementAndGet();
+                    if (candidate.passed.compareAndSet(false, true)) {// 多个URL通过只加入一次
+                        passedProxyNumber.incrementAndGet();
+                        if (candidate.history == null) {
+                            domainTask.domainPool.addAvailable(
+                                    proxy.toModel(domainTask.domainPool.getDomainContext(), false), false);
+                        }
+                    }
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("preHeater available test passed for proxy:{} for url:{}",
+                                JSONObject.toJSONString(proxy), url);
+                    }
                 }
-                return true;
-            } else {
-                return false;
+            } catch (Exception e) {
+                logger.error("error when check proxy for domain:{}", domainTask.domain, e);
+            } finally {
+                if (candidate.remaining.decrementAndGet() == 0 && !candidate.passed.get()
+                        && candidate.history != null) {
+                    candidate.history.offline();// 所有URL都没有通过
+                }
+                domainTask.inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * 定时打印进度,并且在新通过的IP数量达到序列化步长的时候序列化一次,序列化不会占用检查线程
+     */
+    private class ProgressReporter implements Runnable {
+        private long lastSerializedNumber = passedProxyNumber.get();
 
+        @Override
+        public void run() {
+            logger.info("预热进度 {}", progress);
+            long passed = passedProxyNumber.get();
+            if (passed - lastSerializedNumber >= dungProxyContext.getSerializeStep()) {
+                lastSerializedNumber = passed;
+                dungProxyContext.getAvProxyDumper().serializeProxy(getPoolInfo(stringDomainPoolMap));
             }
         }
     }
@@ -191,6 +427,42 @@ public class PreHeater {
         return this;
     }
 
+    /**
+     * @param rateLimit 每个域名每秒最多发起的http检查数量,小于等于0表示不限速
+     */
+    public PreHeater setRateLimit(double rateLimit) {
+        this.rateLimit = rateLimit;
+        return this;
+    }
+
+    /**
+     * @param checkAllUrls true(默认)用域名下所有的测试URL检查每个IP;false每个IP只用一个URL检查,测试URL很多的时候可以减少检查量
+     */
+    public PreHeater setCheckAllUrls(boolean checkAllUrls) {
+        this.checkAllUrls = checkAllUrls;
+        return this;
+    }
+
+    public PreHeater setProgressReportInterval(long progressReportInterval) {
+        this.progressReportInterval = Math.max(100, progressReportInterval);
+        return this;
+    }
+
+    /**
+     * 设置之后预热直接在这个IP池上进行,检查通过的IP立即可以被绑定使用。需要在第一次预热之前设置
+     */
+    public PreHeater setIpPool(IpPool ipPool) {
+        this.ipPool = ipPool;
+        return this;
+    }
+
+    /**
+     * @return 当前(或者最近一次)预热的进度
+     */
+    public PreHeatProgress getProgress() {
+        return progress;
+    }
+
     private void unSerialize() {
         final Map<String, DomainPool> pool = Maps.newConcurrentMap();
         stringDomainPoolMap = pool;
@@ -203,7 +475,7 @@ public class PreHeater {
             List<AvProxy> avProxies = Lists.transform(entry.getValue(), new Function<AvProxyVO, AvProxy>() {
                 @Override
                 public AvProxy apply(AvProxyVO input) {
-                    return input.toModel(dungProxyContext.genDomainContext(entry.getKey()));
+                    return input.toModel(dungProxyContext.genDomainContext(entry.getKey()), false);
                 }
             });
 
@@ -211,7 +483,7 @@ public class PreHeater {
                 pool.put(entry.getKey(),
                         new DomainPool(entry.getKey(), dungProxyContext.genDomainContext(entry.getKey())));
             }
-            pool.get(entry.getKey()).addAvailable(avProxies);
+            pool.get(entry.getKey()).addAvailable(avProxies, false);// 加载的是序列化数据本身,不需要再记录
         }
         stringDomainPoolMap = pool;
     }
@@ -4,6 +4,7 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
@@ -33,6 +34,9 @@ public class SmartProxyQueue {
     // 暂时封禁的容器,放到本容器的IP只是被暂时封禁,但是不会被下线
     private LinkedList<AvProxy> blockedProxies = Lists.newLinkedList();
 
+    // 因为使用间隔小于useInterval被封禁的累计次数
+    private final AtomicLong blockedTotal = new AtomicLong(0);
+
     public SmartProxyQueue(double ratio, long useInterval) {
         if (ratio < 0 || ratio > 1) {
             throw new IllegalStateException("ratio for SmartProxyQueue need between 0 and 1");
@@ -89,6 +93,7 @@ public class SmartProxyQueue {
                 if (System.currentTimeMillis() - poll.getLastUsedTime() < useInterval) {
                     hasBlock = true;
                     blockedProxies.addLast(poll);// 使用频率太高,放到备用资源池
+                    recordBlocked();
                     logger.info("IP:{}使用小于规定时间间隔{}秒,暂时封禁", poll.getIp(), (useInterval / 1000));
                     continue;
                 }
@@ -260,6 +265,14 @@ public class SmartProxyQueue {
 
     // monitor
 
+    protected void recordBlocked() {
+        blockedTotal.incrementAndGet();
+    }
+
+    public long getBlockedTotal() {
+        return blockedTotal.get();
+    }
+
     public double getRatio() {
         return ratio;
     }
@@ -20,6 +20,7 @@ public class DomainContext {
     private int coreSize;
     private double smartProxyQueueRatio;
     private long useInterval;
+    private Boolean concurrentProxyQueue;
     private String domain;
     private int scoreFactory;
     private List<AvProxyVO> defaultProxy;
@@ -77,6 +78,21 @@ public class DomainContext {
         return this;
     }
 
+    public boolean isConcurrentProxyQueue() {
+        return concurrentProxyQueue != null && concurrentProxyQueue;
+    }
+
+    /**
+     * 是否使用无锁的IP容器(ConcurrentSmartProxyQueue),大量线程同时访问同一个域名的时候建议开启
+     *
+     * @param concurrentProxyQueue 是否开启
+     * @return DomainContext
+     */
+    public DomainContext setConcurrentProxyQueue(boolean concurrentProxyQueue) {
+        this.concurrentProxyQueue = concurrentProxyQueue;
+        return this;
+    }
+
     public String getDomain() {
         return domain;
     }
@@ -149,6 +165,9 @@ public class DomainContext {
         if (useInterval <= 1L) {
             useInterval = dungProxyContext.getDefaultUseInterval();
         }
+        if (concurrentProxyQueue == null) {
+            concurrentProxyQueue = dungProxyContext.isDefaultConcurrentProxyQueue();
+        }
         if (resourceFacade == null) {
             resourceFacade = ObjectFactory.newInstance(dungProxyContext.getDefaultResourceFacade());
         }
@@ -3,9 +3,11 @@ package com.virjar.dungproxy.client.ippool.config;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -17,6 +19,7 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.virjar.dungproxy.client.ippool.AsyncScoreRecorder;
 import com.virjar.dungproxy.client.ippool.GroupBindRouter;
 import com.virjar.dungproxy.client.ippool.PreHeater;
 import com.virjar.dungproxy.client.ippool.strategy.*;
@@ -38,6 +41,9 @@ public class DungProxyContext {
     private String serverBaseUrl;
     private long serializeStep;
     private boolean poolEnabled;
+    private boolean asyncScoring;
+    private AsyncScoreRecorder asyncScoreRecorder = new AsyncScoreRecorder();
+    private List<ProxyOfflineListener> proxyOfflineListeners = new CopyOnWriteArrayList<>();
 
     // for domain
     private Class<? extends ResourceFacade> defaultResourceFacade;
@@ -47,6 +53,7 @@ public class DungProxyContext {
     private int defaultCoreSize;
     private double defaultSmartProxyQueueRatio;
     private long defaultUseInterval;
+    private boolean defaultConcurrentProxyQueue;
     private int defaultScoreFactory;
     private Map<String, DomainContext> domainConfig = Maps.newConcurrentMap();
 
@@ -69,10 +76,12 @@ public class DungProxyContext {
         defaultCoreSize = 50;
         defaultSmartProxyQueueRatio = 0.3D;
         defaultUseInterval = 15000;// 默认IP15秒内不能重复使用
+        defaultConcurrentProxyQueue = false;
         defaultScoreFactory = 15;
         serverBaseUrl = "http://proxy.scumall.com:8080";
         serializeStep = 30;
         poolEnabled = true;
+        asyncScoring = false;
         handleConfig();
     }
 
@@ -85,6 +94,31 @@ public class DungProxyContext {
         return this;
     }
 
+    /**
+     * @return 配置的序列化器支持增量序列化的时候返回该序列化器,否则返回null
+     */
+    public IncrementalAvProxyDumper getIncrementalAvProxyDumper() {
+        AvProxyDumper dumper = avProxyDumper;
+        if (dumper instanceof AvProxyDumperWrapper) {
+            dumper = ((AvProxyDumperWrapper) dumper).getDelegate();
+        }
+        return dumper instanceof IncrementalAvProxyDumper ? (IncrementalAvProxyDumper) dumper : null;
+    }
+
+    public DungProxyContext addProxyOfflineListener(ProxyOfflineListener proxyOfflineListener) {
+        proxyOfflineListeners.add(proxyOfflineListener);
+        return this;
+    }
+
+    public DungProxyContext removeProxyOfflineListener(ProxyOfflineListener proxyOfflineListener) {
+        proxyOfflineListeners.remove(proxyOfflineListener);
+        return this;
+    }
+
+    public List<ProxyOfflineListener> getProxyOfflineListeners() {
+        return proxyOfflineListeners;
+    }
+
     public boolean isPoolEnabled() {
         return poolEnabled;
     }
@@ -94,6 +128,25 @@ public class DungProxyContext {
         return this;
     }
 
+    public boolean isAsyncScoring() {
+        return asyncScoring;
+    }
+
+    /**
+     * 开启之后,IP使用反馈的打分和优先级调整由后台线程批量完成,请求线程不再同步调整IP容器
+     *
+     * @param asyncScoring 是否开启异步打分
+     * @return DungProxyContext
+     */
+    public DungProxyContext setAsyncScoring(boolean asyncScoring) {
+        this.asyncScoring = asyncScoring;
+        return this;
+    }
+
+    public AsyncScoreRecorder getAsyncScoreRecorder() {
+        return asyncScoreRecorder;
+    }
+
     public String getClientID() {
         return clientID;
     }
@@ -112,6 +165,15 @@ public class DungProxyContext {
         return this;
     }
 
+    public boolean isDefaultConcurrentProxyQueue() {
+        return defaultConcurrentProxyQueue;
+    }
+
+    public DungProxyContext setDefaultConcurrentProxyQueue(boolean defaultConcurrentProxyQueue) {
+        this.defaultConcurrentProxyQueue = defaultConcurrentProxyQueue;
+        return this;
+    }
+
     public int getDefaultCoreSize() {
         return defaultCoreSize;
     }
@@ -316,6 +378,14 @@ public class DungProxyContext {
         if (StringUtils.isNotEmpty(resourceFace)) {
             defaultResourceFacade = ObjectFactory.classForName(resourceFace);
         }
+        String proxyChecker = properties.getProperty(ProxyConstant.DEFAULT_PROXY_CHECKER);
+        if (StringUtils.isNotEmpty(proxyChecker)) {
+            defaultProxyChecker = ObjectFactory.classForName(proxyChecker);
+        }
+        String scoring = properties.getProperty(ProxyConstant.DEFAULT_SCORING);
+        if (StringUtils.isNotEmpty(scoring)) {
+            defaultScoring = ObjectFactory.classForName(scoring);
+        }
         String defaultResourceServerAddress = properties.getProperty(ProxyConstant.DEFAULT_RESOURCE_SERVER_ADDRESS);
         if (StringUtils.isNotEmpty(defaultResourceServerAddress)) {
             serverBaseUrl = defaultResourceServerAddress;
@@ -361,7 +431,11 @@ public class DungProxyContext {
             setAvProxyDumper(tempDumper);// 对他做一层包装,防止空序列化
 
         }
-        String defaultAvDumpeFileName = properties.getProperty(ProxyConstant.DEFAULT_PROXY_SERALIZER_FILE);
+        AvProxyDumper configuredDumper = avProxyDumper instanceof AvProxyDumperWrapper
+                ? ((AvProxyDumperWrapper) avProxyDumper).getDelegate() : avProxyDumper;
+        String defaultAvDumpeFileName = properties
+                .getProperty(configuredDumper instanceof BinaryAvProxyDumper ? ProxyConstant.BINARY_PROXY_SERIALIZER_FILE
+                        : ProxyConstant.DEFAULT_PROXY_SERALIZER_FILE);
         if (StringUtils.isNotEmpty(defaultAvDumpeFileName)) {
             avProxyDumper.setDumpFileName(defaultAvDumpeFileName);
         }
@@ -377,11 +451,33 @@ public class DungProxyContext {
         if (StringUtils.isNotEmpty(preheaterSerilizeStep)) {
             serializeStep = NumberUtils.toLong(preheaterSerilizeStep, 30L);
         }
+        String preHeaterThreadNumber = properties.getProperty(ProxyConstant.PREHEAT_THREAD_NUMBER);
+        if (StringUtils.isNotEmpty(preHeaterThreadNumber)) {
+            preHeater.setThreadNumber(NumberUtils.toInt(preHeaterThreadNumber, 40));
+        }
+        String preHeaterRateLimit = properties.getProperty(ProxyConstant.PREHEAT_RATE_LIMIT);
+        if (StringUtils.isNotEmpty(preHeaterRateLimit)) {
+            preHeater.setRateLimit(NumberUtils.toDouble(preHeaterRateLimit, 0D));
+        }
+        String preHeaterCheckAllUrls = properties.getProperty(ProxyConstant.PREHEAT_CHECK_ALL_URLS);
+        if (StringUtils.isNotEmpty(preHeaterCheckAllUrls)) {
+            preHeater.setCheckAllUrls(Boolean.parseBoolean(preHeaterCheckAllUrls.trim()));
+        }
 
         String proxyUseInterval = properties.getProperty(ProxyConstant.PROXY_USE_INTERVAL);
         if (StringUtils.isNotEmpty(proxyUseInterval)) {
             defaultUseInterval = NumberUtils.toLong(proxyUseInterval, 15000);
         }
+
+        String asyncScoringProperty = properties.getProperty(ProxyConstant.ASYNC_SCORING);
+        if (StringUtils.isNotEmpty(asyncScoringProperty)) {
+            asyncScoring = Boolean.parseBoolean(asyncScoringProperty.trim());
+        }
+
+        String concurrentProxyQueue = properties.getProperty(ProxyConstant.PROXY_QUEUE_CONCURRENT);
+        if (StringUtils.isNotEmpty(concurrentProxyQueue)) {
+            defaultConcurrentProxyQueue = Boolean.parseBoolean(concurrentProxyQueue.trim());
+        }
         clientID = properties.getProperty(ProxyConstant.CLIENT_ID);
         String ruleRouter = properties.getProperty(ProxyConstant.PROXY_DOMAIN_STRATEGY_ROUTE);
         if (StringUtils.isNotEmpty(ruleRouter)) {
@@ -15,6 +15,21 @@ public class ProxyConstant {
      */
     public static final String DUNGPROXY_USER_KEY = "DUNGPROXY_USER_KEY";
 
+    /**
+     * 绑定代理IP的时间点,System.nanoTime,用于计算通过代理建立连接的耗时
+     */
+    public static final String PROXY_BIND_TIME_KEY = "PROXY_BIND_TIME_KEY";
+
+    /**
+     * 对冲请求中落后的一方被取消的时候设置为true,取消导致的IO异常不记录为IP失败
+     */
+    public static final String HEDGE_CANCELLED_KEY = "HEDGE_CANCELLED_KEY";
+
+    /**
+     * 请求收到响应头并且记录了延迟之后设置为true,对冲请求被取消的时候据此判断是否还需要记录延迟的下界
+     */
+    public static final String LATENCY_RECORDED_KEY = "LATENCY_RECORDED_KEY";
+
     // config 文件默认配置key值
     static final String RESOURCE_FACADE = "proxyclient.resouce.resourceFacade";
     static final String PROXY_DOMAIN_STRATEGY = "proxyclient.proxyDomainStrategy";
@@ -24,14 +39,23 @@ public class ProxyConstant {
     static final String DEFAULT_RESOURCE_SERVER_ADDRESS = "proxyclient.resource.defaultResourceServerAddress";
 
     static final String PROXY_USE_INTERVAL = "proxyclient.proxyUseIntervalMillis";
+    static final String PROXY_QUEUE_CONCURRENT = "proxyclient.proxyQueue.concurrent";
+    static final String ASYNC_SCORING = "proxyclient.scoring.async";
+    static final String DEFAULT_PROXY_CHECKER = "proxyclient.defaultProxyChecker";
+    static final String DEFAULT_SCORING = "proxyclient.defaultScoring";
     static final String CLIENT_ID = "proxyclient.clientID";
     static final String PROXY_DOMAIN_STRATEGY_ROUTE = "proxyclient.proxyDomainStrategy.group";
 
     static final String PREHEATER_TASK_LIST = "proxyclient.preHeater.testList";
     static final String PREHEAT_SERIALIZE_STEP = "proxyclient.preHeater.serialize.step";
+    static final String PREHEAT_THREAD_NUMBER = "proxyclient.preHeater.threadNumber";
+    static final String PREHEAT_RATE_LIMIT = "proxyclient.preHeater.rateLimit";
+    static final String PREHEAT_CHECK_ALL_URLS = "proxyclient.preHeater.checkAllUrls";
     public static String CLIENT_CONFIG_FILE_NAME = "proxyclient.properties";
     static final String PROXY_SERIALIZER = "proxyclient.serialize.serializer";
     static final String DEFAULT_PROXY_SERALIZER_FILE = "proxyclient.DefaultAvProxyDumper.dumpFileName";
+    // 二进制序列化器的文件单独配置,和json序列化器的文件分开
+    static final String BINARY_PROXY_SERIALIZER_FILE = "proxyclient.BinaryAvProxyDumper.dumpFileName";
 
     public static final String DEFAULT_PROXY_SERALIZER_FILE_VALUE = "availableProxy.json";
     // socket超时时间
@@ -0,0 +1,26 @@
+package com.virjar.dungproxy.client.ippool.strategy;
+
+import java.util.Collection;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.virjar.dungproxy.client.model.AvProxyVO;
+
+/**
+ * 批量的IP检查器,一批候选IP同时检查,结果通过回调返回。DomainPool在刷新的时候如果发现检查器实现了本接口,则不再逐个同步检查
+ */
+public interface BatchProxyChecker extends ProxyChecker {
+
+    /**
+     * 异步检查一批IP,本方法可能因为同时检查的IP数量达到上限而短暂阻塞,但不会等待检查结果
+     *
+     * @param candidates 候选IP
+     * @param url 检查使用的url
+     * @param callback 每个IP检查完成之后回调,回调在IO线程执行,不要在回调里面做耗时操作
+     * @return 全部检查完成之后返回可用IP数量
+     */
+    ListenableFuture<Integer> checkBatch(Collection<AvProxyVO> candidates, String url, CheckCallback callback);
+
+    interface CheckCallback {
+        void onChecked(AvProxyVO avProxyVO, boolean available);
+    }
+}
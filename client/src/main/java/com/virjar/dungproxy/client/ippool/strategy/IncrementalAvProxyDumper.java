@@ -0,0 +1,25 @@
+package com.virjar.dungproxy.client.ippool.strategy;
+
+import com.virjar.dungproxy.client.model.AvProxyVO;
+
+/**
+ * 支持增量序列化的序列化器。IP池在IP上线,下线,分值调整的时候通知序列化器,<br/>
+ * 这时IP池不会再周期性的全量调用 serializeProxy,全量序列化只在IP池销毁等时机发生
+ */
+public interface IncrementalAvProxyDumper extends AvProxyDumper {
+
+    /**
+     * IP加入IP池
+     */
+    void onProxyAdd(String domain, AvProxyVO avProxyVO);
+
+    /**
+     * IP下线
+     */
+    void onProxyOffline(String domain, AvProxyVO avProxyVO);
+
+    /**
+     * IP分值发生调整
+     */
+    void onScoreChange(String domain, AvProxyVO avProxyVO);
+}
@@ -0,0 +1,11 @@
+package com.virjar.dungproxy.client.ippool.strategy;
+
+import com.virjar.dungproxy.client.model.AvProxy;
+
+/**
+ * IP从某个域名的IP池下线时回调,通过DungProxyContext.addProxyOfflineListener注册<br/>
+ * 在调用offline的业务线程中同步执行,实现不能阻塞
+ */
+public interface ProxyOfflineListener {
+    void onOffline(String domain, AvProxy avProxy);
+}
@@ -0,0 +1,246 @@
+package com.virjar.dungproxy.client.ippool.strategy.impl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+import com.ning.http.client.ProxyServer;
+import com.ning.http.client.providers.netty.NettyAsyncHttpProviderConfig;
+import com.virjar.dungproxy.client.ippool.config.ProxyConstant;
+import com.virjar.dungproxy.client.ippool.strategy.BatchProxyChecker;
+import com.virjar.dungproxy.client.model.AvProxyVO;
+import com.virjar.dungproxy.client.ningclient.concurrent.NamedThreadFactory;
+
+/**
+ * 基于NIO的批量IP检查器,判定标准和DefaultProxyChecker一致:通过代理get测试url,响应码为HTTP_OK视为可用,失败最多尝试maxAttempts次<br/>
+ * 一批IP的检查请求同时发出,由少量IO线程驱动,同时在检查的IP数量不超过maxInFlight。拿到响应码之后立即断开,不下载响应体<br/>
+ * 所有实例共享一个http客户端,IO线程都是守护线程<br/>
+ * 使用方式: proxyclient.defaultProxyChecker=com.virjar.dungproxy.client.ippool.strategy.impl.AsyncBatchProxyChecker
+ */
+public class AsyncBatchProxyChecker implements BatchProxyChecker {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncBatchProxyChecker.class);
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private static final Supplier<AsyncHttpClient> CLIENT = Suppliers.memoize(new Supplier<AsyncHttpClient>() {
+        @Override
+        public AsyncHttpClient get() {
+            ExecutorService ioExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("proxy-checker-io"));
+            NettyAsyncHttpProviderConfig providerConfig = new NettyAsyncHttpProviderConfig();
+            providerConfig.setBossExecutorService(ioExecutor);
+            providerConfig.setSocketChannelFactory(new NioClientSocketChannelFactory(ioExecutor, ioExecutor,
+                    Runtime.getRuntime().availableProcessors()));
+            HashedWheelTimer timer = new HashedWheelTimer(new NamedThreadFactory("proxy-checker-timer"));
+            timer.start();
+            providerConfig.setNettyTimer(timer);
+
+            AsyncHttpClientConfig clientConfig = new AsyncHttpClientConfig.Builder()
+                    .setExecutorService(Executors.newCachedThreadPool(new NamedThreadFactory("proxy-checker")))
+                    .setAsyncHttpClientProviderConfig(providerConfig).setConnectTimeout(CONNECT_TIMEOUT)
+                    .setReadTimeout(ProxyConstant.SOCKET_TIMEOUT).setFollowRedirect(true).setMaxRedirects(5)
+                    .setAcceptAnyCertificate(true).setAllowPoolingConnections(false).setMaxRequestRetry(0)
+                    .build();
+            return new AsyncHttpClient(clientConfig);
+        }
+    });
+
+    // 同时在检查的IP数量上限
+    private int maxInFlight = 200;
+
+    // 单次检查的超时时间,包括连接,发送请求和等待响应码
+    private int checkTimeout = 10000;
+
+    private int maxAttempts = 3;
+
+    private final Semaphore inFlight = new Semaphore(maxInFlight);
+
+    public AsyncBatchProxyChecker setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must greater than 0");
+        }
+        int delta = maxInFlight - this.maxInFlight;
+        this.maxInFlight = maxInFlight;
+        if (delta > 0) {
+            inFlight.release(delta);
+        } else if (delta < 0) {
+            inFlight.acquireUninterruptibly(-delta);
+        }
+        return this;
+    }
+
+    public AsyncBatchProxyChecker setCheckTimeout(int checkTimeout) {
+        this.checkTimeout = checkTimeout;
+        return this;
+    }
+
+    public AsyncBatchProxyChecker setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        return this;
+    }
+
+    /**
+     * 同步检查单个IP,兼容只认识ProxyChecker的调用方
+     */
+    @Override
+    public boolean available(AvProxyVO avProxyVO, String url) {
+        ListenableFuture<Integer> future = checkBatch(Collections.singletonList(avProxyVO), url, null);
+        try {
+            return future.get((long) checkTimeout * maxAttempts + CONNECT_TIMEOUT, TimeUnit.MILLISECONDS) > 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Override
+    public ListenableFuture<Integer> checkBatch(Collection<AvProxyVO> candidates, String url,
+            CheckCallback callback) {
+        BatchState batchState = new BatchState(candidates.size(), callback);
+        if (candidates.isEmpty()) {
+            batchState.result.set(0);
+            return batchState.result;
+        }
+        for (AvProxyVO avProxyVO : candidates) {
+            inFlight.acquireUninterruptibly();
+            new ProxyCheck(avProxyVO, url, batchState).attempt();
+        }
+        return batchState.result;
+    }
+
+    private class BatchState {
+        private final AtomicInteger remain;
+        private final AtomicInteger available = new AtomicInteger(0);
+        private final CheckCallback callback;
+        private final SettableFuture<Integer> result = SettableFuture.create();
+
+        BatchState(int size, CheckCallback callback) {
+            this.remain = new AtomicInteger(size);
+            this.callback = callback;
+        }
+
+        void finish(AvProxyVO avProxyVO, boolean success) {
+            inFlight.release();
+            if (success) {
+                available.incrementAndGet();
+            }
+            try {
+                if (callback != null) {
+                    callback.onChecked(avProxyVO, success);
+                }
+            } catch (Exception e) {
+                logger.error("error when handle proxy check result", e);
+            } finally {
+                if (remain.decrementAndGet() == 0) {
+                    result.set(available.get());
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个IP的检查过程,失败的时候在IO线程上直接发起下一次尝试
+     */
+    private class ProxyCheck implements Runnable {
+        private final AvProxyVO avProxyVO;
+        private final String url;
+        private final BatchState batchState;
+        private int attempts = 0;
+        private com.ning.http.client.ListenableFuture<Integer> responseFuture;
+
+        ProxyCheck(AvProxyVO avProxyVO, String url, BatchState batchState) {
+            this.avProxyVO = avProxyVO;
+            this.url = url;
+            this.batchState = batchState;
+        }
+
+        void attempt() {
+            attempts++;
+            ProxyServer proxyServer = avProxyVO.getUsername() == null
+                    ? new ProxyServer(avProxyVO.getIp(), avProxyVO.getPort())
+                    : new ProxyServer(avProxyVO.getIp(), avProxyVO.getPort(), avProxyVO.getUsername(),
+                            avProxyVO.getPassword());
+            try {
+                responseFuture = CLIENT.get().prepareGet(url).setProxyServer(proxyServer)
+                        .setRequestTimeout(checkTimeout).execute(new StatusCodeHandler());
+                responseFuture.addListener(this, MoreExecutors.directExecutor());
+            } catch (Exception e) {
+                logger.debug("proxy check request failed for {}:{}", avProxyVO.getIp(), avProxyVO.getPort(), e);
+                onResult(-1);
+            }
+        }
+
+        @Override
+        public void run() {
+            int status;
+            try {
+                Integer ret = responseFuture.get();
+                status = ret == null ? -1 : ret;
+            } catch (Exception e) {
+                status = -1;// 超时,连接失败等,失败的IP数量非常多,不打印日志
+            }
+            onResult(status);
+        }
+
+        private void onResult(int status) {
+            if (status == 200) {
+                batchState.finish(avProxyVO, true);
+            } else if (attempts < maxAttempts) {
+                attempt();
+            } else {
+                batchState.finish(avProxyVO, false);
+            }
+        }
+    }
+
+    /**
+     * 只关心响应码,拿到之后立即中断请求
+     */
+    private static class StatusCodeHandler implements AsyncHandler<Integer> {
+        private volatile int statusCode = -1;
+
+        @Override
+        public void onThrowable(Throwable t) {
+            // 结果通过future获取
+        }
+
+        @Override
+        public STATE onBodyPartReceived(HttpResponseBodyPart bodyPart) throws Exception {
+            return STATE.ABORT;
+        }
+
+        @Override
+        public STATE onStatusReceived(HttpResponseStatus responseStatus) throws Exception {
+            statusCode = responseStatus.getStatusCode();
+            return STATE.ABORT;
+        }
+
+        @Override
+        public STATE onHeadersReceived(HttpResponseHeaders headers) throws Exception {
+            return STATE.ABORT;
+        }
+
+        @Override
+        public Integer onCompleted() throws Exception {
+            return statusCode;
+        }
+    }
+}
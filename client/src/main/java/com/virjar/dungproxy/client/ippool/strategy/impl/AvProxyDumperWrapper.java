@@ -64,4 +64,8 @@ public class AvProxyDumperWrapper implements AvProxyDumper {
     public Map<String, List<AvProxyVO>> unSerializeProxy() {
         return delegate.unSerializeProxy();
     }
+
+    public AvProxyDumper getDelegate() {
+        return delegate;
+    }
 }
@@ -0,0 +1,272 @@
+package com.virjar.dungproxy.client.ippool.strategy.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.virjar.dungproxy.client.ippool.strategy.AvProxyDumper;
+import com.virjar.dungproxy.client.model.AvProxyVO;
+import com.virjar.dungproxy.client.util.CommonUtil;
+
+/**
+ * 二进制格式的序列化器,启动的时候整个文件读入一个字节数组直接解析,不需要先把整个文件解析成json对象或者字符串<br/>
+ * 文件格式(大端):<br/>
+ * header: magic(int) version(short) domainNumber(int)<br/>
+ * 每个domain: domain(utf8串) proxyNumber(int) proxy...<br/>
+ * 每个proxy: flag(byte) ip(IPv4打包为int,否则为utf8串) port(short) avgScore(double) referCount(int) failedCount(int)
+ * [username(utf8串) password(utf8串)]<br/>
+ * utf8串为 长度(short)+字节。写入的时候先写临时文件,fsync之后原子替换,进程在写入过程中退出不会损坏已有的文件<br/>
+ * 不会序列化authenticationHeaders,需要请求头认证的代理请通过配置加载<br/>
+ * 文件名通过proxyclient.BinaryAvProxyDumper.dumpFileName配置,默认availableProxy.bin,不和json序列化器共用文件。读取的时候校验magic和版本<br/>
+ * 使用方式: proxyclient.serialize.serializer=com.virjar.dungproxy.client.ippool.strategy.impl.BinaryAvProxyDumper
+ */
+public class BinaryAvProxyDumper implements AvProxyDumper {
+    private static final Logger logger = LoggerFactory.getLogger(BinaryAvProxyDumper.class);
+
+    public static final String DEFAULT_DUMP_FILE_NAME = "availableProxy.bin";
+
+    private static final int MAGIC = 0x44554E47;// "DUNG"
+    private static final short VERSION = 1;
+
+    private static final byte FLAG_IPV4 = 0x01;
+    private static final byte FLAG_CREDENTIAL = 0x02;
+
+    private String dumpFileName;
+
+    public BinaryAvProxyDumper() {
+    }
+
+    public BinaryAvProxyDumper(String dumpFileName) {
+        this.dumpFileName = dumpFileName;
+    }
+
+    @Override
+    public void setDumpFileName(String dumpFileName) {
+        this.dumpFileName = dumpFileName;
+    }
+
+    @Override
+    public void serializeProxy(Map<String, List<AvProxyVO>> data) {
+        if (data == null || data.size() == 0) {
+            return;
+        }
+        DataOutputStream outputStream = null;
+        try {
+            File dumpFile = new File(CommonUtil.ensurePathExist(trimFileName()));
+            File tempFile = new File(dumpFile.getAbsolutePath() + ".tmp");
+            FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+            outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 64 * 1024));
+            outputStream.writeInt(MAGIC);
+            outputStream.writeShort(VERSION);
+            outputStream.writeInt(data.size());
+            for (Map.Entry<String, List<AvProxyVO>> entry : data.entrySet()) {
+                // 先拷贝,保证数量和内容一致
+                List<AvProxyVO> proxies = Lists.newArrayList(entry.getValue());
+                writeString(outputStream, entry.getKey());
+                outputStream.writeInt(proxies.size());
+                for (AvProxyVO avProxyVO : proxies) {
+                    writeProxy(outputStream, avProxyVO);
+                }
+            }
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+            outputStream.close();
+            Files.move(tempFile.toPath(), dumpFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {// 发生异常打印日志,但是不抛异常,因为不会影响正常逻辑
+            logger.error("error when serialize proxy data", e);
+        } finally {
+            IOUtils.closeQuietly(outputStream);
+        }
+    }
+
+    @Override
+    public Map<String, List<AvProxyVO>> unSerializeProxy() {
+        Map<String, List<AvProxyVO>> ret = Maps.newHashMap();
+        File dumpFile = new File(trimFileName());
+        if (!dumpFile.exists()) {
+            return ret;
+        }
+        RandomAccessFile randomAccessFile = null;
+        ByteBuffer buffer;
+        try {
+            // 不使用内存映射:映射要等到GC才释放,windows下映射没有释放的时候下次序列化不能替换这个文件
+            randomAccessFile = new RandomAccessFile(dumpFile, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+        } catch (IOException e) {
+            logger.error("error when unSerializeProxy proxy data", e);
+            return ret;
+        } finally {
+            IOUtils.closeQuietly(randomAccessFile);
+        }
+        try {
+            if (buffer.remaining() > 0 && (buffer.get(0) == '{' || buffer.get(0) == '[')) {
+                logger.warn("序列化文件{}是json格式,二进制序列化器不能读取,请通过{}配置单独的文件", dumpFileName,
+                        "proxyclient.BinaryAvProxyDumper.dumpFileName");
+                return ret;
+            }
+            if (buffer.remaining() < 10 || buffer.getInt() != MAGIC) {
+                logger.warn("本地代理IP池序列化文件损坏");
+                return ret;
+            }
+            short version = buffer.getShort();
+            if (version != VERSION) {
+                logger.warn("不支持的序列化文件版本:{}", version);
+                return ret;
+            }
+            int domainNumber = buffer.getInt();
+            for (int i = 0; i < domainNumber; i++) {
+                String domain = readString(buffer);
+                int proxyNumber = buffer.getInt();
+                List<AvProxyVO> proxies = Lists.newArrayListWithCapacity(proxyNumber);
+                for (int j = 0; j < proxyNumber; j++) {
+                    proxies.add(readProxy(buffer, domain));
+                }
+                ret.put(domain, proxies);
+            }
+        } catch (Exception e) {
+            // 文件被截断等情况,已经读到的数据仍然可用
+            logger.error("error when unSerializeProxy proxy data", e);
+        }
+        return ret;
+    }
+
+    private void writeProxy(DataOutputStream outputStream, AvProxyVO avProxyVO) throws IOException {
+        long packedIp = packIPv4(avProxyVO.getIp());
+        boolean hasCredential = avProxyVO.getUsername() != null || avProxyVO.getPassword() != null;
+        byte flag = 0;
+        if (packedIp >= 0) {
+            flag |= FLAG_IPV4;
+        }
+        if (hasCredential) {
+            flag |= FLAG_CREDENTIAL;
+        }
+        outputStream.writeByte(flag);
+        if (packedIp >= 0) {
+            outputStream.writeInt((int) packedIp);
+        } else {
+            writeString(outputStream, avProxyVO.getIp());
+        }
+        outputStream.writeShort(avProxyVO.getPort());
+        outputStream.writeDouble(avProxyVO.getAvgScore());
+        outputStream.writeInt(avProxyVO.getReferCount() == null ? 0 : avProxyVO.getReferCount());
+        outputStream.writeInt(avProxyVO.getFailedCount() == null ? 0 : avProxyVO.getFailedCount());
+        if (hasCredential) {
+            writeString(outputStream, StringUtils.defaultString(avProxyVO.getUsername()));
+            writeString(outputStream, StringUtils.defaultString(avProxyVO.getPassword()));
+        }
+    }
+
+    private AvProxyVO readProxy(ByteBuffer buffer, String domain) {
+        byte flag = buffer.get();
+        AvProxyVO avProxyVO = new AvProxyVO();
+        if ((flag & FLAG_IPV4) != 0) {
+            avProxyVO.setIp(unpackIPv4(buffer.getInt()));
+        } else {
+            avProxyVO.setIp(readString(buffer));
+        }
+        avProxyVO.setPort(buffer.getShort() & 0xFFFF);
+        avProxyVO.setAvgScore(buffer.getDouble());
+        avProxyVO.setReferCount(buffer.getInt());
+        avProxyVO.setFailedCount(buffer.getInt());
+        if ((flag & FLAG_CREDENTIAL) != 0) {
+            avProxyVO.setUsername(StringUtils.trimToNull(readString(buffer)));
+            avProxyVO.setPassword(StringUtils.trimToNull(readString(buffer)));
+        }
+        avProxyVO.setDomain(domain);
+        avProxyVO.setCloud(false);
+        return avProxyVO;
+    }
+
+    private static void writeString(DataOutputStream outputStream, String value) throws IOException {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("string too long for binary dump:" + bytes.length);
+        }
+        outputStream.writeShort(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    /**
+     * @return 点分十进制的IPv4地址打包之后的无符号值,不是IPv4地址的时候返回-1
+     */
+    static long packIPv4(String ip) {
+        if (ip == null) {
+            return -1;
+        }
+        long ret = 0;
+        int segment = 0;
+        int segmentNumber = 0;
+        int digits = 0;
+        for (int i = 0; i <= ip.length(); i++) {
+            char c = i == ip.length() ? '.' : ip.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || segment > 255 || ++segmentNumber > 4) {
+                    return -1;
+                }
+                ret = (ret << 8) | segment;
+                segment = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9' && digits < 3 && !(digits == 1 && segment == 0)) {// 前导0不是规范格式
+                segment = segment * 10 + (c - '0');
+                digits++;
+            } else {
+                return -1;
+            }
+        }
+        return segmentNumber == 4 ? ret : -1;
+    }
+
+    static String unpackIPv4(int packedIp) {
+        return ((packedIp >>> 24) & 0xFF) + "." + ((packedIp >>> 16) & 0xFF) + "." + ((packedIp >>> 8) & 0xFF) + "."
+                + (packedIp & 0xFF);
+    }
+
+    /**
+     * 调整文件路径,如果为绝对路径,则使用绝对路径,否则以classPath作为根目录,而不以运行目录作为文件路径
+     *
+     * @return 调整后的文件路径
+     */
+    private String trimFileName() {
+        if (StringUtils.isEmpty(dumpFileName)) {
+            dumpFileName = DEFAULT_DUMP_FILE_NAME;
+        }
+        if (dumpFileName.startsWith("/") || dumpFileName.charAt(1) == ':') {
+            return dumpFileName;
+        }
+        String classPath = BinaryAvProxyDumper.class.getResource("/").getFile();
+        dumpFileName = new File(classPath, dumpFileName).getAbsolutePath();
+        logger.info("二进制序列化器,文件路径为:{}", dumpFileName);
+        return dumpFileName;
+    }
+}
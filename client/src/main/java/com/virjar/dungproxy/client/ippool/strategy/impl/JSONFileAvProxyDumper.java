@@ -4,6 +4,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.Map;
 
@@ -47,17 +48,21 @@ public class JSONFileAvProxyDumper implements AvProxyDumper {
         if (data == null || data.size() == 0) {
             return;
         }
+        String s = JSONObject.toJSONString(data);
+        if (StringUtils.isEmpty(s)) {
+            logger.warn("序列化的时候,数据损坏,放弃序列化");
+            return;
+        }
         BufferedWriter bufferedWriter = null;
         try {
-            bufferedWriter = Files.newWriter(new File(CommonUtil.ensurePathExist(trimFileName())),
-                    Charset.defaultCharset());
-            String s = JSONObject.toJSONString(data);
-            if (StringUtils.isEmpty(s)) {
-                logger.warn("序列化的时候,数据损坏,放弃序列化");
-            } else {
-                bufferedWriter.write(s);
-            }
-
+            // 先写临时文件再替换,避免写到一半的时候进程退出导致快照损坏
+            File dumpFile = new File(CommonUtil.ensurePathExist(trimFileName()));
+            File tempFile = new File(dumpFile.getAbsolutePath() + ".tmp");
+            bufferedWriter = Files.newWriter(tempFile, Charset.defaultCharset());
+            bufferedWriter.write(s);
+            bufferedWriter.close();
+            java.nio.file.Files.move(tempFile.toPath(), dumpFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {// 发生异常打印日志,但是不抛异常,因为不会影响正常逻辑
             logger.error("error when serialize proxy data", e);
         } finally {
@@ -102,7 +107,7 @@ public class JSONFileAvProxyDumper implements AvProxyDumper {
      *
      * @return 调整后的文件路径
      */
-    private String trimFileName() {
+    protected String trimFileName() {
         try {
             if (StringUtils.isEmpty(dumpFileName)) {
                 dumpFileName = ProxyConstant.DEFAULT_PROXY_SERALIZER_FILE_VALUE;
@@ -0,0 +1,328 @@
+package com.virjar.dungproxy.client.ippool.strategy.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.virjar.dungproxy.client.ippool.strategy.IncrementalAvProxyDumper;
+import com.virjar.dungproxy.client.model.AvProxyVO;
+import com.virjar.dungproxy.client.util.CommonUtil;
+
+/**
+ * 增量序列化器。快照仍然是JSONFileAvProxyDumper的json文件,快照之后的变化(IP上线,下线,分值调整)以追加的方式写到 快照文件名.journal 中<br/>
+ * 日志由单独的写线程写入,调用方只负责入队,不会在爬虫线程上做文件IO。日志条数超过阈值之后,写线程用内存中的镜像重新生成快照并清空日志<br/>
+ * 反序列化的时候先加载快照,再重放日志。压缩生成的快照就是原来的快照加上日志,所以压缩的快照写完但是日志没有清空的情况也可以正确恢复<br/>
+ * 使用方式: proxyclient.serialize.serializer=com.virjar.dungproxy.client.ippool.strategy.impl.JournalAvProxyDumper
+ */
+public class JournalAvProxyDumper extends JSONFileAvProxyDumper implements IncrementalAvProxyDumper {
+    private static final Logger logger = LoggerFactory.getLogger(JournalAvProxyDumper.class);
+
+    private static final char ADD = 'A';
+    private static final char OFFLINE = 'O';
+    private static final char SCORE = 'S';
+
+    private static final Splitter fieldSplitter = Splitter.on('\t');
+
+    // 日志超过这个条数之后进行一次压缩
+    private int compactThreshold = 5000;
+
+    private final LinkedBlockingQueue<JournalRecord> pendingRecords = new LinkedBlockingQueue<>();
+
+    // 日志入队的序号,全量序列化的时候记录当时的序号,不大于这个序号的日志已经包含在快照里面,写线程直接丢弃
+    private final AtomicLong sequence = new AtomicLong(0);
+    private long snapshotSequence = 0;
+
+    // 快照加上日志之后的IP池状态,只在持有this锁的时候访问 domain -> (ip:port -> proxy)
+    private Map<String, Map<String, AvProxyVO>> mirror = null;
+
+    private BufferedWriter journalWriter = null;
+
+    private int journalSize = 0;
+
+    private volatile Thread writerThread;
+
+    public JournalAvProxyDumper() {
+    }
+
+    public JournalAvProxyDumper(String dumpFileName) {
+        super(dumpFileName);
+    }
+
+    public void setCompactThreshold(int compactThreshold) {
+        this.compactThreshold = compactThreshold;
+    }
+
+    @Override
+    public void onProxyAdd(String domain, AvProxyVO avProxyVO) {
+        append(ADD, domain, avProxyVO);
+    }
+
+    @Override
+    public void onProxyOffline(String domain, AvProxyVO avProxyVO) {
+        append(OFFLINE, domain, avProxyVO);
+    }
+
+    @Override
+    public void onScoreChange(String domain, AvProxyVO avProxyVO) {
+        append(SCORE, domain, avProxyVO);
+    }
+
+    /**
+     * 全量序列化,直接生成新的快照并清空日志<br/>
+     * 日志中的分值是记录那一刻的值,IP使用成功不会记录日志,所以data比之前的日志都新,进入这个方法之前入队的日志全部丢弃。
+     * 之后入队的日志记录的是data之后的变化,由写线程按照入队顺序应用到新的快照上。IP池生成data(调用方的getPoolInfo)之后立即调用本方法,
+     * 分值在遍历data的时候才读取
+     */
+    @Override
+    public synchronized void serializeProxy(Map<String, List<AvProxyVO>> data) {
+        if (data == null || data.size() == 0) {
+            return;
+        }
+        long watermark = sequence.get();
+        Map<String, Map<String, AvProxyVO>> newMirror = Maps.newHashMap();
+        for (Map.Entry<String, List<AvProxyVO>> entry : data.entrySet()) {
+            Map<String, AvProxyVO> domainProxies = Maps.newLinkedHashMap();
+            for (AvProxyVO avProxyVO : entry.getValue()) {
+                domainProxies.put(key(avProxyVO.getIp(), avProxyVO.getPort()), avProxyVO);
+            }
+            newMirror.put(entry.getKey(), domainProxies);
+        }
+        mirror = newMirror;
+        snapshotSequence = watermark;
+        compact();
+    }
+
+    @Override
+    public synchronized Map<String, List<AvProxyVO>> unSerializeProxy() {
+        loadMirror();
+        return mirrorView();
+    }
+
+    private void append(char type, String domain, AvProxyVO avProxyVO) {
+        pendingRecords.offer(new JournalRecord(sequence.incrementAndGet(), type, domain, avProxyVO));
+        if (writerThread == null) {
+            startWriterThread();
+        }
+    }
+
+    private synchronized void startWriterThread() {
+        if (writerThread != null) {
+            return;
+        }
+        Thread thread = new Thread("dungproxy-journal-writer") {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        writeRecords(pendingRecords.take());
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        logger.error("error when write proxy journal", e);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        writerThread = thread;
+    }
+
+    /**
+     * 一次写入队列中积压的所有日志,最后统一flush
+     */
+    private synchronized void writeRecords(JournalRecord first) throws IOException {
+        loadMirror();
+        if (journalWriter == null) {
+            journalWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(CommonUtil.ensurePathExist(journalFileName()), true), Charsets.UTF_8));
+        }
+        JournalRecord journalRecord = first;
+        for (; journalRecord != null; journalRecord = pendingRecords.poll()) {
+            if (journalRecord.sequence <= snapshotSequence) {
+                continue;
+            }
+            apply(journalRecord.type, journalRecord.domain, journalRecord.ip, journalRecord.port,
+                    journalRecord.avgScore, journalRecord.referCount, journalRecord.failedCount,
+                    journalRecord.username, journalRecord.password);
+            journalWriter.write(journalRecord.toLine());
+            journalWriter.newLine();
+            journalSize++;
+        }
+        journalWriter.flush();
+        if (journalSize >= compactThreshold) {
+            compact();
+        }
+    }
+
+    /**
+     * 用镜像数据生成快照,然后清空日志
+     */
+    private void compact() {
+        IOUtils.closeQuietly(journalWriter);
+        journalWriter = null;
+        super.serializeProxy(mirrorView());
+        if (new File(journalFileName()).delete()) {
+            logger.info("proxy journal compacted, {} records merged into snapshot", journalSize);
+        }
+        journalSize = 0;
+    }
+
+    private void loadMirror() {
+        if (mirror != null) {
+            return;
+        }
+        mirror = Maps.newHashMap();
+        for (Map.Entry<String, List<AvProxyVO>> entry : super.unSerializeProxy().entrySet()) {
+            Map<String, AvProxyVO> domainProxies = Maps.newLinkedHashMap();
+            for (AvProxyVO avProxyVO : entry.getValue()) {
+                domainProxies.put(key(avProxyVO.getIp(), avProxyVO.getPort()), avProxyVO);
+            }
+            mirror.put(entry.getKey(), domainProxies);
+        }
+        replayJournal();
+    }
+
+    private void replayJournal() {
+        File journalFile = new File(journalFileName());
+        if (!journalFile.exists()) {
+            return;
+        }
+        BufferedReader bufferedReader = null;
+        int replayed = 0;
+        try {
+            bufferedReader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(journalFile), Charsets.UTF_8));
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                Iterator<String> fields = fieldSplitter.split(line).iterator();
+                try {
+                    String type = fields.next();
+                    String domain = fields.next();
+                    String ip = fields.next();
+                    int port = Integer.parseInt(fields.next());
+                    double avgScore = NumberUtils.toDouble(fields.next());
+                    int referCount = NumberUtils.toInt(fields.next());
+                    int failedCount = NumberUtils.toInt(fields.next());
+                    String username = StringUtils.trimToNull(fields.next());
+                    String password = StringUtils.trimToNull(fields.next());
+                    apply(type.charAt(0), domain, ip, port, avgScore, referCount, failedCount, username, password);
+                    replayed++;
+                } catch (Exception e) {
+                    // 进程崩溃的时候最后一行可能不完整,忽略
+                    logger.warn("broken proxy journal record:{}", line);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("error when replay proxy journal", e);
+        } finally {
+            IOUtils.closeQuietly(bufferedReader);
+        }
+        journalSize = replayed;
+        logger.info("proxy journal replayed, record number:{}", replayed);
+    }
+
+    private void apply(char type, String domain, String ip, int port, double avgScore, int referCount,
+            int failedCount, String username, String password) {
+        Map<String, AvProxyVO> domainProxies = mirror.get(domain);
+        if (domainProxies == null) {
+            if (type == OFFLINE) {
+                return;
+            }
+            domainProxies = Maps.newLinkedHashMap();
+            mirror.put(domain, domainProxies);
+        }
+        String key = key(ip, port);
+        if (type == OFFLINE) {
+            domainProxies.remove(key);
+            return;
+        }
+        AvProxyVO avProxyVO = domainProxies.get(key);
+        if (avProxyVO == null) {
+            if (type != ADD) {
+                return;// 分值调整的时候IP已经不在了
+            }
+            avProxyVO = new AvProxyVO();
+            avProxyVO.setIp(ip);
+            avProxyVO.setPort(port);
+            avProxyVO.setCloud(false);
+            avProxyVO.setUsername(username);
+            avProxyVO.setPassword(password);
+            domainProxies.put(key, avProxyVO);
+        }
+        avProxyVO.setAvgScore(avgScore);
+        avProxyVO.setReferCount(referCount);
+        avProxyVO.setFailedCount(failedCount);
+    }
+
+    private Map<String, List<AvProxyVO>> mirrorView() {
+        Map<String, List<AvProxyVO>> ret = Maps.newHashMap();
+        for (Map.Entry<String, Map<String, AvProxyVO>> entry : mirror.entrySet()) {
+            ret.put(entry.getKey(), Lists.newArrayList(entry.getValue().values()));
+        }
+        return ret;
+    }
+
+    private String journalFileName() {
+        return trimFileName() + ".journal";
+    }
+
+    private static String key(String ip, Integer port) {
+        return ip + ":" + port;
+    }
+
+    /**
+     * 调用方线程只做数据拷贝,格式化和文件IO都在写线程
+     */
+    private static class JournalRecord {
+        private final long sequence;
+        private final char type;
+        private final String domain;
+        private final String ip;
+        private final int port;
+        private final double avgScore;
+        private final int referCount;
+        private final int failedCount;
+        private final String username;
+        private final String password;
+
+        JournalRecord(long sequence, char type, String domain, AvProxyVO avProxyVO) {
+            this.sequence = sequence;
+            this.type = type;
+            this.domain = domain;
+            this.ip = avProxyVO.getIp();
+            this.port = avProxyVO.getPort();
+            this.avgScore = avProxyVO.getAvgScore();
+            this.referCount = avProxyVO.getReferCount() == null ? 0 : avProxyVO.getReferCount();
+            this.failedCount = avProxyVO.getFailedCount() == null ? 0 : avProxyVO.getFailedCount();
+            this.username = avProxyVO.getUsername();
+            this.password = avProxyVO.getPassword();
+        }
+
+        String toLine() {
+            return type + "\t" + domain + "\t" + ip + "\t" + port + "\t" + avgScore + "\t" + referCount + "\t"
+                    + failedCount + "\t" + StringUtils.defaultString(username) + "\t"
+                    + StringUtils.defaultString(password);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.virjar.dungproxy.client.ippool.strategy.impl;
+
+import com.virjar.dungproxy.client.ippool.strategy.Scoring;
+import com.virjar.dungproxy.client.model.AvProxy;
+
+/**
+ * 考虑延迟的打分策略,成功率相同的时候响应更快的IP分值更高,在容器中更靠前,优先被分配<br/>
+ * 和DefaultScoring一样做滑动平均,但是一次成功的得分不是1,而是0.5 + 0.5 * latencyReference / (latencyReference + 预期延迟)<br/>
+ * 成功的得分不低于0.5,所以慢但是可用的IP不会因为延迟被DefaultOffliner下线,只会排到后面。还没有延迟数据的IP按照延迟等于latencyReference计算<br/>
+ * 使用这个打分策略的时候,IP在每次成功之后也会按照新的分值调整位置(异步打分模式下一个批次调整一次),IP数量很多并且请求量很大的时候建议开启异步打分<br/>
+ * 延迟数据由CrawlerHttpClient和ning客户端记录,使用方式: proxyclient.defaultScoring=com.virjar.dungproxy.client.ippool.strategy.impl.ThroughputScoring
+ */
+public class ThroughputScoring implements Scoring {
+    // 参考延迟,毫秒。延迟等于参考延迟的IP一次成功得0.75分
+    private long latencyReference = 1000;
+
+    public ThroughputScoring setLatencyReference(long latencyReference) {
+        if (latencyReference <= 0) {
+            throw new IllegalArgumentException("latencyReference must greater than 0");
+        }
+        this.latencyReference = latencyReference;
+        return this;
+    }
+
+    @Override
+    public double newAvgScore(AvProxy avProxy, int factory, boolean isSuccess) {
+        double newScore = isSuccess ? successScore(avProxy) : 0D;
+        if (avProxy.getAvgScore() == 0D && isSuccess) {
+            return newScore;
+        }
+        return (avProxy.getAvgScore() * (factory - 1) + newScore) / factory;
+    }
+
+    private double successScore(AvProxy avProxy) {
+        double expectedLatency = avProxy.getExpectedLatency();
+        if (expectedLatency < 0) {
+            expectedLatency = latencyReference;
+        }
+        return 0.5D + 0.5D * latencyReference / (latencyReference + expectedLatency);
+    }
+}
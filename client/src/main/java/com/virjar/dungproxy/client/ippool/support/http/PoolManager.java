@@ -9,6 +9,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.virjar.dungproxy.client.VERSION;
 import com.virjar.dungproxy.client.ippool.DomainPool;
+import com.virjar.dungproxy.client.ippool.DomainPoolMetrics;
 import com.virjar.dungproxy.client.ippool.IpPool;
 import com.virjar.dungproxy.client.ippool.SmartProxyQueue;
 import com.virjar.dungproxy.client.ippool.config.ProxyConstant;
@@ -54,6 +55,15 @@ public class PoolManager {
         return ret;
     }
 
+    // prometheus文本格式的指标
+    public String metricsText() {
+        List<DomainPoolMetrics> metricsList = Lists.newArrayList();
+        for (DomainPool domainPool : ipPool.getPool().values()) {
+            metricsList.add(domainPool.getMetrics());
+        }
+        return DomainPoolMetrics.exposition(metricsList);
+    }
+
     // 获取某个domain的信息
     public Map<String, Object> domainInfo(String domain) {
         Map<String, Object> ret = Maps.newHashMap();
@@ -246,6 +246,12 @@ public abstract class ResourceServlet extends HttpServlet {
             return;
         }
 
+        if ("/metrics".equals(path)) {// prometheus抓取地址
+            response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            response.getWriter().print(process(path));
+            return;
+        }
+
         if (path.contains(".json")) {
             String fullUrl = path;
             if (request.getQueryString() != null && request.getQueryString().length() > 0) {
@@ -59,6 +59,9 @@ public final class DrungClientStatService implements DruidStatServiceMBean {
     public String service(String url) {
 
         Map<String, String> parameters = getParameters(url);
+        if (url.equals("/metrics")) {// 指标直接返回文本,不包装成json
+            return poolManager.metricsText();
+        }
         if (url.equals("/basic.json")) {
             return returnJSONResult(RESULT_CODE_SUCCESS, poolManager.returnJSONBasicStat());
         }
@@ -1,6 +1,7 @@
 package com.virjar.dungproxy.client.model;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -9,12 +10,14 @@ import org.apache.http.Header;
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.virjar.dungproxy.client.ippool.AsyncScoreRecorder;
 import com.virjar.dungproxy.client.ippool.DomainPool;
 import com.virjar.dungproxy.client.ippool.IpPool;
 import com.virjar.dungproxy.client.ippool.config.DomainContext;
 import com.virjar.dungproxy.client.ippool.config.DungProxyContext;
 import com.virjar.dungproxy.client.ippool.strategy.Offline;
 import com.virjar.dungproxy.client.ippool.strategy.Scoring;
+import com.virjar.dungproxy.client.ippool.strategy.impl.ThroughputScoring;
 
 /**
  * Description: AvProxy
@@ -61,6 +64,16 @@ public class AvProxy {
     // 是否被分发出去
     private boolean referFlag = false;
 
+    // 异步打分模式下,还没有计算到分值里面的成功和失败次数
+    private final AtomicInteger pendingSuccess = new AtomicInteger(0);
+    private final AtomicInteger pendingFailed = new AtomicInteger(0);
+    // 是否已经登记到异步打分器,避免同一个IP重复入队
+    private final AtomicBoolean scoreDirty = new AtomicBoolean(false);
+
+    // 通过这个IP建立连接的耗时和首字节耗时,单位毫秒
+    private final LatencySketch connectLatency = new LatencySketch();
+    private final LatencySketch firstByteLatency = new LatencySketch();
+
     // TODO 移到context里面
     public static boolean needRecordChange = true;
 
@@ -73,16 +86,26 @@ public class AvProxy {
     private DomainContext domainContext;
 
     public AvProxy(DomainContext domainContext) {
+        this(domainContext, needRecordChange);
+    }
+
+    /**
+     * @param recordChange 是否把这个IP计入序列化的变化计数,自己负责序列化的场景(如预热器)传false,不影响其他IP池
+     */
+    public AvProxy(DomainContext domainContext, boolean recordChange) {
         this.domainContext = domainContext;
         this.dungProxyContext = domainContext.getDungProxyContext();
         this.scoring = domainContext.getScoring();
         this.offline = domainContext.getOffline();
-        if (needRecordChange) {
+        if (recordChange) {
             recordProxyChange();
         }
     }
 
     public void recordProxyChange() {
+        if (dungProxyContext == null || dungProxyContext.getIncrementalAvProxyDumper() != null) {
+            return;// 增量序列化器由DomainPool直接通知,不需要周期性的全量序列化
+        }
         if (proxyNumberChange.incrementAndGet() % 10 == 0) {// 每当有10个IP加入或者下线,则进行一次序列化
             if (IpPool.getInstance() == null) {
                 return;// 说明是初始化的时候,在递归调用到这里了。放弃序列化
@@ -114,8 +137,14 @@ public class AvProxy {
             return;
         }
         referFlag = false;
-        avgScore = scoring.newAvgScore(this, domainContext.getScoreFactory(), false);
         failedCount.incrementAndGet();
+        AsyncScoreRecorder asyncScoreRecorder = asyncScoreRecorder();
+        if (asyncScoreRecorder != null) {
+            pendingFailed.incrementAndGet();
+            markScoreDirty(asyncScoreRecorder);
+            return;
+        }
+        avgScore = scoring.newAvgScore(this, domainContext.getScoreFactory(), false);
         if (offline.needOffline(this)) {
             offline();// 资源下线,下次将不会分配这个IP了
         } else {
@@ -123,6 +152,13 @@ public class AvProxy {
         }
     }
 
+    /**
+     * 请求被主动取消,比如对冲请求中落后的一方,这次使用既不算成功也不算失败
+     */
+    public void recordCancelled() {
+        referFlag = false;
+    }
+
     public void adjustPriority() {
         domainPool.adjustPriority(this);
     }
@@ -132,13 +168,72 @@ public class AvProxy {
      */
     public void recordUsage() {
         if (referFlag) {// 被使用过,但是没有失败报告,认为上次使用成功,不考虑段时间并发问题导致的反馈不及时问题,那种场景会导致多记录一次成功
-            avgScore = scoring.newAvgScore(this, domainContext.getScoreFactory(), true);
+            AsyncScoreRecorder asyncScoreRecorder = asyncScoreRecorder();
+            if (asyncScoreRecorder != null) {
+                pendingSuccess.incrementAndGet();
+                markScoreDirty(asyncScoreRecorder);
+            } else {
+                avgScore = scoring.newAvgScore(this, domainContext.getScoreFactory(), true);
+                if (adjustOnSuccess()) {
+                    domainPool.adjustPriority(this, false);
+                }
+            }
         }
         referFlag = true;
         lastUsedTime = System.currentTimeMillis();
         referCount.incrementAndGet();
     }
 
+    /**
+     * 把异步模式下积压的反馈计算到分值里面,并调整IP在容器中的位置,由异步打分器的后台线程调用
+     */
+    public void applyPendingScore() {
+        scoreDirty.set(false);// 先清标记再取数据,之后到来的反馈会重新入队,不会丢失
+        int success = pendingSuccess.getAndSet(0);
+        int failed = pendingFailed.getAndSet(0);
+        for (int i = 0; i < success; i++) {
+            avgScore = scoring.newAvgScore(this, domainContext.getScoreFactory(), true);
+        }
+        for (int i = 0; i < failed; i++) {
+            avgScore = scoring.newAvgScore(this, domainContext.getScoreFactory(), false);
+        }
+        if (disable) {
+            return;
+        }
+        if (failed == 0) {
+            if (success > 0 && adjustOnSuccess()) {
+                domainPool.adjustPriority(this, false);// 一个批次只调整一次
+            }
+            return;// 默认打分策略下成功不调整位置,和同步模式保持一致
+        }
+        if (offline.needOffline(this)) {
+            offline();
+        } else {
+            domainPool.adjustPriority(this);
+        }
+    }
+
+    /**
+     * 默认打分策略下成功只会让分值趋近于1,IP的相对顺序只在失败的时候变化。考虑延迟的打分策略下成功的得分取决于延迟,
+     * 成功之后也需要调整位置,否则快的IP一直成功也不会排到慢的IP前面。成功不记录到增量序列化日志,由全量序列化覆盖
+     */
+    private boolean adjustOnSuccess() {
+        return scoring instanceof ThroughputScoring && domainPool != null;
+    }
+
+    private AsyncScoreRecorder asyncScoreRecorder() {
+        if (dungProxyContext == null || !dungProxyContext.isAsyncScoring()) {
+            return null;
+        }
+        return dungProxyContext.getAsyncScoreRecorder();
+    }
+
+    private void markScoreDirty(AsyncScoreRecorder asyncScoreRecorder) {
+        if (scoreDirty.compareAndSet(false, true)) {
+            asyncScoreRecorder.markDirty(this);
+        }
+    }
+
     public void offline(boolean force){
         if(!force){
             return;//只有force的时候才真正下线
@@ -183,6 +278,53 @@ public class AvProxy {
         return disable;
     }
 
+    /**
+     * 记录一次请求的延迟,由http客户端在收到响应头的时候调用
+     *
+     * @param connectMillis 从绑定IP到请求发出的耗时,包括建立连接,小于0表示没有测量
+     * @param firstByteMillis 从请求发出到收到响应头的耗时
+     */
+    public void recordLatency(long connectMillis, long firstByteMillis) {
+        if (connectMillis >= 0) {
+            connectLatency.record(connectMillis);
+        }
+        firstByteLatency.record(firstByteMillis);
+        if (domainPool != null) {
+            domainPool.getRequestLatency().record(Math.max(0, connectMillis) + firstByteMillis);
+        }
+    }
+
+    /**
+     * 对冲请求中落后的一方在收到响应头之前被取消,真实延迟至少是已经等待的时间,按照这个下界记入域名的请求延迟,
+     * 否则慢请求总是被取消,域名延迟的分位数会偏低
+     *
+     * @param elapsedMillis 从请求开始到被取消的耗时
+     */
+    public void recordCancelledLatency(long elapsedMillis) {
+        if (domainPool != null) {
+            domainPool.getRequestLatency().record(elapsedMillis);
+        }
+    }
+
+    public LatencySketch getConnectLatency() {
+        return connectLatency;
+    }
+
+    public LatencySketch getFirstByteLatency() {
+        return firstByteLatency;
+    }
+
+    /**
+     * @return 通过这个IP完成一次请求的预期延迟,毫秒,没有样本的时候返回-1
+     */
+    public double getExpectedLatency() {
+        double firstByte = firstByteLatency.getEwma();
+        if (firstByte < 0) {
+            return -1D;
+        }
+        return firstByte + Math.max(0D, connectLatency.getEwma());
+    }
+
     public String getIp() {
         return ip;
     }
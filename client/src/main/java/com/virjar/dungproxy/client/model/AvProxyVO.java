@@ -136,11 +136,18 @@ public class AvProxyVO {
     }
 
     public AvProxy toModel(DomainContext domainContext) {
+        return toModel(domainContext, AvProxy.needRecordChange);
+    }
+
+    /**
+     * @param recordChange 是否把新建的IP计入序列化的变化计数,参考{@link AvProxy#AvProxy(DomainContext, boolean)}
+     */
+    public AvProxy toModel(DomainContext domainContext, boolean recordChange) {
         AvProxy avProxy;
         if (cloud != null && cloud) {
-            avProxy = new CloudProxy(domainContext);
+            avProxy = new CloudProxy(domainContext, recordChange);
         } else {
-            avProxy = new AvProxy(domainContext);
+            avProxy = new AvProxy(domainContext, recordChange);
         }
         avProxy.setIp(ip);
         avProxy.setPort(port);
@@ -27,6 +27,10 @@ public class CloudProxy extends AvProxy {
         super(domainContext);
     }
 
+    public CloudProxy(DomainContext domainContext, boolean recordChange) {
+        super(domainContext, recordChange);
+    }
+
     private List<CloudProxy> partners;
 
     public List<CloudProxy> getPartners() {
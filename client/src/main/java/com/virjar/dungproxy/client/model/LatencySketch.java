@@ -0,0 +1,91 @@
+package com.virjar.dungproxy.client.model;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个IP的延迟统计,指数分桶的直方图加上一个指数移动平均,每个IP常驻内存,所以只有几十个int<br/>
+ * 第i个桶记录[2^i, 2^(i+1))毫秒的样本,最后一个桶记录所有更大的样本。样本数量达到上限之后所有桶减半,老数据的权重逐渐降低<br/>
+ * 并发记录的时候不加锁,个别样本在衰减的瞬间可能丢失,对于统计结果没有影响
+ */
+public class LatencySketch {
+    private static final int BUCKET_NUMBER = 16;// 最后一个桶从32秒开始
+    private static final int DECAY_THRESHOLD = 1024;
+    private static final double EWMA_ALPHA = 0.2D;
+
+    private final AtomicIntegerArray buckets = new AtomicIntegerArray(BUCKET_NUMBER);
+    private final AtomicLong totalSamples = new AtomicLong(0);
+    private volatile int windowSamples = 0;
+    private volatile double ewma = -1D;
+
+    public void record(long millis) {
+        if (millis < 0) {
+            return;
+        }
+        buckets.incrementAndGet(bucketIndex(millis));
+        totalSamples.incrementAndGet();
+        double last = ewma;
+        ewma = last < 0 ? millis : last + EWMA_ALPHA * (millis - last);
+        if (++windowSamples >= DECAY_THRESHOLD) {
+            decay();
+        }
+    }
+
+    /**
+     * @return 指数移动平均延迟,毫秒,没有样本的时候返回-1
+     */
+    public double getEwma() {
+        return ewma;
+    }
+
+    /**
+     * @return 累计记录的样本数量
+     */
+    public long getTotalSamples() {
+        return totalSamples.get();
+    }
+
+    /**
+     * @param quantile 0-1之间的分位
+     * @return 分位数,毫秒,在所在的桶里面按照样本均匀分布线性插值,没有样本的时候返回-1
+     */
+    public long quantile(double quantile) {
+        int total = 0;
+        int[] snapshot = new int[BUCKET_NUMBER];
+        for (int i = 0; i < BUCKET_NUMBER; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(total * Math.min(1D, Math.max(0D, quantile)));
+        int seen = 0;
+        for (int i = 0; i < BUCKET_NUMBER; i++) {
+            if (seen + snapshot[i] >= rank && snapshot[i] > 0) {
+                // 直接取桶的上界最多会放大将近一倍,比如1025毫秒会变成2048毫秒
+                long lower = i == 0 ? 0 : 1L << i;
+                long upper = 1L << (i + 1);
+                return lower + (long) Math.ceil((upper - lower) * (double) (rank - seen) / snapshot[i]);
+            }
+            seen += snapshot[i];
+        }
+        return 1L << BUCKET_NUMBER;
+    }
+
+    private void decay() {
+        windowSamples = 0;
+        for (int i = 0; i < BUCKET_NUMBER; i++) {
+            int value = buckets.get(i);
+            buckets.addAndGet(i, -(value - value / 2));
+        }
+    }
+
+    private static int bucketIndex(long millis) {
+        if (millis < 2) {
+            return 0;
+        }
+        int index = 63 - Long.numberOfLeadingZeros(millis);
+        return index >= BUCKET_NUMBER ? BUCKET_NUMBER - 1 : index;
+    }
+}
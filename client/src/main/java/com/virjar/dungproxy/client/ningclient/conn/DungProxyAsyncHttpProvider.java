@@ -31,11 +31,22 @@ public class DungProxyAsyncHttpProvider implements AsyncHttpProvider {
     }
 
     public DungProxyAsyncHttpProvider(AsyncHttpProvider asyncHttpProvider, AsyncHttpClientConfig config) {
+        this(asyncHttpProvider, config, null);
+    }
+
+    /**
+     * @param ipPool 为null的时候使用全局的IP池
+     */
+    public DungProxyAsyncHttpProvider(AsyncHttpProvider asyncHttpProvider, AsyncHttpClientConfig config,
+            IpPool ipPool) {
         if (asyncHttpProvider == null) {
             asyncHttpProvider = loadDefaultProvider(DEFAULT_PROVIDER, config);
         }
         this.delegate = asyncHttpProvider;
-        ipPool = IpPoolHolder.getIpPool();// TODO 这里是否需要扩展
+        if (ipPool == null) {
+            ipPool = IpPoolHolder.getIpPool();
+        }
+        this.ipPool = ipPool;
     }
 
     public DungProxyAsyncHttpProvider(AsyncHttpProvider asyncHttpProvider) {
@@ -44,10 +55,16 @@ public class DungProxyAsyncHttpProvider implements AsyncHttpProvider {
 
     @Override
     public <T> ListenableFuture<T> execute(Request request, AsyncHandler<T> handler) {
+        if (request instanceof DungProxyRequest) {// 调用方已经绑定好了IP
+            AvProxy proxy = ((DungProxyRequest) request).getAvProxy();
+            proxy.recordUsage();
+            return delegate.execute(request, new DungProxyHandler<>(proxy, handler));
+        }
         Uri uri = request.getUri();
         if (request.getProxyServer() == null) {// 在这里绑定IP池
             AvProxy proxy = ipPool.bind(uri.getHost(), uri.toUrl());
             if (proxy != null) {
+                proxy.recordUsage();// 没有这一步,后面的recordFailed不会生效
                 return delegate.execute(new DungProxyRequest(request, proxy),
                         new DungProxyHandler<>(proxy, handler));
             }
@@ -1,6 +1,8 @@
 package com.virjar.dungproxy.client.ningclient.conn;
 
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
 
 import com.ning.http.client.AsyncHandler;
 import com.ning.http.client.HttpResponseBodyPart;
@@ -14,6 +16,8 @@ import com.virjar.dungproxy.client.model.AvProxy;
 public class DungProxyHandler<T> implements AsyncHandler<T> {
     private AvProxy avProxy;// 绑定在这次请求的代理实例
     private AsyncHandler<T> delegate;
+    private long startTime = System.nanoTime();
+    private boolean latencyRecorded = false;
 
     public DungProxyHandler(AvProxy avProxy, AsyncHandler<T> delegate) {
         this.avProxy = avProxy;
@@ -22,8 +26,11 @@ public class DungProxyHandler<T> implements AsyncHandler<T> {
 
     @Override
     public void onThrowable(Throwable t) {
-        if (t instanceof IOException) {
+        if (t instanceof IOException || t instanceof TimeoutException) {// ning的请求超时不是IOException
             avProxy.recordFailed();
+        } else if (t instanceof CancellationException && !latencyRecorded) {// 对冲请求中落后的一方被取消,记录延迟的下界
+            latencyRecorded = true;
+            avProxy.recordCancelledLatency((System.nanoTime() - startTime) / 1000000);
         }
         delegate.onThrowable(t);
     }
@@ -35,6 +42,10 @@ public class DungProxyHandler<T> implements AsyncHandler<T> {
 
     @Override
     public STATE onStatusReceived(HttpResponseStatus responseStatus) throws Exception {
+        if (!latencyRecorded) {// ning没有连接建立的回调,只记录从发起请求到收到响应码的耗时。重定向会多次回调,只记第一次
+            latencyRecorded = true;
+            avProxy.recordLatency(-1, (System.nanoTime() - startTime) / 1000000);
+        }
         return delegate.onStatusReceived(responseStatus);
     }
 
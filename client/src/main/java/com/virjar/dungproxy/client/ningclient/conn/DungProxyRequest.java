@@ -173,4 +173,8 @@ public class DungProxyRequest implements Request {
     public String getVirtualHost() {
         return delegate.getVirtualHost();
     }
+
+    public AvProxy getAvProxy() {
+        return avProxy;
+    }
 }
@@ -8,11 +8,22 @@ import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Header;
 
+import com.google.common.base.Charsets;
+
 /**
  * 探测字符集 Created by virjar on 16/9/20.<br/>
- * TODO 用lex重构,用来保证高性能
+ * 响应内容的探测直接在字节上扫描,不做字符串切分
  */
 public class CharsetDetector {
+    // meta标签应该在head里面,不会出现在很靠后的位置
+    public static final int DEFAULT_SCAN_LIMIT = 64 * 1024;
+
+    private static final byte[] META = "meta".getBytes(Charsets.US_ASCII);
+    private static final byte[] HEAD_CLOSE = "/head".getBytes(Charsets.US_ASCII);
+    private static final byte[] CHARSET = "charset".getBytes(Charsets.US_ASCII);
+    private static final byte[] COMMENT_OPEN = "!--".getBytes(Charsets.US_ASCII);
+    private static final byte[] COMMENT_CLOSE = "-->".getBytes(Charsets.US_ASCII);
+
     /**
      * 通过头部解析
      * 
@@ -43,11 +54,25 @@ public class CharsetDetector {
         return null;
     }
 
+    /**
+     * @param contentType Content-Type头的值
+     */
+    public static String detectHeader(String contentType) {
+        return parseContentType(contentType);
+    }
+
     public static String[] substringsBetween(final byte[] str, final byte[] open, final byte[] close) {
+        return substringsBetween(str, str == null ? 0 : str.length, open, close);
+    }
+
+    /**
+     * @param strLen 只在str的前strLen个字节里面查找
+     */
+    public static String[] substringsBetween(final byte[] str, final int strLen, final byte[] open,
+            final byte[] close) {
         if (str == null || open == null || close == null) {
             return null;
         }
-        final int strLen = str.length;
         if (strLen == 0) {
             return ArrayUtils.EMPTY_STRING_ARRAY;
         }
@@ -56,12 +81,12 @@ public class CharsetDetector {
         final List<String> list = new ArrayList<>();
         int pos = 0;
         while (pos < strLen - closeLen) {
-            int start = indexOf(str, 0, str.length, open, 0, open.length, pos);
+            int start = indexOf(str, 0, strLen, open, 0, open.length, pos);
             if (start < 0) {
                 break;
             }
             start += openLen;
-            final int end = indexOf(str, 0, str.length, close, 0, close.length, start);
+            final int end = indexOf(str, 0, strLen, close, 0, close.length, start);
             if (end < 0) {
                 break;
             }
@@ -114,12 +139,154 @@ public class CharsetDetector {
     }
 
     /**
-     * 通过响应内容解析,底层支持,要求高速处理
+     * 通过响应内容解析,底层支持,要求高速处理。只扫描前DEFAULT_SCAN_LIMIT个字节,遇到&lt;/head&gt;停止
      * 
      * @param content
      * @return
      */
     public static String detectHtmlContent(final byte[] content) {
+        return detectHtmlContent(content, content == null ? 0 : content.length);
+    }
+
+    /**
+     * @param length 只解析content的前length个字节,用于流式解码时的嗅探缓冲区
+     */
+    public static String detectHtmlContent(final byte[] content, final int length) {
+        return detectHtmlContent(content, length, DEFAULT_SCAN_LIMIT);
+    }
+
+    /**
+     * 在字节上直接扫描meta标签,一次遍历,除了返回值不分配对象<br/>
+     * 支持 &lt;meta http-equiv="Content-Type" content="text/html; charset=gbk"&gt; 和 &lt;meta charset="utf-8"&gt;
+     * 两种写法,标签名和charset大小写不敏感,引号可有可无。跳过注释,遇到&lt;/head&gt;或者扫描到scanLimit个字节停止
+     *
+     * @param length content中有效字节数
+     * @param scanLimit 最多扫描的字节数
+     * @return meta中声明的字符集名字,没有找到返回null
+     */
+    public static String detectHtmlContent(final byte[] content, final int length, final int scanLimit) {
+        if (content == null) {
+            return null;
+        }
+        final int limit = Math.min(Math.min(length, content.length), scanLimit);
+        int pos = 0;
+        while (pos < limit) {
+            if (content[pos] != '<') {
+                pos++;
+                continue;
+            }
+            if (regionMatches(content, pos + 1, limit, COMMENT_OPEN)) {
+                int end = indexOf(content, 0, limit, COMMENT_CLOSE, 0, COMMENT_CLOSE.length, pos + 4);
+                if (end < 0) {
+                    return null;
+                }
+                pos = end + COMMENT_CLOSE.length;
+                continue;
+            }
+            if (regionMatchesIgnoreCase(content, pos + 1, limit, HEAD_CLOSE)) {
+                return null;
+            }
+            int tagStart = pos + 1 + META.length;
+            if (!regionMatchesIgnoreCase(content, pos + 1, limit, META) || tagStart >= limit
+                    || !(isWhitespace(content[tagStart]) || content[tagStart] == '/')) {
+                pos++;
+                continue;
+            }
+            int tagEnd = tagStart;
+            while (tagEnd < limit && content[tagEnd] != '>') {
+                tagEnd++;
+            }
+            if (tagEnd >= limit) {
+                return null;// 标签没有结束,可能被截断了
+            }
+            String charset = charsetInTag(content, tagStart, tagEnd);
+            if (charset != null) {
+                return charset;
+            }
+            pos = tagEnd + 1;
+        }
+        return null;
+    }
+
+    /**
+     * 在[start,end)范围内找charset=,取出后面的值。值以引号,分号,空白或者标签结束为界
+     */
+    private static String charsetInTag(byte[] content, int start, int end) {
+        int pos = start;
+        while (pos + CHARSET.length <= end) {
+            if (!regionMatchesIgnoreCase(content, pos, end, CHARSET)) {
+                pos++;
+                continue;
+            }
+            pos += CHARSET.length;
+            while (pos < end && isWhitespace(content[pos])) {
+                pos++;
+            }
+            if (pos >= end || content[pos] != '=') {
+                continue;
+            }
+            pos++;
+            while (pos < end && isWhitespace(content[pos])) {
+                pos++;
+            }
+            if (pos < end && (content[pos] == '"' || content[pos] == '\'')) {
+                pos++;
+            }
+            int valueStart = pos;
+            while (pos < end && !isValueTerminator(content[pos])) {
+                pos++;
+            }
+            if (pos > valueStart) {
+                return new String(content, valueStart, pos - valueStart, Charsets.US_ASCII);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isValueTerminator(byte b) {
+        return b == '"' || b == '\'' || b == ';' || b == '/' || b == '>' || isWhitespace(b);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    private static boolean regionMatches(byte[] content, int offset, int limit, byte[] target) {
+        if (offset + target.length > limit) {
+            return false;
+        }
+        for (int i = 0; i < target.length; i++) {
+            if (content[offset + i] != target[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param lowerCaseTarget 只包含小写ascii字母和符号
+     */
+    private static boolean regionMatchesIgnoreCase(byte[] content, int offset, int limit, byte[] lowerCaseTarget) {
+        if (offset + lowerCaseTarget.length > limit) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseTarget.length; i++) {
+            byte b = content[offset + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCaseTarget[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 原来基于字符串切分的实现,会扫描整个响应体,并且为每个meta标签创建字符串。保留用于对比测试,不要在新代码中使用
+     */
+    @Deprecated
+    public static String detectHtmlContentBySubstrings(final byte[] content) {
         String[] metas = substringsBetween(content, "<meta".getBytes(), ">".getBytes());// #4
         if (metas == null) {
             return null;
@@ -0,0 +1,91 @@
+package com.virjar.dungproxy;
+
+import java.nio.charset.Charset;
+
+import com.google.common.base.Charsets;
+import com.virjar.dungproxy.client.util.CharsetDetector;
+
+/**
+ * 用一组页面片段对比字节扫描的实现和原来基于字符串切分的实现<br/>
+ * 原实现能识别的页面,两者给出的字符集必须一致;原实现不能识别的写法单独列出期望值
+ */
+public class CharsetDetectorTest {
+
+    // 两个实现都应该识别,并且结果相同
+    private static final String[] SAME_AS_LEGACY = {
+            "<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=gbk\"></head><body></body></html>",
+            "<html><head><meta http-equiv=\"content-type\" content=\"text/html;charset=UTF-8\" /></head></html>",
+            "<html><head><meta charset=\"utf-8\"><title>x</title></head></html>",
+            "<html><head><meta charset=\"GB2312\" /></head></html>",
+            "<html><head><meta name=\"keywords\" content=\"proxy\"><meta charset=\"big5\"></head></html>",
+            "<head>\n<meta name=\"viewport\" content=\"width=device-width\">\n"
+                    + "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=iso-8859-1\">\n</head>",
+            "<html><head><title>no charset</title></head><body><p>hello</p></body></html>",
+            "",
+            "plain text without any tag",
+            "<html><head><meta http-equiv=\"Content-Type\" content=\"text/html\"></head></html>", };
+
+    // 原实现不能识别或者识别错误的写法: {页面, 期望的字符集(null表示没有)}
+    private static final String[][] IMPROVED = {
+            // 大写标签名
+            { "<HTML><HEAD><META HTTP-EQUIV=\"Content-Type\" CONTENT=\"text/html; charset=gbk\"></HEAD></HTML>",
+                    "gbk" },
+            // 单引号和没有引号
+            { "<html><head><meta charset='utf-8'></head></html>", "utf-8" },
+            { "<html><head><meta charset=utf-8></head></html>", "utf-8" },
+            { "<html><head><meta http-equiv=Content-Type content='text/html; charset=gb18030'></head></html>",
+                    "gb18030" },
+            // 等号两边有空白
+            { "<html><head><meta charset = \"utf-8\"></head></html>", "utf-8" },
+            // 注释掉的meta不生效
+            { "<html><head><!-- <meta charset=\"big5\"> --><meta charset=\"utf-8\"></head></html>", "utf-8" },
+            // head结束之后的meta不生效
+            { "<html><head><title>x</title></head><body><meta charset=\"big5\"></body></html>", null },
+            // 被截断的标签
+            { "<html><head><meta charset=\"utf-8\"", null }, };
+
+    public static void main(String[] args) {
+        int failed = 0;
+        for (String page : SAME_AS_LEGACY) {
+            byte[] bytes = page.getBytes(Charsets.UTF_8);
+            @SuppressWarnings("deprecation")
+            String legacy = CharsetDetector.detectHtmlContentBySubstrings(bytes);
+            String current = CharsetDetector.detectHtmlContent(bytes);
+            if (!sameCharset(legacy, current)) {
+                failed++;
+                System.out.println("mismatch, legacy:" + legacy + " current:" + current + " page:" + page);
+            }
+        }
+        for (String[] testCase : IMPROVED) {
+            String current = CharsetDetector.detectHtmlContent(testCase[0].getBytes(Charsets.UTF_8));
+            if (!sameCharset(testCase[1], current)) {
+                failed++;
+                System.out.println("expected:" + testCase[1] + " current:" + current + " page:" + testCase[0]);
+            }
+        }
+
+        // 扫描上限之后的meta不生效
+        StringBuilder longHead = new StringBuilder("<html><head>");
+        while (longHead.length() < 100) {
+            longHead.append("<!---->");
+        }
+        byte[] bytes = longHead.append("<meta charset=\"utf-8\"></head>").toString().getBytes(Charsets.UTF_8);
+        if (CharsetDetector.detectHtmlContent(bytes, bytes.length, 100) != null
+                || !"utf-8".equals(CharsetDetector.detectHtmlContent(bytes, bytes.length, bytes.length))) {
+            failed++;
+            System.out.println("scan limit not respected");
+        }
+
+        if (failed > 0) {
+            throw new IllegalStateException(failed + " cases failed");
+        }
+        System.out.println("all " + (SAME_AS_LEGACY.length + IMPROVED.length + 1) + " cases passed");
+    }
+
+    private static boolean sameCharset(String expected, String actual) {
+        if (expected == null || actual == null) {
+            return expected == actual;
+        }
+        return Charset.forName(expected.trim()).equals(Charset.forName(actual.trim()));
+    }
+}
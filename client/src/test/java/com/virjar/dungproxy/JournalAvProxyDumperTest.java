@@ -0,0 +1,97 @@
+package com.virjar.dungproxy;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.virjar.dungproxy.client.ippool.DomainPool;
+import com.virjar.dungproxy.client.ippool.config.DomainContext;
+import com.virjar.dungproxy.client.ippool.config.DungProxyContext;
+import com.virjar.dungproxy.client.ippool.strategy.impl.JournalAvProxyDumper;
+import com.virjar.dungproxy.client.model.AvProxy;
+import com.virjar.dungproxy.client.model.AvProxyVO;
+
+/**
+ * 增量序列化器的全量序列化不能用旧的日志覆盖更新的分值:IP失败的时候记录了日志,之后的成功不记录日志,全量序列化之后重新加载必须是最新的分值<br/>
+ * 全量序列化之后发生的变化仍然要写到日志里面
+ */
+public class JournalAvProxyDumperTest {
+    private static final String DOMAIN = "www.example.com";
+
+    public static void main(String[] args) throws Exception {
+        File dumpFile = File.createTempFile("dungproxy-journal", ".json");
+        String dumpFileName = dumpFile.getAbsolutePath();
+        JournalAvProxyDumper dumper = new JournalAvProxyDumper(dumpFileName);
+        DungProxyContext dungProxyContext = DungProxyContext.create().setAvProxyDumper(dumper);
+        DomainContext domainContext = dungProxyContext.genDomainContext(DOMAIN);
+        DomainPool domainPool = new DomainPool(DOMAIN, domainContext);
+
+        AvProxy avProxy = newProxy(domainContext, "10.0.0.1");
+        domainPool.addAvailable(avProxy);
+        for (int i = 0; i < 5; i++) {// 打分
+            avProxy.recordUsage();
+        }
+        avProxy.recordUsage();
+        avProxy.recordFailed();// 失败,记录日志
+        Thread.sleep(200);
+        double failedScore = avProxy.getAvgScore();
+        avProxy.recordUsage();
+        avProxy.recordUsage();// 上一次使用成功,不记录日志
+        double latestScore = avProxy.getAvgScore();
+        check(latestScore != failedScore, "score not changed after success");
+
+        dumper.serializeProxy(poolInfo(domainPool));
+        AvProxyVO reloaded = find(new JournalAvProxyDumper(dumpFileName).unSerializeProxy(), "10.0.0.1");
+        check(reloaded != null, "proxy lost after full dump");
+        check(reloaded.getAvgScore() == latestScore,
+                "stale score after full dump, expect " + latestScore + " but " + reloaded.getAvgScore());
+
+        // 全量序列化之后的变化
+        domainPool.addAvailable(newProxy(domainContext, "10.0.0.2"));
+        Thread.sleep(200);
+        check(find(new JournalAvProxyDumper(dumpFileName).unSerializeProxy(), "10.0.0.2") != null,
+                "proxy added after full dump not journaled");
+
+        dumpFile.delete();
+        new File(dumpFileName + ".journal").delete();
+        System.out.println("ok");
+    }
+
+    private static AvProxy newProxy(DomainContext domainContext, String ip) {
+        AvProxy avProxy = new AvProxy(domainContext);
+        avProxy.setIp(ip);
+        avProxy.setPort(8080);
+        return avProxy;
+    }
+
+    private static Map<String, List<AvProxyVO>> poolInfo(DomainPool domainPool) {
+        List<AvProxyVO> avProxyVOs = Lists.newArrayList();
+        for (AvProxy avProxy : domainPool.availableProxy()) {
+            avProxyVOs.add(AvProxyVO.fromModel(avProxy));
+        }
+        Map<String, List<AvProxyVO>> ret = Maps.newHashMap();
+        ret.put(DOMAIN, avProxyVOs);
+        return ret;
+    }
+
+    private static AvProxyVO find(Map<String, List<AvProxyVO>> data, String ip) {
+        List<AvProxyVO> avProxyVOs = data.get(DOMAIN);
+        if (avProxyVOs == null) {
+            return null;
+        }
+        for (AvProxyVO avProxyVO : avProxyVOs) {
+            if (ip.equals(avProxyVO.getIp())) {
+                return avProxyVO;
+            }
+        }
+        return null;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.virjar.dungproxy;
+
+import java.util.List;
+
+import com.virjar.dungproxy.client.ippool.DomainPool;
+import com.virjar.dungproxy.client.ippool.config.DomainContext;
+import com.virjar.dungproxy.client.ippool.config.DungProxyContext;
+import com.virjar.dungproxy.client.ippool.strategy.impl.ThroughputScoring;
+import com.virjar.dungproxy.client.model.AvProxy;
+
+/**
+ * 考虑延迟的打分策略下,一直成功的低延迟IP要排到一直成功的高延迟IP前面,同步打分和异步打分都要满足
+ */
+public class ThroughputScoringTest {
+    private static final String DOMAIN = "www.example.com";
+
+    public static void main(String[] args) {
+        checkOrder(false);
+        checkOrder(true);
+        System.out.println("ok");
+    }
+
+    private static void checkOrder(boolean asyncScoring) {
+        DungProxyContext dungProxyContext = DungProxyContext.create().setDefaultScoring(ThroughputScoring.class)
+                .setAsyncScoring(asyncScoring);
+        DomainContext domainContext = dungProxyContext.genDomainContext(DOMAIN);
+        DomainPool domainPool = new DomainPool(DOMAIN, domainContext);
+
+        for (int i = 0; i < 20; i++) {
+            AvProxy filler = newProxy(domainContext, "10.0.1." + i);
+            filler.setAvgScore(0.7D);
+            domainPool.addAvailable(filler);
+        }
+        // 慢的IP先加入,如果成功之后不调整位置,慢的IP一直在前面
+        AvProxy slow = newProxy(domainContext, "10.0.0.1");
+        AvProxy fast = newProxy(domainContext, "10.0.0.2");
+        domainPool.addAvailable(slow);
+        domainPool.addAvailable(fast);
+
+        for (int i = 0; i < 10; i++) {
+            use(slow, 3000);
+            use(fast, 50);
+        }
+        if (asyncScoring) {
+            dungProxyContext.getAsyncScoreRecorder().drain();
+        }
+
+        List<AvProxy> ordered = domainPool.availableProxy();
+        int fastIndex = ordered.indexOf(fast);
+        int slowIndex = ordered.indexOf(slow);
+        check(fastIndex >= 0 && slowIndex >= 0, "proxy lost");
+        check(fast.getAvgScore() > slow.getAvgScore(), "fast proxy score " + fast.getAvgScore()
+                + " not greater than slow proxy score " + slow.getAvgScore());
+        check(fastIndex < slowIndex, "asyncScoring:" + asyncScoring + " fast proxy at " + fastIndex
+                + " behind slow proxy at " + slowIndex);
+    }
+
+    /**
+     * 绑定IP,请求成功并记录延迟。下一次绑定的时候上一次使用记为成功
+     */
+    private static void use(AvProxy avProxy, long firstByteMillis) {
+        avProxy.recordUsage();
+        avProxy.recordLatency(0, firstByteMillis);
+    }
+
+    private static AvProxy newProxy(DomainContext domainContext, String ip) {
+        AvProxy avProxy = new AvProxy(domainContext, false);
+        avProxy.setIp(ip);
+        avProxy.setPort(8080);
+        return avProxy;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
@@ -28,6 +28,7 @@ CREATE TABLE `domainmeta` (
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
 
+-- uniqe_ip是唯一索引,已有的库需要执行ddl_version1.2_uniqe_ip.sql去重并修改索引
 CREATE TABLE `proxy` (
   `id` bigint(20) NOT NULL AUTO_INCREMENT COMMENT '主键',
   `ip` char(20) NOT NULL COMMENT 'IP地址',
@@ -60,7 +61,7 @@ CREATE TABLE `proxy` (
   `lostheader` tinyint(1) DEFAULT NULL COMMENT '是否会丢失http头部',
   `post`   tinyint(1) DEFAULT NULL COMMENT '是否支持post',
   PRIMARY KEY (`id`),
-  KEY `uniqe_ip` (`ip`,`port`),
+  UNIQUE KEY `uniqe_ip` (`ip`,`port`),
   KEY `connection_score` (`connection_score`),
   KEY `availbel_score` (`availbel_score`),
   KEY `score` (`availbel_score`,`connection_score`),
@@ -0,0 +1,32 @@
+-- 已有数据库的迁移脚本:proxy表的uniqe_ip(ip,port)从普通索引改为唯一索引
+-- 用ddl_version1.2.sql新建的库已经是唯一索引,不需要执行
+-- 执行之前先停止服务(至少停止收录),同一个ip和port只保留id最小的一条,domainip中的引用改为指向保留的记录
+USE proxyipcenter;
+
+CREATE TEMPORARY TABLE `proxy_keep` (
+  `ip` char(20) NOT NULL COMMENT 'IP地址',
+  `port` int(5) NOT NULL COMMENT '端口号',
+  `keep_id` bigint(20) NOT NULL COMMENT '保留的记录ID',
+  PRIMARY KEY (`ip`,`port`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+-- port为null的记录不受唯一索引约束,不处理
+INSERT INTO `proxy_keep` (`ip`, `port`, `keep_id`)
+SELECT `ip`, `port`, min(`id`) FROM `proxy`
+WHERE `port` IS NOT NULL
+GROUP BY `ip`, `port`
+HAVING count(*) > 1;
+
+UPDATE `domainip` d
+JOIN `proxy` p ON d.`proxy_id` = p.`id`
+JOIN `proxy_keep` k ON p.`ip` = k.`ip` AND p.`port` = k.`port`
+SET d.`proxy_id` = k.`keep_id`
+WHERE p.`id` <> k.`keep_id`;
+
+DELETE p FROM `proxy` p
+JOIN `proxy_keep` k ON p.`ip` = k.`ip` AND p.`port` = k.`port`
+WHERE p.`id` <> k.`keep_id`;
+
+DROP TEMPORARY TABLE `proxy_keep`;
+
+ALTER TABLE `proxy` DROP INDEX `uniqe_ip`, ADD UNIQUE KEY `uniqe_ip` (`ip`,`port`);
@@ -2,6 +2,7 @@ package com.virjar.dungproxy.server.controller;
 
 import java.util.List;
 
+import javax.annotation.Resource;
 import javax.servlet.http.HttpServletRequest;
 
 import org.slf4j.Logger;
@@ -19,6 +20,8 @@ import com.virjar.dungproxy.server.core.utils.ReturnUtil;
 import com.virjar.dungproxy.server.crawler.NewCollector;
 import com.virjar.dungproxy.server.scheduler.CollectorTask;
 import com.virjar.dungproxy.server.scheduler.NonePortResourceTester;
+import com.virjar.dungproxy.server.scheduler.ProxyIngestion;
+import com.virjar.dungproxy.server.scheduler.ProxyScoreBuffer;
 
 /**
  * Created by virjar on 16/9/15.
@@ -28,6 +31,12 @@ import com.virjar.dungproxy.server.scheduler.NonePortResourceTester;
 public class SystemInfoController {
     private final Logger logger = LoggerFactory.getLogger(SystemInfoController.class);
 
+    @Resource
+    private ProxyScoreBuffer proxyScoreBuffer;
+
+    @Resource
+    private ProxyIngestion proxyIngestion;
+
     @RequestMapping(value = "/key", method = RequestMethod.GET)
     @ResponseBody
     public ResponseEntity<ResponseEnvelope<Object>> testkey(HttpServletRequest request) {
@@ -55,4 +64,22 @@ public class SystemInfoController {
         }
         return jsonArray.toJSONString();
     }
+
+    /**
+     * 验证打分批量写回的统计
+     */
+    @RequestMapping(value = "/scoreBuffer", method = RequestMethod.GET)
+    @ResponseBody
+    public String scoreBuffer() {
+        return JSONObject.toJSONString(proxyScoreBuffer.statistics());
+    }
+
+    /**
+     * 按照来源统计的代理入库数量
+     */
+    @RequestMapping(value = "/ingestion", method = RequestMethod.GET)
+    @ResponseBody
+    public String ingestion() {
+        return JSONObject.toJSONString(proxyIngestion.statistics());
+    }
 }
@@ -83,4 +83,66 @@ public class BaseSixtyfour {
         }
         return out;
     }
+
+    /**
+     * 把一个4字节的头和一组int按照大端字节序编码,结果和把它们展开成byte[]之后调用{@link #encode(byte[])}完全一样,省掉中间的byte数组
+     */
+    public static String encode(int head, int[] words) {
+        int length = words.length * 4 + 4;
+        char[] dest = new char[(length + 2) / 3 * 4];
+        int n = 3 * (length / 3);
+        int i, j, indata;
+        for (i = 0, j = 0; i < n; i += 3) {
+            indata = (byteAt(head, words, i) << 16) + (byteAt(head, words, i + 1) << 8) + byteAt(head, words, i + 2);
+            dest[j++] = base64std[(indata >> 18)];
+            dest[j++] = base64std[((indata >> 12) & 0x3F)];
+            dest[j++] = base64std[((indata >> 6) & 0x3F)];
+            dest[j++] = base64std[(indata & 0x3F)];
+        }
+        if (length % 3 == 1) {
+            indata = byteAt(head, words, i);
+            dest[j++] = base64std[indata >> 2];
+            dest[j++] = base64std[(indata << 4) & 0x3f];
+            dest[j++] = '=';
+            dest[j] = '=';
+        } else if (length % 3 == 2) {
+            indata = (byteAt(head, words, i) << 8) + byteAt(head, words, i + 1);
+            dest[j++] = base64std[indata >> 10];
+            dest[j++] = base64std[(indata >> 4) & 0x3f];
+            dest[j++] = base64std[(indata << 2) & 0x3f];
+            dest[j] = '=';
+        }
+        return String.valueOf(dest);
+    }
+
+    private static int byteAt(int head, int[] words, int index) {
+        int word = index < 4 ? head : words[(index >> 2) - 1];
+        return (word >>> (24 - ((index & 3) << 3))) & 0xff;
+    }
+
+    /**
+     * {@link #encode(int, int[])}的逆过程,按照大端字节序把解码结果拼成int,第一个int是头。末尾不足4个字节的部分丢弃
+     */
+    public static int[] decodeWords(String indata) {
+        int length = indata.length();
+        int padding = 0;
+        while (padding < 2 && length - padding > 0 && indata.charAt(length - padding - 1) == '=') {
+            padding++;
+        }
+        int byteLength = length / 4 * 3 - padding;
+        int[] out = new int[byteLength / 4];
+        int word = 0, byteIndex = 0;
+        for (int i = 0; i + 3 < length && byteIndex < out.length * 4; i += 4) {
+            int temp = (base64res[indata.charAt(i)] << 18) + (base64res[indata.charAt(i + 1)] << 12)
+                    + (base64res[indata.charAt(i + 2)] << 6) + (base64res[indata.charAt(i + 3)]);
+            for (int shift = 16; shift >= 0 && byteIndex < out.length * 4; shift -= 8) {
+                word = (word << 8) | ((temp >> shift) & 0xff);
+                if ((++byteIndex & 3) == 0) {
+                    out[(byteIndex >> 2) - 1] = word;
+                    word = 0;
+                }
+            }
+        }
+        return out;
+    }
 }
@@ -0,0 +1,671 @@
+package com.virjar.dungproxy.server.distributer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Resource;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Striped;
+import com.virjar.dungproxy.server.core.beanmapper.BeanMapper;
+import com.virjar.dungproxy.server.entity.DomainIp;
+import com.virjar.dungproxy.server.entity.Proxy;
+import com.virjar.dungproxy.server.model.ProxyModel;
+import com.virjar.dungproxy.server.repository.DomainIpRepository;
+import com.virjar.dungproxy.server.repository.ProxyRepository;
+import com.virjar.dungproxy.server.utils.NameThreadFactory;
+import com.virjar.dungproxy.server.utils.SysConfig;
+
+/**
+ * 分发接口使用的内存索引,/av请求不再访问数据库<br/>
+ * 只保存可用打分大于0的IP,按照可用打分、打分时间排序,同时按照国家、地区、ISP建立二级索引;域名IP池按照域名索引<br/>
+ * 验证器等写路径在写完数据库之后同步更新索引,另外定时从数据库全量重建一次,修正多实例部署或者直接改库带来的偏差。首次加载完成之前,分发逻辑仍然走数据库
+ */
+@Component
+public class DistributeIndex implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(DistributeIndex.class);
+    private static final String ENABLE = "distribute.index.enable";
+    private static final String RELOAD_DURATION = "distribute.index.reloadDuration";
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    private static final Comparator<Entry> RANK = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            if (o1.score != o2.score) {
+                return o1.score > o2.score ? -1 : 1;
+            }
+            if (o1.scoreDate != o2.scoreDate) {
+                return o1.scoreDate > o2.scoreDate ? -1 : 1;
+            }
+            return o1.id < o2.id ? -1 : (o1.id == o2.id ? 0 : 1);
+        }
+    };
+
+    @Resource
+    private ProxyRepository proxyRepository;
+
+    @Resource
+    private DomainIpRepository domainIpRepository;
+
+    @Resource
+    private BeanMapper beanMapper;
+
+    // 同一个IP的更新串行执行,保证排序集合里面的旧节点能被正确删除
+    private final Striped<Lock> locks = Striped.lock(64);
+
+    private volatile Snapshot current = new Snapshot();
+    // 全量重建过程中的新索引,重建期间的写入同时落到两份索引上
+    private volatile Snapshot building;
+    private volatile boolean ready = false;
+
+    private ScheduledExecutorService reloadExecutor;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!"true".equalsIgnoreCase(StringUtils.defaultString(SysConfig.getInstance().get(ENABLE), "true"))) {
+            logger.info("distribute index is not enable");
+            return;
+        }
+        long duration = NumberUtils.toLong(SysConfig.getInstance().get(RELOAD_DURATION), 1800000L);
+        reloadExecutor = Executors.newSingleThreadScheduledExecutor(new NameThreadFactory("distribute-index"));
+        reloadExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reload();
+                } catch (Exception e) {
+                    logger.error("reload distribute index failed", e);
+                }
+            }
+        }, 0, duration, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (reloadExecutor != null) {
+            reloadExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 从数据库全量重建索引
+     */
+    public void reload() {
+        long start = System.currentTimeMillis();
+        Snapshot snapshot = new Snapshot();
+        building = snapshot;
+        try {
+            long lastId = 0;
+            List<Proxy> proxies;
+            do {
+                proxies = proxyRepository.selectDistributable(lastId, LOAD_BATCH_SIZE);
+                for (Proxy proxy : proxies) {
+                    Lock lock = locks.get(proxy.getId());
+                    lock.lock();
+                    try {
+                        putProxy(snapshot, beanMapper.map(proxy, ProxyModel.class));
+                    } finally {
+                        lock.unlock();
+                    }
+                    lastId = proxy.getId();
+                }
+            } while (proxies.size() == LOAD_BATCH_SIZE);
+
+            lastId = 0;
+            List<DomainIp> domainIps;
+            do {
+                domainIps = domainIpRepository.selectAvailableAfter(lastId, LOAD_BATCH_SIZE);
+                for (DomainIp domainIp : domainIps) {
+                    putDomainIp(snapshot, domainIp);
+                    lastId = domainIp.getId();
+                }
+            } while (domainIps.size() == LOAD_BATCH_SIZE);
+            current = snapshot;
+            ready = true;
+        } finally {
+            building = null;
+        }
+        logger.info("distribute index reloaded, proxy:{} domainIp:{} cost:{}ms", snapshot.proxies.size(),
+                snapshot.domainIps.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 使用给定的数据重建索引,不访问数据库
+     */
+    public void rebuild(Collection<ProxyModel> proxies, Collection<DomainIp> domainIps) {
+        Snapshot snapshot = new Snapshot();
+        for (ProxyModel proxyModel : proxies) {
+            putProxy(snapshot, proxyModel);
+        }
+        for (DomainIp domainIp : domainIps) {
+            putDomainIp(snapshot, domainIp);
+        }
+        current = snapshot;
+        ready = true;
+    }
+
+    /**
+     * 代理数据写入数据库之后调用,update可以只包含部分字段(updateByPrimaryKeySelective的语义),null字段保持原值
+     */
+    public void onProxyUpdated(ProxyModel update) {
+        if (update == null || update.getId() == null) {
+            return;
+        }
+        ProxyModel full = null;
+        Entry entry = current.proxies.get(update.getId());
+        if (entry == null && update.getIp() == null) {
+            // 索引里面没有,并且不是完整数据,可能是从不可用变成了可用
+            if (update.getAvailbelScore() == null || update.getAvailbelScore() <= 0 || proxyRepository == null) {
+                return;
+            }
+            Proxy proxy = proxyRepository.selectByPrimaryKey(update.getId());
+            if (proxy == null) {
+                return;
+            }
+            full = beanMapper.map(proxy, ProxyModel.class);
+        }
+        Lock lock = locks.get(update.getId());
+        lock.lock();
+        try {
+            apply(current, update, full);
+            Snapshot snapshot = building;
+            if (snapshot != null) {
+                apply(snapshot, update, full);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onProxyUpdated(Proxy update) {
+        onProxyUpdated(beanMapper.map(update, ProxyModel.class));
+    }
+
+    public void onProxyDeleted(Long id) {
+        if (id == null) {
+            return;
+        }
+        Lock lock = locks.get(id);
+        lock.lock();
+        try {
+            removeProxy(current, id);
+            Snapshot snapshot = building;
+            if (snapshot != null) {
+                removeProxy(snapshot, id);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onProxiesDeleted(List<Long> ids) {
+        for (Long id : ids) {
+            onProxyDeleted(id);
+        }
+    }
+
+    /**
+     * 域名IP写入数据库之后调用。没有id的记录(刚插入)按照domain+proxyId索引,只有id的记录(部分更新)通过已有索引或者数据库补全domain
+     */
+    public void onDomainIpUpdated(DomainIp domainIp) {
+        if (domainIp == null) {
+            return;
+        }
+        if (domainIp.getDomainScore() == null) {
+            return;// 没有修改打分,不影响分发
+        }
+        if (domainIp.getDomain() == null || domainIp.getProxyId() == null) {
+            if (domainIp.getId() == null) {
+                return;
+            }
+            DomainEntry exist = current.domainIps.get(domainIp.getId());
+            DomainIp complete = new DomainIp();
+            if (exist != null) {
+                complete.setDomain(exist.domain);
+                complete.setProxyId(exist.proxyId);
+            } else {
+                if (domainIp.getDomainScore() <= 0 || domainIpRepository == null) {
+                    return;
+                }
+                DomainIp origin = domainIpRepository.selectByPrimaryKey(domainIp.getId());
+                if (origin == null) {
+                    return;
+                }
+                complete.setDomain(origin.getDomain());
+                complete.setProxyId(origin.getProxyId());
+            }
+            complete.setId(domainIp.getId());
+            complete.setDomainScore(domainIp.getDomainScore());
+            domainIp = complete;
+        }
+        putDomainIp(current, domainIp);
+        Snapshot snapshot = building;
+        if (snapshot != null) {
+            putDomainIp(snapshot, domainIp);
+        }
+    }
+
+    public void onDomainIpDeleted(Long id) {
+        if (id == null) {
+            return;
+        }
+        removeDomainIp(current, id);
+        Snapshot snapshot = building;
+        if (snapshot != null) {
+            removeDomainIp(snapshot, id);
+        }
+    }
+
+    public void onDomainIpsDeleted(List<Long> ids) {
+        for (Long id : ids) {
+            onDomainIpDeleted(id);
+        }
+    }
+
+    public void onDomainDeleted(String domain) {
+        removeDomain(current, domain);
+        Snapshot snapshot = building;
+        if (snapshot != null) {
+            removeDomain(snapshot, domain);
+        }
+    }
+
+    /**
+     * 对应 domainIpRepository.selectAvailable + domainIpService.convert,和数据库查询一样不排序,取够limit个就返回
+     *
+     * @param usedSign 客户端已经分配过的IP,可以为null
+     */
+    public List<ProxyModel> findDomainAvailable(String domain, DistributedSign usedSign, int limit) {
+        List<ProxyModel> ret = Lists.newArrayList();
+        if (domain == null) {
+            return ret;
+        }
+        Snapshot snapshot = current;
+        ConcurrentMap<Long, DomainEntry> domainProxies = snapshot.domains.get(domain);
+        if (domainProxies == null) {
+            return ret;
+        }
+        for (DomainEntry domainEntry : domainProxies.values()) {
+            Entry entry = snapshot.proxies.get(domainEntry.proxyId);
+            if (entry == null || (usedSign != null && usedSign.containsPositions(entry.signPositions))) {
+                continue;
+            }
+            ret.add(entry.model);
+            if (ret.size() >= limit) {
+                break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 对应 proxyRepository.find4Distribute,按照可用打分和打分时间倒序
+     *
+     * @param condition 查询条件,speed为最大速度,transperent为可以接受的最大透明度(小于0表示不限制)
+     * @param usedSign 客户端已经分配过的IP,可以为null
+     * @param exclude 已经选中的IP
+     */
+    public List<ProxyModel> find4Distribute(Proxy condition, DistributedSign usedSign, Set<ProxyModel> exclude,
+            int limit) {
+        List<ProxyModel> ret = Lists.newArrayList();
+        if (limit <= 0) {
+            return ret;
+        }
+        Snapshot snapshot = current;
+        // 地区比国家更细,优先使用地区的索引,剩下的条件在遍历的时候过滤
+        Set<Entry> candidates = snapshot.ranked;
+        if (condition.getArea() != null) {
+            candidates = snapshot.attributeSet("area:" + condition.getArea());
+        } else if (condition.getIsp() != null) {
+            candidates = snapshot.attributeSet("isp:" + condition.getIsp());
+        } else if (condition.getCountry() != null) {
+            candidates = snapshot.attributeSet("country:" + condition.getCountry());
+        }
+        for (Entry entry : candidates) {
+            if (!entry.match(condition)) {
+                continue;
+            }
+            if (exclude.contains(entry.model)
+                    || (usedSign != null && usedSign.containsPositions(entry.signPositions))) {
+                continue;
+            }
+            ret.add(entry.model);
+            if (ret.size() >= limit) {
+                break;
+            }
+        }
+        return ret;
+    }
+
+    public int proxySize() {
+        return current.proxies.size();
+    }
+
+    private void apply(Snapshot snapshot, ProxyModel update, ProxyModel full) {
+        Entry old = snapshot.proxies.get(update.getId());
+        ProxyModel merged;
+        if (old != null) {
+            merged = copy(old.model);
+            mergeSelective(merged, update);
+        } else if (full != null) {
+            merged = copy(full);
+            mergeSelective(merged, update);
+        } else if (update.getIp() != null) {
+            merged = copy(update);
+        } else {
+            return;
+        }
+        putProxy(snapshot, merged);
+    }
+
+    private void putProxy(Snapshot snapshot, ProxyModel proxyModel) {
+        Entry old = snapshot.proxies.get(proxyModel.getId());
+        if (old != null) {
+            snapshot.unlink(old);
+        }
+        if (proxyModel.getAvailbelScore() == null || proxyModel.getAvailbelScore() <= 0) {
+            snapshot.proxies.remove(proxyModel.getId());
+            return;
+        }
+        Entry entry = new Entry(proxyModel);
+        snapshot.proxies.put(entry.id, entry);
+        snapshot.link(entry);
+    }
+
+    private void removeProxy(Snapshot snapshot, Long id) {
+        Entry old = snapshot.proxies.remove(id);
+        if (old != null) {
+            snapshot.unlink(old);
+        }
+    }
+
+    private void putDomainIp(Snapshot snapshot, DomainIp domainIp) {
+        if (domainIp.getDomain() == null || domainIp.getProxyId() == null || domainIp.getDomainScore() == null) {
+            return;
+        }
+        DomainEntry domainEntry = new DomainEntry(domainIp.getId(), domainIp.getDomain(), domainIp.getProxyId(),
+                domainIp.getDomainScore());
+        ConcurrentMap<Long, DomainEntry> domainProxies = snapshot.domains.get(domainEntry.domain);
+        if (domainProxies == null) {
+            ConcurrentMap<Long, DomainEntry> newMap = Maps.newConcurrentMap();
+            domainProxies = snapshot.domains.putIfAbsent(domainEntry.domain, newMap);
+            if (domainProxies == null) {
+                domainProxies = newMap;
+            }
+        }
+        if (domainEntry.score > 0) {
+            domainProxies.put(domainEntry.proxyId, domainEntry);
+            if (domainEntry.id != null) {
+                snapshot.domainIps.put(domainEntry.id, domainEntry);
+            }
+        } else {
+            domainProxies.remove(domainEntry.proxyId);
+            if (domainEntry.id != null) {
+                snapshot.domainIps.remove(domainEntry.id);
+            }
+        }
+    }
+
+    private void removeDomainIp(Snapshot snapshot, Long id) {
+        DomainEntry domainEntry = snapshot.domainIps.remove(id);
+        if (domainEntry == null) {
+            return;
+        }
+        ConcurrentMap<Long, DomainEntry> domainProxies = snapshot.domains.get(domainEntry.domain);
+        if (domainProxies != null) {
+            domainProxies.remove(domainEntry.proxyId);
+        }
+    }
+
+    private void removeDomain(Snapshot snapshot, String domain) {
+        ConcurrentMap<Long, DomainEntry> domainProxies = snapshot.domains.remove(domain);
+        if (domainProxies == null) {
+            return;
+        }
+        for (DomainEntry domainEntry : domainProxies.values()) {
+            if (domainEntry.id != null) {
+                snapshot.domainIps.remove(domainEntry.id);
+            }
+        }
+    }
+
+    private ProxyModel copy(ProxyModel proxyModel) {
+        ProxyModel ret = new ProxyModel();
+        mergeSelective(ret, proxyModel);
+        return ret;
+    }
+
+    /**
+     * 把update里面非null的字段覆盖到target
+     */
+    private static void mergeSelective(ProxyModel target, ProxyModel update) {
+        if (update.getId() != null) {
+            target.setId(update.getId());
+        }
+        if (update.getIp() != null) {
+            target.setIp(update.getIp());
+        }
+        if (update.getProxyIp() != null) {
+            target.setProxyIp(update.getProxyIp());
+        }
+        if (update.getPort() != null) {
+            target.setPort(update.getPort());
+        }
+        if (update.getIpValue() != null) {
+            target.setIpValue(update.getIpValue());
+        }
+        if (update.getCountry() != null) {
+            target.setCountry(update.getCountry());
+        }
+        if (update.getArea() != null) {
+            target.setArea(update.getArea());
+        }
+        if (update.getRegion() != null) {
+            target.setRegion(update.getRegion());
+        }
+        if (update.getCity() != null) {
+            target.setCity(update.getCity());
+        }
+        if (update.getIsp() != null) {
+            target.setIsp(update.getIsp());
+        }
+        if (update.getCountryId() != null) {
+            target.setCountryId(update.getCountryId());
+        }
+        if (update.getAreaId() != null) {
+            target.setAreaId(update.getAreaId());
+        }
+        if (update.getRegionId() != null) {
+            target.setRegionId(update.getRegionId());
+        }
+        if (update.getCityId() != null) {
+            target.setCityId(update.getCityId());
+        }
+        if (update.getIspId() != null) {
+            target.setIspId(update.getIspId());
+        }
+        if (update.getAddressId() != null) {
+            target.setAddressId(update.getAddressId());
+        }
+        if (update.getTransperent() != null) {
+            target.setTransperent(update.getTransperent());
+        }
+        if (update.getSpeed() != null) {
+            target.setSpeed(update.getSpeed());
+        }
+        if (update.getType() != null) {
+            target.setType(update.getType());
+        }
+        if (update.getConnectionScore() != null) {
+            target.setConnectionScore(update.getConnectionScore());
+        }
+        if (update.getAvailbelScore() != null) {
+            target.setAvailbelScore(update.getAvailbelScore());
+        }
+        if (update.getConnectionScoreDate() != null) {
+            target.setConnectionScoreDate(update.getConnectionScoreDate());
+        }
+        if (update.getAvailbelScoreDate() != null) {
+            target.setAvailbelScoreDate(update.getAvailbelScoreDate());
+        }
+        if (update.getCreatetime() != null) {
+            target.setCreatetime(update.getCreatetime());
+        }
+        if (update.getSupportGfw() != null) {
+            target.setSupportGfw(update.getSupportGfw());
+        }
+        if (update.getGfwSpeed() != null) {
+            target.setGfwSpeed(update.getGfwSpeed());
+        }
+        if (update.getSource() != null) {
+            target.setSource(update.getSource());
+        }
+        if (update.getCrawlerKey() != null) {
+            target.setCrawlerKey(update.getCrawlerKey());
+        }
+        if (update.getLostheader() != null) {
+            target.setLostheader(update.getLostheader());
+        }
+    }
+
+    /**
+     * 一份完整的索引,全量重建的时候整体替换
+     */
+    private static class Snapshot {
+        private final ConcurrentMap<Long, Entry> proxies = Maps.newConcurrentMap();
+        private final ConcurrentSkipListSet<Entry> ranked = new ConcurrentSkipListSet<Entry>(RANK);
+        // country:xx area:xx isp:xx -> 按照打分排序的IP
+        private final ConcurrentMap<String, ConcurrentSkipListSet<Entry>> attributes = Maps.newConcurrentMap();
+        // domain -> proxyId -> 域名打分
+        private final ConcurrentMap<String, ConcurrentMap<Long, DomainEntry>> domains = Maps.newConcurrentMap();
+        // domainIp的id -> 域名打分,用于只带id的部分更新和删除
+        private final ConcurrentMap<Long, DomainEntry> domainIps = Maps.newConcurrentMap();
+
+        Set<Entry> attributeSet(String key) {
+            Set<Entry> entries = attributes.get(key);
+            return entries == null ? Collections.<Entry> emptySet() : entries;
+        }
+
+        void link(Entry entry) {
+            ranked.add(entry);
+            for (String key : entry.attributeKeys()) {
+                ConcurrentSkipListSet<Entry> entries = attributes.get(key);
+                if (entries == null) {
+                    ConcurrentSkipListSet<Entry> newSet = new ConcurrentSkipListSet<Entry>(RANK);
+                    entries = attributes.putIfAbsent(key, newSet);
+                    if (entries == null) {
+                        entries = newSet;
+                    }
+                }
+                entries.add(entry);
+            }
+        }
+
+        void unlink(Entry entry) {
+            ranked.remove(entry);
+            for (String key : entry.attributeKeys()) {
+                ConcurrentSkipListSet<Entry> entries = attributes.get(key);
+                if (entries != null) {
+                    entries.remove(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * 索引中的IP,排序字段不可变,更新的时候整体替换
+     */
+    private static class Entry {
+        private final long id;
+        private final long score;
+        private final long scoreDate;
+        private final ProxyModel model;
+        // 在签名里面的位置只和ip端口有关,建索引的时候算好,分发的时候不用再hash
+        private final int[] signPositions;
+
+        Entry(ProxyModel model) {
+            this.model = model;
+            this.signPositions = DistributedSign.positions(model.getIp(), model.getPort());
+            this.id = model.getId();
+            this.score = model.getAvailbelScore();
+            this.scoreDate = model.getAvailbelScoreDate() == null ? 0 : model.getAvailbelScoreDate().getTime();
+        }
+
+        List<String> attributeKeys() {
+            List<String> keys = Lists.newArrayListWithCapacity(3);
+            if (model.getCountry() != null) {
+                keys.add("country:" + model.getCountry());
+            }
+            if (model.getArea() != null) {
+                keys.add("area:" + model.getArea());
+            }
+            if (model.getIsp() != null) {
+                keys.add("isp:" + model.getIsp());
+            }
+            return keys;
+        }
+
+        boolean match(Proxy condition) {
+            if (model.getSpeed() == null
+                    || (condition.getSpeed() != null && model.getSpeed() >= condition.getSpeed())) {
+                return false;
+            }
+            if (condition.getCountry() != null && !condition.getCountry().equals(model.getCountry())) {
+                return false;
+            }
+            if (condition.getArea() != null && !condition.getArea().equals(model.getArea())) {
+                return false;
+            }
+            if (condition.getIsp() != null && !condition.getIsp().equals(model.getIsp())) {
+                return false;
+            }
+            if (condition.getSupportGfw() != null && !condition.getSupportGfw().equals(model.getSupportGfw())) {
+                return false;
+            }
+            if (condition.getLostheader() != null && !condition.getLostheader().equals(model.getLostheader())) {
+                return false;
+            }
+            if (condition.getTransperent() != null && condition.getTransperent() >= 0
+                    && (model.getTransperent() == null || model.getTransperent() > condition.getTransperent())) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static class DomainEntry {
+        private final Long id;
+        private final String domain;
+        private final long proxyId;
+        private final long score;
+
+        DomainEntry(Long id, String domain, long proxyId, long score) {
+            this.id = id;
+            this.domain = domain;
+            this.proxyId = proxyId;
+            this.score = score;
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.virjar.dungproxy.server.distributer;
 
-import java.util.Date;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -20,7 +19,6 @@ import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
-import com.virjar.dungproxy.client.model.AvProxy;
 import com.virjar.dungproxy.client.util.CommonUtil;
 import com.virjar.dungproxy.server.core.beanmapper.BeanMapper;
 import com.virjar.dungproxy.server.entity.DomainIp;
@@ -56,6 +54,12 @@ public class DistributeService {
     @Resource
     private BeanMapper beanMapper;
 
+    @Resource
+    private DistributeIndex distributeIndex;
+
+    @Resource
+    private FeedBackAggregator feedBackAggregator;
+
     private static final Logger logger = LoggerFactory.getLogger(DistributeService.class);
 
     private Cache<String, String> signCache = CacheBuilder.newBuilder()
@@ -86,44 +90,15 @@ public class DistributeService {
     }
 
     public Boolean feedBack(FeedBackForm feedBackForm) {
-        List<AvProxy> avProxys = feedBackForm.getAvProxy();
-        for (AvProxy avProxy : avProxys) {
-            if (avProxy.getReferCount() == 0) {
-                continue;// 这个时候不计入可用IP
-            }
-            DomainIpModel domainIpModel = domainIpService.get(feedBackForm.getDomain(), avProxy.getIp(),
-                    avProxy.getPort());
-            if (domainIpModel == null) {
-                continue;
-                /*
-                 * domainIpModel = new DomainIpModel(); domainIpModel.setCreatetime(new Date());
-                 * domainIpModel.setIp(avProxy.getIp()); domainIpModel.setPort(avProxy.getPort());
-                 * domainIpModel.setProxyId(0L);//TODO domainIpModel.setTestUrl();
-                 */
-            }
-            domainIpModel.setDomainScore(domainIpModel.getDomainScore() + 1);
-            domainIpModel.setDomainScoreDate(new Date());
-            domainIpService.updateByPrimaryKeySelective(domainIpModel);
-        }
-        for (AvProxy avProxy : feedBackForm.getDisableProxy()) {
-            DomainIpModel domainIpModel = domainIpService.get(feedBackForm.getDomain(), avProxy.getIp(),
-                    avProxy.getPort());
-            if (domainIpModel == null) {
-                continue;
-            }
-            if (domainIpModel.getDomainScore() > -1) {//
-                domainIpModel.setDomainScore(-1L);
-            } else {
-                domainIpModel.setDomainScore(domainIpModel.getDomainScore() - 1);
-            }
-            domainIpModel.setDomainScoreDate(new Date());
-            domainIpService.updateByPrimaryKeySelective(domainIpModel);
-        }
+        feedBackAggregator.feedBack(feedBackForm);
         return true;
     }
 
     public List<ProxyModel> distribute(RequestForm requestForm) {
         trimRequestForm(requestForm);
+        if (distributeIndex.isReady()) {
+            return distributeFromIndex(requestForm);
+        }
 
         List<ProxyModel> ret;
         // 第一步,查询domain库
@@ -156,6 +131,41 @@ public class DistributeService {
         return ret;
     }
 
+    /**
+     * 和distribute的步骤相同,数据来自内存索引。已经分配过的IP在遍历索引的时候直接跳过
+     */
+    private List<ProxyModel> distributeFromIndex(RequestForm requestForm) {
+        DistributedSign usedSign = parseUsedSign(requestForm.getUsedSign());
+        boolean strict = "strict".equals(requestForm.getDistributeStrategy());
+        // 第一步,域名IP池。soft模式下多于num个就直接返回,所以只需要取num+1个
+        List<ProxyModel> ret = distributeIndex.findDomainAvailable(resolveDomain(requestForm), usedSign,
+                strict ? 1500 : requestForm.getNum() + 1);
+        if (ret.size() > requestForm.getNum()) {
+            return ret.subList(0, requestForm.getNum());
+        }
+
+        // 第三步,根据查询参数查询
+        Set<ProxyModel> selected = Sets.newLinkedHashSet(ret);
+        selected.addAll(distributeIndex.find4Distribute(genCondition(requestForm), usedSign, selected,
+                (strict ? 1500 : requestForm.getNum()) - ret.size()));
+        ret = Lists.newArrayList(selected);
+        if (ret.size() < requestForm.getNum() || strict) {
+            return ret;
+        }
+        return ret.subList(0, requestForm.getNum());
+    }
+
+    private DistributedSign parseUsedSign(String usedSign) {
+        if (StringUtils.isEmpty(usedSign)) {
+            return null;
+        }
+        try {
+            return DistributedSign.unSign(usedSign);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     private List<ProxyModel> merge(List<ProxyModel> list1, List<ProxyModel> list2) {
         Set<ProxyModel> set = Sets.newHashSet(list1);
         set.addAll(list2);
@@ -163,6 +173,17 @@ public class DistributeService {
     }
 
     private List<DomainIp> get4DomainTested(RequestForm requestForm) {
+        String domain = resolveDomain(requestForm);
+        if (domain == null) {
+            return Lists.newArrayList();
+        }
+        return domainIpRepository.selectAvailable(domain, new PageRequest(0, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return 请求的目标域名,没有的时候返回null
+     */
+    private String resolveDomain(RequestForm requestForm) {
         String checkUrl = requestForm.getCheckUrl();
 
         String domain = CommonUtil.extractDomain(checkUrl);
@@ -170,13 +191,12 @@ public class DistributeService {
             domain = requestForm.getDomain();
         }
         if (StringUtils.isEmpty(domain)) {
-            return Lists.newArrayList();
+            return null;
         }
-        List<DomainIp> domainIps = domainIpRepository.selectAvailable(domain, new PageRequest(0, Integer.MAX_VALUE));
         if (StringUtils.isNotEmpty(checkUrl)) {// 当前url正在使用,属于活跃域名,所以发送到检查模块,没有毛病
             DomainTestTask.sendDomainTask(checkUrl);
         }
-        return domainIps;
+        return domain;
     }
 
     private List<ProxyModel> filterUsed(String usedSign, List<ProxyModel> dbProxy) {
@@ -1,5 +1,6 @@
 package com.virjar.dungproxy.server.distributer;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -7,9 +8,13 @@ import org.apache.commons.lang3.StringUtils;
 
 import com.virjar.dungproxy.server.entity.Proxy;
 import com.virjar.dungproxy.server.model.ProxyModel;
+import com.virjar.dungproxy.server.utils.SysConfig;
 
 /**
- * 标示已经被分配过的IP,使用bloomFilter的思想,传递一个签名 Created by virjar on 16/8/31. 该容器
+ * 标示已经被分配过的IP,使用bloomFilter的思想,传递一个签名 Created by virjar on 16/8/31. 该容器<br/>
+ * hash权重表只和种子有关,所有实例共享一份。5个hash函数在一次遍历中同时计算,ip和端口直接参与hash,不需要拼接"ip:port"字符串,
+ * 计算结果和拼接之后逐个函数hash完全一致,所以签名格式不变<br/>
+ * 打开distribute.sign.compact之后,稀疏的签名使用"~"开头的紧凑格式(置位之间的间隔用varint记录),只有更短的时候才使用
  */
 public class DistributedSign {
     // 每个签名容器最多存500个IP使用信息,如果超过,服务器将会强制重置
@@ -19,76 +24,184 @@ public class DistributedSign {
     // 随机种子,我们这里只是使用一个种子产生数字序列,用来散列数据,所以这个数值作为客户端服务器协议的一部分,共同约定即可,无特殊含义
     private static final int seed = 516;
     final public static int NUMBER_OF_WEIGHTS = 2083; // CHANGED FROM 16
-    /** The underlying bit vectorS. */
-    private int[] bits;
-    /** The random integers used to generate the hash functions. */
-    private int[][] weight;
-
-    private long totalBits;
 
     /** The natural logarithm of 2, used in the computation of the number of bits. */
     private final static double NATURAL_LOG_OF_2 = Math.log(2);
 
-    private int size = 0;
+    private static final int len = (int) Math.ceil(((long) maxNumber * (long) hashFunction / NATURAL_LOG_OF_2) / 32);
+    private static final long totalBits = len * 32L;
 
-    public DistributedSign() {
-        int len = (int) Math.ceil(((long) maxNumber * (long) hashFunction / NATURAL_LOG_OF_2) / 32);
-        this.totalBits = len * 32L;
-        bits = new int[len];
+    /**
+     * The random integers used to generate the hash functions. 按照字符位置交错存放,weight[i * hashFunction + k]是第k个函数在第i个字符上的权重
+     */
+    private static final int[] weight;
+
+    static {
         Random random = new Random(seed);
-        weight = new int[hashFunction][];
+        weight = new int[hashFunction * NUMBER_OF_WEIGHTS];
         for (int i = 0; i < hashFunction; i++) {
-            weight[i] = new int[NUMBER_OF_WEIGHTS];
-            for (int j = 0; j < NUMBER_OF_WEIGHTS; j++)
-                weight[i][j] = random.nextInt();
+            for (int j = 0; j < NUMBER_OF_WEIGHTS; j++) {
+                weight[j * hashFunction + i] = random.nextInt();
+            }
         }
     }
 
+    private static final char COMPACT_PREFIX = '~';
+    private static final String COMPACT_CONFIG = "distribute.sign.compact";
+    private static volatile boolean compactEncoding = "true"
+            .equalsIgnoreCase(SysConfig.getInstance().get(COMPACT_CONFIG));
+
+    /** The underlying bit vectorS. */
+    private int[] bits;
+
+    private int size = 0;
+
+    public DistributedSign() {
+        bits = new int[len];
+    }
+
+    public static void setCompactEncoding(boolean compactEncoding) {
+        DistributedSign.compactEncoding = compactEncoding;
+    }
+
     public static DistributedSign unSign(String sign) {
-        byte[] decode = BaseSixtyfour.decode(sign);
+        if (sign.length() > 0 && sign.charAt(0) == COMPACT_PREFIX) {
+            return unSignCompact(sign);
+        }
+        int[] decode = BaseSixtyfour.decodeWords(sign);
+        if (decode.length == 0) {
+            throw new IllegalArgumentException("sign too short");
+        }
         DistributedSign distributedSign = new DistributedSign();
+        distributedSign.size = decode[0];
+        // 比约定长度短的签名,缺失的部分按照没有置位处理
+        System.arraycopy(decode, 1, distributedSign.bits, 0, Math.min(len, decode.length - 1));
+        return distributedSign;
+    }
 
-        distributedSign.size = (((int) decode[0]) << 24) | ((int) decode[1]) << 18 | ((int) decode[2]) << 8
-                | (int) decode[3];
-        int n = decode.length / 4 - 1;
-        int[] bits = new int[n];
-        for (int i = 0; i < n; i++) {
-            bits[i] = ((int) decode[i * 4 + 4]) << 24 | ((int) decode[i * 4 + 5]) << 16 | ((int) decode[i * 4 + 6]) << 8
-                    | decode[i * 4 + 7];
+    private static DistributedSign unSignCompact(String sign) {
+        byte[] decode = BaseSixtyfour.decode(sign.substring(1));
+        DistributedSign distributedSign = new DistributedSign();
+        distributedSign.size = (decode[0] & 0xff) << 24 | (decode[1] & 0xff) << 16 | (decode[2] & 0xff) << 8
+                | (decode[3] & 0xff);
+        int position = -1;
+        int index = 4;
+        while (index < decode.length) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = decode[index++];
+                gap |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            position += gap + 1;
+            distributedSign.setBit(position);
         }
-        distributedSign.bits = bits;
         return distributedSign;
     }
 
     public String sign() {
-        byte[] data = new byte[bits.length * 4 + 4];
+        if (compactEncoding) {
+            String compact = signCompact();
+            if (compact != null) {
+                return compact;
+            }
+        }
+        return BaseSixtyfour.encode(size, bits);
+    }
+
+    /**
+     * @return 紧凑格式的签名,比普通格式更长的时候返回null
+     */
+    private String signCompact() {
+        int setBits = 0;
+        for (int word : bits) {
+            setBits += Integer.bitCount(word);
+        }
+        // totalBits小于2^21,每个间隔最多3个字节
+        int maxLength = 4 + setBits * 3;
+        if (setBits * 2 + 4 >= bits.length * 4 + 4) {
+            return null;
+        }
+        byte[] data = new byte[maxLength];
         data[0] = (byte) ((size >>> 24) & 0xff);
         data[1] = (byte) ((size >>> 16) & 0xff);
         data[2] = (byte) ((size >>> 8) & 0xff);
         data[3] = (byte) ((size) & 0xff);
+        int index = 4;
+        int last = -1;
         for (int i = 0; i < bits.length; i++) {
-            data[i * 4 + 4] = (byte) ((bits[i] >>> 24) & 0xff);
-            data[i * 4 + 5] = (byte) ((bits[i] >>> 16) & 0xff);
-            data[i * 4 + 6] = (byte) ((bits[i] >>> 8) & 0xff);
-            data[i * 4 + 7] = (byte) ((bits[i]) & 0xff);
+            int word = bits[i];
+            while (word != 0) {
+                int position = (i << ADDRESS_BITS_PER_UNIT) + Integer.numberOfTrailingZeros(word);
+                word &= word - 1;
+                int gap = position - last - 1;
+                last = position;
+                while ((gap & ~0x7f) != 0) {
+                    data[index++] = (byte) ((gap & 0x7f) | 0x80);
+                    gap >>>= 7;
+                }
+                data[index++] = (byte) gap;
+            }
         }
-        return BaseSixtyfour.encode(data);
+        if (index >= bits.length * 4 + 4) {
+            return null;
+        }
+        return COMPACT_PREFIX + BaseSixtyfour.encode(Arrays.copyOf(data, index));
     }
 
     /**
-     * 使用指定的hash参数产生hash值。对于同样的字符串,在不同hash参数下应该产生不同的hash value
+     * 计算字符串在5个hash函数下的位置,等价于对每个函数分别hash
      *
      * @param s a character sequence.
-     * @param strLength the length of <code>s</code>.
-     * @param funtionIndex a hash function index (smaller than {@link #totalBits}).
-     * @return the position in the filter corresponding to <code>s</code> for the hash function <code>k</code>.
+     * @return 每个hash函数对应的bit位置
      */
-    private long hash(final CharSequence s, final int strLength, final int funtionIndex) {
-        final int[] w = weight[funtionIndex];
-        int h = 0, i = strLength;
-        while (i-- != 0)
-            h ^= s.charAt(i) * w[i % NUMBER_OF_WEIGHTS];
-        return ((long) h - Integer.MIN_VALUE) % totalBits;
+    public static int[] positions(final CharSequence s) {
+        int[] h = new int[hashFunction];
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            mix(h, i, s.charAt(i));
+        }
+        return toPositions(h);
+    }
+
+    /**
+     * 计算"ip:port"在5个hash函数下的位置,不构造中间字符串,结果和{@link #positions(CharSequence)}一致
+     */
+    public static int[] positions(final String ip, final Integer port) {
+        if (ip == null || port == null || port < 0) {
+            return positions(ip + ":" + port);
+        }
+        int[] h = new int[hashFunction];
+        int i = 0;
+        int ipLength = ip.length();
+        for (; i < ipLength; i++) {
+            mix(h, i, ip.charAt(i));
+        }
+        mix(h, i++, ':');
+        int divisor = 1;
+        while (port / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            mix(h, i++, (char) ('0' + port / divisor % 10));
+        }
+        return toPositions(h);
+    }
+
+    private static void mix(int[] h, int charIndex, char c) {
+        int offset = (charIndex < NUMBER_OF_WEIGHTS ? charIndex : charIndex % NUMBER_OF_WEIGHTS) * hashFunction;
+        for (int k = 0; k < hashFunction; k++) {
+            h[k] ^= c * weight[offset + k];
+        }
+    }
+
+    private static int[] toPositions(int[] h) {
+        for (int k = 0; k < hashFunction; k++) {
+            h[k] = (int) (((long) h[k] - Integer.MIN_VALUE) % totalBits);
+        }
+        return h;
     }
 
     /**
@@ -105,10 +218,18 @@ public class DistributedSign {
      */
 
     public boolean contains(final CharSequence str) {
-        int i = hashFunction, length = str.length();
-        while (i-- != 0)
-            if (!getBit(hash(str, length, i)))
+        return containsPositions(positions(str));
+    }
+
+    /**
+     * @param positions {@link #positions(String, Integer)}的结果,可以提前计算好重复使用
+     */
+    public boolean containsPositions(final int[] positions) {
+        for (int position : positions) {
+            if (!getBit(position)) {
                 return false;
+            }
+        }
         return true;
     }
 
@@ -120,23 +241,24 @@ public class DistributedSign {
      */
 
     public boolean add(final CharSequence s) {
+        return addPositions(positions(s));
+    }
+
+    public boolean addPositions(final int[] positions) {
         boolean result = false;
-        int i = hashFunction, length = s.length();
-        long hash;
-        while (i-- != 0) {
-            hash = hash(s, length, i);
-            if (!getBit(hash)) {
+        for (int position : positions) {
+            if (!getBit(position)) {
                 result = true;
             }
-            setBit(hash);
+            setBit(position);
         }
         if (result)
             size++;
         return result;
     }
 
-    protected final static long ADDRESS_BITS_PER_UNIT = 5; // 32=2^5
-    protected final static long BIT_INDEX_MASK = 31; // = BITS_PER_UNIT - 1;
+    protected final static int ADDRESS_BITS_PER_UNIT = 5; // 32=2^5
+    protected final static int BIT_INDEX_MASK = 31; // = BITS_PER_UNIT - 1;
 
     /**
      * Returns from the local bitvector the value of the bit with the specified index. The value is <tt>true</tt> if the
@@ -147,8 +269,8 @@ public class DistributedSign {
      * @param bitIndex the bit index.
      * @return the value of the bit with the specified index.
      */
-    protected boolean getBit(long bitIndex) {
-        return ((bits[(int) (bitIndex >> ADDRESS_BITS_PER_UNIT)] & (1 << (bitIndex & BIT_INDEX_MASK))) != 0);
+    protected boolean getBit(int bitIndex) {
+        return ((bits[bitIndex >> ADDRESS_BITS_PER_UNIT] & (1 << (bitIndex & BIT_INDEX_MASK))) != 0);
     }
 
     /**
@@ -158,8 +280,8 @@ public class DistributedSign {
      *
      * @param bitIndex the index of the bit to be set.
      */
-    protected void setBit(long bitIndex) {
-        bits[(int) (bitIndex >> ADDRESS_BITS_PER_UNIT)] |= 1 << (bitIndex & BIT_INDEX_MASK);
+    protected void setBit(int bitIndex) {
+        bits[bitIndex >> ADDRESS_BITS_PER_UNIT] |= 1 << (bitIndex & BIT_INDEX_MASK);
     }
 
     /*
@@ -171,11 +293,11 @@ public class DistributedSign {
     }
 
     public boolean contains(Proxy proxy) {
-        return contains(proxy.getIp() + ":" + proxy.getPort());
+        return containsPositions(positions(proxy.getIp(), proxy.getPort()));
     }
 
     public boolean contains(ProxyModel proxy) {
-        return contains(proxy.getIp() + ":" + proxy.getPort());
+        return containsPositions(positions(proxy.getIp(), proxy.getPort()));
     }
 
     public static String resign(String usedSign, List<ProxyModel> distribute) {
@@ -192,7 +314,7 @@ public class DistributedSign {
         try {
             int failedNumber = 0;
             for (ProxyModel proxyModel : distribute) {
-                if (!sign.add(proxyModel.getIp() + ":" + proxyModel.getPort())) {
+                if (!sign.addPositions(positions(proxyModel.getIp(), proxyModel.getPort()))) {
                     failedNumber++;
                 }
             }
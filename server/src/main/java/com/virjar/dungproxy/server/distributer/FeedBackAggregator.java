@@ -0,0 +1,171 @@
+package com.virjar.dungproxy.server.distributer;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Resource;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.virjar.dungproxy.client.model.AvProxy;
+import com.virjar.dungproxy.server.entity.DomainIp;
+import com.virjar.dungproxy.server.entity.DomainIpFeedBack;
+import com.virjar.dungproxy.server.repository.DomainIpRepository;
+import com.virjar.dungproxy.server.utils.NameThreadFactory;
+import com.virjar.dungproxy.server.utils.SysConfig;
+import com.virjar.dungproxy.server.vo.FeedBackForm;
+
+/**
+ * 客户端反馈的汇总写回。/feedBack只在内存里按照(domain,ip,port)累加次数,定时用一条update语句批量写回一批记录,
+ * 原来每个反馈的IP都要一次查询一次更新<br/>
+ * 待写回的记录数超过distribute.feedBack.maxPending的时候,提交反馈的线程自己执行写回,写回期间后续的提交在锁上等待,以此限制内存占用
+ */
+@Component
+public class FeedBackAggregator implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(FeedBackAggregator.class);
+    private static final String ASYNC = "distribute.feedBack.async";
+    private static final String FLUSH_DURATION = "distribute.feedBack.flushDuration";
+    private static final String MAX_PENDING = "distribute.feedBack.maxPending";
+    private static final int FLUSH_BATCH_SIZE = 500;
+
+    @Resource
+    private DomainIpRepository domainIpRepository;
+
+    @Resource
+    private DistributeIndex distributeIndex;
+
+    // 提交反馈的线程共享读锁,写回的时候拿写锁换一个新的map,换下来的map之后不会再被修改
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final Object flushLock = new Object();
+    private volatile ConcurrentMap<String, DomainIpFeedBack> pending = Maps.newConcurrentMap();
+
+    private boolean async = true;
+    private int maxPending = 50000;
+    private ScheduledExecutorService flushExecutor;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        async = "true".equalsIgnoreCase(StringUtils.defaultString(SysConfig.getInstance().get(ASYNC), "true"));
+        maxPending = NumberUtils.toInt(SysConfig.getInstance().get(MAX_PENDING), 50000);
+        if (!async) {
+            logger.info("feedBack aggregator is not async, flush on every feedBack");
+            return;
+        }
+        long duration = NumberUtils.toLong(SysConfig.getInstance().get(FLUSH_DURATION), 30000L);
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(new NameThreadFactory("feedback-flush"));
+        flushExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception e) {
+                    logger.error("flush feedBack failed", e);
+                }
+            }
+        }, duration, duration, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (flushExecutor != null) {
+            flushExecutor.shutdownNow();
+        }
+        flush();
+    }
+
+    public void feedBack(FeedBackForm feedBackForm) {
+        String domain = feedBackForm.getDomain();
+        if (StringUtils.isEmpty(domain)) {
+            return;
+        }
+        swapLock.readLock().lock();
+        try {
+            ConcurrentMap<String, DomainIpFeedBack> pending = this.pending;
+            if (feedBackForm.getAvProxy() != null) {
+                for (AvProxy avProxy : feedBackForm.getAvProxy()) {
+                    if (avProxy.getReferCount() == 0) {
+                        continue;// 这个时候不计入可用IP
+                    }
+                    DomainIpFeedBack feedBack = get(pending, domain, avProxy);
+                    synchronized (feedBack) {
+                        feedBack.setAvailableCount(feedBack.getAvailableCount() + 1);
+                    }
+                }
+            }
+            if (feedBackForm.getDisableProxy() != null) {
+                for (AvProxy avProxy : feedBackForm.getDisableProxy()) {
+                    DomainIpFeedBack feedBack = get(pending, domain, avProxy);
+                    synchronized (feedBack) {
+                        feedBack.setDisableCount(feedBack.getDisableCount() + 1);
+                    }
+                }
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        if (!async) {
+            flush();
+        } else if (pending.size() >= maxPending) {
+            logger.warn("too many pending feedBack:{}, flush in request thread", pending.size());
+            flush();
+        }
+    }
+
+    private DomainIpFeedBack get(ConcurrentMap<String, DomainIpFeedBack> pending, String domain, AvProxy avProxy) {
+        String key = domain + "#" + avProxy.getIp() + ":" + avProxy.getPort();
+        DomainIpFeedBack feedBack = pending.get(key);
+        if (feedBack == null) {
+            DomainIpFeedBack newFeedBack = new DomainIpFeedBack(domain, avProxy.getIp(), avProxy.getPort());
+            feedBack = pending.putIfAbsent(key, newFeedBack);
+            if (feedBack == null) {
+                feedBack = newFeedBack;
+            }
+        }
+        return feedBack;
+    }
+
+    /**
+     * 把当前累积的反馈写回数据库,同时更新分发索引里面的域名打分
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            ConcurrentMap<String, DomainIpFeedBack> toFlush;
+            swapLock.writeLock().lock();
+            try {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                toFlush = pending;
+                pending = Maps.newConcurrentMap();
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            Date scoreDate = new Date();
+            for (List<DomainIpFeedBack> batch : Lists.partition(Lists.newArrayList(toFlush.values()),
+                    FLUSH_BATCH_SIZE)) {
+                try {
+                    domainIpRepository.updateFeedBackBatch(batch, scoreDate);
+                    for (DomainIp domainIp : domainIpRepository.selectFeedBackTargets(batch)) {
+                        distributeIndex.onDomainIpUpdated(domainIp);
+                    }
+                } catch (Exception e) {
+                    logger.error("flush feedBack failed, size:{}", batch.size(), e);
+                }
+            }
+        }
+    }
+}
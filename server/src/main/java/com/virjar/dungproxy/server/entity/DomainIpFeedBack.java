@@ -0,0 +1,67 @@
+package com.virjar.dungproxy.server.entity;
+
+/**
+ * 一段时间内客户端对同一个域名下同一个IP的反馈汇总,批量写回domainip
+ */
+public class DomainIpFeedBack {
+    private String domain;
+
+    private String ip;
+
+    private Integer port;
+
+    // 反馈可用的次数,每次加一分
+    private int availableCount;
+
+    // 反馈不可用的次数
+    private int disableCount;
+
+    public DomainIpFeedBack() {
+    }
+
+    public DomainIpFeedBack(String domain, String ip, Integer port) {
+        this.domain = domain;
+        this.ip = ip;
+        this.port = port;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public void setDomain(String domain) {
+        this.domain = domain;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public void setIp(String ip) {
+        this.ip = ip;
+    }
+
+    public Integer getPort() {
+        return port;
+    }
+
+    public void setPort(Integer port) {
+        this.port = port;
+    }
+
+    public int getAvailableCount() {
+        return availableCount;
+    }
+
+    public void setAvailableCount(int availableCount) {
+        this.availableCount = availableCount;
+    }
+
+    public int getDisableCount() {
+        return disableCount;
+    }
+
+    public void setDisableCount(int disableCount) {
+        this.disableCount = disableCount;
+    }
+}
@@ -0,0 +1,130 @@
+package com.virjar.dungproxy.server.entity;
+
+import java.util.Date;
+
+/**
+ * 验证器写回的字段,多次验证结果在内存里合并之后批量写回proxy表。为null的字段不修改
+ */
+public class ProxyScoreUpdate {
+    private Long id;
+
+    private String proxyIp;
+
+    private Byte transperent;
+
+    private Long speed;
+
+    private Byte type;
+
+    private Boolean lostheader;
+
+    private Long availbelScore;
+
+    private Date availbelScoreDate;
+
+    private Long connectionScore;
+
+    // 在connectionScore(为null的时候是数据库里面的值)基础上的增量
+    private long connectionScoreDelta;
+
+    private Date connectionScoreDate;
+
+    // 写回失败之后重试的次数,不写入数据库
+    private int retries;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getProxyIp() {
+        return proxyIp;
+    }
+
+    public void setProxyIp(String proxyIp) {
+        this.proxyIp = proxyIp;
+    }
+
+    public Byte getTransperent() {
+        return transperent;
+    }
+
+    public void setTransperent(Byte transperent) {
+        this.transperent = transperent;
+    }
+
+    public Long getSpeed() {
+        return speed;
+    }
+
+    public void setSpeed(Long speed) {
+        this.speed = speed;
+    }
+
+    public Byte getType() {
+        return type;
+    }
+
+    public void setType(Byte type) {
+        this.type = type;
+    }
+
+    public Boolean getLostheader() {
+        return lostheader;
+    }
+
+    public void setLostheader(Boolean lostheader) {
+        this.lostheader = lostheader;
+    }
+
+    public Long getAvailbelScore() {
+        return availbelScore;
+    }
+
+    public void setAvailbelScore(Long availbelScore) {
+        this.availbelScore = availbelScore;
+    }
+
+    public Date getAvailbelScoreDate() {
+        return availbelScoreDate;
+    }
+
+    public void setAvailbelScoreDate(Date availbelScoreDate) {
+        this.availbelScoreDate = availbelScoreDate;
+    }
+
+    public Long getConnectionScore() {
+        return connectionScore;
+    }
+
+    public void setConnectionScore(Long connectionScore) {
+        this.connectionScore = connectionScore;
+    }
+
+    public long getConnectionScoreDelta() {
+        return connectionScoreDelta;
+    }
+
+    public void setConnectionScoreDelta(long connectionScoreDelta) {
+        this.connectionScoreDelta = connectionScoreDelta;
+    }
+
+    public Date getConnectionScoreDate() {
+        return connectionScoreDate;
+    }
+
+    public void setConnectionScoreDate(Date connectionScoreDate) {
+        this.connectionScoreDate = connectionScoreDate;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+}
@@ -1,5 +1,6 @@
 package com.virjar.dungproxy.server.repository;
 
+import java.util.Date;
 import java.util.List;
 
 import org.apache.ibatis.annotations.Param;
@@ -7,6 +8,7 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Repository;
 
 import com.virjar.dungproxy.server.entity.DomainIp;
+import com.virjar.dungproxy.server.entity.DomainIpFeedBack;
 
 @Repository
 public interface DomainIpRepository {
@@ -28,9 +30,16 @@ public interface DomainIpRepository {
 
     List<DomainIp> selectAvailable(@Param("domain") String domain, @Param("pageable") Pageable pageable);
 
+    List<DomainIp> selectAvailableAfter(@Param("lastId") long lastId, @Param("size") int size);
+
     List<DomainIp> selectDisable(@Param("pageable") Pageable pageable);
 
     int deleteBatch(@Param("ids") List<Long> ids);
 
     int deleteByDomain(@Param("domain") String domain);
+
+    int updateFeedBackBatch(@Param("feedBacks") List<DomainIpFeedBack> feedBacks,
+            @Param("scoreDate") Date scoreDate);
+
+    List<DomainIp> selectFeedBackTargets(@Param("feedBacks") List<DomainIpFeedBack> feedBacks);
 }
\ No newline at end of file
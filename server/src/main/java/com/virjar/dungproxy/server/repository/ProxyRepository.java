@@ -1,6 +1,7 @@
 package com.virjar.dungproxy.server.repository;
 
 import com.virjar.dungproxy.server.entity.Proxy;
+import com.virjar.dungproxy.server.entity.ProxyScoreUpdate;
 import org.apache.ibatis.annotations.Param;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Repository;
@@ -46,4 +47,14 @@ public interface ProxyRepository {
     List<Proxy> selectByIds(@Param("ids") List<Long> ids);
 
     Long deleteBatch(@Param("ids") List<Long> ids);
+
+    List<Proxy> selectDistributable(@Param("lastId") long lastId, @Param("size") int size);
+
+    List<Proxy> selectAfterId(@Param("lastId") long lastId, @Param("size") int size);
+
+    List<Proxy> selectIpPortAfterId(@Param("lastId") long lastId, @Param("size") int size);
+
+    int updateScoreBatch(@Param("updates") List<ProxyScoreUpdate> updates);
+
+    int insertIgnoreBatch(@Param("proxies") List<Proxy> proxies);
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package com.virjar.dungproxy.server.scheduler;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 
 import javax.annotation.Resource;
@@ -13,10 +14,14 @@ import org.springframework.stereotype.Component;
 
 import com.alibaba.fastjson.JSONObject;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.virjar.dungproxy.client.util.CommonUtil;
 import com.virjar.dungproxy.server.core.beanmapper.BeanMapper;
 import com.virjar.dungproxy.server.model.AvailbelCheckResponse;
 import com.virjar.dungproxy.server.model.ProxyModel;
+import com.virjar.dungproxy.server.scheduler.checker.NioProxyChecker;
 import com.virjar.dungproxy.server.service.ProxyService;
 import com.virjar.dungproxy.server.utils.NameThreadFactory;
 import com.virjar.dungproxy.server.utils.ProxyUtil;
@@ -30,6 +35,18 @@ public class AvailableValidater implements InitializingBean, Runnable {
     @Resource
     private BeanMapper beanMapper;
 
+    @Resource
+    private NioProxyChecker nioProxyChecker;
+
+    @Resource
+    private ProxyScoreBuffer proxyScoreBuffer;
+
+    @Resource
+    private ProxyRecheckScheduler proxyRecheckScheduler;
+
+    // 非阻塞检查的时候,还没有写回打分的IP会被再次选出来,跳过这些IP
+    private final Set<Long> checkingIds = Sets.newConcurrentHashSet();
+
     private static final Logger logger = LoggerFactory.getLogger(AvailableValidater.class);
 
     private ThreadPoolExecutor pool = null;
@@ -66,7 +83,7 @@ public class AvailableValidater implements InitializingBean, Runnable {
         logger.info("AvailableValidater start");
         while (isRunning) {
             try {
-                if (pool.getActiveCount() >= pool.getCorePoolSize()) {//线程池都在执行任务,那么不产生任务,否则添加新任务
+                if (busy()) {//线程池都在执行任务,那么不产生任务,否则添加新任务
                     Thread.sleep(1000);
                     continue;
                 }
@@ -74,12 +91,27 @@ public class AvailableValidater implements InitializingBean, Runnable {
                 // logger.info("待跟新可用性资源数目:{},资源:{}", needupdate.size(), JSONObject.toJSON(needupdate));
                 if (needupdate.size() == 0) {
                     logger.info("no proxy need to update");
-                    CommonUtil.sleep(1 << 19);
+                    // 时间轮调度的时候只是当前没有到期的代理
+                    CommonUtil.sleep(proxyRecheckScheduler.isEnable() ? 1000 : 1 << 19);
                     continue;
                 }
+                if (nioProxyChecker.isEnable()) {
+                    if (submitNio(needupdate) == 0) {
+                        Thread.sleep(1000);
+                    }
+                    continue;
+                }
+                int submitted = 0;
                 for (ProxyModel proxy : needupdate) {
+                    if (proxyScoreBuffer.isPending(proxy.getId())) {// 打分还没有写回,等写回之后再检查
+                        continue;
+                    }
                     ProxyAvailableTester proxyAvailableTester = new ProxyAvailableTester(proxy);
                     pool.submit(proxyAvailableTester);
+                    submitted++;
+                }
+                if (submitted == 0) {
+                    Thread.sleep(1000);
                 }
             } catch (Exception e) {
                 // do nothing
@@ -89,6 +121,47 @@ public class AvailableValidater implements InitializingBean, Runnable {
 
     }
 
+    /**
+     * 非阻塞检查的时候线程池只用来写回打分,是否繁忙看正在进行的检查数量
+     */
+    private boolean busy() {
+        if (nioProxyChecker.isEnable()) {
+            return nioProxyChecker.isBusy() || pool.getQueue().size() >= nioProxyChecker.getMaxConcurrent();
+        }
+        return pool.getActiveCount() >= pool.getCorePoolSize();
+    }
+
+    /**
+     * @return 实际提交的检查数量
+     */
+    private int submitNio(List<ProxyModel> needupdate) {
+        int submitted = 0;
+        for (final ProxyModel proxy : needupdate) {
+            if (proxyScoreBuffer.isPending(proxy.getId()) || !checkingIds.add(proxy.getId())) {
+                continue;
+            }
+            submitted++;
+            final ProxyAvailableTester proxyAvailableTester = new ProxyAvailableTester(proxy);
+            Futures.addCallback(nioProxyChecker.checkAvailable(proxy), new FutureCallback<AvailbelCheckResponse>() {
+                @Override
+                public void onSuccess(AvailbelCheckResponse result) {
+                    try {
+                        proxyAvailableTester.record(result);
+                    } finally {
+                        checkingIds.remove(proxy.getId());
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    checkingIds.remove(proxy.getId());
+                    logger.error("error when check available {}", JSONObject.toJSONString(proxy), t);
+                }
+            }, pool);
+        }
+        return submitted;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         init();
@@ -104,9 +177,17 @@ public class AvailableValidater implements InitializingBean, Runnable {
 
         @Override
         public Integer call() {
+            return record(ProxyUtil.validateProxyAvailable(proxy));
+        }
+
+        /**
+         * 根据检查结果调整打分并写回
+         *
+         * @param response 检查不通过的时候为null
+         */
+        Integer record(AvailbelCheckResponse response) {
             try {
                 Long availbelScore = proxy.getAvailbelScore();
-                AvailbelCheckResponse response = ProxyUtil.validateProxyAvailable(proxy);
                 if (response != null) {
                     proxy.setTransperent(response.getTransparent());
                     proxy.setProxyIp(response.getRemoteAddr());
@@ -138,7 +219,6 @@ public class AvailableValidater implements InitializingBean, Runnable {
                 updateProxy.setAvailbelScore(proxy.getAvailbelScore());
                 updateProxy.setId(proxy.getId());
                 updateProxy.setAvailbelScoreDate(new Date());
-                updateProxy.setConnectionScore(proxy.getConnectionScore());
                 if (response != null) {
                     if (proxy.getSpeed() == null) {
                         proxy.setSpeed(0L);
@@ -151,7 +231,8 @@ public class AvailableValidater implements InitializingBean, Runnable {
                         updateProxy.setType(response.getType());
                     }
                 }
-                proxyService.updateByPrimaryKeySelective(updateProxy);
+                // 连接打分按照增量写回,避免覆盖连接性检查同时写入的结果
+                proxyScoreBuffer.offer(updateProxy, response != null ? 2 : 0);
                 return 0;
             } catch (Exception e) {
                 logger.error("error when check available {}", JSONObject.toJSONString(proxy), e);
@@ -1,5 +1,6 @@
 package com.virjar.dungproxy.server.scheduler;
 
+import java.net.URI;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
@@ -16,24 +17,17 @@ import org.springframework.stereotype.Component;
 
 import com.google.common.collect.Lists;
 import com.virjar.dungproxy.client.util.CommonUtil;
-import com.virjar.dungproxy.server.core.beanmapper.BeanMapper;
 import com.virjar.dungproxy.server.crawler.NewCollector;
 import com.virjar.dungproxy.server.crawler.TemplateBuilder;
 import com.virjar.dungproxy.server.entity.Proxy;
-import com.virjar.dungproxy.server.model.ProxyModel;
-import com.virjar.dungproxy.server.service.ProxyService;
 import com.virjar.dungproxy.server.utils.NameThreadFactory;
-import com.virjar.dungproxy.server.utils.ResourceFilter;
 import com.virjar.dungproxy.server.utils.SysConfig;
 
 @Component
 public class CollectorTask implements Runnable, InitializingBean, ApplicationContextAware {
 
     @Resource
-    private ProxyService proxyService;
-
-    @Resource
-    private BeanMapper beanMapper;
+    private ProxyIngestion proxyIngestion;
 
     private static final Logger logger = LoggerFactory.getLogger(CollectorTask.class);
 
@@ -108,9 +102,24 @@ public class CollectorTask implements Runnable, InitializingBean, ApplicationCon
         @Override
         public Object call() throws Exception {
             List<Proxy> draftproxys = collector.newProxy();
-            ResourceFilter.filter(draftproxys);
-            proxyService.save(beanMapper.mapAsList(draftproxys, ProxyModel.class));
+            // 去重和入库交给入库线程,收集线程直接开始下一个网站
+            proxyIngestion.submit(source(), draftproxys);
             return this;
         }
+
+        /**
+         * 入库统计按照网站的域名区分,模版收集器都是同一个类
+         */
+        private String source() {
+            try {
+                String host = URI.create(collector.lasUrl()).getHost();
+                if (host != null) {
+                    return host;
+                }
+            } catch (Exception e) {
+                // do nothing
+            }
+            return collector.getClass().getSimpleName();
+        }
     }
 }
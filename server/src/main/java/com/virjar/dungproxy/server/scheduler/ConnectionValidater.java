@@ -4,6 +4,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -19,7 +20,11 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.stereotype.Component;
 
 import com.alibaba.fastjson.JSONObject;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.virjar.dungproxy.server.model.ProxyModel;
+import com.virjar.dungproxy.server.scheduler.checker.NioProxyChecker;
 import com.virjar.dungproxy.server.service.ProxyService;
 import com.virjar.dungproxy.server.utils.NameThreadFactory;
 import com.virjar.dungproxy.server.utils.ProxyUtil;
@@ -31,6 +36,18 @@ public class ConnectionValidater implements Runnable, InitializingBean {
     @Resource
     private ProxyService proxyService;
 
+    @Resource
+    private NioProxyChecker nioProxyChecker;
+
+    @Resource
+    private ProxyScoreBuffer proxyScoreBuffer;
+
+    @Resource
+    private ProxyRecheckScheduler proxyRecheckScheduler;
+
+    // 非阻塞检查的时候,还没有写回打分的IP会被再次选出来,跳过这些IP
+    private final Set<Long> checkingIds = Sets.newConcurrentHashSet();
+
     private boolean isRunning = false;
 
     private ThreadPoolExecutor pool = null;
@@ -60,7 +77,7 @@ public class ConnectionValidater implements Runnable, InitializingBean {
         logger.info("Component start");
         while (isRunning) {
             try {
-                if (pool.getActiveCount() >= pool.getCorePoolSize()) {//线程池都在执行任务,那么不产生任务,否则添加新任务
+                if (busy()) {//线程池都在执行任务,那么不产生任务,否则添加新任务
                     Thread.sleep(1000);
                     continue;
                 }
@@ -68,14 +85,29 @@ public class ConnectionValidater implements Runnable, InitializingBean {
                 List<ProxyModel> needupdate = proxyService.find4connectionupdate();
                 if (needupdate.size() == 0) {
                     logger.info("no proxy need to update");
-                    CommonUtil.sleep(600000);//十分钟
+                    // 时间轮调度的时候只是当前没有到期的代理,否则等十分钟
+                    CommonUtil.sleep(proxyRecheckScheduler.isEnable() ? 1000 : 600000);
+                    continue;
+                }
+                if (nioProxyChecker.isEnable()) {
+                    if (submitNio(needupdate) == 0) {
+                        Thread.sleep(1000);
+                    }
                     continue;
                 }
                 // List<Future<Object>> futures = Lists.newArrayList();
+                int submitted = 0;
                 for (ProxyModel proxy : needupdate) {
+                    if (proxyScoreBuffer.isPending(proxy.getId())) {// 打分还没有写回,等写回之后再检查
+                        continue;
+                    }
                     pool.submit(new ProxyTester(proxy));
+                    submitted++;
                     // futures.add();
                 }
+                if (submitted == 0) {
+                    Thread.sleep(1000);
+                }
                 // CommonUtil.waitAllFutures(futures);
 
             } catch (Exception e) {
@@ -84,6 +116,59 @@ public class ConnectionValidater implements Runnable, InitializingBean {
         }
     }
 
+    /**
+     * 非阻塞检查的时候线程池只用来写回打分,是否繁忙看正在进行的检查数量
+     */
+    private boolean busy() {
+        if (nioProxyChecker.isEnable()) {
+            return nioProxyChecker.isBusy() || pool.getQueue().size() >= nioProxyChecker.getMaxConcurrent();
+        }
+        return pool.getActiveCount() >= pool.getCorePoolSize();
+    }
+
+    /**
+     * @return 实际提交的检查数量
+     */
+    private int submitNio(List<ProxyModel> needupdate) {
+        int submitted = 0;
+        for (final ProxyModel proxy : needupdate) {
+            if (proxyScoreBuffer.isPending(proxy.getId())) {
+                continue;
+            }
+            final InetAddress address;
+            try {
+                address = InetAddress.getByName(proxy.getIp());
+            } catch (UnknownHostException e) {
+                logger.warn("ip不合法 {}", JSONObject.toJSONString(proxy), e);
+                proxyService.deleteByPrimaryKey(proxy.getId());
+                continue;
+            }
+            if (!checkingIds.add(proxy.getId())) {
+                continue;
+            }
+            submitted++;
+            final ProxyTester proxyTester = new ProxyTester(proxy);
+            Futures.addCallback(nioProxyChecker.checkConnect(address.getHostAddress(), proxy.getPort()),
+                    new FutureCallback<Boolean>() {
+                        @Override
+                        public void onSuccess(Boolean result) {
+                            try {
+                                proxyTester.record(result);
+                            } finally {
+                                checkingIds.remove(proxy.getId());
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            checkingIds.remove(proxy.getId());
+                            logger.error("error when check connection {}", JSONObject.toJSONString(proxy), t);
+                        }
+                    }, pool);
+        }
+        return submitted;
+    }
+
     private class ProxyTester implements Callable<Object> {
         private ProxyModel proxy;
 
@@ -95,38 +180,8 @@ public class ConnectionValidater implements Runnable, InitializingBean {
         @Override
         public Object call() throws Exception {
             try {
-                Boolean aBoolean = ProxyUtil
-                        .validateProxyConnect(new HttpHost(InetAddress.getByName(proxy.getIp()), proxy.getPort()));
-                if (aBoolean == null) {
-                    return this;
-                }
-                if (aBoolean) {
-                    if (proxy.getConnectionScore() < 0) {// 不可用到可用,直接扭转,不用逐级升权
-                        proxy.setConnectionScore(1L);
-                    } else {
-                        proxy.setConnectionScore(proxy.getConnectionScore() + 1);
-                        if (proxy.getConnectionScore() > SysConfig.getInstance().getConnectionMaxScore()) {
-                            proxy.setConnectionScore(SysConfig.getInstance().getConnectionMaxScore());
-                        }
-                    }
-                } else {
-                    if (proxy.getConnectionScore() > 0) {
-                        long preScore = proxy.getConnectionScore();
-                        proxy.setConnectionScore(
-                                proxy.getConnectionScore() - (int) Math.log((double) proxy.getConnectionScore() + 3));
-                        logger.warn("连接打分由可用转变为不可用 prescore:{}  ip为:{}", preScore, JSONObject.toJSONString(proxy));
-                    } else {
-                        proxy.setConnectionScore(proxy.getConnectionScore() - 1);
-                        if (proxy.getConnectionScore() < SysConfig.getInstance().getConnectionMinScore()) {
-                            proxy.setConnectionScore(SysConfig.getInstance().getConnectionMinScore());
-                        }
-                    }
-                }
-                ProxyModel updateProxy = new ProxyModel();
-                updateProxy.setConnectionScore(proxy.getConnectionScore());
-                updateProxy.setId(proxy.getId());
-                updateProxy.setConnectionScoreDate(new Date());
-                proxyService.updateByPrimaryKeySelective(updateProxy);
+                record(ProxyUtil
+                        .validateProxyConnect(new HttpHost(InetAddress.getByName(proxy.getIp()), proxy.getPort())));
             } catch (UnknownHostException e) {
                 logger.warn("ip不合法 {}", JSONObject.toJSONString(proxy), e);
                 proxyService.deleteByPrimaryKey(proxy.getId());
@@ -137,5 +192,43 @@ public class ConnectionValidater implements Runnable, InitializingBean {
             }
             return this;
         }
+
+        /**
+         * 根据检查结果调整打分并写回
+         *
+         * @param aBoolean 连接是否成功,为null的时候是本地资源不足,不计分
+         */
+        void record(Boolean aBoolean) {
+            if (aBoolean == null) {
+                return;
+            }
+            if (aBoolean) {
+                if (proxy.getConnectionScore() < 0) {// 不可用到可用,直接扭转,不用逐级升权
+                    proxy.setConnectionScore(1L);
+                } else {
+                    proxy.setConnectionScore(proxy.getConnectionScore() + 1);
+                    if (proxy.getConnectionScore() > SysConfig.getInstance().getConnectionMaxScore()) {
+                        proxy.setConnectionScore(SysConfig.getInstance().getConnectionMaxScore());
+                    }
+                }
+            } else {
+                if (proxy.getConnectionScore() > 0) {
+                    long preScore = proxy.getConnectionScore();
+                    proxy.setConnectionScore(
+                            proxy.getConnectionScore() - (int) Math.log((double) proxy.getConnectionScore() + 3));
+                    logger.warn("连接打分由可用转变为不可用 prescore:{}  ip为:{}", preScore, JSONObject.toJSONString(proxy));
+                } else {
+                    proxy.setConnectionScore(proxy.getConnectionScore() - 1);
+                    if (proxy.getConnectionScore() < SysConfig.getInstance().getConnectionMinScore()) {
+                        proxy.setConnectionScore(SysConfig.getInstance().getConnectionMinScore());
+                    }
+                }
+            }
+            ProxyModel updateProxy = new ProxyModel();
+            updateProxy.setConnectionScore(proxy.getConnectionScore());
+            updateProxy.setId(proxy.getId());
+            updateProxy.setConnectionScoreDate(new Date());
+            proxyScoreBuffer.offer(updateProxy);
+        }
     }
 }
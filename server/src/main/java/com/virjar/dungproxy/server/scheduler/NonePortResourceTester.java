@@ -15,11 +15,8 @@ import org.springframework.stereotype.Component;
 
 import com.google.common.collect.Lists;
 import com.virjar.dungproxy.client.httpclient.HttpInvoker;
-import com.virjar.dungproxy.server.core.beanmapper.BeanMapper;
 import com.virjar.dungproxy.server.entity.Proxy;
-import com.virjar.dungproxy.server.model.ProxyModel;
 import com.virjar.dungproxy.server.repository.ProxyRepository;
-import com.virjar.dungproxy.server.service.ProxyService;
 import com.virjar.dungproxy.server.utils.*;
 
 /**
@@ -33,10 +30,7 @@ public class NonePortResourceTester implements Runnable, InitializingBean {
     private ProxyRepository proxyRepository;
 
     @Resource
-    private ProxyService proxyService;
-
-    @Resource
-    private BeanMapper beanMapper;
+    private ProxyIngestion proxyIngestion;
 
     private LinkedBlockingDeque<String> ipTaskQueue = new LinkedBlockingDeque<>();
 
@@ -46,8 +40,9 @@ public class NonePortResourceTester implements Runnable, InitializingBean {
 
     private List<Integer> ports;
 
-    private BloomFilter bloomFilter = new BloomFilter64bit(60000, 10);
-    private int addTimes = 0;
+    private static final int MAX_RECENT_IPS = 60000;
+    // 最近提交过的ip,数量太多的时候清空,之后可以重新检测
+    private final LongHashSet recentIps = new LongHashSet(MAX_RECENT_IPS);
     private ExecutorService pool = null;
 
     private static NonePortResourceTester instance;
@@ -88,12 +83,22 @@ public class NonePortResourceTester implements Runnable, InitializingBean {
     }
 
     public boolean addIp(String ip) {
-        if (++addTimes > 6000) {
-            bloomFilter = new BloomFilter64bit(60000, 10);
-            addTimes = 0;
+        if (ip.startsWith("192.168") || ip.startsWith("10.") || ip.equals("127.0.0.1")) {
+            return false;
+        }
+        long ipValue = ResourceFilter.ipValue(ip);
+        if (ipValue < 0) {
+            return false;
+        }
+        synchronized (recentIps) {
+            if (recentIps.size() >= MAX_RECENT_IPS) {
+                recentIps.clear();
+            }
+            if (!recentIps.add(ipValue)) {
+                return false;
+            }
         }
-        return !(ip.startsWith("192.168") || ip.startsWith("10.") || ip.equals("127.0.0.1")) && bloomFilter.add(ip)
-                && ipTaskQueue.offer(ip);
+        return ipTaskQueue.offer(ip);
     }
 
     @Override
@@ -115,8 +120,7 @@ public class NonePortResourceTester implements Runnable, InitializingBean {
                     for (Future<List<Proxy>> future : futures) {
                         proxies.addAll(future.get());
                     }
-                    ResourceFilter.filter(proxies);
-                    proxyService.save(beanMapper.mapAsList(proxies, ProxyModel.class));
+                    proxyIngestion.ingest("portTester", proxies);
                 } catch (Exception e) {
                     logger.error("can not take ip from task queue");
                 }
@@ -0,0 +1,181 @@
+package com.virjar.dungproxy.server.scheduler;
+
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Resource;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.ibatis.executor.BatchResult;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.virjar.dungproxy.server.entity.Proxy;
+import com.virjar.dungproxy.server.repository.ProxyRepository;
+import com.virjar.dungproxy.server.utils.NameThreadFactory;
+import com.virjar.dungproxy.server.utils.ResourceFilter;
+import com.virjar.dungproxy.server.utils.SysConfig;
+
+/**
+ * 收集到的代理入库。原来每个代理一次selectCount加一次insert,在收集线程上执行,大部分都是重复的<br/>
+ * 现在先在内存里面去重({@link ResourceFilter},入库成功之后才记录),剩下的按照collector.ingest.batchSize分块,
+ * 每块一条insert ignore语句,所有块通过mybatis的批量执行器一次发出,数据库的开销只和新代理的数量有关。入库在单独的线程上执行,队列满了由收集线程自己执行<br/>
+ * 按照来源统计收集数量、内存去重数量、数据库里已经存在的数量和实际插入数量
+ */
+@Component
+public class ProxyIngestion implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(ProxyIngestion.class);
+
+    @Resource
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Resource
+    private ProxyRecheckScheduler proxyRecheckScheduler;
+
+    private int batchSize = 500;
+    private ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, SourceStatistics> statistics = Maps.newConcurrentMap();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        batchSize = NumberUtils.toInt(SysConfig.getInstance().get("collector.ingest.batchSize"), 500);
+        int queueSize = NumberUtils.toInt(SysConfig.getInstance().get("collector.ingest.queueSize"), 64);
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new NameThreadFactory("proxy-ingest"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 异步入库,调用之后不要再修改proxies
+     *
+     * @param source 统计使用的来源名称
+     */
+    public void submit(final String source, final List<Proxy> proxies) {
+        if (proxies.isEmpty()) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ingest(source, proxies);
+                } catch (Exception e) {
+                    logger.error("ingest proxy from {} failed", source, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 同步入库
+     *
+     * @return 实际插入的数量
+     */
+    public int ingest(String source, List<Proxy> proxies) {
+        SourceStatistics sourceStatistics = statistics(source);
+        sourceStatistics.crawled.addAndGet(proxies.size());
+        List<Proxy> candidates = Lists.newArrayList(proxies);
+        Iterator<Proxy> iterator = candidates.iterator();
+        while (iterator.hasNext()) {
+            Proxy proxy = iterator.next();
+            if (proxy.getIp() != null && proxy.getPort() == null) {
+                // 只有ip没有端口的,交给端口探测
+                NonePortResourceTester.sendIp(proxy.getIp());
+                iterator.remove();
+            }
+        }
+        ResourceFilter.filter(candidates);
+        sourceStatistics.filtered.addAndGet(proxies.size() - candidates.size());
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+
+        long start = System.currentTimeMillis();
+        int inserted = 0;
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(ExecutorType.BATCH, false)) {
+            ProxyRepository proxyRepository = sqlSession.getMapper(ProxyRepository.class);
+            for (List<Proxy> batch : Lists.partition(candidates, batchSize)) {
+                proxyRepository.insertIgnoreBatch(batch);
+            }
+            for (BatchResult batchResult : sqlSession.flushStatements()) {
+                for (int count : batchResult.getUpdateCounts()) {
+                    if (count == Statement.SUCCESS_NO_INFO) {// 驱动没有返回插入数量,按照整块都插入计算
+                        count = batchSize;
+                    }
+                    inserted += Math.max(count, 0);
+                }
+            }
+            sqlSession.commit();
+        }
+        // 入库成功之后才记录,失败的下次收集到的时候还能重新入库。没有插入的是数据库里已经有的,同样记录
+        for (Proxy proxy : candidates) {
+            ResourceFilter.addConflict(proxy);
+        }
+        inserted = Math.min(inserted, candidates.size());
+        sourceStatistics.inserted.addAndGet(inserted);
+        sourceStatistics.duplicate.addAndGet(candidates.size() - inserted);
+        if (inserted > 0) {
+            // 新代理尽快进入验证
+            proxyRecheckScheduler.requestLoad();
+        }
+        logger.info("ingest proxy from {}, crawled:{} candidate:{} inserted:{} cost:{}ms", source, proxies.size(),
+                candidates.size(), inserted, System.currentTimeMillis() - start);
+        return inserted;
+    }
+
+    private SourceStatistics statistics(String source) {
+        SourceStatistics sourceStatistics = statistics.get(source);
+        if (sourceStatistics == null) {
+            SourceStatistics newStatistics = new SourceStatistics();
+            sourceStatistics = statistics.putIfAbsent(source, newStatistics);
+            if (sourceStatistics == null) {
+                sourceStatistics = newStatistics;
+            }
+        }
+        return sourceStatistics;
+    }
+
+    /**
+     * @return 每个来源的统计,crawled是收集数量,filtered是内存去重和不合法的数量,duplicate是数据库里已经存在的数量,inserted是插入数量
+     */
+    public Map<String, Object> statistics() {
+        Map<String, Object> ret = Maps.newTreeMap();
+        for (Map.Entry<String, SourceStatistics> entry : statistics.entrySet()) {
+            Map<String, Long> item = Maps.newLinkedHashMap();
+            item.put("crawled", entry.getValue().crawled.get());
+            item.put("filtered", entry.getValue().filtered.get());
+            item.put("duplicate", entry.getValue().duplicate.get());
+            item.put("inserted", entry.getValue().inserted.get());
+            ret.put(entry.getKey(), item);
+        }
+        return ret;
+    }
+
+    private static class SourceStatistics {
+        private final AtomicLong crawled = new AtomicLong(0);
+        private final AtomicLong filtered = new AtomicLong(0);
+        private final AtomicLong duplicate = new AtomicLong(0);
+        private final AtomicLong inserted = new AtomicLong(0);
+    }
+}
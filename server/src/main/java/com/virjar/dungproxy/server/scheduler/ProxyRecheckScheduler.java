@@ -0,0 +1,268 @@
+package com.virjar.dungproxy.server.scheduler;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Resource;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import com.virjar.dungproxy.server.core.beanmapper.BeanMapper;
+import com.virjar.dungproxy.server.entity.Proxy;
+import com.virjar.dungproxy.server.model.ProxyModel;
+import com.virjar.dungproxy.server.repository.ProxyRepository;
+import com.virjar.dungproxy.server.utils.SysConfig;
+import com.virjar.dungproxy.server.utils.TimingWheel;
+
+/**
+ * 可用性检查和连接性检查的调度。每个代理按照打分算出下次检查的时间挂在时间轮上,验证器每次只取出已经到期的代理,
+ * 不再每次按照打分区间扫描整个代理表<br/>
+ * 检查间隔从基础间隔开始,打分绝对值每翻一倍间隔翻一倍,直到上限。有效的代理打分比上次低说明不稳定,按照基础间隔尽快复查<br/>
+ * 数据库只读取新增的代理(按照id增量读取)和到期的代理(按照主键读取)。验证结果通过{@link #onProxyUpdated(ProxyModel)}重新调度,
+ * 取出的代理先按照原来的打分重新挂上,验证结果丢失的时候不会从时间轮里消失
+ */
+@Component
+public class ProxyRecheckScheduler implements InitializingBean {
+    private static final Logger logger = LoggerFactory.getLogger(ProxyRecheckScheduler.class);
+    private static final String PREFIX = "validator.recheck.";
+    private static final int LOAD_PAGE_SIZE = 1000;
+    // 增量读取的时候往回多读一段,避免并发插入的事务晚提交导致漏掉
+    private static final int LOAD_OVERLAP = 200;
+
+    @Resource
+    private ProxyRepository proxyRepository;
+
+    @Resource
+    private BeanMapper beanMapper;
+
+    private boolean enable = true;
+    private long loadDuration = 60000;
+    private Interval availableInterval;
+    private Interval connectionInterval;
+    private TimingWheel availableWheel;
+    private TimingWheel connectionWheel;
+
+    private final Object loadLock = new Object();
+    private volatile long lastLoadTime = 0;
+    private long loadedMaxId = 0;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        enable = "true".equalsIgnoreCase(StringUtils.defaultString(config("enable"), "true"));
+        if (!enable) {
+            logger.info("proxy recheck scheduler is not enable, use score slot query");
+            return;
+        }
+        loadDuration = NumberUtils.toLong(config("loadDuration"), 60000L);
+        long tick = NumberUtils.toLong(config("tick"), 1000L);
+        availableInterval = new Interval("available.");
+        connectionInterval = new Interval("connection.");
+        long now = System.currentTimeMillis();
+        // 1秒一格,4层可以覆盖194天
+        availableWheel = new TimingWheel(tick, 64, 4, now);
+        connectionWheel = new TimingWheel(tick, 64, 4, now);
+    }
+
+    private static String config(String key) {
+        return SysConfig.getInstance().get(PREFIX + key);
+    }
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * @return 到期需要做可用性检查的代理,最多max个
+     */
+    public List<ProxyModel> pollAvailable(int max) {
+        load();
+        long now = System.currentTimeMillis();
+        List<ProxyModel> ret = Lists.newArrayList();
+        for (Proxy proxy : fetch(availableWheel.poll(now, max))) {
+            // 和原来一样,连接不通的代理不做可用性检查
+            if (proxy.getConnectionScore() == null || proxy.getConnectionScore() <= 0) {
+                continue;
+            }
+            long score = score(proxy.getAvailbelScore());
+            availableWheel.schedule(proxy.getId(), now + availableInterval.next(score, score), score);
+            ret.add(beanMapper.map(proxy, ProxyModel.class));
+        }
+        return ret;
+    }
+
+    /**
+     * @return 到期需要做连接性检查的代理,最多max个
+     */
+    public List<ProxyModel> pollConnection(int max) {
+        load();
+        long now = System.currentTimeMillis();
+        List<ProxyModel> ret = Lists.newArrayList();
+        for (Proxy proxy : fetch(connectionWheel.poll(now, max))) {
+            long score = score(proxy.getConnectionScore());
+            connectionWheel.schedule(proxy.getId(), now + connectionInterval.next(score, score), score);
+            ret.add(beanMapper.map(proxy, ProxyModel.class));
+        }
+        return ret;
+    }
+
+    /**
+     * 按照主键读取到期的代理,已经被删除的代理从时间轮里去掉
+     */
+    private List<Proxy> fetch(long[] ids) {
+        if (ids.length == 0) {
+            return Lists.newArrayList();
+        }
+        List<Proxy> proxies = proxyRepository.selectByIds(Longs.asList(ids));
+        if (proxies.size() < ids.length) {
+            Set<Long> deleted = Sets.newHashSet(Longs.asList(ids));
+            for (Proxy proxy : proxies) {
+                deleted.remove(proxy.getId());
+            }
+            for (Long id : deleted) {
+                onProxyDeleted(id);
+            }
+        }
+        return proxies;
+    }
+
+    /**
+     * 按照id增量读取新增的代理,间隔loadDuration读取一次,第一次读取全部代理
+     */
+    private void load() {
+        if (System.currentTimeMillis() - lastLoadTime < loadDuration) {
+            return;
+        }
+        synchronized (loadLock) {
+            if (System.currentTimeMillis() - lastLoadTime < loadDuration) {
+                return;
+            }
+            long lastId = Math.max(0, loadedMaxId - LOAD_OVERLAP);
+            int loaded = 0;
+            while (true) {
+                List<Proxy> proxies = proxyRepository.selectAfterId(lastId, LOAD_PAGE_SIZE);
+                for (Proxy proxy : proxies) {
+                    if (!connectionWheel.contains(proxy.getId())) {
+                        scheduleNew(proxy);
+                        loaded++;
+                    }
+                    lastId = proxy.getId();
+                }
+                if (proxies.size() < LOAD_PAGE_SIZE) {
+                    break;
+                }
+            }
+            loadedMaxId = Math.max(loadedMaxId, lastId);
+            lastLoadTime = System.currentTimeMillis();
+            if (loaded > 0) {
+                logger.info("recheck scheduler load {} proxies, available:{} connection:{}", loaded,
+                        availableWheel.size(), connectionWheel.size());
+            }
+        }
+    }
+
+    /**
+     * 新读取的代理从上次检查的时间开始算,没有检查过的立即检查
+     */
+    private void scheduleNew(Proxy proxy) {
+        long now = System.currentTimeMillis();
+        long connectionScore = score(proxy.getConnectionScore());
+        connectionWheel.schedule(proxy.getId(), deadline(proxy.getConnectionScoreDate(),
+                connectionInterval.next(connectionScore, connectionScore), now), connectionScore);
+        if (connectionScore > 0) {
+            long availableScore = score(proxy.getAvailbelScore());
+            availableWheel.schedule(proxy.getId(), deadline(proxy.getAvailbelScoreDate(),
+                    availableInterval.next(availableScore, availableScore), now), availableScore);
+        }
+    }
+
+    /**
+     * 有新代理入库,下次poll的时候不等loadDuration直接增量读取
+     */
+    public void requestLoad() {
+        lastLoadTime = 0;
+    }
+
+    private static long deadline(Date lastCheck, long interval, long now) {
+        return lastCheck == null ? now : Math.min(lastCheck.getTime() + interval, now + interval);
+    }
+
+    /**
+     * 代理的打分发生变化之后重新调度,update只需要包含变化的字段
+     */
+    public void onProxyUpdated(ProxyModel update) {
+        if (!enable || update == null || update.getId() == null) {
+            return;
+        }
+        long id = update.getId();
+        long now = System.currentTimeMillis();
+        if (update.getConnectionScore() != null) {
+            long score = update.getConnectionScore();
+            long preScore = connectionWheel.value(id, score);
+            connectionWheel.schedule(id, now + connectionInterval.next(preScore, score), score);
+            if (score <= 0) {
+                availableWheel.cancel(id);
+            } else if (!availableWheel.contains(id)) {
+                // 连接从不通变成通,尽快做一次可用性检查
+                availableWheel.schedule(id, now, score(update.getAvailbelScore()));
+                return;
+            }
+        }
+        if (update.getAvailbelScore() != null && availableWheel.contains(id)) {
+            long score = update.getAvailbelScore();
+            long preScore = availableWheel.value(id, score);
+            availableWheel.schedule(id, now + availableInterval.next(preScore, score), score);
+        }
+    }
+
+    public void onProxyDeleted(Long id) {
+        if (!enable || id == null) {
+            return;
+        }
+        availableWheel.cancel(id);
+        connectionWheel.cancel(id);
+    }
+
+    private static long score(Long score) {
+        return score == null ? 0 : score;
+    }
+
+    /**
+     * 一种检查的间隔配置,有效(打分大于0)和无效的代理分别配置基础间隔和最大间隔
+     */
+    private static class Interval {
+        private final long validInterval;
+        private final long validMaxInterval;
+        private final long invalidInterval;
+        private final long invalidMaxInterval;
+
+        Interval(String prefix) {
+            validInterval = NumberUtils.toLong(config(prefix + "validInterval"), 60000L);
+            validMaxInterval = NumberUtils.toLong(config(prefix + "validMaxInterval"), 1800000L);
+            invalidInterval = NumberUtils.toLong(config(prefix + "invalidInterval"), 300000L);
+            invalidMaxInterval = NumberUtils.toLong(config(prefix + "invalidMaxInterval"), 86400000L);
+        }
+
+        long next(long preScore, long score) {
+            long base = score > 0 ? validInterval : invalidInterval;
+            long max = score > 0 ? validMaxInterval : invalidMaxInterval;
+            if (preScore > 0 && score < preScore) {// 有效的代理掉分了,尽快复查
+                return Math.min(base, max);
+            }
+            // 打分绝对值的对数,|score|<=1的时候为0
+            int level = 63 - Long.numberOfLeadingZeros(Math.max(1, Math.abs(score)));
+            if (level >= Long.numberOfLeadingZeros(base) - 1) {
+                return max;
+            }
+            return Math.min(base << level, max);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.virjar.dungproxy.server.scheduler;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Resource;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.virjar.dungproxy.server.distributer.DistributeIndex;
+import com.virjar.dungproxy.server.entity.ProxyScoreUpdate;
+import com.virjar.dungproxy.server.model.ProxyModel;
+import com.virjar.dungproxy.server.repository.ProxyRepository;
+import com.virjar.dungproxy.server.utils.NameThreadFactory;
+import com.virjar.dungproxy.server.utils.SysConfig;
+
+/**
+ * 验证器打分写回的缓冲。同一个代理的多次结果在内存里合并,字段以最后一次为准,连接打分的增量累加,
+ * 攒够validator.scoreBuffer.batchSize条或者到了flushDuration的时候用一条语句批量写回,原来每次验证一条update<br/>
+ * 分发索引和复查时间在提交的时候立即更新,不等写回数据库。还在缓冲里的代理不要再次验证({@link #isPending(Long)}),
+ * 否则会基于数据库里的旧打分重新计算
+ */
+@Component
+public class ProxyScoreBuffer implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(ProxyScoreBuffer.class);
+    private static final String ENABLE = "validator.scoreBuffer.enable";
+    private static final String BATCH_SIZE = "validator.scoreBuffer.batchSize";
+    private static final String FLUSH_DURATION = "validator.scoreBuffer.flushDuration";
+    private static final String MAX_PENDING = "validator.scoreBuffer.maxPending";
+    private static final String MAX_RETRY = "validator.scoreBuffer.maxRetry";
+
+    @Resource
+    private ProxyRepository proxyRepository;
+
+    @Resource
+    private DistributeIndex distributeIndex;
+
+    @Resource
+    private ProxyRecheckScheduler proxyRecheckScheduler;
+
+    // 提交结果的线程共享读锁,写回的时候拿写锁换一个新的map,换下来的map之后不会再被修改
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final Object flushLock = new Object();
+    private volatile ConcurrentMap<Long, ProxyScoreUpdate> pending = Maps.newConcurrentMap();
+    // 正在写回的那一批,写回完成之前也算作还没有落库
+    private volatile Map<Long, ProxyScoreUpdate> flushing = Maps.newHashMap();
+
+    private boolean enable = true;
+    private int batchSize = 500;
+    private int maxPending = 20000;
+    private int maxRetry = 3;
+    private ScheduledExecutorService flushExecutor;
+    private final AtomicBoolean sizeFlushScheduled = new AtomicBoolean(false);
+
+    private final AtomicLong flushCount = new AtomicLong(0);
+    private final AtomicLong batchCount = new AtomicLong(0);
+    private final AtomicLong rowCount = new AtomicLong(0);
+    private final AtomicLong failedRowCount = new AtomicLong(0);
+    private final AtomicLong retryRowCount = new AtomicLong(0);
+    private final AtomicLong totalFlushMillis = new AtomicLong(0);
+    private volatile long lastFlushMillis = 0;
+    private volatile long maxFlushMillis = 0;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            sizeFlushScheduled.set(false);
+            try {
+                flush();
+            } catch (Exception e) {
+                logger.error("flush proxy score failed", e);
+            }
+        }
+    };
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        enable = "true".equalsIgnoreCase(StringUtils.defaultString(SysConfig.getInstance().get(ENABLE), "true"));
+        batchSize = NumberUtils.toInt(SysConfig.getInstance().get(BATCH_SIZE), 500);
+        maxPending = NumberUtils.toInt(SysConfig.getInstance().get(MAX_PENDING), 20000);
+        maxRetry = NumberUtils.toInt(SysConfig.getInstance().get(MAX_RETRY), 3);
+        if (!enable) {
+            logger.info("proxy score buffer is not enable, flush on every offer");
+            return;
+        }
+        long duration = NumberUtils.toLong(SysConfig.getInstance().get(FLUSH_DURATION), 1000L);
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(new NameThreadFactory("score-flush"));
+        flushExecutor.scheduleWithFixedDelay(flushTask, duration, duration, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (flushExecutor != null) {
+            flushExecutor.shutdownNow();
+        }
+        flush();
+    }
+
+    public void offer(ProxyModel update) {
+        offer(update, 0);
+    }
+
+    /**
+     * @param update 需要修改的字段,只接收验证器写回的那些字段
+     * @param connectionScoreDelta 连接打分的增量,和update里面的连接打分同时存在的时候加在它上面
+     */
+    public void offer(ProxyModel update, long connectionScoreDelta) {
+        if (update.getId() == null) {
+            return;
+        }
+        swapLock.readLock().lock();
+        try {
+            ConcurrentMap<Long, ProxyScoreUpdate> pending = this.pending;
+            ProxyScoreUpdate scoreUpdate = pending.get(update.getId());
+            if (scoreUpdate == null) {
+                ProxyScoreUpdate newUpdate = new ProxyScoreUpdate();
+                newUpdate.setId(update.getId());
+                scoreUpdate = pending.putIfAbsent(update.getId(), newUpdate);
+                if (scoreUpdate == null) {
+                    scoreUpdate = newUpdate;
+                }
+            }
+            synchronized (scoreUpdate) {
+                merge(scoreUpdate, update, connectionScoreDelta);
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        distributeIndex.onProxyUpdated(update);
+        proxyRecheckScheduler.onProxyUpdated(update);
+
+        if (!enable) {
+            flush();
+        } else if (pending.size() >= maxPending) {
+            logger.warn("too many pending proxy score:{}, flush in validator thread", pending.size());
+            flush();
+        } else if (pending.size() >= batchSize && sizeFlushScheduled.compareAndSet(false, true)) {
+            flushExecutor.execute(flushTask);
+        }
+    }
+
+    private void merge(ProxyScoreUpdate scoreUpdate, ProxyModel update, long connectionScoreDelta) {
+        if (update.getProxyIp() != null) {
+            scoreUpdate.setProxyIp(update.getProxyIp());
+        }
+        if (update.getTransperent() != null) {
+            scoreUpdate.setTransperent(update.getTransperent());
+        }
+        if (update.getSpeed() != null) {
+            scoreUpdate.setSpeed(update.getSpeed());
+        }
+        if (update.getType() != null) {
+            scoreUpdate.setType(update.getType());
+        }
+        if (update.getLostheader() != null) {
+            scoreUpdate.setLostheader(update.getLostheader());
+        }
+        if (update.getAvailbelScore() != null) {
+            scoreUpdate.setAvailbelScore(update.getAvailbelScore());
+        }
+        if (update.getAvailbelScoreDate() != null) {
+            scoreUpdate.setAvailbelScoreDate(update.getAvailbelScoreDate());
+        }
+        if (update.getConnectionScore() != null) {
+            // 新的绝对值已经包含了之前的结果,之前攒下的增量作废
+            scoreUpdate.setConnectionScore(update.getConnectionScore());
+            scoreUpdate.setConnectionScoreDelta(0);
+        }
+        scoreUpdate.setConnectionScoreDelta(scoreUpdate.getConnectionScoreDelta() + connectionScoreDelta);
+        if (update.getConnectionScoreDate() != null) {
+            scoreUpdate.setConnectionScoreDate(update.getConnectionScoreDate());
+        }
+    }
+
+    /**
+     * @return 这个代理是否还有没有落库的验证结果
+     */
+    public boolean isPending(Long id) {
+        return pending.containsKey(id) || flushing.containsKey(id);
+    }
+
+    public void flush() {
+        synchronized (flushLock) {
+            ConcurrentMap<Long, ProxyScoreUpdate> toFlush;
+            swapLock.writeLock().lock();
+            try {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                toFlush = pending;
+                flushing = toFlush;
+                pending = Maps.newConcurrentMap();
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            long start = System.currentTimeMillis();
+            try {
+                for (List<ProxyScoreUpdate> batch : Lists.partition(Lists.newArrayList(toFlush.values()), batchSize)) {
+                    try {
+                        proxyRepository.updateScoreBatch(batch);
+                        rowCount.addAndGet(batch.size());
+                    } catch (Exception e) {
+                        logger.error("flush proxy score failed, size:{}", batch.size(), e);
+                        retry(batch);
+                    }
+                    batchCount.incrementAndGet();
+                }
+            } finally {
+                flushing = Maps.newHashMap();
+            }
+            long cost = System.currentTimeMillis() - start;
+            flushCount.incrementAndGet();
+            totalFlushMillis.addAndGet(cost);
+            lastFlushMillis = cost;
+            if (cost > maxFlushMillis) {
+                maxFlushMillis = cost;
+            }
+        }
+    }
+
+    /**
+     * 写回失败的结果放回缓冲,和之后提交的结果合并,下次写回的时候重试。重试maxRetry次还失败的丢弃,
+     * 同时从分发索引里面移除,等索引下次从数据库重新加载,否则索引里面一直是没有落库的打分
+     */
+    private void retry(List<ProxyScoreUpdate> batch) {
+        List<Long> dropped = Lists.newArrayList();
+        swapLock.readLock().lock();
+        try {
+            ConcurrentMap<Long, ProxyScoreUpdate> pending = this.pending;
+            for (ProxyScoreUpdate failed : batch) {
+                if (failed.getRetries() >= maxRetry) {
+                    dropped.add(failed.getId());
+                    continue;
+                }
+                failed.setRetries(failed.getRetries() + 1);
+                ProxyScoreUpdate newer = pending.putIfAbsent(failed.getId(), failed);
+                if (newer != null) {
+                    synchronized (newer) {
+                        mergeOlder(newer, failed);
+                    }
+                }
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        retryRowCount.addAndGet(batch.size() - dropped.size());
+        if (!dropped.isEmpty()) {
+            failedRowCount.addAndGet(dropped.size());
+            logger.error("drop {} proxy score after {} retries", dropped.size(), maxRetry);
+            distributeIndex.onProxiesDeleted(dropped);
+        }
+    }
+
+    /**
+     * 失败的旧结果合并到之后提交的新结果里面,新结果已经有的字段以新结果为准,连接打分的增量累加
+     */
+    private void mergeOlder(ProxyScoreUpdate newer, ProxyScoreUpdate older) {
+        if (newer.getProxyIp() == null) {
+            newer.setProxyIp(older.getProxyIp());
+        }
+        if (newer.getTransperent() == null) {
+            newer.setTransperent(older.getTransperent());
+        }
+        if (newer.getSpeed() == null) {
+            newer.setSpeed(older.getSpeed());
+        }
+        if (newer.getType() == null) {
+            newer.setType(older.getType());
+        }
+        if (newer.getLostheader() == null) {
+            newer.setLostheader(older.getLostheader());
+        }
+        if (newer.getAvailbelScore() == null) {
+            newer.setAvailbelScore(older.getAvailbelScore());
+        }
+        if (newer.getAvailbelScoreDate() == null) {
+            newer.setAvailbelScoreDate(older.getAvailbelScoreDate());
+        }
+        if (newer.getConnectionScore() == null) {
+            // 新结果只有增量,基于旧结果的绝对值和增量继续累加
+            newer.setConnectionScore(older.getConnectionScore());
+            newer.setConnectionScoreDelta(older.getConnectionScoreDelta() + newer.getConnectionScoreDelta());
+        }
+        if (newer.getConnectionScoreDate() == null) {
+            newer.setConnectionScoreDate(older.getConnectionScoreDate());
+        }
+        newer.setRetries(Math.max(newer.getRetries(), older.getRetries()));
+    }
+
+    /**
+     * @return 写回的统计信息,flush是写回次数,batch是语句数,retryRows是失败之后放回缓冲的行数,
+     *         failedRows是重试之后还失败丢弃的行数,rowsPerBatch是平均每条语句更新的代理数,latency单位毫秒
+     */
+    public Map<String, Object> statistics() {
+        Map<String, Object> ret = Maps.newLinkedHashMap();
+        long flushes = flushCount.get();
+        long batches = batchCount.get();
+        ret.put("pending", pending.size());
+        ret.put("flush", flushes);
+        ret.put("batch", batches);
+        ret.put("rows", rowCount.get());
+        ret.put("retryRows", retryRowCount.get());
+        ret.put("failedRows", failedRowCount.get());
+        ret.put("rowsPerBatch",
+                batches == 0 ? 0 : (rowCount.get() + retryRowCount.get() + failedRowCount.get()) / batches);
+        ret.put("avgLatency", flushes == 0 ? 0 : totalFlushMillis.get() / flushes);
+        ret.put("lastLatency", lastFlushMillis);
+        ret.put("maxLatency", maxFlushMillis);
+        return ret;
+    }
+}
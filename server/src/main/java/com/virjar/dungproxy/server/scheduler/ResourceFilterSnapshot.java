@@ -0,0 +1,125 @@
+package com.virjar.dungproxy.server.scheduler;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Component;
+
+import com.virjar.dungproxy.server.entity.Proxy;
+import com.virjar.dungproxy.server.repository.ProxyRepository;
+import com.virjar.dungproxy.server.utils.NameThreadFactory;
+import com.virjar.dungproxy.server.utils.ResourceFilter;
+import com.virjar.dungproxy.server.utils.SysConfig;
+
+/**
+ * {@link ResourceFilter}的持久化。启动的时候先读快照,再从代理表批量补齐(快照里面还有已经从代理表删除的资源,避免被重新收录),
+ * 之后定时写快照,停止的时候再写一次
+ */
+@Component
+public class ResourceFilterSnapshot implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(ResourceFilterSnapshot.class);
+    private static final int REBUILD_PAGE_SIZE = 5000;
+
+    @Resource
+    private ProxyRepository proxyRepository;
+
+    private File snapshotFile;
+    private ScheduledExecutorService executor;
+    // 快照读取完成之前不能写快照,否则会用不完整的集合覆盖原来的快照
+    private volatile boolean loaded = false;
+    private int savedSize = -1;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        String path = SysConfig.getInstance().get("resource.filter.snapshot");
+        if (StringUtils.isBlank(path)) {
+            path = System.getProperty("user.home") + "/.dungproxy/resourceFilter.snapshot";
+        }
+        snapshotFile = new File(path);
+        long duration = NumberUtils.toLong(SysConfig.getInstance().get("resource.filter.snapshotDuration"), 600000L);
+        executor = Executors.newSingleThreadScheduledExecutor(new NameThreadFactory("resource-filter"));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                rebuild();
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, duration, duration, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdownNow();
+        save();
+    }
+
+    private void load() {
+        try {
+            if (snapshotFile.exists()) {
+                long start = System.currentTimeMillis();
+                int size = ResourceFilter.loadSnapshot(snapshotFile);
+                logger.info("load resource filter snapshot {} resources, cost:{}ms", size,
+                        System.currentTimeMillis() - start);
+            }
+            loaded = true;
+        } catch (Exception e) {
+            // 快照损坏的时候不再覆盖它,留给人工处理,只从代理表恢复
+            logger.error("load resource filter snapshot {} failed", snapshotFile, e);
+        }
+    }
+
+    private void rebuild() {
+        long start = System.currentTimeMillis();
+        long lastId = 0;
+        int total = 0;
+        try {
+            while (true) {
+                List<Proxy> proxies = proxyRepository.selectIpPortAfterId(lastId, REBUILD_PAGE_SIZE);
+                for (Proxy proxy : proxies) {
+                    ResourceFilter.addConflict(proxy);
+                    lastId = proxy.getId();
+                }
+                total += proxies.size();
+                if (proxies.size() < REBUILD_PAGE_SIZE) {
+                    break;
+                }
+            }
+            logger.info("rebuild resource filter from {} proxies, filter size:{} cost:{}ms", total,
+                    ResourceFilter.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            logger.error("rebuild resource filter failed at proxy id {}", lastId, e);
+        }
+    }
+
+    private synchronized void save() {
+        if (!loaded) {
+            return;
+        }
+        int size = ResourceFilter.size();
+        if (size == savedSize) {// 只会增加,数量没变就是没有新资源
+            return;
+        }
+        try {
+            savedSize = ResourceFilter.saveSnapshot(snapshotFile);
+        } catch (Exception e) {
+            logger.error("save resource filter snapshot {} failed", snapshotFile, e);
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package com.virjar.dungproxy.server.scheduler.checker;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import com.alibaba.fastjson.JSON;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.virjar.dungproxy.server.model.AvailbelCheckResponse;
+import com.virjar.dungproxy.server.model.ProxyModel;
+import com.virjar.dungproxy.server.utils.Constant;
+import com.virjar.dungproxy.server.utils.JSONUtils;
+import com.virjar.dungproxy.server.utils.ProxyType;
+import com.virjar.dungproxy.server.utils.SysConfig;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelException;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.proxy.HttpProxyHandler;
+import io.netty.handler.proxy.ProxyConnectionEvent;
+import io.netty.handler.proxy.ProxyHandler;
+import io.netty.handler.proxy.Socks4ProxyHandler;
+import io.netty.handler.proxy.Socks5ProxyHandler;
+import io.netty.resolver.NoopAddressResolverGroup;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * 非阻塞的代理验证引擎,替代可用性验证和连接性验证里面一个检查占用一个线程的做法<br/>
+ * HTTP代理直接发送绝对地址的GET;HTTPS代理先CONNECT,再在隧道里面发送GET;SOCKS代理先做SOCKS5握手,连接上之后握手失败的再试一次SOCKS4。
+ * 握手使用netty的状态机,几个事件循环线程就可以同时挂几万个检查,每个阶段有自己的截止时间<br/>
+ * 返回的future在事件循环线程上完成,回调里面不要直接做数据库之类的阻塞操作,需要指定其他的executor
+ */
+@Component
+public class NioProxyChecker implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(NioProxyChecker.class);
+    private static final String ENABLE = "validator.nio.enable";
+    private static final String THREADS = "validator.nio.threads";
+    private static final String MAX_CONCURRENT = "validator.nio.maxConcurrent";
+    private static final String CONNECT_TIMEOUT = "validator.nio.connectTimeout";
+    private static final String CHECK_TIMEOUT = "validator.nio.checkTimeout";
+    private static final String CONNECT_CHECK_TIMEOUT = "validator.nio.connectCheckTimeout";
+    private static final int MAX_RESPONSE_SIZE = 64 * 1024;
+
+    private enum Stage {
+        HTTP, CONNECT, SOCKS5, SOCKS4
+    }
+
+    private interface StageListener {
+        /**
+         * @param response 检查通过的时候不为null
+         * @param handshakeRejected 连接上了代理,但是握手没有通过
+         */
+        void onComplete(AvailbelCheckResponse response, boolean handshakeRejected);
+    }
+
+    private final boolean enable;
+    private final EventLoopGroup group;
+    private final int maxConcurrent;
+    private final int connectTimeout;
+    private final int checkTimeout;
+    private final int connectCheckTimeout;
+
+    private final String checkUrl;
+    private final String checkHost;
+    private final int checkPort;
+    private final String checkHostHeader;
+    private final String checkPath;
+    // SOCKS4不支持域名,提前解析一次,解析不到的时候交给代理解析(SOCKS4a)
+    private final InetSocketAddress resolvedCheckAddress;
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    public NioProxyChecker() {
+        this("true".equalsIgnoreCase(StringUtils.defaultString(SysConfig.getInstance().get(ENABLE), "true")),
+                SysConfig.getInstance().getKeyverifyurl(),
+                NumberUtils.toInt(SysConfig.getInstance().get(THREADS), Runtime.getRuntime().availableProcessors()),
+                NumberUtils.toInt(SysConfig.getInstance().get(MAX_CONCURRENT), 10000),
+                NumberUtils.toInt(SysConfig.getInstance().get(CONNECT_TIMEOUT), 3000),
+                NumberUtils.toInt(SysConfig.getInstance().get(CHECK_TIMEOUT), 5000),
+                NumberUtils.toInt(SysConfig.getInstance().get(CONNECT_CHECK_TIMEOUT), 4000));
+    }
+
+    /**
+     * @param checkUrl 可用性验证接口,也就是system.availablecheck.url
+     * @param threads 事件循环线程数
+     * @param maxConcurrent 同时进行的检查数量上限,由调用方通过{@link #isBusy()}控制
+     * @param connectTimeout 可用性验证连接代理的超时时间
+     * @param checkTimeout 可用性验证连接建立之后,握手和读取响应的超时时间
+     * @param connectCheckTimeout 连接性验证的超时时间
+     */
+    public NioProxyChecker(boolean enable, String checkUrl, int threads, int maxConcurrent, int connectTimeout,
+            int checkTimeout, int connectCheckTimeout) {
+        this.enable = enable;
+        this.maxConcurrent = maxConcurrent;
+        this.connectTimeout = connectTimeout;
+        this.checkTimeout = checkTimeout;
+        this.connectCheckTimeout = connectCheckTimeout;
+        // 线程是第一次提交任务的时候才启动的,没有启用的时候不占用资源
+        this.group = new NioEventLoopGroup(threads, new DefaultThreadFactory("nio-proxy-check", true));
+
+        this.checkUrl = checkUrl;
+        URI uri = URI.create(checkUrl);
+        this.checkHost = uri.getHost();
+        this.checkPort = uri.getPort() > 0 ? uri.getPort() : 80;
+        this.checkHostHeader = uri.getPort() > 0 ? checkHost + ":" + checkPort : checkHost;
+        this.checkPath = StringUtils.defaultIfEmpty(uri.getRawPath(), "/");
+        InetSocketAddress resolved;
+        try {
+            resolved = new InetSocketAddress(InetAddress.getByName(checkHost), checkPort);
+        } catch (Exception e) {
+            logger.warn("can not resolve check host:{}, socks4 check will use socks4a", checkHost);
+            resolved = InetSocketAddress.createUnresolved(checkHost, checkPort);
+        }
+        this.resolvedCheckAddress = resolved;
+    }
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return 正在进行的检查数量
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public boolean isBusy() {
+        return inFlight.get() >= maxConcurrent;
+    }
+
+    /**
+     * 和ProxyUtil.validateProxyAvailable的判定逻辑一致,类型未知的时候先按照HTTP代理检查,失败之后再按照SOCKS代理检查
+     *
+     * @return 检查不通过的时候结果为null,不会以异常结束
+     */
+    public ListenableFuture<AvailbelCheckResponse> checkAvailable(final ProxyModel proxy) {
+        final SettableFuture<AvailbelCheckResponse> result = track(SettableFuture.<AvailbelCheckResponse> create());
+        List<Stage> stages = Lists.newArrayListWithCapacity(2);
+        if (proxy.getType() == null) {
+            stages.add(Stage.HTTP);
+            stages.add(Stage.SOCKS5);
+        } else {
+            ProxyType type = ProxyType.from(proxy.getType());
+            if (type == null) {
+                logger.error("不能识别的已定义代理类型:{},代理为:{}", proxy.getType(), JSON.toJSONString(proxy));
+            } else {
+                switch (type) {
+                case HTTP:
+                case HTTPHTTPS:
+                    stages.add(Stage.HTTP);
+                    break;
+                case HTTPS:
+                    stages.add(Stage.CONNECT);
+                    break;
+                case SOCKET:
+                    stages.add(Stage.SOCKS5);
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+        runStages(proxy, stages, 0, result);
+        return result;
+    }
+
+    private void runStages(final ProxyModel proxy, final List<Stage> stages, final int index,
+            final SettableFuture<AvailbelCheckResponse> result) {
+        if (index >= stages.size()) {
+            result.set(null);
+            return;
+        }
+        final Stage stage = stages.get(index);
+        check(proxy, stage, new StageListener() {
+            @Override
+            public void onComplete(AvailbelCheckResponse response, boolean handshakeRejected) {
+                if (response != null) {
+                    result.set(response);
+                } else if (stage == Stage.SOCKS5 && handshakeRejected) {
+                    check(proxy, Stage.SOCKS4, new StageListener() {
+                        @Override
+                        public void onComplete(AvailbelCheckResponse response, boolean handshakeRejected) {
+                            if (response != null) {
+                                result.set(response);
+                            } else {
+                                runStages(proxy, stages, index + 1, result);
+                            }
+                        }
+                    });
+                } else {
+                    runStages(proxy, stages, index + 1, result);
+                }
+            }
+        });
+    }
+
+    /**
+     * 和ProxyUtil.validateProxyConnect一致,只检查TCP连接能否建立
+     *
+     * @return 连接成功为true,连接失败为false,本地资源不足无法发起连接的时候为null
+     */
+    public ListenableFuture<Boolean> checkConnect(String ip, int port) {
+        final SettableFuture<Boolean> result = track(SettableFuture.<Boolean> create());
+        Bootstrap bootstrap = newBootstrap(connectCheckTimeout).handler(new ChannelInboundHandlerAdapter());
+        try {
+            bootstrap.connect(new InetSocketAddress(ip, port)).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        future.channel().close();
+                        result.set(true);
+                    } else {
+                        // 日志级别为debug,失败的IP数量非常多
+                        result.set(future.cause() instanceof ChannelException ? null : Boolean.FALSE);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            result.set(null);
+        }
+        return result;
+    }
+
+    private <T> SettableFuture<T> track(SettableFuture<T> future) {
+        inFlight.incrementAndGet();
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                inFlight.decrementAndGet();
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private Bootstrap newBootstrap(int connectTimeout) {
+        return new Bootstrap().group(group).channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                // 目标地址交给代理解析,不能在事件循环里面做DNS查询
+                .resolver(NoopAddressResolverGroup.INSTANCE);
+    }
+
+    private void check(final ProxyModel proxy, final Stage stage, StageListener listener) {
+        final InetSocketAddress proxyAddress = new InetSocketAddress(proxy.getIp(), proxy.getPort());
+        final CheckHandler checkHandler = new CheckHandler(stage, proxy, listener);
+        Bootstrap bootstrap = newBootstrap(connectTimeout).handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ChannelPipeline pipeline = ch.pipeline();
+                ProxyHandler proxyHandler = null;
+                switch (stage) {
+                case CONNECT:
+                    proxyHandler = new HttpProxyHandler(proxyAddress);
+                    break;
+                case SOCKS5:
+                    proxyHandler = new Socks5ProxyHandler(proxyAddress);
+                    break;
+                case SOCKS4:
+                    proxyHandler = new Socks4ProxyHandler(proxyAddress);
+                    break;
+                default:
+                    break;
+                }
+                if (proxyHandler != null) {
+                    proxyHandler.setConnectTimeoutMillis(checkTimeout);
+                    pipeline.addLast(proxyHandler);
+                }
+                pipeline.addLast(new HttpClientCodec());
+                pipeline.addLast(new HttpObjectAggregator(MAX_RESPONSE_SIZE));
+                pipeline.addLast(checkHandler);
+            }
+        });
+        InetSocketAddress remote;
+        switch (stage) {
+        case HTTP:
+            remote = proxyAddress;
+            break;
+        case SOCKS4:
+            remote = resolvedCheckAddress;
+            break;
+        default:
+            remote = InetSocketAddress.createUnresolved(checkHost, checkPort);
+            break;
+        }
+        try {
+            ChannelFuture connectFuture = bootstrap.connect(remote);
+            final Channel channel = connectFuture.channel();
+            connectFuture.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        checkHandler.finish(channel, null, false);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            checkHandler.finish(null, null, false);
+        }
+    }
+
+    private class CheckHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+        private final Stage stage;
+        private final ProxyModel proxy;
+        private final StageListener listener;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private final long start = System.currentTimeMillis();
+        private boolean connected = false;
+        private boolean handshaked = false;
+        private ScheduledFuture<?> deadline;
+
+        CheckHandler(Stage stage, ProxyModel proxy, StageListener listener) {
+            this.stage = stage;
+            this.proxy = proxy;
+            this.listener = listener;
+        }
+
+        /**
+         * 整个检查的截止时间。handler是在channel注册之后由事件循环加入的,在这里设置才不会错过,
+         * 代理接受连接之后不再响应的时候靠它结束检查
+         */
+        @Override
+        public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+            deadline = ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    finish(ctx.channel(), null, false);
+                }
+            }, connectTimeout + checkTimeout, TimeUnit.MILLISECONDS);
+            super.handlerAdded(ctx);
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            connected = true;
+            if (stage == Stage.HTTP) {
+                handshaked = true;
+                ctx.writeAndFlush(newRequest(checkUrl + "?ip=" + proxy.getIp() + "&port=" + proxy.getPort()));
+            }
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof ProxyConnectionEvent) {
+                handshaked = true;
+                String uri = checkPath;
+                if (stage == Stage.CONNECT) {
+                    uri = uri + "?ip=" + proxy.getIp() + "&port=" + proxy.getPort();
+                }
+                ctx.writeAndFlush(newRequest(uri));
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        private FullHttpRequest newRequest(String uri) {
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+            request.headers().set(HttpHeaderNames.HOST, checkHostHeader);
+            request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            request.headers().set(Constant.HEADER_CHECK_HEADER, Constant.HEADER_CHECK_VALUE);
+            return request;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) throws Exception {
+            String response = msg.content().toString(CharsetUtil.UTF_8);
+            AvailbelCheckResponse availbelCheckResponse = JSONUtils.parse(response, AvailbelCheckResponse.class);
+            if (availbelCheckResponse != null
+                    && AvailbelCheckResponse.staticKey.equals(availbelCheckResponse.getKey())) {
+                availbelCheckResponse.setSpeed(System.currentTimeMillis() - start);
+                availbelCheckResponse.setType(typeOf(stage).getType());
+                finish(ctx.channel(), availbelCheckResponse, false);
+                return;
+            } else if (StringUtils.isNotBlank(response) && SysConfig.getInstance().recordFaildResponse()) {
+                logger.info("checker error response is {}", response);
+            }
+            finish(ctx.channel(), null, false);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            finish(ctx.channel(), null, connected && !handshaked);
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            // 握手失败也从这里报告,日志量太大,不打印
+            finish(ctx.channel(), null, connected && !handshaked);
+        }
+
+        private ProxyType typeOf(Stage stage) {
+            switch (stage) {
+            case HTTP:
+                return ProxyType.HTTP;
+            case CONNECT:
+                return ProxyType.HTTPS;
+            default:
+                return ProxyType.SOCKET;
+            }
+        }
+
+        void finish(Channel channel, AvailbelCheckResponse response, boolean handshakeRejected) {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            if (channel != null) {
+                channel.close();
+            }
+            listener.onComplete(response, handshakeRejected);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        group.shutdownGracefully();
+    }
+}
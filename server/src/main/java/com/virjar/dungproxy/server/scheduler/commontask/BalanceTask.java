@@ -11,6 +11,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Component;
 
+import com.virjar.dungproxy.server.distributer.DistributeIndex;
 import com.virjar.dungproxy.server.entity.Proxy;
 import com.virjar.dungproxy.server.repository.ProxyLowQualityRepository;
 import com.virjar.dungproxy.server.repository.ProxyRepository;
@@ -31,6 +32,9 @@ public class BalanceTask extends CommonTask {
     @Autowired
     private ProxyLowQualityRepository proxyLowQualityRepository;
 
+    @Autowired
+    private DistributeIndex distributeIndex;
+
     private static final int batchSize = 1000;
 
 
@@ -56,6 +60,7 @@ public class BalanceTask extends CommonTask {
                 ids.add(proxy.getId());
             }
             proxyRepository.deleteBatch(ids);
+            distributeIndex.onProxiesDeleted(ids);
         }
 
     }
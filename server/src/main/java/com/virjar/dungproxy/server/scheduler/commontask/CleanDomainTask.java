@@ -8,6 +8,7 @@ import org.apache.commons.lang3.math.NumberUtils;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Component;
 
+import com.virjar.dungproxy.server.distributer.DistributeIndex;
 import com.virjar.dungproxy.server.model.DomainMetaModel;
 import com.virjar.dungproxy.server.repository.DomainIpRepository;
 import com.virjar.dungproxy.server.service.DomainMetaService;
@@ -31,6 +32,9 @@ public class CleanDomainTask extends CommonTask {
     @Resource
     private DomainIpRepository domainIpRepository;
 
+    @Resource
+    private DistributeIndex distributeIndex;
+
     public CleanDomainTask() {
         super(NumberUtils.toInt(SysConfig.getInstance().get(DURATION), 176400000));
         beforeStep = NumberUtils.toInt(SysConfig.getInstance().get(STEP), 10);
@@ -51,6 +55,7 @@ public class CleanDomainTask extends CommonTask {
 
     private void clean(DomainMetaModel domainMetaModel) {
         domainIpRepository.deleteByDomain(domainMetaModel.getDomain());
+        distributeIndex.onDomainDeleted(domainMetaModel.getDomain());
         domainMetaService.deleteByPrimaryKey(domainMetaModel.getId());
     }
 }
@@ -18,6 +18,7 @@ import com.alibaba.fastjson.JSONObject;
 import com.alibaba.fastjson.parser.Feature;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.RateLimiter;
+import com.virjar.dungproxy.server.distributer.DistributeIndex;
 import com.virjar.dungproxy.server.entity.Proxy;
 import com.virjar.dungproxy.server.repository.ProxyRepository;
 import com.virjar.dungproxy.server.utils.SysConfig;
@@ -35,6 +36,9 @@ public class TaobaoAreaTask extends CommonTask {
     @Resource
     private ProxyRepository proxyRepository;
 
+    @Resource
+    private DistributeIndex distributeIndex;
+
     private static final int batchSize = 1000;
     private Integer maxPage = null;
     private Integer nowPage = 0;
@@ -109,6 +113,7 @@ public class TaobaoAreaTask extends CommonTask {
                     continue;
                 }
                 proxyRepository.updateByPrimaryKeySelective(area);
+                distributeIndex.onProxyUpdated(area);
             } catch (Exception e) {
                 logger.error("同步地址信息失败 ", e);
             }
@@ -16,6 +16,7 @@ import org.springframework.transaction.annotation.Transactional;
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import com.virjar.dungproxy.server.core.beanmapper.BeanMapper;
+import com.virjar.dungproxy.server.distributer.DistributeIndex;
 import com.virjar.dungproxy.server.entity.DomainIp;
 import com.virjar.dungproxy.server.model.DomainIpModel;
 import com.virjar.dungproxy.server.model.ProxyModel;
@@ -35,6 +36,9 @@ public class DomainIpServiceImpl implements DomainIpService {
     @Resource
     private ProxyRepository proxyRepository;
 
+    @Resource
+    private DistributeIndex distributeIndex;
+
     @Transactional
     @Override
     public int create(DomainIpModel domainIpModel) {
@@ -57,14 +61,18 @@ public class DomainIpServiceImpl implements DomainIpService {
             }
             domainIp.setDomainScoreDate(new Date());
             domainIp.setTestUrl(domainIpModel.getTestUrl());
-            return domainIpRepo.updateByPrimaryKeySelective(domainIp);
+            int ret = domainIpRepo.updateByPrimaryKeySelective(domainIp);
+            distributeIndex.onDomainIpUpdated(domainIp);
+            return ret;
         } else {
             // insert
             if (domainIp.getDomainScore() == null) {
                 domainIp.setDomainScore(1L);
             }
             domainIp.setCreatetime(new Date());
-            return domainIpRepo.insert(domainIp);
+            int ret = domainIpRepo.insert(domainIp);
+            distributeIndex.onDomainIpUpdated(domainIp);
+            return ret;
         }
     }
 
@@ -77,7 +85,9 @@ public class DomainIpServiceImpl implements DomainIpService {
     @Transactional
     @Override
     public int deleteByPrimaryKey(Long id) {
-        return domainIpRepo.deleteByPrimaryKey(id);
+        int ret = domainIpRepo.deleteByPrimaryKey(id);
+        distributeIndex.onDomainIpDeleted(id);
+        return ret;
     }
 
     @Transactional(readOnly = true)
@@ -96,13 +106,19 @@ public class DomainIpServiceImpl implements DomainIpService {
     @Transactional
     @Override
     public int updateByPrimaryKey(DomainIpModel domainIpModel) {
-        return domainIpRepo.updateByPrimaryKey(beanMapper.map(domainIpModel, DomainIp.class));
+        DomainIp domainIp = beanMapper.map(domainIpModel, DomainIp.class);
+        int ret = domainIpRepo.updateByPrimaryKey(domainIp);
+        distributeIndex.onDomainIpUpdated(domainIp);
+        return ret;
     }
 
     @Transactional
     @Override
     public int updateByPrimaryKeySelective(DomainIpModel domainIpModel) {
-        return domainIpRepo.updateByPrimaryKeySelective(beanMapper.map(domainIpModel, DomainIp.class));
+        DomainIp domainIp = beanMapper.map(domainIpModel, DomainIp.class);
+        int ret = domainIpRepo.updateByPrimaryKeySelective(domainIp);
+        distributeIndex.onDomainIpUpdated(domainIp);
+        return ret;
     }
 
     @Transactional(readOnly = true)
@@ -162,6 +178,7 @@ public class DomainIpServiceImpl implements DomainIpService {
                 }
             });
             domainIpRepo.deleteBatch(ids);
+            distributeIndex.onDomainIpsDeleted(ids);
         }
 
     }
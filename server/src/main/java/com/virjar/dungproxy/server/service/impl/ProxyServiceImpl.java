@@ -17,10 +17,12 @@ import org.springframework.transaction.annotation.Transactional;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.virjar.dungproxy.server.core.beanmapper.BeanMapper;
+import com.virjar.dungproxy.server.distributer.DistributeIndex;
 import com.virjar.dungproxy.server.entity.Proxy;
 import com.virjar.dungproxy.server.model.ProxyModel;
 import com.virjar.dungproxy.server.repository.ProxyRepository;
-import com.virjar.dungproxy.server.scheduler.NonePortResourceTester;
+import com.virjar.dungproxy.server.scheduler.ProxyIngestion;
+import com.virjar.dungproxy.server.scheduler.ProxyRecheckScheduler;
 import com.virjar.dungproxy.server.service.ProxyService;
 import com.virjar.dungproxy.server.utils.ResourceFilter;
 import com.virjar.dungproxy.server.utils.SysConfig;
@@ -33,6 +35,15 @@ public class ProxyServiceImpl implements ProxyService {
     @Resource
     private ProxyRepository proxyRepo;
 
+    @Resource
+    private DistributeIndex distributeIndex;
+
+    @Resource
+    private ProxyRecheckScheduler proxyRecheckScheduler;
+
+    @Resource
+    private ProxyIngestion proxyIngestion;
+
     private int avaliableValidBatchSize;
     private int avaliableInValidBatchSize;
 
@@ -97,7 +108,10 @@ public class ProxyServiceImpl implements ProxyService {
     @Transactional
     @Override
     public int deleteByPrimaryKey(Long id) {
-        return proxyRepo.deleteByPrimaryKey(id);
+        int ret = proxyRepo.deleteByPrimaryKey(id);
+        distributeIndex.onProxyDeleted(id);
+        proxyRecheckScheduler.onProxyDeleted(id);
+        return ret;
     }
 
     @Transactional(readOnly = true)
@@ -116,13 +130,19 @@ public class ProxyServiceImpl implements ProxyService {
     @Transactional
     @Override
     public int updateByPrimaryKey(ProxyModel proxyModel) {
-        return proxyRepo.updateByPrimaryKey(beanMapper.map(proxyModel, Proxy.class));
+        int ret = proxyRepo.updateByPrimaryKey(beanMapper.map(proxyModel, Proxy.class));
+        distributeIndex.onProxyUpdated(proxyModel);
+        proxyRecheckScheduler.onProxyUpdated(proxyModel);
+        return ret;
     }
 
     @Transactional
     @Override
     public int updateByPrimaryKeySelective(ProxyModel proxyModel) {
-        return proxyRepo.updateByPrimaryKeySelective(beanMapper.map(proxyModel, Proxy.class));
+        int ret = proxyRepo.updateByPrimaryKeySelective(beanMapper.map(proxyModel, Proxy.class));
+        distributeIndex.onProxyUpdated(proxyModel);
+        proxyRecheckScheduler.onProxyUpdated(proxyModel);
+        return ret;
     }
 
     @Transactional(readOnly = true)
@@ -134,7 +154,9 @@ public class ProxyServiceImpl implements ProxyService {
 
     @Override
     public List<ProxyModel> find4availableupdate() {
-
+        if (proxyRecheckScheduler.isEnable()) {
+            return proxyRecheckScheduler.pollAvailable(avaliableValidBatchSize + avaliableInValidBatchSize);
+        }
         int slot, frame;
         Proxy queryProxy = new Proxy();
         List<Proxy> ret = Lists.newArrayList();
@@ -199,6 +221,9 @@ public class ProxyServiceImpl implements ProxyService {
 
     @Override
     public List<ProxyModel> find4connectionupdate() {
+        if (proxyRecheckScheduler.isEnable()) {
+            return proxyRecheckScheduler.pollConnection(connectionValidBatchSize + connectionInValidBatchSize);
+        }
         int slot, frame;
         Proxy queryProxy = new Proxy();
         List<Proxy> ret = Lists.newArrayList();
@@ -264,20 +289,7 @@ public class ProxyServiceImpl implements ProxyService {
 
     @Override
     public void save(List<ProxyModel> draftproxys) {
-        for (Proxy proxy : beanMapper.mapAsList(draftproxys, Proxy.class)) {
-            if (proxy.getPort() != null) {
-                Proxy queryProxy = new Proxy();
-                queryProxy.setIp(proxy.getIp());
-                queryProxy.setPort(proxy.getPort());
-                if (proxyRepo.selectCount(queryProxy) >= 1) {
-                    ResourceFilter.addConflict(proxy);
-                } else {
-                    proxyRepo.insertSelective(proxy);
-                }
-            } else {
-                NonePortResourceTester.sendIp(proxy.getIp());
-            }
-        }
+        proxyIngestion.ingest("proxyService", beanMapper.mapAsList(draftproxys, Proxy.class));
     }
 
     @Override
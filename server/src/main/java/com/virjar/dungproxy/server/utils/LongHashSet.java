@@ -0,0 +1,162 @@
+package com.virjar.dungproxy.server.utils;
+
+import java.util.Arrays;
+
+/**
+ * long的集合,开放寻址线性探测,直接存在long[]里面,没有装箱和链表节点<br/>
+ * 0作为空槽的标记,集合里面的0单独记录。不是线程安全的
+ */
+public class LongHashSet {
+    private static final int MIN_CAPACITY = 16;
+    // 装载因子3/4
+    private static final int LOAD_NUMERATOR = 3;
+    private static final int LOAD_DENOMINATOR = 4;
+
+    private long[] table;
+    private int shift;
+    private int size;
+    private boolean containsZero;
+    private int resizeThreshold;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize 预计的元素个数,达到这个数量之前不会扩容
+     */
+    public LongHashSet(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * murmur3的fmix64,高位和低位都足够随机,调用方可以用低位分段,集合内部用高位定位
+     */
+    public static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * @return 集合里原来没有这个值的时候返回true
+     */
+    public boolean add(long key) {
+        if (key == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        long[] table = this.table;
+        int mask = table.length - 1;
+        int index = (int) (hash(key) >>> shift);
+        while (true) {
+            long current = table[index];
+            if (current == 0) {
+                break;
+            }
+            if (current == key) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        table[index] = key;
+        if (++size > resizeThreshold) {
+            rehash(table.length << 1);
+        }
+        return true;
+    }
+
+    public boolean contains(long key) {
+        if (key == 0) {
+            return containsZero;
+        }
+        long[] table = this.table;
+        int mask = table.length - 1;
+        int index = (int) (hash(key) >>> shift);
+        while (true) {
+            long current = table[index];
+            if (current == key) {
+                return true;
+            }
+            if (current == 0) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0);
+        containsZero = false;
+        size = 0;
+    }
+
+    /**
+     * @return 集合的所有元素,顺序不确定
+     */
+    public long[] toArray() {
+        long[] ret = new long[size];
+        int i = 0;
+        if (containsZero) {
+            ret[i++] = 0;
+        }
+        for (long key : table) {
+            if (key != 0) {
+                ret[i++] = key;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return 底层数组占用的字节数
+     */
+    public long tableBytes() {
+        return table.length * 8L;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        long capacity = MIN_CAPACITY;
+        while (capacity * LOAD_NUMERATOR / LOAD_DENOMINATOR < expectedSize) {
+            capacity <<= 1;
+        }
+        if (capacity > 1 << 30) {
+            throw new IllegalArgumentException("too large expected size " + expectedSize);
+        }
+        return (int) capacity;
+    }
+
+    private void allocate(int capacity) {
+        table = new long[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        resizeThreshold = (int) ((long) capacity * LOAD_NUMERATOR / LOAD_DENOMINATOR);
+    }
+
+    private void rehash(int capacity) {
+        long[] old = table;
+        allocate(capacity);
+        long[] table = this.table;
+        int mask = table.length - 1;
+        for (long key : old) {
+            if (key == 0) {
+                continue;
+            }
+            int index = (int) (hash(key) >>> shift);
+            while (table[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            table[index] = key;
+        }
+    }
+}
@@ -1,53 +1,219 @@
 package com.virjar.dungproxy.server.utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Iterator;
 import java.util.List;
 
 import com.virjar.dungproxy.server.entity.Proxy;
 
+/**
+ * 代理资源去重,记录见过的所有ip:port。原来用布隆过滤器,误判的时候会把新代理直接丢掉,现在按照(ipv4 &lt;&lt; 16 | port)
+ * 存在分段的{@link LongHashSet}里面,没有误判<br/>
+ * 重启的时候从快照文件和代理表恢复,见{@link com.virjar.dungproxy.server.scheduler.ResourceFilterSnapshot}
+ */
 public class ResourceFilter {
-    // hard code ,because don`t know how to use it
-    /*
-     * code segment in heritrix int n_expected = (args.length > 1) ? Integer.parseInt(args[1]) : 10000000; int d_hashes
-     * = (args.length > 2) ? Integer.parseInt(args[2]) : 22;
-     */
-    private static BloomFilter bloomFilter = new BloomFilter64bit(10000000, 22);
-    private static String ipregex = "([1-9]|[1-9]\\d|1\\d{2}|2[0-4]\\d|25[0-5])(\\.(\\d|[1-9]\\d|1\\d{2}|2[0-4]\\d|25[0-5])){3}";
+    // 分段加锁,多个收集器并发过滤
+    private static final int SEGMENT_BITS = 4;
+    private static final LongHashSet[] segments = new LongHashSet[1 << SEGMENT_BITS];
+    private static final int SNAPSHOT_MAGIC = 0x52534654;
+
+    static {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new LongHashSet(1 << 14);
+        }
+    }
 
+    /**
+     * 去掉不合法的、已经见过的和列表里面重复的资源。这里不记录资源,入库成功之后再调用{@link #addConflict(Proxy)},
+     * 否则入库失败的资源会被当成重复的一直丢弃(集合还会写进快照)
+     */
     public static List<Proxy> filter(List<Proxy> proxys) {
+        LongHashSet batch = new LongHashSet();
         Iterator<Proxy> iterator = proxys.iterator();
         while (iterator.hasNext()) {
             Proxy proxy = iterator.next();
             if (proxy.getIp() == null || proxy.getPort() == null) {
                 iterator.remove();
                 continue;
-            } else if (bloomFilter.contains(proxy.getIp() + proxy.getPort())) {
-                iterator.remove();
-                continue;
-            } else {
-                bloomFilter.add(proxy.getIp() + proxy.getPort());
             }
-            if (!proxy.getIp().matches(ipregex)) {
+            long key = key(proxy.getIp(), proxy.getPort());
+            if (key < 0 || contains(key) || !batch.add(key)) {
                 iterator.remove();
+                continue;
             }
-            proxy.setIpValue(ProxyUtil.toIPValue(proxy.getIp()));
+            proxy.setIpValue(key >>> 16);
         }
         return proxys;
     }
 
     public static void addConflict(Proxy proxy) {
-        bloomFilter.add(proxy.getIp() + proxy.getPort());
+        if (proxy.getIp() == null || proxy.getPort() == null) {
+            return;
+        }
+        long key = key(proxy.getIp(), proxy.getPort());
+        if (key >= 0) {
+            add(key);
+        }
     }
 
     public static boolean contains(Proxy proxy) {
-        return bloomFilter.contains(proxy.getIp() + proxy.getPort());
+        if (proxy.getIp() == null || proxy.getPort() == null) {
+            return false;
+        }
+        long key = key(proxy.getIp(), proxy.getPort());
+        return key >= 0 && contains(key);
+    }
+
+    public static boolean contains(long key) {
+        LongHashSet segment = segment(key);
+        synchronized (segment) {
+            return segment.contains(key);
+        }
+    }
+
+    /**
+     * @return 原来没有这个资源的时候返回true
+     */
+    public static boolean add(long key) {
+        LongHashSet segment = segment(key);
+        synchronized (segment) {
+            return segment.add(key);
+        }
+    }
+
+    public static int size() {
+        int size = 0;
+        for (LongHashSet segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private static LongHashSet segment(long key) {
+        return segments[(int) LongHashSet.hash(key) & (segments.length - 1)];
+    }
+
+    /**
+     * @return ipv4和端口拼成的key,ip不合法或者端口超出范围的时候返回-1
+     */
+    public static long key(String ip, int port) {
+        if (port < 0 || port > 0xffff) {
+            return -1;
+        }
+        long ipValue = ipValue(ip);
+        return ipValue < 0 ? -1 : ipValue << 16 | port;
+    }
+
+    /**
+     * 解析点分十进制的ipv4,规则和原来的正则一样: 四段0-255,不能有前导0,第一段不能是0
+     *
+     * @return ip的数值,不合法的时候返回-1
+     */
+    public static long ipValue(String ip) {
+        long value = 0;
+        int octet = 0;
+        int digits = 0;
+        int parts = 0;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits > 0 && octet == 0) {
+                    return -1;
+                }
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.') {
+                if (digits == 0 || parts == 3 || (parts == 0 && octet == 0)) {
+                    return -1;
+                }
+                value = value << 8 | octet;
+                parts++;
+                octet = 0;
+                digits = 0;
+            } else {
+                return -1;
+            }
+        }
+        if (digits == 0 || parts != 3) {
+            return -1;
+        }
+        return value << 8 | octet;
+    }
+
+    /**
+     * 先写临时文件再替换,写到一半的时候进程退出不会破坏原来的快照
+     *
+     * @return 写入的资源数量
+     */
+    public static int saveSnapshot(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("can not create directory " + parent);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        int total = 0;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(segments.length);
+            for (LongHashSet segment : segments) {
+                long[] keys;
+                synchronized (segment) {
+                    keys = segment.toArray();
+                }
+                out.writeInt(keys.length);
+                for (long key : keys) {
+                    out.writeLong(key);
+                }
+                total += keys.length;
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return total;
+    }
+
+    /**
+     * 快照合并到当前的集合里面
+     *
+     * @return 读取的资源数量
+     */
+    public static int loadSnapshot(File file) throws IOException {
+        int total = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("not a resource filter snapshot: " + file);
+            }
+            int segmentNumber = in.readInt();
+            for (int i = 0; i < segmentNumber; i++) {
+                int size = in.readInt();
+                for (int j = 0; j < size; j++) {
+                    add(in.readLong());
+                }
+                total += size;
+            }
+        }
+        return total;
     }
 
     public static void main(String args[]) {
-        System.out.println("221111..71.20.246".matches(ipregex));
-        System.out.println("211.71.20.246".matches(ipregex));
-        System.out.println("211.71.20.246211.71.20.246".matches(ipregex));
-        System.out.println("sdgd".matches(ipregex));
+        System.out.println(ipValue("221111..71.20.246"));
+        System.out.println(ipValue("211.71.20.246"));
+        System.out.println(ipValue("211.71.20.246211.71.20.246"));
+        System.out.println(ipValue("sdgd"));
     }
 
 }
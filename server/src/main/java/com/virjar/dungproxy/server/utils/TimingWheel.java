@@ -0,0 +1,188 @@
+package com.virjar.dungproxy.server.utils;
+
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * 多层时间轮,按照id调度,同一个id只保留最后一次调度<br/>
+ * 第0层每格一个tick,第n层每格是第n-1层一圈的长度。到期时间落在当前格的上一层页面内的时候放在最低的那一层,
+ * 上层的格子到点之后按照真实的到期时间重新放到下层,超出最高层这一圈的放在最高层第0格,每一圈开始的时候重新放置<br/>
+ * 调度、取消、取出到期id都是O(1),推进的时候每个tick只处理落在这个tick上的格子。线程安全
+ */
+public class TimingWheel {
+    private final long tickMillis;
+    private final int bits;
+    private final int mask;
+    private final int levels;
+
+    // 每个格子是一个带哨兵的双向循环链表,最后一个是已经到期的队列
+    private final Node[] buckets;
+    private final int readyBucket;
+    private final Map<Long, Node> nodes = Maps.newHashMap();
+    private long currentTick;
+
+    /**
+     * @param tickMillis 一格的毫秒数,也是调度精度
+     * @param wheelSize 每层格子数,必须是2的幂
+     * @param levels 层数
+     * @param now 当前时间
+     */
+    public TimingWheel(long tickMillis, int wheelSize, int levels, long now) {
+        Preconditions.checkArgument(tickMillis > 0, "tickMillis must be positive");
+        Preconditions.checkArgument(wheelSize > 1 && Integer.bitCount(wheelSize) == 1, "wheelSize must be power of 2");
+        Preconditions.checkArgument(levels > 0 && Integer.numberOfTrailingZeros(wheelSize) * levels < 63,
+                "too many levels");
+        this.tickMillis = tickMillis;
+        this.bits = Integer.numberOfTrailingZeros(wheelSize);
+        this.mask = wheelSize - 1;
+        this.levels = levels;
+        this.readyBucket = wheelSize * levels;
+        this.buckets = new Node[readyBucket + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            Node sentinel = new Node(-1, 0);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            buckets[i] = sentinel;
+        }
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * 调度id在deadline到期,已经调度过的替换掉原来的到期时间
+     *
+     * @param value 附带在id上的数据,调用方自己解释
+     */
+    public synchronized void schedule(long id, long deadline, long value) {
+        Node node = nodes.get(id);
+        if (node == null) {
+            node = new Node(id, deadline);
+            nodes.put(id, node);
+        } else {
+            unlink(node);
+            node.deadline = deadline;
+        }
+        node.value = value;
+        place(node);
+    }
+
+    public synchronized boolean cancel(long id) {
+        Node node = nodes.remove(id);
+        if (node == null) {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    public synchronized boolean contains(long id) {
+        return nodes.containsKey(id);
+    }
+
+    /**
+     * @return id上附带的数据,id没有被调度的时候返回defaultValue
+     */
+    public synchronized long value(long id, long defaultValue) {
+        Node node = nodes.get(id);
+        return node == null ? defaultValue : node.value;
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * 把时间轮推进到now,取出最多max个已经到期的id,取出的id不再被调度
+     */
+    public synchronized long[] poll(long now, int max) {
+        advance(now / tickMillis);
+        Node ready = buckets[readyBucket];
+        int size = 0;
+        for (Node node = ready.next; node != ready && size < max; node = node.next) {
+            size++;
+        }
+        long[] ret = new long[size];
+        for (int i = 0; i < size; i++) {
+            Node node = ready.next;
+            unlink(node);
+            nodes.remove(node.id);
+            ret[i] = node.id;
+        }
+        return ret;
+    }
+
+    private void advance(long targetTick) {
+        while (currentTick < targetTick) {
+            long tick = ++currentTick;
+            // 从上往下降级,上层降下来的可能正好落在下层当前格
+            for (int level = levels - 1; level > 0; level--) {
+                if ((tick & ((1L << (bits * level)) - 1)) == 0) {
+                    cascade(level * (mask + 1) + (int) ((tick >>> (bits * level)) & mask));
+                }
+            }
+            cascade((int) (tick & mask));
+        }
+    }
+
+    private void cascade(int bucketIndex) {
+        Node sentinel = buckets[bucketIndex];
+        Node node = sentinel.next;
+        if (node == sentinel) {
+            return;
+        }
+        sentinel.prev.next = null;
+        sentinel.next = sentinel;
+        sentinel.prev = sentinel;
+        while (node != null) {
+            Node next = node.next;
+            place(node);
+            node = next;
+        }
+    }
+
+    private void place(Node node) {
+        long deadlineTick = node.deadline / tickMillis;
+        if (deadlineTick <= currentTick) {
+            append(readyBucket, node);
+            return;
+        }
+        for (int level = 0; level < levels; level++) {
+            int shift = bits * (level + 1);
+            if ((deadlineTick >>> shift) == (currentTick >>> shift)) {
+                append(level * (mask + 1) + (int) ((deadlineTick >>> (bits * level)) & mask), node);
+                return;
+            }
+        }
+        // 超出了最高层这一圈,放在最高层的第0格,下一圈开始的时候第一个重新放置
+        append((levels - 1) * (mask + 1), node);
+    }
+
+    private void append(int bucketIndex, Node node) {
+        Node sentinel = buckets[bucketIndex];
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    private void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    private static class Node {
+        private final long id;
+        private long deadline;
+        private long value;
+        private Node prev;
+        private Node next;
+
+        Node(long id, long deadline) {
+            this.id = id;
+            this.deadline = deadline;
+        }
+    }
+}
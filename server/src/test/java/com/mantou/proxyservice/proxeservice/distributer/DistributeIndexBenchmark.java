@@ -0,0 +1,108 @@
+package com.mantou.proxyservice.proxeservice.distributer;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.virjar.dungproxy.server.distributer.DistributeIndex;
+import com.virjar.dungproxy.server.distributer.DistributedSign;
+import com.virjar.dungproxy.server.entity.DomainIp;
+import com.virjar.dungproxy.server.entity.Proxy;
+import com.virjar.dungproxy.server.model.ProxyModel;
+
+/**
+ * 内存分发索引的吞吐,模拟/av请求: 先查域名IP池,不够的时候按照条件查全局排序,同时带着客户端的已分配签名<br/>
+ * 原来的实现每次请求三次数据库查询,需要在有数据的MySQL上对比,这里只测索引本身
+ */
+public class DistributeIndexBenchmark {
+    private static final String[] AREAS = { "华北", "华东", "华南", "西南", "东北" };
+    private static final String[] ISPS = { "电信", "联通", "移动" };
+
+    public static void main(String[] args) {
+        int proxyNumber = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Random random = new Random(516);
+        List<ProxyModel> proxies = Lists.newArrayList();
+        List<DomainIp> domainIps = Lists.newArrayList();
+        for (int i = 1; i <= proxyNumber; i++) {
+            ProxyModel proxyModel = new ProxyModel();
+            proxyModel.setId((long) i);
+            proxyModel.setIp("10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff));
+            proxyModel.setPort(8080);
+            proxyModel.setCountry("中国");
+            proxyModel.setArea(AREAS[random.nextInt(AREAS.length)]);
+            proxyModel.setIsp(ISPS[random.nextInt(ISPS.length)]);
+            proxyModel.setSpeed((long) random.nextInt(5000));
+            proxyModel.setTransperent((byte) random.nextInt(3));
+            proxyModel.setLostheader(random.nextBoolean());
+            proxyModel.setAvailbelScore((long) random.nextInt(500) + 1);
+            proxyModel.setAvailbelScoreDate(new Date(System.currentTimeMillis() - random.nextInt(3600000)));
+            proxies.add(proxyModel);
+            if (i % 20 == 0) {
+                DomainIp domainIp = new DomainIp();
+                domainIp.setId((long) i);
+                domainIp.setDomain("www.dungproxy.com");
+                domainIp.setProxyId((long) i);
+                domainIp.setDomainScore((long) random.nextInt(50) + 1);
+                domainIps.add(domainIp);
+            }
+        }
+        DistributeIndex distributeIndex = new DistributeIndex();
+        long start = System.currentTimeMillis();
+        distributeIndex.rebuild(proxies, domainIps);
+        System.out.println("build " + proxyNumber + " proxies cost:" + (System.currentTimeMillis() - start) + "ms");
+
+        // 客户端已经拿到过200个IP
+        List<ProxyModel> used = Lists.newArrayList(proxies);
+        Collections.shuffle(used, random);
+        DistributedSign usedSign = DistributedSign.unSign(DistributedSign.resign(null, used.subList(0, 200)));
+
+        Proxy[] conditions = new Proxy[4];
+        conditions[0] = condition(null, null, Integer.MAX_VALUE, -1);
+        conditions[1] = condition("华北", null, 2000, -1);
+        conditions[2] = condition(null, "电信", 1000, 1);
+        conditions[3] = condition("西南", "移动", 500, 0);
+        for (String domain : new String[] { null, "www.dungproxy.com" }) {
+            for (Proxy condition : conditions) {
+                run(distributeIndex, domain, condition, null, 20000);
+                double qps = run(distributeIndex, domain, condition, null, 200000);
+                double signedQps = run(distributeIndex, domain, condition, usedSign, 200000);
+                System.out.println("domain:" + domain + " area:" + condition.getArea() + " isp:" + condition.getIsp()
+                        + " maxPing:" + condition.getSpeed() + " transparent:" + condition.getTransperent() + " -> "
+                        + (long) qps + " req/s, with used sign " + (long) signedQps + " req/s");
+            }
+        }
+    }
+
+    private static Proxy condition(String area, String isp, long speed, int transparent) {
+        Proxy proxy = new Proxy();
+        proxy.setArea(area);
+        proxy.setIsp(isp);
+        proxy.setSpeed(speed);
+        proxy.setTransperent((byte) (0xff & transparent));
+        return proxy;
+    }
+
+    /**
+     * 和DistributeService.distributeFromIndex相同的两步查询,soft模式,每次取10个
+     */
+    private static double run(DistributeIndex distributeIndex, String domain, Proxy condition,
+            DistributedSign usedSign, int times) {
+        long start = System.nanoTime();
+        int total = 0;
+        for (int i = 0; i < times; i++) {
+            List<ProxyModel> ret = distributeIndex.findDomainAvailable(domain, usedSign, 11);
+            if (ret.size() <= 10) {
+                ret.addAll(distributeIndex.find4Distribute(condition, usedSign, Sets.newHashSet(ret),
+                        10 - ret.size()));
+            }
+            total += ret.size();
+        }
+        if (total == 0) {
+            System.out.println("nothing distributed");
+        }
+        return times * 1e9 / (System.nanoTime() - start);
+    }
+}
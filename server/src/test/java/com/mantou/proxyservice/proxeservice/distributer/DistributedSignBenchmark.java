@@ -0,0 +1,144 @@
+package com.mantou.proxyservice.proxeservice.distributer;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.collect.Lists;
+import com.virjar.dungproxy.server.distributer.DistributedSign;
+import com.virjar.dungproxy.server.model.ProxyModel;
+
+/**
+ * 分配签名的服务端开销,模拟一次/av请求: 解析客户端带上来的签名,过滤候选IP,把新分配的IP加进去重新签名<br/>
+ * legacy开头的是优化之前的实现({@link LegacyDistributedSign}),used表示客户端签名里面已经有多少个IP
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistributedSignBenchmark {
+
+    @Param({ "20", "500" })
+    private int used;
+
+    // 一次请求过滤的候选IP
+    private List<ProxyModel> candidates;
+    private int[][] candidatePositions;
+    // 一次请求新分配的IP
+    private List<ProxyModel> distribute;
+
+    private String sign;
+    private String compactSign;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(516);
+        List<ProxyModel> usedProxies = randomProxies(random, used);
+        candidates = randomProxies(random, 200);
+        candidates.addAll(usedProxies.subList(0, Math.min(used, 50)));
+        candidatePositions = new int[candidates.size()][];
+        for (int i = 0; i < candidates.size(); i++) {
+            candidatePositions[i] = DistributedSign.positions(candidates.get(i).getIp(), candidates.get(i).getPort());
+        }
+        distribute = randomProxies(random, 20);
+
+        sign = DistributedSign.resign(null, usedProxies);
+        DistributedSign.setCompactEncoding(true);
+        compactSign = DistributedSign.unSign(sign).sign();
+        DistributedSign.setCompactEncoding(false);
+    }
+
+    private static List<ProxyModel> randomProxies(Random random, int number) {
+        List<ProxyModel> ret = Lists.newArrayList();
+        for (int i = 0; i < number; i++) {
+            ProxyModel proxyModel = new ProxyModel();
+            proxyModel.setIp(random.nextInt(223) + 1 + "." + random.nextInt(256) + "." + random.nextInt(256) + "."
+                    + random.nextInt(256));
+            proxyModel.setPort(random.nextInt(65535) + 1);
+            ret.add(proxyModel);
+        }
+        return ret;
+    }
+
+    @Benchmark
+    public int legacyRequest() {
+        LegacyDistributedSign usedSign = LegacyDistributedSign.unSign(sign);
+        int available = 0;
+        for (ProxyModel proxyModel : candidates) {
+            if (!usedSign.contains(proxyModel)) {
+                available++;
+            }
+        }
+        return available + LegacyDistributedSign.resign(sign, distribute).length();
+    }
+
+    @Benchmark
+    public int request() {
+        DistributedSign usedSign = DistributedSign.unSign(sign);
+        int available = 0;
+        for (int[] positions : candidatePositions) {
+            if (!usedSign.containsPositions(positions)) {
+                available++;
+            }
+        }
+        return available + DistributedSign.resign(sign, distribute).length();
+    }
+
+    @Benchmark
+    public int legacyUnSign() {
+        return (int) LegacyDistributedSign.unSign(sign).getSizeBytes();
+    }
+
+    @Benchmark
+    public int unSign() {
+        return (int) DistributedSign.unSign(sign).getSizeBytes();
+    }
+
+    @Benchmark
+    public int unSignCompact() {
+        return (int) DistributedSign.unSign(compactSign).getSizeBytes();
+    }
+
+    @Benchmark
+    public int legacyContains() {
+        LegacyDistributedSign usedSign = LegacyDistributedSign.unSign(sign);
+        int available = 0;
+        for (ProxyModel proxyModel : candidates) {
+            if (!usedSign.contains(proxyModel)) {
+                available++;
+            }
+        }
+        return available;
+    }
+
+    @Benchmark
+    public int resign() {
+        return DistributedSign.resign(sign, distribute).length();
+    }
+
+    @Benchmark
+    public int legacyResign() {
+        return LegacyDistributedSign.resign(sign, distribute).length();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DistributedSignBenchmark.class.getSimpleName()).build()).run();
+    }
+}
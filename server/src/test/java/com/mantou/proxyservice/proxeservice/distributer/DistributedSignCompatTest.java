@@ -0,0 +1,75 @@
+package com.mantou.proxyservice.proxeservice.distributer;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import com.virjar.dungproxy.server.distributer.DistributedSign;
+import com.virjar.dungproxy.server.model.ProxyModel;
+
+/**
+ * 新的签名实现必须和{@link LegacyDistributedSign}产生完全一样的签名,已经发给客户端的签名才能继续使用
+ */
+public class DistributedSignCompatTest {
+
+    public static void main(String[] args) {
+        Random random = new Random();
+        List<ProxyModel> proxies = Lists.newArrayList();
+        for (int i = 0; i < 3000; i++) {
+            ProxyModel proxyModel = new ProxyModel();
+            proxyModel.setIp(random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "."
+                    + random.nextInt(256));
+            proxyModel.setPort(random.nextInt(65536));
+            proxies.add(proxyModel);
+        }
+
+        check(LegacyDistributedSign.empty.equals(DistributedSign.empty), "empty sign");
+        // 老的unSign没有处理符号位,多次resign会把签名写坏,所以老实现直接在一个实例上累加
+        LegacyDistributedSign legacy = new LegacyDistributedSign();
+        String sign = DistributedSign.empty;
+        for (List<ProxyModel> batch : Lists.partition(proxies.subList(0, 1000), 20)) {
+            for (ProxyModel proxyModel : batch) {
+                legacy.add(proxyModel.getIp() + ":" + proxyModel.getPort());
+            }
+            sign = DistributedSign.resign(sign, batch);
+            check(legacy.sign().equals(sign), "resign");
+        }
+
+        DistributedSign decoded = DistributedSign.unSign(sign);
+        check(decoded.sign().equals(sign), "round trip");
+        for (ProxyModel proxyModel : proxies.subList(0, 1000)) {
+            check(decoded.contains(proxyModel), "contains " + proxyModel.getIp());
+            check(decoded.contains(proxyModel.getIp() + ":" + proxyModel.getPort()), "contains string");
+        }
+        int falsePositive = 0;
+        for (ProxyModel proxyModel : proxies.subList(1000, 3000)) {
+            if (decoded.contains(proxyModel)) {
+                falsePositive++;
+            }
+        }
+        System.out.println("false positive: " + falsePositive + "/2000");
+
+        checkCompact(sign);
+        checkCompact(DistributedSign.resign(null, proxies.subList(0, 50)));
+        System.out.println("ok");
+    }
+
+    private static void checkCompact(String sign) {
+        DistributedSign.setCompactEncoding(true);
+        try {
+            String compact = DistributedSign.unSign(sign).sign();
+            System.out.println("sign length: " + sign.length() + " compact length: " + compact.length());
+            check(DistributedSign.unSign(compact).sign().equals(compact), "compact round trip");
+            DistributedSign.setCompactEncoding(false);
+            check(DistributedSign.unSign(compact).sign().equals(sign), "compact to normal");
+        } finally {
+            DistributedSign.setCompactEncoding(false);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.mantou.proxyservice.proxeservice.scheduler;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.virjar.dungproxy.server.model.AvailbelCheckResponse;
+import com.virjar.dungproxy.server.model.ProxyModel;
+import com.virjar.dungproxy.server.scheduler.checker.NioProxyChecker;
+import com.virjar.dungproxy.server.utils.JSONUtils;
+import com.virjar.dungproxy.server.utils.ProxyType;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.socksx.SocksMessage;
+import io.netty.handler.codec.socksx.SocksPortUnificationServerHandler;
+import io.netty.handler.codec.socksx.v4.DefaultSocks4CommandResponse;
+import io.netty.handler.codec.socksx.v4.Socks4CommandRequest;
+import io.netty.handler.codec.socksx.v4.Socks4CommandStatus;
+import io.netty.handler.codec.socksx.v5.DefaultSocks5CommandResponse;
+import io.netty.handler.codec.socksx.v5.DefaultSocks5InitialResponse;
+import io.netty.handler.codec.socksx.v5.Socks5AuthMethod;
+import io.netty.handler.codec.socksx.v5.Socks5CommandRequest;
+import io.netty.handler.codec.socksx.v5.Socks5CommandRequestDecoder;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.handler.codec.socksx.v5.Socks5InitialRequest;
+import io.netty.util.CharsetUtil;
+
+/**
+ * 非阻塞验证引擎的吞吐。本地起一个假的代理,同时支持HTTP、CONNECT、SOCKS4/5,每个请求延迟固定时间之后返回验证接口的响应<br/>
+ * 对照组是原来的做法: 固定数量的线程,每个线程阻塞地完成一次检查<br/>
+ * 参数: 检查次数 假代理延迟(毫秒) 对照组线程数
+ */
+public class NioProxyCheckerBenchmark {
+    private static final String CHECK_RESPONSE = "{\"status\":true,\"data\":{\"key\":\"taiye\",\"transparent\":0,\"remoteAddr\":\"127.0.0.1\"}}";
+
+    public static void main(String[] args) throws Exception {
+        int checks = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final int delay = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int blockingThreads = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        EventLoopGroup serverGroup = new NioEventLoopGroup(2);
+        int port = startFakeProxy(serverGroup, delay, false);
+        int socks4OnlyPort = startFakeProxy(serverGroup, delay, true);
+
+        // 单进程的文件句柄有限,客户端和假代理各占一个
+        NioProxyChecker checker = new NioProxyChecker(true, "http://127.0.0.1:8080/proxyipcenter/checkIp", 2, 4000,
+                3000, 5000, 4000);
+        runNio("http", checker, port, null, checks);
+        runNio("https connect", checker, port, ProxyType.HTTPS.getType(), checks);
+        runNio("socks5", checker, port, ProxyType.SOCKET.getType(), checks);
+        runNio("socks4 fallback", checker, socks4OnlyPort, ProxyType.SOCKET.getType(), checks / 4);
+        runNio("closed port", checker, 1, null, 1000);
+        runConnect(checker, port, checks);
+        runBlocking(port, blockingThreads, Math.min(checks, blockingThreads * 20));
+
+        checker.destroy();
+        serverGroup.shutdownGracefully();
+    }
+
+    private static void runNio(String name, NioProxyChecker checker, int port, Byte type, int checks)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(checks);
+        final AtomicInteger success = new AtomicInteger(0);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < checks; i++) {
+            while (checker.isBusy()) {
+                Thread.sleep(1);
+            }
+            ProxyModel proxyModel = new ProxyModel();
+            proxyModel.setIp("127.0.0.1");
+            proxyModel.setPort(port);
+            proxyModel.setType(type);
+            Futures.addCallback(checker.checkAvailable(proxyModel), new FutureCallback<AvailbelCheckResponse>() {
+                @Override
+                public void onSuccess(AvailbelCheckResponse result) {
+                    if (result != null) {
+                        success.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    latch.countDown();
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        latch.await();
+        report("nio " + name, checks, success.get(), System.currentTimeMillis() - start);
+    }
+
+    private static void runConnect(NioProxyChecker checker, int port, int checks) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(checks);
+        final AtomicInteger success = new AtomicInteger(0);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < checks; i++) {
+            while (checker.isBusy()) {
+                Thread.sleep(1);
+            }
+            Futures.addCallback(checker.checkConnect("127.0.0.1", port), new FutureCallback<Boolean>() {
+                @Override
+                public void onSuccess(Boolean result) {
+                    if (Boolean.TRUE.equals(result)) {
+                        success.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    latch.countDown();
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        latch.await();
+        report("nio connect", checks, success.get(), System.currentTimeMillis() - start);
+    }
+
+    private static void runBlocking(final int port, int threads, int checks) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final AtomicInteger success = new AtomicInteger(0);
+        long start = System.currentTimeMillis();
+        List<Runnable> tasks = Lists.newArrayList();
+        for (int i = 0; i < checks; i++) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    InputStream is = null;
+                    try {
+                        URLConnection urlConnection = new URL("http://127.0.0.1:8080/proxyipcenter/checkIp")
+                                .openConnection(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", port)));
+                        urlConnection.setUseCaches(false);
+                        urlConnection.setConnectTimeout(3000);
+                        urlConnection.setReadTimeout(5000);
+                        is = urlConnection.getInputStream();
+                        AvailbelCheckResponse response = JSONUtils.parse(IOUtils.toString(is),
+                                AvailbelCheckResponse.class);
+                        if (response != null && AvailbelCheckResponse.staticKey.equals(response.getKey())) {
+                            success.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        // 计为失败
+                    } finally {
+                        IOUtils.closeQuietly(is);
+                    }
+                }
+            });
+        }
+        for (Runnable task : tasks) {
+            pool.submit(task);
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        report("blocking " + threads + " threads", checks, success.get(), System.currentTimeMillis() - start);
+    }
+
+    private static void report(String name, int checks, int success, long cost) {
+        System.out.println(name + ": checks=" + checks + " success=" + success + " cost=" + cost + "ms rate="
+                + (checks * 1000L / Math.max(cost, 1)) + "/s");
+    }
+
+    /**
+     * @param socks4Only 拒绝SOCKS5握手,用来验证SOCKS4的回退
+     * @return 监听的端口
+     */
+    private static int startFakeProxy(EventLoopGroup group, final int delay, final boolean socks4Only)
+            throws InterruptedException {
+        Channel channel = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(new FakeProxyDetector(delay, socks4Only));
+                    }
+                }).bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    /**
+     * 第一个字节是4或者5的是SOCKS,其他的按照HTTP处理
+     */
+    private static class FakeProxyDetector extends SimpleChannelInboundHandler<io.netty.buffer.ByteBuf> {
+        private final int delay;
+        private final boolean socks4Only;
+
+        FakeProxyDetector(int delay, boolean socks4Only) {
+            super(false);
+            this.delay = delay;
+            this.socks4Only = socks4Only;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, io.netty.buffer.ByteBuf msg) throws Exception {
+            ChannelPipeline pipeline = ctx.pipeline();
+            byte version = msg.getByte(msg.readerIndex());
+            if (version == 4 || version == 5) {
+                pipeline.addLast(new SocksPortUnificationServerHandler());
+                pipeline.addLast(new FakeSocksHandler(delay, socks4Only));
+            } else {
+                addHttp(pipeline, delay);
+            }
+            pipeline.remove(this);
+            pipeline.fireChannelRead(msg);
+        }
+    }
+
+    private static void addHttp(ChannelPipeline pipeline, int delay) {
+        pipeline.addLast(new HttpServerCodec());
+        pipeline.addLast(new HttpObjectAggregator(65536));
+        pipeline.addLast(new FakeHttpHandler(delay));
+    }
+
+    private static class FakeSocksHandler extends SimpleChannelInboundHandler<SocksMessage> {
+        private final int delay;
+        private final boolean socks4Only;
+
+        FakeSocksHandler(int delay, boolean socks4Only) {
+            this.delay = delay;
+            this.socks4Only = socks4Only;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, SocksMessage msg) throws Exception {
+            if (msg instanceof Socks5InitialRequest) {
+                if (socks4Only) {
+                    ctx.close();
+                    return;
+                }
+                ctx.pipeline().addBefore(ctx.name(), "socks5-command", new Socks5CommandRequestDecoder());
+                ctx.writeAndFlush(new DefaultSocks5InitialResponse(Socks5AuthMethod.NO_AUTH));
+            } else if (msg instanceof Socks5CommandRequest) {
+                Socks5CommandRequest request = (Socks5CommandRequest) msg;
+                ctx.pipeline().remove(this);
+                addHttp(ctx.pipeline(), delay);
+                ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.SUCCESS, request.dstAddrType()));
+            } else if (msg instanceof Socks4CommandRequest) {
+                ctx.pipeline().remove(this);
+                addHttp(ctx.pipeline(), delay);
+                ctx.writeAndFlush(new DefaultSocks4CommandResponse(Socks4CommandStatus.SUCCESS));
+            } else {
+                ctx.close();
+            }
+        }
+    }
+
+    private static class FakeHttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        private final int delay;
+
+        FakeHttpHandler(int delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, FullHttpRequest msg) throws Exception {
+            if (HttpMethod.CONNECT.equals(msg.method())) {
+                // 隧道里面的请求仍然由这个handler应答
+                ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                        new HttpResponseStatus(200, "Connection established")));
+                return;
+            }
+            ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                            HttpResponseStatus.OK, Unpooled.copiedBuffer(CHECK_RESPONSE, CharsetUtil.UTF_8));
+                    response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+                    ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
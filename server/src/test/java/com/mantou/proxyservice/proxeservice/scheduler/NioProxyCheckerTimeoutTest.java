@@ -0,0 +1,76 @@
+package com.mantou.proxyservice.proxeservice.scheduler;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.virjar.dungproxy.server.model.AvailbelCheckResponse;
+import com.virjar.dungproxy.server.model.ProxyModel;
+import com.virjar.dungproxy.server.scheduler.checker.NioProxyChecker;
+import com.virjar.dungproxy.server.utils.ProxyType;
+
+/**
+ * 代理接受连接之后一直不响应,所有检查都要在截止时间之内以不通过结束,并且释放并发名额
+ */
+public class NioProxyCheckerTimeoutTest {
+    private static final int CHECKS = 300;
+    private static final int CONNECT_TIMEOUT = 500;
+    private static final int CHECK_TIMEOUT = 1000;
+
+    public static void main(String[] args) throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0, 1024);
+        final List<Socket> accepted = Lists.newArrayList();
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        // 只接受连接,不读也不写
+                        accepted.add(serverSocket.accept());
+                    }
+                } catch (Exception e) {
+                    // server closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        NioProxyChecker checker = new NioProxyChecker(true, "http://127.0.0.1:8080/proxyipcenter/checkIp", 2, 4000,
+                CONNECT_TIMEOUT, CHECK_TIMEOUT, 4000);
+        try {
+            for (Byte type : new Byte[] { ProxyType.HTTP.getType(), ProxyType.HTTPS.getType(),
+                    ProxyType.SOCKET.getType() }) {
+                List<ListenableFuture<AvailbelCheckResponse>> futures = Lists.newArrayList();
+                for (int i = 0; i < CHECKS; i++) {
+                    ProxyModel proxyModel = new ProxyModel();
+                    proxyModel.setIp("127.0.0.1");
+                    proxyModel.setPort(serverSocket.getLocalPort());
+                    proxyModel.setType(type);
+                    futures.add(checker.checkAvailable(proxyModel));
+                }
+                List<AvailbelCheckResponse> responses = Futures.allAsList(futures)
+                        .get(CONNECT_TIMEOUT + CHECK_TIMEOUT + 3000, TimeUnit.MILLISECONDS);
+                for (AvailbelCheckResponse response : responses) {
+                    check(response == null, "silent proxy passed check, type " + type);
+                }
+                check(checker.inFlight() == 0, "in flight not released, type " + type + ": " + checker.inFlight());
+                System.out.println("type " + type + " ok, accepted connections:" + accepted.size());
+            }
+        } finally {
+            serverSocket.close();
+            checker.destroy();
+        }
+        System.out.println("ok");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
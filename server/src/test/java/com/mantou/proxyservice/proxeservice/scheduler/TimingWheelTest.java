@@ -0,0 +1,70 @@
+package com.mantou.proxyservice.proxeservice.scheduler;
+
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.collect.Maps;
+import com.virjar.dungproxy.server.utils.TimingWheel;
+
+/**
+ * 随机调度、改期、取消,和直接比较到期时间的结果对照。时间轮取出的id必须已经到期,并且到期的id在下一个tick之内必须被取出
+ */
+public class TimingWheelTest {
+    private static final long TICK = 1000;
+
+    public static void main(String[] args) {
+        Random random = new Random(17);
+        long now = 1500000000000L + random.nextInt(100000);
+        // 每层8格,3层只能覆盖512个tick,更长的到期时间走溢出的逻辑
+        TimingWheel wheel = new TimingWheel(TICK, 8, 3, now);
+        Map<Long, Long> expect = Maps.newHashMap();
+        int polled = 0;
+        for (int round = 0; round < 200000; round++) {
+            int op = random.nextInt(10);
+            long id = random.nextInt(5000);
+            if (op < 5) {
+                long deadline = now + randomDelay(random);
+                wheel.schedule(id, deadline, deadline);
+                expect.put(id, deadline);
+            } else if (op < 6) {
+                check(wheel.cancel(id) == expect.containsKey(id), "cancel " + id);
+                expect.remove(id);
+            } else {
+                // 偶尔跳过很长一段时间
+                now += random.nextInt(20) == 0 ? random.nextInt(2000) * TICK : random.nextInt(3 * (int) TICK);
+                for (long polledId : wheel.poll(now, Integer.MAX_VALUE)) {
+                    Long deadline = expect.remove(polledId);
+                    check(deadline != null, "unknown id " + polledId);
+                    check(deadline / TICK <= now / TICK, "early " + polledId);
+                    polled++;
+                }
+                for (Map.Entry<Long, Long> entry : expect.entrySet()) {
+                    check(entry.getValue() / TICK > now / TICK, "late " + entry.getKey());
+                    check(wheel.value(entry.getKey(), -1) == entry.getValue(), "value " + entry.getKey());
+                }
+            }
+            check(wheel.size() == expect.size(), "size");
+        }
+        System.out.println("polled: " + polled + " remain: " + expect.size());
+        System.out.println("ok");
+    }
+
+    private static long randomDelay(Random random) {
+        switch (random.nextInt(4)) {
+        case 0:
+            return -random.nextInt(5000);
+        case 1:
+            return random.nextInt(10) * TICK + random.nextInt((int) TICK);
+        case 2:
+            return random.nextInt(600) * TICK;
+        default:
+            return random.nextInt(5000) * TICK;
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.mantou.proxyservice.proxeservice.utils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.virjar.dungproxy.server.utils.BloomFilter;
+import com.virjar.dungproxy.server.utils.BloomFilter64bit;
+import com.virjar.dungproxy.server.utils.LongHashSet;
+import com.virjar.dungproxy.server.utils.ResourceFilter;
+
+/**
+ * 资源去重的开销,legacy开头的是原来的布隆过滤器(10000000个元素,22个hash),每次都和原来一样拼接ip和端口<br/>
+ * 集合里面预先放入size个资源,contains一半命中一半不命中,add每次加入一个新资源。内存占用在main里面打印
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx1g")
+public class ResourceFilterBenchmark {
+
+    @Param({ "100000", "1000000" })
+    private int size;
+
+    private String[] ips;
+    private int[] ports;
+    private String[] newIps;
+    private int[] newPorts;
+    private int index;
+    private int newIndex;
+
+    private BloomFilter bloomFilter;
+    private LongHashSet longHashSet;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(724);
+        ips = new String[size * 2];
+        ports = new int[size * 2];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = randomIp(random);
+            ports[i] = random.nextInt(65535) + 1;
+        }
+        newIps = new String[1 << 20];
+        newPorts = new int[newIps.length];
+        for (int i = 0; i < newIps.length; i++) {
+            newIps[i] = randomIp(random);
+            newPorts[i] = random.nextInt(65535) + 1;
+        }
+    }
+
+    // 每轮重新填充,避免add的时候集合一直增长
+    @Setup(Level.Iteration)
+    public void fill() {
+        bloomFilter = new BloomFilter64bit(10000000, 22);
+        longHashSet = new LongHashSet();
+        // 前一半放进集合,后一半用来测试不命中
+        for (int i = 0; i < size; i++) {
+            bloomFilter.add(ips[i] + ports[i]);
+            longHashSet.add(ResourceFilter.key(ips[i], ports[i]));
+        }
+        newIndex = 0;
+    }
+
+    private static String randomIp(Random random) {
+        return random.nextInt(223) + 1 + "." + random.nextInt(256) + "." + random.nextInt(256) + "."
+                + random.nextInt(256);
+    }
+
+    @Benchmark
+    public boolean legacyContains() {
+        int i = index++ % ips.length;
+        return bloomFilter.contains(ips[i] + ports[i]);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        int i = index++ % ips.length;
+        long key = ResourceFilter.key(ips[i], ports[i]);
+        synchronized (longHashSet) {
+            return longHashSet.contains(key);
+        }
+    }
+
+    @Benchmark
+    public boolean legacyAdd() {
+        int i = newIndex++ & (newIps.length - 1);
+        return bloomFilter.add(newIps[i] + newPorts[i]);
+    }
+
+    @Benchmark
+    public boolean add() {
+        int i = newIndex++ & (newIps.length - 1);
+        long key = ResourceFilter.key(newIps[i], newPorts[i]);
+        synchronized (longHashSet) {
+            return longHashSet.add(key);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        int bloomLongs = (int) Math.ceil((10000000L * 22 / Math.log(2)) / 64L);
+        System.out.println("legacy bloom filter bytes: " + bloomLongs * 8L + " (fixed)");
+        for (int size : new int[] { 100000, 1000000, 5000000 }) {
+            LongHashSet set = new LongHashSet();
+            Random random = new Random(size);
+            while (set.size() < size) {
+                set.add(ResourceFilter.key(randomIp(random), random.nextInt(65535) + 1));
+            }
+            System.out.println("long hash set bytes for " + size + " resources: " + set.tableBytes());
+        }
+        new Runner(new OptionsBuilder().include(ResourceFilterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,74 @@
+package com.mantou.proxyservice.proxeservice.utils;
+
+import java.io.File;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.virjar.dungproxy.server.entity.Proxy;
+import com.virjar.dungproxy.server.utils.LongHashSet;
+import com.virjar.dungproxy.server.utils.ResourceFilter;
+
+/**
+ * ip解析要和原来的正则结果一致,集合和HashSet结果一致,快照写出读回之后内容不变
+ */
+public class ResourceFilterTest {
+    private static final String ipregex = "([1-9]|[1-9]\\d|1\\d{2}|2[0-4]\\d|25[0-5])(\\.(\\d|[1-9]\\d|1\\d{2}|2[0-4]\\d|25[0-5])){3}";
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(3);
+        String alphabet = "0123456789.5a";
+        for (int i = 0; i < 500000; i++) {
+            StringBuilder ip = new StringBuilder();
+            if (i % 2 == 0) {
+                ip.append(random.nextInt(300)).append('.').append(random.nextInt(300)).append('.')
+                        .append(random.nextInt(300)).append('.').append(random.nextInt(300));
+                if (random.nextInt(10) == 0) {
+                    ip.insert(random.nextInt(ip.length() + 1), alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+            } else {
+                int length = random.nextInt(18);
+                for (int j = 0; j < length; j++) {
+                    ip.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+            }
+            String s = ip.toString();
+            check(s.matches(ipregex) == ResourceFilter.ipValue(s) >= 0, "ip parse " + s);
+        }
+
+        LongHashSet set = new LongHashSet();
+        Set<Long> expect = Sets.newHashSet();
+        for (int i = 0; i < 300000; i++) {
+            long key = random.nextInt(200000) - 1000;
+            check(set.add(key) == expect.add(key), "add " + key);
+            key = random.nextInt(200000) - 1000;
+            check(set.contains(key) == expect.contains(key), "contains " + key);
+        }
+        check(set.size() == expect.size(), "size");
+
+        Proxy proxy = new Proxy();
+        proxy.setIp("211.71.20.246");
+        proxy.setPort(8080);
+        Proxy same = new Proxy();
+        same.setIp(proxy.getIp());
+        same.setPort(proxy.getPort());
+        // 过滤只去掉列表里面重复的,入库成功之前不记录
+        check(ResourceFilter.filter(Lists.newArrayList(proxy, same)).size() == 1, "filter batch duplicate");
+        check(!ResourceFilter.contains(proxy), "filter must not record");
+        ResourceFilter.addConflict(proxy);
+        check(ResourceFilter.filter(Lists.newArrayList(same)).isEmpty(), "filter recorded resource");
+        File file = File.createTempFile("resourceFilter", ".snapshot");
+        int saved = ResourceFilter.saveSnapshot(file);
+        check(ResourceFilter.loadSnapshot(file) == saved, "snapshot size");
+        check(ResourceFilter.size() == saved && ResourceFilter.contains(proxy), "snapshot content");
+        file.delete();
+        System.out.println("ok");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}